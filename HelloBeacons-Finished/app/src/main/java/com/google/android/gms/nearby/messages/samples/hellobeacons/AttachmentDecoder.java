@@ -0,0 +1,128 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Turns the content of a message attachment into a {@link DecodedAttachment}. Decoders are
+ * registered by namespace and type with an {@link AttachmentDecoderRegistry}.
+ */
+interface AttachmentDecoder {
+    /**
+     * Shows the content as a string, with no fields.
+     */
+    AttachmentDecoder TEXT = new AttachmentDecoder() {
+        @Override
+        public DecodedAttachment decode(byte[] content) {
+            return new DecodedAttachment(new String(content),
+                    Collections.<String, String>emptyMap());
+        }
+    };
+
+    /**
+     * Decodes a JSON object. Each top-level member becomes a field, with nested objects and
+     * arrays kept as JSON text. The display text is the {@code title}, {@code name} or
+     * {@code text} field, whichever comes first, or else the whole JSON text.
+     */
+    AttachmentDecoder JSON = new AttachmentDecoder() {
+        @Override
+        public DecodedAttachment decode(byte[] content) {
+            String text = new String(content);
+            JsonElement root;
+            try {
+                root = new JsonParser().parse(text);
+            } catch (JsonParseException e) {
+                return null;
+            }
+            if (root == null || !root.isJsonObject()) {
+                return null;
+            }
+            Map<String, String> fields = new HashMap<>();
+            for (Map.Entry<String, JsonElement> member : root.getAsJsonObject().entrySet()) {
+                JsonElement value = member.getValue();
+                fields.put(member.getKey(),
+                        value.isJsonPrimitive() ? value.getAsString() : value.toString());
+            }
+            String display = fields.get("title");
+            if (display == null) {
+                display = fields.get("name");
+            }
+            if (display == null) {
+                display = fields.get("text");
+            }
+            return new DecodedAttachment(display != null ? display : text, fields);
+        }
+    };
+
+    /**
+     * Decodes an absolute URL into {@code url}, {@code scheme}, {@code host} and {@code path}
+     * fields plus one field per query parameter. The display text is the URL.
+     */
+    AttachmentDecoder URL = new AttachmentDecoder() {
+        @Override
+        public DecodedAttachment decode(byte[] content) {
+            String text = new String(content).trim();
+            URI uri;
+            try {
+                uri = new URI(text);
+            } catch (URISyntaxException e) {
+                return null;
+            }
+            if (!uri.isAbsolute() || uri.getHost() == null) {
+                return null;
+            }
+            Map<String, String> fields = new HashMap<>();
+            String query = uri.getRawQuery();
+            if (query != null) {
+                for (String parameter : query.split("&")) {
+                    int equals = parameter.indexOf('=');
+                    try {
+                        fields.put(URLDecoder.decode(equals < 0 ? parameter
+                                        : parameter.substring(0, equals), "UTF-8"),
+                                equals < 0 ? "" : URLDecoder.decode(
+                                        parameter.substring(equals + 1), "UTF-8"));
+                    } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+                        // Skip a malformed parameter rather than rejecting the URL.
+                    }
+                }
+            }
+            fields.put("url", text);
+            fields.put("scheme", uri.getScheme());
+            fields.put("host", uri.getHost());
+            fields.put("path", uri.getPath() != null ? uri.getPath() : "");
+            return new DecodedAttachment(text, fields);
+        }
+    };
+
+    /**
+     * Decodes attachment content.
+     *
+     * @return The decoded attachment, or null if the content is not in this decoder's format.
+     */
+    DecodedAttachment decode(byte[] content);
+}
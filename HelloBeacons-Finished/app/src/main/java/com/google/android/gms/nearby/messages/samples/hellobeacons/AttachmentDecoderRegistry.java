@@ -0,0 +1,260 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Maps attachment namespaces and types to {@link AttachmentDecoder}s, and decodes attachments
+ * lazily, at most once each.
+ * <p/>
+ * Found events only register the raw content in a bounded LRU cache keyed by the message as the
+ * {@link MessageStore} keeps it, {@link BeaconEvent#text}, so that stored rows find their
+ * attachment whatever its content; it is decoded the first time the UI or a rule asks for it, and
+ * the result is kept in the same entry, so repeat sightings and repeat reads never re-parse.
+ * Decoders are looked up by exact namespace and type first, then by namespace alone, then by type
+ * alone, and content that no decoder accepts falls back to {@link AttachmentDecoder#TEXT}.
+ * <p/>
+ * The store keeps neither content nor type, so a message found before the process started could
+ * not be decoded again. Display texts that differ from the message are therefore also written,
+ * on a background executor, to {@link MessageAnnotations}, and shown for stored messages that are
+ * not in the cache. {@link #trim()} forgets every attachment; they are remembered again as they
+ * are next found.
+ */
+final class AttachmentDecoderRegistry implements BeaconEventDispatcher.Listener,
+        CacheManager.Trimmable {
+    private static final String ANY = "\u0000*";
+
+    private static final class CachedAttachment {
+        final String namespace;
+        final String type;
+        final byte[] content;
+        DecodedAttachment decoded;
+
+        CachedAttachment(String namespace, String type, byte[] content) {
+            this.namespace = namespace;
+            this.type = type;
+            this.content = content;
+        }
+    }
+
+    private final Map<String, Map<String, AttachmentDecoder>> mDecoders = new HashMap<>();
+    private final LinkedHashMap<String, CachedAttachment> mCache;
+    private final MessageAnnotations mDisplayTexts;
+    private final Executor mWriteExecutor;
+
+    private long mDecodeCount;
+    private long mHitCount;
+
+    /**
+     * @param maxCachedAttachments How many attachments to remember, decoded or not.
+     * @param displayTexts         Where display texts are kept across restarts.
+     * @param writeExecutor        Runs writes to {@code displayTexts}.
+     */
+    AttachmentDecoderRegistry(final int maxCachedAttachments, MessageAnnotations displayTexts,
+                              Executor writeExecutor) {
+        mCache = new LinkedHashMap<String, CachedAttachment>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedAttachment> eldest) {
+                return size() > maxCachedAttachments;
+            }
+        };
+        mDisplayTexts = displayTexts;
+        mWriteExecutor = writeExecutor;
+    }
+
+    /**
+     * Registers the decoder for a namespace and type. A null type registers it for every type in
+     * the namespace that has no decoder of its own, and a null namespace registers it for the type
+     * in every namespace that has no decoder for it.
+     */
+    synchronized void register(String namespace, String type, AttachmentDecoder decoder) {
+        String key = namespace == null ? ANY : namespace;
+        Map<String, AttachmentDecoder> byType = mDecoders.get(key);
+        if (byType == null) {
+            byType = new HashMap<>();
+            mDecoders.put(key, byType);
+        }
+        byType.put(type == null ? ANY : type, decoder);
+        // Attachments decoded with the old mapping decode again on next use.
+        for (CachedAttachment entry : mCache.values()) {
+            entry.decoded = null;
+        }
+    }
+
+    @Override
+    public void onBeaconEvent(BeaconEvent event) {
+        remember(event);
+    }
+
+    /**
+     * Remembers an attachment without decoding it.
+     */
+    synchronized void remember(BeaconEvent event) {
+        // get() rather than containsKey() so that a repeat sighting counts as a use.
+        if (mCache.get(event.text) == null) {
+            mCache.put(event.text,
+                    new CachedAttachment(event.namespace, event.type, event.content));
+        }
+    }
+
+    /**
+     * Decodes the attachment of an event, or returns the result of decoding it before.
+     */
+    DecodedAttachment decode(BeaconEvent event) {
+        remember(event);
+        return decode(event.text);
+    }
+
+    /**
+     * Decodes the remembered attachment of a stored message, or returns the result of decoding it
+     * before. The parse runs outside the lock, so a slow attachment never holds up the dispatch
+     * thread remembering new ones; two threads decoding the same attachment at once may both
+     * parse it, and the first result is kept.
+     *
+     * @return The decoded attachment, or null if the message has not been found recently enough.
+     */
+    DecodedAttachment decode(final String message) {
+        CachedAttachment entry;
+        AttachmentDecoder decoder;
+        synchronized (this) {
+            entry = mCache.get(message);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.decoded != null) {
+                mHitCount++;
+                return entry.decoded;
+            }
+            mDecodeCount++;
+            decoder = find(entry.namespace, entry.type);
+        }
+        DecodedAttachment decoded = null;
+        if (decoder != null) {
+            decoded = decoder.decode(entry.content);
+        }
+        if (decoded == null) {
+            decoded = AttachmentDecoder.TEXT.decode(entry.content);
+        }
+        synchronized (this) {
+            if (entry.decoded != null) {
+                return entry.decoded;
+            }
+            entry.decoded = decoded;
+        }
+        final String displayText = decoded.getDisplayText();
+        if (!displayText.equals(message)) {
+            mWriteExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mDisplayTexts.put(message, displayText);
+                }
+            });
+        }
+        return decoded;
+    }
+
+    /**
+     * Returns the text to show for a stored message: its decoded attachment if it has been found
+     * recently enough, or else what it last decoded to, or else the message as stored. Never
+     * touches storage, so it is safe to call while binding rows; until
+     * {@link #retainDisplayTexts(Collection)} has read the stored display texts, messages not in
+     * the cache show as stored.
+     */
+    String getDisplayText(String message) {
+        DecodedAttachment attachment = decode(message);
+        if (attachment != null) {
+            return attachment.getDisplayText();
+        }
+        String displayText = mDisplayTexts.get(message);
+        return displayText != null ? displayText : message;
+    }
+
+    /**
+     * Forgets the display texts of messages no longer stored, and reads the rest if they have not
+     * been read yet. Touches storage, so call it off the main thread.
+     *
+     * @param messages The stored messages, as in {@link MessageAnnotations#retain(Collection)}.
+     */
+    void retainDisplayTexts(Collection<String> messages) {
+        mDisplayTexts.retain(messages);
+    }
+
+    /**
+     * Reads the stored display texts if they have not been read yet. Touches storage, so call it
+     * off the main thread.
+     */
+    void loadDisplayTexts() {
+        mDisplayTexts.load();
+    }
+
+    /**
+     * Returns how many attachments were parsed.
+     */
+    synchronized long getDecodeCount() {
+        return mDecodeCount;
+    }
+
+    /**
+     * Returns how many reads were served without parsing.
+     */
+    synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    @Override
+    public synchronized long getSizeBytes() {
+        long size = 0;
+        for (CachedAttachment entry : mCache.values()) {
+            // Namespace and type strings are shared with the events.
+            size += 4 * CacheManager.OBJECT_BYTES + entry.content.length;
+            if (entry.decoded != null) {
+                size += 2 * CacheManager.OBJECT_BYTES
+                        + CacheManager.stringBytes(entry.decoded.getDisplayText());
+                for (Map.Entry<String, String> field : entry.decoded.getFields().entrySet()) {
+                    size += CacheManager.OBJECT_BYTES + CacheManager.stringBytes(field.getKey())
+                            + CacheManager.stringBytes(field.getValue());
+                }
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public synchronized void trim() {
+        mCache.clear();
+    }
+
+    private AttachmentDecoder find(String namespace, String type) {
+        Map<String, AttachmentDecoder> byType = mDecoders.get(namespace);
+        if (byType != null) {
+            AttachmentDecoder decoder = byType.get(type);
+            if (decoder == null) {
+                decoder = byType.get(ANY);
+            }
+            if (decoder != null) {
+                return decoder;
+            }
+        }
+        byType = mDecoders.get(ANY);
+        return byType == null ? null : byType.get(type);
+    }
+}
@@ -0,0 +1,264 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import android.annotation.TargetApi;
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+import android.hardware.TriggerEvent;
+import android.hardware.TriggerEventListener;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.nearby.Nearby;
+import com.google.android.gms.nearby.messages.MessagesOptions;
+import com.google.android.gms.nearby.messages.NearbyPermissions;
+import com.google.android.gms.nearby.messages.Strategy;
+import com.google.android.gms.nearby.messages.SubscribeOptions;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a {@link ScanDutyCycler} against the background subscription that {@link MainActivity}
+ * starts, using the significant motion sensor (where there is one) to tell when the device is
+ * still.
+ * <p/>
+ * Nearby does not expose a scan rate, so the duty cycle is applied by unsubscribing and
+ * resubscribing the same {@link android.app.PendingIntent}. This keeps its own
+ * {@link GoogleApiClient}, since the activity's client only lives while the activity does. All
+ * work happens on a dedicated thread, because connecting and awaiting results block.
+ * <p/>
+ * While the subscription is off, an alarm is kept set {@link #MAX_UNSUBSCRIBED_MILLIS} ahead,
+ * and pushed back each time the policy is evaluated. If the process dies while the subscription is
+ * off, nothing pushes it back, and when it goes off {@link BackgroundSubscribeIntentService} calls
+ * {@link #resume()} in a new process, so scanning is never left off for longer than that.
+ */
+final class BackgroundScanController implements ScanDutyCycler.SubscriptionController {
+    private static final String TAG = BackgroundScanController.class.getSimpleName();
+
+    private static final long IDLE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(2);
+    private static final long STATIONARY_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final long PROBE_WINDOW_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    private static final long PROBE_PERIOD_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final long CONNECT_TIMEOUT_SECONDS = 30;
+    private static final long MAX_UNSUBSCRIBED_MILLIS = TimeUnit.MINUTES.toMillis(15);
+
+    private final Context mContext;
+    private final AlarmManager mAlarmManager;
+    private final Clock mClock;
+    private final ScanDutyCycler mCycler;
+    private final Handler mHandler;
+    private final GoogleApiClient mGoogleApiClient;
+    private final MotionTrigger mMotionTrigger;
+    private boolean mStarted = false;
+
+    private final Runnable mEvaluate = new Runnable() {
+        @Override
+        public void run() {
+            scheduleEvaluation(mCycler.evaluate(mClock.nowMillis()));
+        }
+    };
+
+    BackgroundScanController(Context context, Clock clock) {
+        mContext = context.getApplicationContext();
+        mAlarmManager = (AlarmManager) mContext.getSystemService(Context.ALARM_SERVICE);
+        mClock = clock;
+        mCycler = new ScanDutyCycler(this, IDLE_TIMEOUT_MILLIS, STATIONARY_TIMEOUT_MILLIS,
+                PROBE_WINDOW_MILLIS, PROBE_PERIOD_MILLIS);
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+        mGoogleApiClient = new GoogleApiClient.Builder(mContext)
+                .addApi(Nearby.MESSAGES_API, new MessagesOptions.Builder()
+                        .setPermissions(NearbyPermissions.BLE).build())
+                .build();
+
+        SensorManager sensorManager =
+                (SensorManager) mContext.getSystemService(Context.SENSOR_SERVICE);
+        Sensor sensor = null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2 && sensorManager != null) {
+            sensor = sensorManager.getDefaultSensor(Sensor.TYPE_SIGNIFICANT_MOTION);
+        }
+        mMotionTrigger = sensor == null ? null : new MotionTrigger(sensorManager, sensor);
+        mCycler.setMotionSensorAvailable(mMotionTrigger != null);
+    }
+
+    /**
+     * Starts duty cycling, once the activity has subscribed. Later calls have no effect.
+     */
+    void start() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mStarted) {
+                    return;
+                }
+                mStarted = true;
+                if (mMotionTrigger != null) {
+                    mMotionTrigger.arm();
+                }
+                scheduleEvaluation(mCycler.start(mClock.nowMillis()));
+            }
+        });
+    }
+
+    /**
+     * Returns to continuous scanning, resubscribing if needed, and starts duty cycling if it was
+     * not running: after the resume alarm restarted the process, or when the activity finds it
+     * subscribed already.
+     */
+    void resume() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mStarted) {
+                    mStarted = true;
+                    if (mMotionTrigger != null) {
+                        mMotionTrigger.arm();
+                    }
+                }
+                scheduleEvaluation(mCycler.resume(mClock.nowMillis()));
+            }
+        });
+    }
+
+    /**
+     * Called for every found message, on any thread.
+     */
+    void onFound() {
+        final long now = mClock.nowMillis();
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mStarted) {
+                    mCycler.onFound(now);
+                    scheduleEvaluation(mCycler.evaluate(now));
+                }
+            }
+        });
+    }
+
+    ScanDutyCycler.Mode getMode() {
+        return mCycler.getMode();
+    }
+
+    long getScanTimeSavedMillis() {
+        return mCycler.getScanTimeSavedMillis(mClock.nowMillis());
+    }
+
+    double getScanTimeSavedFraction() {
+        return mCycler.getScanTimeSavedFraction(mClock.nowMillis());
+    }
+
+    @Override
+    public void subscribe() {
+        if (!connect()) {
+            return;
+        }
+        SubscribeOptions options = new SubscribeOptions.Builder()
+                .setStrategy(Strategy.BLE_ONLY)
+                .build();
+        logResult("resume", Nearby.Messages.subscribe(mGoogleApiClient,
+                Utils.getSubscribePendingIntent(mContext), options)
+                .await(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Override
+    public void unsubscribe() {
+        if (!connect()) {
+            return;
+        }
+        logResult("pause", Nearby.Messages.unsubscribe(mGoogleApiClient,
+                Utils.getSubscribePendingIntent(mContext))
+                .await(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        Log.i(TAG, "Scan time saved: " + getScanTimeSavedMillis() + " ms ("
+                + Math.round(getScanTimeSavedFraction() * 100) + "%)");
+    }
+
+    private boolean connect() {
+        if (mGoogleApiClient.isConnected()) {
+            return true;
+        }
+        ConnectionResult result =
+                mGoogleApiClient.blockingConnect(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        if (!result.isSuccess()) {
+            Log.w(TAG, "Could not connect to Google Play services: " + result.getErrorMessage());
+            return false;
+        }
+        return true;
+    }
+
+    private void scheduleEvaluation(long delayMillis) {
+        mHandler.removeCallbacks(mEvaluate);
+        mHandler.postDelayed(mEvaluate, delayMillis);
+        PendingIntent resume = Utils.getResumeScanPendingIntent(mContext);
+        if (mCycler.isSubscribed()) {
+            mAlarmManager.cancel(resume);
+        } else {
+            mAlarmManager.set(AlarmManager.ELAPSED_REALTIME,
+                    SystemClock.elapsedRealtime() + MAX_UNSUBSCRIBED_MILLIS, resume);
+        }
+    }
+
+    private static void logResult(String operation, Status status) {
+        if (!status.isSuccess()) {
+            Log.w(TAG, "Could not " + operation + " subscription: " + status.getStatusCode());
+        }
+    }
+
+    /**
+     * Reports significant motion to the cycler. The sensor is one-shot, so it is re-armed after
+     * every trigger.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private final class MotionTrigger extends TriggerEventListener {
+        private final SensorManager mSensorManager;
+        private final Sensor mSensor;
+
+        MotionTrigger(SensorManager sensorManager, Sensor sensor) {
+            mSensorManager = sensorManager;
+            mSensor = sensor;
+        }
+
+        void arm() {
+            mSensorManager.requestTriggerSensor(this, mSensor);
+        }
+
+        @Override
+        public void onTrigger(TriggerEvent event) {
+            final long now = mClock.nowMillis();
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mCycler.onMotion(now);
+                    scheduleEvaluation(mCycler.evaluate(now));
+                    arm();
+                }
+            });
+        }
+    }
+}
@@ -21,70 +21,114 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
+import android.os.SystemClock;
 import android.support.v4.app.NotificationCompat;
-import android.text.TextUtils;
+import android.util.Log;
 
 import com.google.android.gms.nearby.Nearby;
 import com.google.android.gms.nearby.messages.Message;
 import com.google.android.gms.nearby.messages.MessageListener;
 
-import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 /**
  * While subscribed in the background, this service shows a persistent notification with the
  * current set of messages from nearby beacons. Nearby launches this service when a message is
- * found or lost, and this service updates the notification, then stops itself.
+ * found or lost, and this service updates the notification from its worker thread, then stops
+ * itself. It is also started by the alarm that resumes scanning after the process died while
+ * the subscription was off.
+ * <p/>
+ * Nothing is rendered on the main thread, so a cold start of the service never waits there on
+ * the stored messages being read. The first notification of each process logs how long after
+ * process start it was posted.
  */
 public class BackgroundSubscribeIntentService extends IntentService {
     private static final String TAG = "BackSubIntentService";
 
     private static final int MESSAGES_NOTIFICATION_ID = 1;
-    private static final int NUM_MESSAGES_IN_NOTIFICATION = 5;
+
+    static final String ACTION_RESUME_SCAN =
+            "com.google.android.gms.nearby.messages.samples.hellobeacons.RESUME_SCAN";
+
+    private static final AtomicBoolean sFirstPosted = new AtomicBoolean();
 
     public BackgroundSubscribeIntentService() {
         super("BackgroundSubscribeIntentService");
     }
 
+    /**
+     * Parses the Nearby intent on the main thread and offers its events to the
+     * {@link EventAdmissionController}, so that a flood of events is bounded and coalesced before
+     * any of them reaches the store. The intent queued for {@link #onHandleIntent(Intent)} is then
+     * only a wakeup to drain the controller.
+     */
     @Override
-    public void onCreate() {
-        super.onCreate();
-        updateNotification();
-    }
-
-    @Override
-    protected void onHandleIntent(Intent intent) {
-        if (intent != null) {
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_RESUME_SCAN.equals(intent.getAction())) {
+            Utils.getBackgroundScanController(this).resume();
+        } else if (intent != null) {
             Nearby.Messages.handleIntent(intent, new MessageListener() {
                 @Override
                 public void onFound(Message message) {
-                    Utils.saveFoundMessage(getApplicationContext(), message);
-                    updateNotification();
+                    admit(message, BeaconEvent.KIND_FOUND);
                 }
 
                 @Override
                 public void onLost(Message message) {
-                    Utils.removeLostMessage(getApplicationContext(), message);
-                    updateNotification();
+                    admit(message, BeaconEvent.KIND_LOST);
                 }
             });
         }
+        return super.onStartCommand(null, flags, startId);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        EventAdmissionController admission = Utils.getEventAdmissionController();
+        long shedBefore = admission.getShedCount() + admission.getRateLimitedCount();
+        int handled = new EventDrain(admission, Utils.getBeaconEventDispatcher(),
+                Utils.getFlightRecorder(), Utils.getNotificationScheduler(getApplicationContext()))
+                .drain();
+        if (handled == 0) {
+            // Started without events, as when resuming scanning: still show the notification.
+            updateNotification();
+        }
+        if (admission.getShedCount() + admission.getRateLimitedCount() != shedBefore) {
+            Log.w(TAG, "Shedding events: " + admission.getStats());
+        }
+    }
+
+    private static void admit(Message message, byte kind) {
+        Utils.getEventAdmissionController().offer(new BeaconEvent(kind, message.getNamespace(),
+                message.getType(), message.getContent(), System.currentTimeMillis()));
     }
 
     private void updateNotification() {
-        List<String> messages = Utils.getCachedMessages(getApplicationContext());
+        Utils.getNotificationScheduler(getApplicationContext()).requestUpdate();
+    }
+
+    /**
+     * Builds and posts the notification for the messages currently present. This renders the
+     * messages, loading them from storage if need be, so it never runs on the main thread. The
+     * first post in a process logs how long it came after the process started.
+     *
+     * @param context The application context.
+     */
+    static void postNotification(Context context) {
+        NotificationRenderer renderer = Utils.getNotificationRenderer(context);
         NotificationManager notificationManager =
-                (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-        Intent launchIntent = new Intent(getApplicationContext(), MainActivity.class);
+                (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+        Intent launchIntent = new Intent(context, MainActivity.class);
         launchIntent.setAction(Intent.ACTION_MAIN);
         launchIntent.addCategory(Intent.CATEGORY_LAUNCHER);
-        PendingIntent pi = PendingIntent.getActivity(getApplicationContext(), 0,
+        PendingIntent pi = PendingIntent.getActivity(context, 0,
                 launchIntent, PendingIntent.FLAG_UPDATE_CURRENT);
 
-        String contentTitle = getContentTitle(messages);
-        String contentText = getContentText(messages);
+        String contentTitle = getContentTitle(context, renderer.getCount());
+        String contentText = renderer.renderText();
 
-        NotificationCompat.Builder notificationBuilder = new NotificationCompat.Builder(this)
+        NotificationCompat.Builder notificationBuilder = new NotificationCompat.Builder(context)
                 .setSmallIcon(android.R.drawable.star_on)
                 .setContentTitle(contentTitle)
                 .setContentText(contentText)
@@ -92,25 +136,21 @@ public class BackgroundSubscribeIntentService extends IntentService {
                 .setOngoing(true)
                 .setContentIntent(pi);
         notificationManager.notify(MESSAGES_NOTIFICATION_ID, notificationBuilder.build());
+        if (sFirstPosted.compareAndSet(false, true)) {
+            Log.i(TAG, "Time to first notification: "
+                    + (SystemClock.elapsedRealtime() - HelloBeaconsApplication.getCreatedMillis())
+                    + " ms");
+        }
     }
 
-    private String getContentTitle(List<String> messages) {
-        switch (messages.size()) {
+    private static String getContentTitle(Context context, int count) {
+        switch (count) {
             case 0:
-                return getResources().getString(R.string.scanning);
+                return context.getResources().getString(R.string.scanning);
             case 1:
-                return getResources().getString(R.string.one_message);
+                return context.getResources().getString(R.string.one_message);
             default:
-                return getResources().getString(R.string.many_messages, messages.size());
-        }
-    }
-
-    private String getContentText(List<String> messages) {
-        String newline = System.getProperty("line.separator");
-        if (messages.size() < NUM_MESSAGES_IN_NOTIFICATION) {
-            return TextUtils.join(newline, messages);
+                return context.getResources().getString(R.string.many_messages, count);
         }
-        return TextUtils.join(newline, messages.subList(0, NUM_MESSAGES_IN_NOTIFICATION)) +
-                newline + "&#8230;";
     }
 }
@@ -0,0 +1,49 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+/**
+ * A source of time, so that time-based policies can be driven by a fake clock.
+ */
+interface Clock {
+    /**
+     * A monotonic clock backed by {@link System#nanoTime()}. Only differences between its values
+     * are meaningful, and only within one process.
+     */
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long nowMillis() {
+            return System.nanoTime() / 1000000;
+        }
+    };
+
+    /**
+     * The wall clock, backed by {@link System#currentTimeMillis()}, for times that are persisted
+     * and compared across processes.
+     */
+    Clock WALL = new Clock() {
+        @Override
+        public long nowMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    /**
+     * Returns the current time in milliseconds.
+     */
+    long nowMillis();
+}
@@ -0,0 +1,321 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A size-bounded, least recently used cache of fetched content on disk, one file per entry.
+ * <p/>
+ * Each file holds the content with the validators needed to revalidate it over HTTP (ETag and
+ * Last-Modified), the time it was fetched, and a CRC32 of the content. Entries are written to a
+ * temporary file and renamed into place, so a crash never leaves a partial entry, and reads check
+ * the length and checksum, so a corrupted entry is dropped rather than served. The LRU order and
+ * sizes are kept in memory, rebuilt from file modification times when the cache is opened.
+ * <p/>
+ * Only that in-memory index is locked; files are read, written and deleted outside the lock, so a
+ * slow read never holds up other callers. Every write goes to a file of its own, named by the
+ * key's hash and a generation number, so a reader or a deletion only ever touches the file of the
+ * entry it looked up, never one that replaced it.
+ */
+final class ContentDiskCache {
+    private static final int MAGIC = 0x434e5431;
+    private static final String TMP_SUFFIX = ".tmp";
+
+    /**
+     * A cached response.
+     */
+    static final class Entry {
+        final byte[] content;
+        final String etag;
+        final String lastModified;
+        final long fetchedMillis;
+
+        Entry(byte[] content, String etag, String lastModified, long fetchedMillis) {
+            this.content = content;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.fetchedMillis = fetchedMillis;
+        }
+    }
+
+    /**
+     * The file holding the current entry for a key, and its size.
+     */
+    private static final class Slot {
+        final String fileName;
+        final long bytes;
+
+        Slot(String fileName, long bytes) {
+            this.fileName = fileName;
+            this.bytes = bytes;
+        }
+    }
+
+    private final File mDir;
+    private final long mMaxBytes;
+
+    /**
+     * Slots keyed by key hash, least recently used first.
+     */
+    private final LinkedHashMap<String, Slot> mSlots = new LinkedHashMap<>(16, 0.75f, true);
+    private long mTotalBytes;
+    private long mNextGeneration;
+
+    ContentDiskCache(File dir, long maxBytes) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        mDir = dir;
+        mMaxBytes = maxBytes;
+        File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IOException("Could not list " + dir);
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        List<File> stale = new ArrayList<>();
+        for (File file : files) {
+            String fileName = file.getName();
+            if (fileName.endsWith(TMP_SUFFIX)) {
+                stale.add(file);
+                continue;
+            }
+            int dot = fileName.indexOf('.');
+            if (dot >= 0) {
+                try {
+                    mNextGeneration = Math.max(mNextGeneration,
+                            Long.parseLong(fileName.substring(dot + 1), 16) + 1);
+                } catch (NumberFormatException e) {
+                    stale.add(file);
+                    continue;
+                }
+            }
+            // A crash between writing an entry and deleting the one it replaced leaves both;
+            // the newer one wins.
+            String name = dot < 0 ? fileName : fileName.substring(0, dot);
+            Slot previous = mSlots.put(name, new Slot(fileName, file.length()));
+            mTotalBytes += file.length();
+            if (previous != null) {
+                mTotalBytes -= previous.bytes;
+                stale.add(new File(dir, previous.fileName));
+            }
+        }
+        trim(stale);
+        delete(stale);
+    }
+
+    /**
+     * Returns the cached content for a key, or null if it is absent or fails validation.
+     */
+    Entry get(String key) {
+        String name = keyName(key);
+        Slot slot = lookUp(name);
+        if (slot == null) {
+            return null;
+        }
+        File file = new File(mDir, slot.fileName);
+        try {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("Bad magic");
+                }
+                long fetchedMillis = in.readLong();
+                String etag = readNullable(in);
+                String lastModified = readNullable(in);
+                int length = in.readInt();
+                long crc = in.readLong();
+                if (length < 0 || length > file.length()) {
+                    throw new IOException("Bad length");
+                }
+                byte[] content = new byte[length];
+                in.readFully(content);
+                CRC32 check = new CRC32();
+                check.update(content);
+                if (check.getValue() != crc || in.read() != -1) {
+                    throw new IOException("Checksum mismatch");
+                }
+                return new Entry(content, etag, lastModified, fetchedMillis);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // Corrupt, or evicted since it was looked up.
+            discard(name, slot);
+            return null;
+        }
+    }
+
+    /**
+     * Stores content for a key, replacing any previous entry, and evicts least recently used
+     * entries until the cache fits its budget. Content larger than the whole budget is not kept.
+     */
+    void put(String key, Entry entry) throws IOException {
+        String name = keyName(key);
+        long generation;
+        synchronized (this) {
+            generation = mNextGeneration++;
+        }
+        String fileName = name + "." + Long.toHexString(generation);
+        File file = new File(mDir, fileName);
+        File tmp = new File(mDir, fileName + TMP_SUFFIX);
+        CRC32 crc = new CRC32();
+        crc.update(entry.content);
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeLong(entry.fetchedMillis);
+            writeNullable(out, entry.etag);
+            writeNullable(out, entry.lastModified);
+            out.writeInt(entry.content.length);
+            out.writeLong(crc.getValue());
+            out.write(entry.content);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Could not rename " + tmp);
+        }
+        long bytes = file.length();
+        List<File> evicted = new ArrayList<>();
+        synchronized (this) {
+            Slot previous = mSlots.put(name, new Slot(fileName, bytes));
+            mTotalBytes += bytes;
+            if (previous != null) {
+                mTotalBytes -= previous.bytes;
+                evicted.add(new File(mDir, previous.fileName));
+            }
+            trim(evicted);
+        }
+        delete(evicted);
+    }
+
+    /**
+     * Returns when the content for a key was fetched, reading only the entry's header, or -1 if
+     * it is absent.
+     */
+    long getFetchedMillis(String key) {
+        String name = keyName(key);
+        Slot slot = lookUp(name);
+        if (slot == null) {
+            return -1;
+        }
+        try {
+            DataInputStream in = new DataInputStream(
+                    new FileInputStream(new File(mDir, slot.fileName)));
+            try {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("Bad magic");
+                }
+                return in.readLong();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            discard(name, slot);
+            return -1;
+        }
+    }
+
+    synchronized long getSizeBytes() {
+        return mTotalBytes;
+    }
+
+    synchronized int getEntryCount() {
+        return mSlots.size();
+    }
+
+    private synchronized Slot lookUp(String name) {
+        return mSlots.get(name);
+    }
+
+    /**
+     * Drops the entry in {@code slot} if it is still the current one for {@code name}, and deletes
+     * its file.
+     */
+    private void discard(String name, Slot slot) {
+        synchronized (this) {
+            if (mSlots.get(name) == slot) {
+                mSlots.remove(name);
+                mTotalBytes -= slot.bytes;
+            }
+        }
+        new File(mDir, slot.fileName).delete();
+    }
+
+    /**
+     * Evicts least recently used entries until the cache fits its budget, adding their files to
+     * {@code evicted} for deletion once the lock is released.
+     */
+    private void trim(List<File> evicted) {
+        Iterator<Slot> it = mSlots.values().iterator();
+        while (mTotalBytes > mMaxBytes && it.hasNext()) {
+            Slot eldest = it.next();
+            evicted.add(new File(mDir, eldest.fileName));
+            mTotalBytes -= eldest.bytes;
+            it.remove();
+        }
+    }
+
+    private static void delete(List<File> files) {
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    /**
+     * Names the files for a key by a hash of it, since keys such as URLs are not valid file names.
+     */
+    private static String keyName(String key) {
+        return Long.toHexString(BeaconEvent.payloadHash(key.getBytes()));
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
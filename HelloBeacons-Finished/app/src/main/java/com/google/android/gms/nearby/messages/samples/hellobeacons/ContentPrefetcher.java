@@ -0,0 +1,318 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fetches content referenced by attachments into a {@link ContentDiskCache} ahead of the user
+ * opening it.
+ * <p/>
+ * Prefetches run on a fixed number of threads, most recently requested first, since the newest
+ * sighting is the one most likely to be tapped. Each URL is fetched at most once at a time: a
+ * {@link #get(String)} for a URL already being prefetched waits for that fetch instead of
+ * starting another. Cached content older than the freshness period is revalidated with a
+ * conditional request, so unchanged content is not downloaded again.
+ */
+final class ContentPrefetcher {
+    /**
+     * Fetches content over the network. Implementations may be pointed at a local stand-in.
+     */
+    interface Fetcher {
+        /**
+         * Fetches a URL, conditionally if validators are given.
+         *
+         * @return The response, with a null body if the server reported it unchanged.
+         * @throws IOException if the content could not be fetched.
+         */
+        Response fetch(String url, String etag, String lastModified) throws IOException;
+    }
+
+    static final class Response {
+        final byte[] body;
+        final String etag;
+        final String lastModified;
+
+        Response(byte[] body, String etag, String lastModified) {
+            this.body = body;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * Fetches over {@link HttpURLConnection}, refusing content over a size limit.
+     */
+    static final class HttpFetcher implements Fetcher {
+        static final int CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+        static final int READ_TIMEOUT_MILLIS = 30 * 1000;
+
+        private final int mMaxBytes;
+
+        HttpFetcher(int maxBytes) {
+            mMaxBytes = maxBytes;
+        }
+
+        @Override
+        public Response fetch(String url, String etag, String lastModified) throws IOException {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            try {
+                connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+                connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+                if (etag != null) {
+                    connection.setRequestProperty("If-None-Match", etag);
+                }
+                if (lastModified != null) {
+                    connection.setRequestProperty("If-Modified-Since", lastModified);
+                }
+                int code = connection.getResponseCode();
+                if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    return new Response(null, etag, lastModified);
+                }
+                if (code < 200 || code >= 300) {
+                    throw new IOException("HTTP " + code + " for " + url);
+                }
+                if (connection.getContentLength() > mMaxBytes) {
+                    throw new IOException("Content too large: " + url);
+                }
+                InputStream in = connection.getInputStream();
+                try {
+                    ByteArrayOutputStream body = new ByteArrayOutputStream();
+                    byte[] buffer = new byte[8192];
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        body.write(buffer, 0, read);
+                        if (body.size() > mMaxBytes) {
+                            throw new IOException("Content too large: " + url);
+                        }
+                    }
+                    return new Response(body.toByteArray(), connection.getHeaderField("ETag"),
+                            connection.getHeaderField("Last-Modified"));
+                } finally {
+                    in.close();
+                }
+            } finally {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * A fetch of one URL, ordered newest first in the executor's queue.
+     */
+    private final class Task implements Runnable, Comparable<Task> {
+        final String url;
+        final long sequence;
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile ContentDiskCache.Entry result;
+
+        Task(String url, long sequence) {
+            this.url = url;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            try {
+                result = load(url);
+            } finally {
+                synchronized (mInFlight) {
+                    mInFlight.remove(url);
+                }
+                done.countDown();
+            }
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            return sequence > other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * How long {@link #get(String)} waits for a prefetch of the same URL: as long as an
+     * {@link HttpFetcher} fetch may take, after which the prefetch has failed anyway.
+     */
+    static final long MAX_WAIT_MILLIS =
+            HttpFetcher.CONNECT_TIMEOUT_MILLIS + HttpFetcher.READ_TIMEOUT_MILLIS;
+
+    private final ContentDiskCache mCache;
+    private final Fetcher mFetcher;
+    private final Clock mClock;
+    private final long mFreshMillis;
+    private final int mMaxPending;
+    private final ThreadPoolExecutor mExecutor;
+    private final long mMaxWaitMillis;
+
+    private final Map<String, Task> mInFlight = new HashMap<>();
+    private final AtomicLong mSequence = new AtomicLong();
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mFetches = new AtomicLong();
+    private final AtomicLong mRevalidations = new AtomicLong();
+    private final AtomicLong mFailures = new AtomicLong();
+    private final AtomicLong mSkipped = new AtomicLong();
+
+    /**
+     * @param cache       Where fetched content is kept.
+     * @param fetcher     Fetches content over the network.
+     * @param clock       The wall clock, since fetch times are persisted.
+     * @param freshMillis How long cached content is served without revalidating it.
+     * @param threads     The most fetches in progress at once.
+     * @param maxPending  The most prefetches waiting for a thread; beyond this, new requests
+     *                    are skipped.
+     */
+    ContentPrefetcher(ContentDiskCache cache, Fetcher fetcher, Clock clock, long freshMillis,
+                      int threads, int maxPending) {
+        this(cache, fetcher, clock, freshMillis, threads, maxPending, MAX_WAIT_MILLIS);
+    }
+
+    /**
+     * @param maxWaitMillis How long {@link #get(String)} waits for a prefetch of the same URL
+     *                      before giving up; at least as long as {@code fetcher} may take.
+     */
+    ContentPrefetcher(ContentDiskCache cache, Fetcher fetcher, Clock clock, long freshMillis,
+                      int threads, int maxPending, long maxWaitMillis) {
+        mCache = cache;
+        mFetcher = fetcher;
+        mClock = clock;
+        mFreshMillis = freshMillis;
+        mMaxPending = maxPending;
+        mMaxWaitMillis = maxWaitMillis;
+        mExecutor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Fetches a URL in the background unless fresh content is already cached.
+     */
+    void prefetch(String url) {
+        long fetchedMillis = mCache.getFetchedMillis(url);
+        if (fetchedMillis >= 0 && isFresh(fetchedMillis)) {
+            return;
+        }
+        synchronized (mInFlight) {
+            if (mInFlight.containsKey(url)) {
+                return;
+            }
+            if (mExecutor.getQueue().size() >= mMaxPending) {
+                mSkipped.incrementAndGet();
+                return;
+            }
+            Task task = new Task(url, mSequence.incrementAndGet());
+            mInFlight.put(url, task);
+            mExecutor.execute(task);
+        }
+    }
+
+    /**
+     * Returns the content of a URL, from the cache if it is there and otherwise by fetching it
+     * now. Blocks, so call it off the main thread: on a prefetch of the same URL for at most the
+     * maximum wait, or else for as long as a fetch may take. Counts towards the hit rate.
+     *
+     * @return The content, or null if it could not be fetched in time.
+     */
+    byte[] get(String url) throws InterruptedException {
+        ContentDiskCache.Entry cached = mCache.get(url);
+        if (cached != null) {
+            mHits.incrementAndGet();
+            if (!isFresh(cached.fetchedMillis)) {
+                prefetch(url);
+            }
+            return cached.content;
+        }
+        mMisses.incrementAndGet();
+        Task task;
+        synchronized (mInFlight) {
+            task = mInFlight.get(url);
+        }
+        if (task != null) {
+            if (!task.done.await(mMaxWaitMillis, TimeUnit.MILLISECONDS)) {
+                mFailures.incrementAndGet();
+                return null;
+            }
+            return task.result == null ? null : task.result.content;
+        }
+        ContentDiskCache.Entry loaded = load(url);
+        return loaded == null ? null : loaded.content;
+    }
+
+    /**
+     * Returns the fraction of {@link #get(String)} calls served from the cache.
+     */
+    double getHitRate() {
+        long hits = mHits.get();
+        long total = hits + mMisses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    String getStats() {
+        return "hitRate=" + Math.round(getHitRate() * 100) + "% hits=" + mHits.get()
+                + " misses=" + mMisses.get() + " fetches=" + mFetches.get()
+                + " revalidations=" + mRevalidations.get() + " failures=" + mFailures.get()
+                + " skipped=" + mSkipped.get() + " cached=" + mCache.getEntryCount() + "/"
+                + mCache.getSizeBytes() + "B";
+    }
+
+    private boolean isFresh(long fetchedMillis) {
+        return mClock.nowMillis() - fetchedMillis < mFreshMillis;
+    }
+
+    /**
+     * Fetches or revalidates a URL and updates the cache.
+     */
+    private ContentDiskCache.Entry load(String url) {
+        ContentDiskCache.Entry cached = mCache.get(url);
+        if (cached != null && isFresh(cached.fetchedMillis)) {
+            return cached;
+        }
+        try {
+            Response response = cached == null ? mFetcher.fetch(url, null, null)
+                    : mFetcher.fetch(url, cached.etag, cached.lastModified);
+            ContentDiskCache.Entry entry;
+            if (response.body == null && cached != null) {
+                mRevalidations.incrementAndGet();
+                entry = new ContentDiskCache.Entry(cached.content, response.etag,
+                        response.lastModified, mClock.nowMillis());
+            } else if (response.body != null) {
+                mFetches.incrementAndGet();
+                entry = new ContentDiskCache.Entry(response.body, response.etag,
+                        response.lastModified, mClock.nowMillis());
+            } else {
+                throw new IOException("Unchanged response without cached content: " + url);
+            }
+            mCache.put(url, entry);
+            return entry;
+        } catch (IOException e) {
+            mFailures.incrementAndGet();
+            return cached;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The fields of a decoded message attachment, and the text to show for it.
+ */
+final class DecodedAttachment {
+    private final String mDisplayText;
+    private final Map<String, String> mFields;
+
+    DecodedAttachment(String displayText, Map<String, String> fields) {
+        mDisplayText = displayText;
+        mFields = Collections.unmodifiableMap(fields);
+    }
+
+    String getDisplayText() {
+        return mDisplayText;
+    }
+
+    /**
+     * Returns the value of a field, or null if the attachment has no such field.
+     */
+    String getField(String name) {
+        return mFields.get(name);
+    }
+
+    Map<String, String> getFields() {
+        return mFields;
+    }
+}
@@ -0,0 +1,298 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded queue of {@link BeaconEvent}s waiting to be dispatched, which sheds load when events
+ * arrive faster than they can be handled.
+ * <p/>
+ * Each payload is capped to a sustained rate: an event that repeats the payload's last admitted
+ * kind (found after found) is dropped once its cap is exhausted. Events that change a payload's
+ * state always pass the cap, so a rate-limited payload is never left stuck as found or lost.
+ * <p/>
+ * When the queue is full, the {@link Policy} decides what to shed, and the {@link ShedListener}
+ * hears about each event shed. Shedding can leave the message cache out of step with what is
+ * really nearby until the payload is seen again. {@link Policy#COALESCE} with
+ * {@link Prioritizer#LOST_FIRST} keeps that to found events unless the queue holds nothing but
+ * pending lost events, one per payload, so it is the safe choice.
+ */
+final class EventAdmissionController {
+    enum Policy {
+        /**
+         * A new event replaces the pending event for the same payload, keeping its place in the
+         * queue. Falls back to {@link #DROP_LOWEST_PRIORITY} for new payloads.
+         */
+        COALESCE,
+        /**
+         * The oldest pending event is dropped.
+         */
+        DROP_OLDEST,
+        /**
+         * The oldest of the pending events with the lowest {@link Prioritizer priority} is
+         * dropped, or the new event itself if it ranks below all of them.
+         */
+        DROP_LOWEST_PRIORITY
+    }
+
+    /**
+     * Ranks events for {@link Policy#DROP_LOWEST_PRIORITY} and {@link Policy#COALESCE}. Higher
+     * values are kept longer.
+     */
+    interface Prioritizer {
+        /**
+         * Ranks lost events above found ones, since shedding a lost event leaves a message
+         * cached that is no longer nearby.
+         */
+        Prioritizer LOST_FIRST = new Prioritizer() {
+            @Override
+            public int priority(BeaconEvent event) {
+                return event.isFound() ? 0 : 1;
+            }
+        };
+
+        int priority(BeaconEvent event);
+    }
+
+    /**
+     * Hears about events shed because the queue was full.
+     */
+    interface ShedListener {
+        /**
+         * Called with the controller's lock held, so it must be quick and must not call back in.
+         */
+        void onShed(BeaconEvent event);
+    }
+
+    private static final class Entry {
+        BeaconEvent event;
+        int priority;
+
+        Entry(BeaconEvent event, int priority) {
+            this.event = event;
+            this.priority = priority;
+        }
+    }
+
+    private static final class PayloadState {
+        final TokenBucket bucket;
+        byte lastKind;
+
+        PayloadState(TokenBucket bucket, byte lastKind) {
+            this.bucket = bucket;
+            this.lastKind = lastKind;
+        }
+    }
+
+    private final int mCapacity;
+    private final Policy mPolicy;
+    private final Prioritizer mPrioritizer;
+    private final ShedListener mShedListener;
+    private final int mPayloadBurst;
+    private final double mPayloadEventsPerSecond;
+    private final Clock mClock;
+
+    private final ArrayDeque<Entry> mQueue;
+
+    /**
+     * Pending entries by payload hash, for {@link Policy#COALESCE}.
+     */
+    private final Map<Long, Entry> mPending = new HashMap<>();
+
+    /**
+     * Rate-cap state for recently seen payloads, least recently seen first.
+     */
+    private final LinkedHashMap<Long, PayloadState> mPayloads;
+
+    private int mMaxDepth;
+    private long mOffered;
+    private long mCoalesced;
+    private long mRateLimited;
+    private long mShed;
+
+    /**
+     * @param capacity               The most events that may be pending.
+     * @param policy                 What to shed when the queue is full.
+     * @param prioritizer            Ranks events for shedding.
+     * @param shedListener           Hears about each event shed.
+     * @param maxTrackedPayloads     How many payloads to keep rate-cap state for.
+     * @param payloadBurst           The most repeated events per payload admitted at once.
+     * @param payloadEventsPerSecond The sustained rate of repeated events per payload.
+     * @param clock                  The source of time for the rate caps.
+     */
+    EventAdmissionController(int capacity, Policy policy, Prioritizer prioritizer,
+                             ShedListener shedListener, final int maxTrackedPayloads,
+                             int payloadBurst, double payloadEventsPerSecond, Clock clock) {
+        mCapacity = capacity;
+        mPolicy = policy;
+        mPrioritizer = prioritizer;
+        mShedListener = shedListener;
+        mPayloadBurst = payloadBurst;
+        mPayloadEventsPerSecond = payloadEventsPerSecond;
+        mClock = clock;
+        mQueue = new ArrayDeque<>(capacity);
+        mPayloads = new LinkedHashMap<Long, PayloadState>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, PayloadState> eldest) {
+                return size() > maxTrackedPayloads;
+            }
+        };
+    }
+
+    /**
+     * Offers an event for dispatch.
+     *
+     * @return true if the event was queued or merged into a pending event, false if it was shed.
+     */
+    synchronized boolean offer(BeaconEvent event) {
+        mOffered++;
+        if (!admitRate(event)) {
+            mRateLimited++;
+            return false;
+        }
+        if (mPolicy == Policy.COALESCE) {
+            Entry pending = mPending.get(event.payloadHash);
+            if (pending != null) {
+                pending.event = event;
+                pending.priority = mPrioritizer.priority(event);
+                mCoalesced++;
+                return true;
+            }
+        }
+        Entry entry = new Entry(event, mPrioritizer.priority(event));
+        if (mQueue.size() >= mCapacity && !makeRoomFor(entry)) {
+            mShed++;
+            mShedListener.onShed(event);
+            return false;
+        }
+        mQueue.addLast(entry);
+        if (mPolicy == Policy.COALESCE) {
+            mPending.put(event.payloadHash, entry);
+        }
+        mMaxDepth = Math.max(mMaxDepth, mQueue.size());
+        return true;
+    }
+
+    /**
+     * Takes the next event to dispatch, in arrival order.
+     *
+     * @return The event, or null if none is pending.
+     */
+    synchronized BeaconEvent poll() {
+        Entry entry = mQueue.pollFirst();
+        if (entry == null) {
+            return null;
+        }
+        if (mPolicy == Policy.COALESCE) {
+            mPending.remove(entry.event.payloadHash);
+        }
+        return entry.event;
+    }
+
+    synchronized int getDepth() {
+        return mQueue.size();
+    }
+
+    synchronized int getMaxDepth() {
+        return mMaxDepth;
+    }
+
+    synchronized long getOfferedCount() {
+        return mOffered;
+    }
+
+    synchronized long getCoalescedCount() {
+        return mCoalesced;
+    }
+
+    synchronized long getRateLimitedCount() {
+        return mRateLimited;
+    }
+
+    /**
+     * Returns how many events were dropped because the queue was full, including pending events
+     * evicted to make room.
+     */
+    synchronized long getShedCount() {
+        return mShed;
+    }
+
+    synchronized String getStats() {
+        return "depth=" + mQueue.size() + " maxDepth=" + mMaxDepth + " offered=" + mOffered
+                + " coalesced=" + mCoalesced + " rateLimited=" + mRateLimited + " shed=" + mShed;
+    }
+
+    private boolean admitRate(BeaconEvent event) {
+        PayloadState state = mPayloads.get(event.payloadHash);
+        if (state == null) {
+            state = new PayloadState(
+                    new TokenBucket(mPayloadBurst, mPayloadEventsPerSecond, mClock), event.kind);
+            mPayloads.put(event.payloadHash, state);
+            state.bucket.tryAcquire();
+            return true;
+        }
+        boolean admitted = state.bucket.tryAcquire() || state.lastKind != event.kind;
+        if (admitted) {
+            state.lastKind = event.kind;
+        }
+        return admitted;
+    }
+
+    /**
+     * Evicts a pending entry to make room for {@code entry}, as the policy dictates.
+     *
+     * @return false if {@code entry} itself should be shed instead.
+     */
+    private boolean makeRoomFor(Entry entry) {
+        Entry victim;
+        if (mPolicy == Policy.DROP_OLDEST) {
+            victim = mQueue.pollFirst();
+        } else {
+            // The queue is small, so a linear scan on overflow is cheaper than keeping a second
+            // index in priority order.
+            victim = null;
+            for (Entry candidate : mQueue) {
+                if (victim == null || candidate.priority < victim.priority) {
+                    victim = candidate;
+                }
+            }
+            if (victim == null || entry.priority < victim.priority) {
+                return false;
+            }
+            for (Iterator<Entry> it = mQueue.iterator(); it.hasNext(); ) {
+                if (it.next() == victim) {
+                    it.remove();
+                    break;
+                }
+            }
+        }
+        if (victim == null) {
+            return false;
+        }
+        if (mPolicy == Policy.COALESCE) {
+            mPending.remove(victim.event.payloadHash);
+        }
+        mShed++;
+        mShedListener.onShed(victim.event);
+        return true;
+    }
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+/**
+ * Hands the events waiting in an {@link EventAdmissionController} to every subscriber registered
+ * with the {@link BeaconEventDispatcher}, as {@link BackgroundSubscribeIntentService} does each
+ * time it is woken. Each event is followed by a request to update the notification, and recorded
+ * in the {@link FlightRecorder} along with how long all of that took.
+ */
+final class EventDrain {
+    private final EventAdmissionController mAdmission;
+    private final BeaconEventDispatcher mDispatcher;
+    private final FlightRecorder mRecorder;
+    private final NotificationScheduler mNotifications;
+
+    EventDrain(EventAdmissionController admission, BeaconEventDispatcher dispatcher,
+               FlightRecorder recorder, NotificationScheduler notifications) {
+        mAdmission = admission;
+        mDispatcher = dispatcher;
+        mRecorder = recorder;
+        mNotifications = notifications;
+    }
+
+    /**
+     * Handles events until none are waiting.
+     *
+     * @return How many events were handled.
+     */
+    int drain() {
+        int handled = 0;
+        BeaconEvent event;
+        while ((event = mAdmission.poll()) != null) {
+            long startNanos = System.nanoTime();
+            mDispatcher.dispatch(event);
+            mNotifications.requestUpdate();
+            int latencyMicros = (int) ((System.nanoTime() - startNanos) / 1000);
+            mRecorder.record(event.timeMillis, event.payloadHash, event.kind, latencyMicros);
+            handled++;
+        }
+        return handled;
+    }
+}
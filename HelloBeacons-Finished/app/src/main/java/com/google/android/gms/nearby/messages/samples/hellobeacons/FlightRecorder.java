@@ -0,0 +1,125 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+
+/**
+ * An always-on, fixed-size ring buffer of the most recent Nearby events, including those shed by
+ * the {@link EventAdmissionController} before they were processed.
+ * <p/>
+ * Each event is a 24-byte record (time, payload hash, kind, processing latency) written with
+ * absolute puts into a preallocated direct {@link ByteBuffer}, so recording never allocates. Once
+ * the buffer is full, the oldest records are overwritten. {@link #export(Writer)} may run on any
+ * thread.
+ */
+final class FlightRecorder {
+    static final byte KIND_FOUND = SightingHistoryStore.KIND_FOUND;
+    static final byte KIND_LOST = SightingHistoryStore.KIND_LOST;
+    static final byte KIND_FOUND_SHED = 3;
+    static final byte KIND_LOST_SHED = 4;
+
+    private static final int RECORD_SIZE = 24;
+    private static final int OFFSET_TIME = 0;
+    private static final int OFFSET_HASH = 8;
+    private static final int OFFSET_LATENCY = 16;
+    private static final int OFFSET_KIND = 20;
+
+    private final ByteBuffer mBuffer;
+    private final int mCapacity;
+
+    /**
+     * Total number of records ever written. The next record goes to {@code mWritten % capacity}.
+     */
+    private long mWritten = 0;
+
+    /**
+     * @param capacity The number of events kept.
+     */
+    FlightRecorder(int capacity) {
+        mCapacity = capacity;
+        mBuffer = ByteBuffer.allocateDirect(capacity * RECORD_SIZE);
+    }
+
+    /**
+     * Records an event.
+     *
+     * @param timeMillis     When the event was delivered.
+     * @param payloadHash    The {@link BeaconEvent#payloadHash(byte[])} of the message.
+     * @param kind           {@link #KIND_FOUND} or {@link #KIND_LOST}, or {@link #KIND_FOUND_SHED}
+     *                       or {@link #KIND_LOST_SHED} for an event that was shed.
+     * @param latencyMicros  How long the app took to process the event, 0 if it was shed.
+     */
+    synchronized void record(long timeMillis, long payloadHash, byte kind, int latencyMicros) {
+        int offset = (int) (mWritten % mCapacity) * RECORD_SIZE;
+        mBuffer.putLong(offset + OFFSET_TIME, timeMillis);
+        mBuffer.putLong(offset + OFFSET_HASH, payloadHash);
+        mBuffer.putInt(offset + OFFSET_LATENCY, latencyMicros);
+        mBuffer.put(offset + OFFSET_KIND, kind);
+        mWritten++;
+    }
+
+    /**
+     * Returns the total number of events recorded, including those already overwritten.
+     */
+    synchronized long getRecordedCount() {
+        return mWritten;
+    }
+
+    /**
+     * Writes the buffered events, oldest first, as CSV with a header line.
+     */
+    void export(Writer out) throws IOException {
+        ByteBuffer copy;
+        long written;
+        synchronized (this) {
+            written = mWritten;
+            copy = ByteBuffer.allocate(mBuffer.capacity());
+            mBuffer.rewind();
+            copy.put(mBuffer);
+        }
+        out.write("time_millis,payload_hash,kind,latency_micros\n");
+        long first = Math.max(0, written - mCapacity);
+        for (long i = first; i < written; i++) {
+            int offset = (int) (i % mCapacity) * RECORD_SIZE;
+            out.write(Long.toString(copy.getLong(offset + OFFSET_TIME)));
+            out.write(',');
+            out.write(Long.toHexString(copy.getLong(offset + OFFSET_HASH)));
+            out.write(',');
+            out.write(kindName(copy.get(offset + OFFSET_KIND)));
+            out.write(',');
+            out.write(Integer.toString(copy.getInt(offset + OFFSET_LATENCY)));
+            out.write('\n');
+        }
+        out.flush();
+    }
+
+    private static String kindName(byte kind) {
+        switch (kind) {
+            case KIND_FOUND:
+                return "found";
+            case KIND_LOST:
+                return "lost";
+            case KIND_FOUND_SHED:
+                return "found_shed";
+            default:
+                return "lost_shed";
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Finds the payloads with the most found/lost churn in fixed memory.
+ * <p/>
+ * Event counts are estimated with a count-min sketch of {@code depth} rows of {@code width}
+ * counters, using conservative update: only the counters at the current minimum are incremented,
+ * which keeps overestimates small. An estimate never undercounts, and overcounts by at most
+ * {@code e / width} of all events with probability {@code 1 - e^-depth}. The {@code k} payloads
+ * with the highest estimates are kept in a min-heap; since {@code k} is small, the heap is found
+ * by a linear scan of its hashes rather than through a map, so an update allocates nothing and
+ * costs {@code O(depth + k)}.
+ */
+final class HeavyHitterSketch implements BeaconEventDispatcher.Listener {
+    /**
+     * A payload among the heaviest hitters, and its estimated event count.
+     */
+    static final class Entry {
+        final String payload;
+        final long payloadHash;
+        final int estimate;
+
+        Entry(String payload, long payloadHash, int estimate) {
+            this.payload = payload;
+            this.payloadHash = payloadHash;
+            this.estimate = estimate;
+        }
+    }
+
+    private static final Comparator<Entry> HEAVIEST_FIRST = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            return lhs.estimate < rhs.estimate ? 1 : (lhs.estimate == rhs.estimate ? 0 : -1);
+        }
+    };
+
+    private final int mWidth;
+    private final int mDepth;
+    private final int[] mCounters;
+
+    private final int mK;
+    private final long[] mHeapHashes;
+    private final String[] mHeapPayloads;
+    private final int[] mHeapCounts;
+    private int mHeapSize;
+
+    private long mTotal;
+
+    /**
+     * @param width The counters per row. Overestimates are bounded by {@code e / width} of all
+     *              events.
+     * @param depth The rows. The bound holds with probability {@code 1 - e^-depth}.
+     * @param k     How many of the heaviest payloads to track.
+     */
+    HeavyHitterSketch(int width, int depth, int k) {
+        if (width <= 0 || depth <= 0 || k <= 0) {
+            throw new IllegalArgumentException("Invalid sketch configuration");
+        }
+        mWidth = width;
+        mDepth = depth;
+        mCounters = new int[width * depth];
+        mK = k;
+        mHeapHashes = new long[k];
+        mHeapPayloads = new String[k];
+        mHeapCounts = new int[k];
+    }
+
+    @Override
+    public void onBeaconEvent(BeaconEvent event) {
+        add(event.text, event.payloadHash);
+    }
+
+    /**
+     * Counts one event for a payload.
+     */
+    synchronized void add(String payload, long payloadHash) {
+        mTotal++;
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < mDepth; row++) {
+            estimate = Math.min(estimate, mCounters[cell(row, payloadHash)]);
+        }
+        estimate++;
+        for (int row = 0; row < mDepth; row++) {
+            int cell = cell(row, payloadHash);
+            if (mCounters[cell] < estimate) {
+                mCounters[cell] = estimate;
+            }
+        }
+        offerToHeap(payload, payloadHash, estimate);
+    }
+
+    /**
+     * Returns the estimated event count of a payload, which is never below the true count.
+     */
+    synchronized int estimate(long payloadHash) {
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < mDepth; row++) {
+            estimate = Math.min(estimate, mCounters[cell(row, payloadHash)]);
+        }
+        return estimate;
+    }
+
+    /**
+     * Returns the tracked heaviest payloads, heaviest first.
+     */
+    synchronized List<Entry> getTopK() {
+        List<Entry> entries = new ArrayList<>(mHeapSize);
+        for (int i = 0; i < mHeapSize; i++) {
+            entries.add(new Entry(mHeapPayloads[i], mHeapHashes[i], mHeapCounts[i]));
+        }
+        Collections.sort(entries, HEAVIEST_FIRST);
+        return entries;
+    }
+
+    /**
+     * Returns the number of events counted.
+     */
+    synchronized long getTotal() {
+        return mTotal;
+    }
+
+    /**
+     * Returns the memory taken by the counters and the heap, excluding payload strings.
+     */
+    int getMemoryBytes() {
+        return mCounters.length * 4 + mK * (8 + 4 + 4);
+    }
+
+    private void offerToHeap(String payload, long payloadHash, int estimate) {
+        for (int i = 0; i < mHeapSize; i++) {
+            if (mHeapHashes[i] == payloadHash) {
+                mHeapCounts[i] = estimate;
+                siftDown(i);
+                return;
+            }
+        }
+        if (mHeapSize < mK) {
+            int i = mHeapSize++;
+            set(i, payloadHash, payload, estimate);
+            siftUp(i);
+        } else if (estimate > mHeapCounts[0]) {
+            set(0, payloadHash, payload, estimate);
+            siftDown(0);
+        }
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (mHeapCounts[parent] <= mHeapCounts[i]) {
+                return;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int smallest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < mHeapSize && mHeapCounts[left] < mHeapCounts[smallest]) {
+                smallest = left;
+            }
+            if (right < mHeapSize && mHeapCounts[right] < mHeapCounts[smallest]) {
+                smallest = right;
+            }
+            if (smallest == i) {
+                return;
+            }
+            swap(i, smallest);
+            i = smallest;
+        }
+    }
+
+    private void swap(int a, int b) {
+        long hash = mHeapHashes[a];
+        String payload = mHeapPayloads[a];
+        int count = mHeapCounts[a];
+        set(a, mHeapHashes[b], mHeapPayloads[b], mHeapCounts[b]);
+        set(b, hash, payload, count);
+    }
+
+    private void set(int i, long payloadHash, String payload, int count) {
+        mHeapHashes[i] = payloadHash;
+        mHeapPayloads[i] = payload;
+        mHeapCounts[i] = count;
+    }
+
+    /**
+     * Picks the counter for a payload in a row, from an independent-enough hash per row.
+     */
+    private int cell(int row, long payloadHash) {
+        long hash = (payloadHash + row * 0x9e3779b97f4a7c15L) * 0xbf58476d1ce4e5b9L;
+        hash ^= hash >>> 31;
+        return row * mWidth + (int) ((hash & Long.MAX_VALUE) % mWidth);
+    }
+}
@@ -0,0 +1,324 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import android.app.Application;
+import android.content.ComponentCallbacks2;
+import android.os.Process;
+import android.os.StrictMode;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Registers the app's consumers of beacon events with the {@link BeaconEventDispatcher} when the
+ * process starts, before Nearby delivers anything to {@link BackgroundSubscribeIntentService}, and
+ * releases the app's caches through the {@link CacheManager} when memory runs short.
+ * <p/>
+ * Zones listed in the optional {@code zones.json} asset are tracked once the messages are loaded,
+ * and entering or leaving one is logged. The asset holds an array of objects, each with a
+ * {@code name} and optional {@code anyOf}, {@code allOf} and {@code noneOf} arrays of message
+ * payloads, as in {@link ZoneRulesEngine.Rule}.
+ * <p/>
+ * Nothing here reads storage on the main thread: the {@link MessageStore} is loaded on a
+ * background thread started at the end of {@link #onCreate()}, so that it is usually ready by the
+ * time {@link MainActivity} first draws its list. Debug builds enforce this: StrictMode logs any
+ * disk access on the main thread, and any main thread message that takes longer than a frame is
+ * logged too.
+ */
+public class HelloBeaconsApplication extends Application {
+    private static final String TAG = HelloBeaconsApplication.class.getSimpleName();
+
+    private static final long FRAME_BUDGET_MILLIS = 16;
+
+    private static final String ZONES_ASSET = "zones.json";
+
+    /**
+     * Attachment types whose decoders, as registered in {@link Utils#getAttachmentDecoders},
+     * can yield a {@code url} field. Other attachments are never decoded just to prefetch.
+     */
+    private static final String[] PREFETCH_TYPES = {"url", "json"};
+
+    private static long sCreatedMillis;
+
+    /**
+     * Returns the {@link SystemClock#elapsedRealtime()} at which the process was created, for
+     * measuring startup.
+     */
+    static long getCreatedMillis() {
+        return sCreatedMillis;
+    }
+
+    @Override
+    public void onCreate() {
+        sCreatedMillis = SystemClock.elapsedRealtime();
+        super.onCreate();
+        if (BuildConfig.DEBUG) {
+            watchMainThread();
+        }
+        BeaconEventDispatcher dispatcher = Utils.getBeaconEventDispatcher();
+        dispatcher.register(BeaconEventDispatcher.Filter.ALL, new PresencePipeline(
+                Utils.getMessageStore(this), Utils.getVisitAggregator()));
+        dispatcher.register(BeaconEventDispatcher.Filter.ALL, new HistorySink());
+        if (!BuildConfig.SIGHTING_UPLOAD_URL.isEmpty()) {
+            dispatcher.register(BeaconEventDispatcher.Filter.ALL, new UploadSink());
+        }
+        dispatcher.register(BeaconEventDispatcher.Filter.ALL,
+                Utils.getNotificationRenderer(this));
+        dispatcher.register(BeaconEventDispatcher.Filter.ALL, Utils.getSearchIndex(this));
+        dispatcher.register(BeaconEventDispatcher.Filter.ALL, Utils.getHeavyHitters());
+        dispatcher.register(new BeaconEventDispatcher.Filter(null, null, true, false),
+                Utils.getAttachmentDecoders(this));
+        PrefetchSink prefetchSink = new PrefetchSink();
+        for (String type : PREFETCH_TYPES) {
+            dispatcher.register(new BeaconEventDispatcher.Filter(null, type, true, false),
+                    prefetchSink);
+        }
+        dispatcher.register(new BeaconEventDispatcher.Filter(null, null, true, false),
+                new ScanDutyCycleSink());
+        dispatcher.register(new BeaconEventDispatcher.Filter(null, null, true, false),
+                new SeenBeforeSink());
+        preloadMessageStore();
+    }
+
+    private static void watchMainThread() {
+        StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                .detectDiskReads()
+                .detectDiskWrites()
+                .penaltyLog()
+                .build());
+        MainThreadMonitor.install(FRAME_BUDGET_MILLIS);
+    }
+
+    /**
+     * Reads the preferences file and parses the stored messages off the main thread. Anything
+     * that needs them before this finishes waits on the store's lock rather than loading twice.
+     */
+    private void preloadMessageStore() {
+        final MessageStore store = Utils.getMessageStore(this);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                long start = SystemClock.elapsedRealtime();
+                int size = store.size();
+                Log.i(TAG, "Preloaded " + size + " messages in "
+                        + (SystemClock.elapsedRealtime() - start) + " ms");
+                Utils.getAttachmentDecoders(HelloBeaconsApplication.this)
+                        .retainDisplayTexts(store.snapshot());
+                registerZones();
+            }
+        }, "preload").start();
+    }
+
+    /**
+     * A zone as written in the zones asset.
+     */
+    private static class ZoneSpec {
+        String name;
+        List<String> anyOf;
+        List<String> allOf;
+        List<String> noneOf;
+    }
+
+    /**
+     * Tracks the zones listed in the zones asset, if there is one.
+     */
+    private void registerZones() {
+        List<ZoneRulesEngine.Rule> rules = new ArrayList<>();
+        try {
+            Reader in = new InputStreamReader(getAssets().open(ZONES_ASSET), "UTF-8");
+            try {
+                ZoneSpec[] specs = new Gson().fromJson(in, ZoneSpec[].class);
+                if (specs == null) {
+                    return;
+                }
+                for (ZoneSpec spec : specs) {
+                    rules.add(new ZoneRulesEngine.Rule(spec.name, orEmpty(spec.anyOf),
+                            orEmpty(spec.allOf), orEmpty(spec.noneOf)));
+                }
+            } finally {
+                in.close();
+            }
+        } catch (FileNotFoundException e) {
+            return;
+        } catch (IOException | JsonParseException e) {
+            Log.w(TAG, "Could not read " + ZONES_ASSET, e);
+            return;
+        }
+        Utils.registerZoneRules(this, rules, new ZoneRulesEngine.ZoneListener() {
+            @Override
+            public void onZoneEntered(ZoneRulesEngine.Rule rule) {
+                Log.i(TAG, "Entered zone " + rule.name);
+            }
+
+            @Override
+            public void onZoneExited(ZoneRulesEngine.Rule rule) {
+                Log.i(TAG, "Left zone " + rule.name);
+            }
+        });
+        Log.i(TAG, "Tracking " + rules.size() + " zones");
+    }
+
+    private static List<String> orEmpty(List<String> list) {
+        return list == null ? Collections.<String>emptyList() : list;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        int priority;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            // The process is next to be killed, or the foreground is about to suffer.
+            priority = CacheManager.PRIORITY_HIGH;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            priority = CacheManager.PRIORITY_NORMAL;
+        } else {
+            // Includes TRIM_MEMORY_UI_HIDDEN, after which the list pages are of no use.
+            priority = CacheManager.PRIORITY_LOW;
+        }
+        long released = Utils.getCacheManager().trim(priority);
+        Log.i(TAG, "Trim level " + level + ": released ~" + released / 1024 + " KiB");
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        Utils.getCacheManager().trim(CacheManager.PRIORITY_HIGH);
+    }
+
+    /**
+     * Keeps the background subscription scanning continuously while messages keep turning up.
+     */
+    private class ScanDutyCycleSink implements BeaconEventDispatcher.Listener {
+        @Override
+        public void onBeaconEvent(BeaconEvent event) {
+            Utils.getBackgroundScanController(HelloBeaconsApplication.this).onFound();
+        }
+    }
+
+    /**
+     * Tells first-ever sightings from returning beacons, across the months the
+     * {@link SeenBeforeIndex} remembers.
+     */
+    private class SeenBeforeSink implements BeaconEventDispatcher.Listener {
+        @Override
+        public void onBeaconEvent(BeaconEvent event) {
+            try {
+                boolean returning = Utils.getSeenBeforeIndex(HelloBeaconsApplication.this)
+                        .checkAndAdd(event.payloadHash, event.timeMillis);
+                Log.d(TAG, (returning ? "Returning: " : "First sighting: ") + event.text);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not open seen-before index", e);
+            }
+        }
+    }
+
+    /**
+     * Starts fetching the content a found attachment links to, so it is ready when tapped. Only
+     * registered for {@link #PREFETCH_TYPES}.
+     */
+    private class PrefetchSink implements BeaconEventDispatcher.Listener {
+        @Override
+        public void onBeaconEvent(BeaconEvent event) {
+            String url = Utils.getAttachmentDecoders(HelloBeaconsApplication.this).decode(event)
+                    .getField("url");
+            if (url == null || !(url.startsWith("http://") || url.startsWith("https://"))) {
+                return;
+            }
+            try {
+                Utils.getContentPrefetcher(HelloBeaconsApplication.this).prefetch(url);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not open content cache", e);
+            }
+        }
+    }
+
+    /**
+     * Appends every event to the on-disk sighting history.
+     */
+    private class HistorySink implements BeaconEventDispatcher.Listener {
+        @Override
+        public void onBeaconEvent(BeaconEvent event) {
+            try {
+                Utils.getSightingHistory(HelloBeaconsApplication.this).record(
+                        event.text, event.payloadHash, event.kind, event.timeMillis);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not record sighting", e);
+            }
+        }
+    }
+
+    /**
+     * Queues every event for upload, and checks whether a batch is due on a thread of its own, so
+     * that a slow network never holds up the other listeners. Only registered when there is an
+     * upload URL.
+     */
+    private class UploadSink implements BeaconEventDispatcher.Listener {
+        private final Executor mUploadExecutor = Executors.newSingleThreadExecutor();
+        private final AtomicBoolean mUploadPending = new AtomicBoolean();
+
+        @Override
+        public void onBeaconEvent(final BeaconEvent event) {
+            try {
+                Utils.getSightingUploadQueue(HelloBeaconsApplication.this).add(
+                        event.timeMillis, event.kind, event.payloadHash);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not queue sighting for upload", e);
+                return;
+            }
+            // Events arriving while an upload is in flight are picked up by the next check.
+            if (mUploadPending.compareAndSet(false, true)) {
+                mUploadExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        mUploadPending.set(false);
+                        maybeUpload(event.timeMillis);
+                    }
+                });
+            }
+        }
+
+        private void maybeUpload(long nowMillis) {
+            try {
+                SightingUploader uploader = Utils.getSightingUploader(HelloBeaconsApplication.this);
+                if (uploader.maybeUpload(nowMillis)) {
+                    Log.i(TAG, "Uploaded sightings: " + uploader.getBytesPerSighting()
+                            + " bytes/sighting, " + uploader.getWakeupsPerHour(nowMillis)
+                            + " wakeups/hour");
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Could not upload sightings", e);
+            }
+        }
+    }
+}
@@ -18,12 +18,12 @@ package com.google.android.gms.nearby.messages.samples.hellobeacons;
 
 import android.Manifest;
 import android.app.PendingIntent;
-import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -31,14 +31,21 @@ import android.support.design.widget.Snackbar;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.content.ContextCompat;
+import android.support.v4.view.MenuItemCompat;
+import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.SearchView;
 import android.support.v7.widget.Toolbar;
-import android.text.TextUtils;
 import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.ListView;
 import android.widget.RelativeLayout;
+import android.widget.TextView;
 
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.api.GoogleApiClient;
@@ -53,12 +60,17 @@ import com.google.android.gms.nearby.messages.NearbyPermissions;
 import com.google.android.gms.nearby.messages.Strategy;
 import com.google.android.gms.nearby.messages.SubscribeOptions;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 public class MainActivity extends AppCompatActivity implements GoogleApiClient.ConnectionCallbacks,
-        GoogleApiClient.OnConnectionFailedListener,
-        SharedPreferences.OnSharedPreferenceChangeListener {
+        GoogleApiClient.OnConnectionFailedListener {
 
     private static final String TAG = MainActivity.class.getSimpleName();
 
@@ -66,6 +78,10 @@ public class MainActivity extends AppCompatActivity implements GoogleApiClient.C
 
     private static final String KEY_SUBSCRIBED = "subscribed";
 
+    private static final int MAX_SEARCH_RESULTS = 200;
+
+    private static final int MAX_CONTENT_PREVIEW_CHARS = 2000;
+
     /**
      * The entry point to Google Play Services.
      */
@@ -76,24 +92,79 @@ public class MainActivity extends AppCompatActivity implements GoogleApiClient.C
      */
     private RelativeLayout mContainer;
 
+    /**
+     * Builds {@code mGoogleApiClient} once the first frame is drawn, so that connecting to Play
+     * services does not delay it.
+     */
+    private final Runnable mBuildGoogleApiClient = new Runnable() {
+        @Override
+        public void run() {
+            if (!isFinishing()) {
+                buildGoogleApiClient();
+            }
+        }
+    };
+
+    /**
+     * Runs list refreshes on the UI thread.
+     */
+    private final Executor mUiExecutor = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable command) {
+            runOnUiThread(command);
+        }
+    };
+
+    /**
+     * Loads the list and refreshes it as events change the store. Registered with the
+     * {@link BeaconEventDispatcher} while the activity is resumed.
+     */
+    private MessageListLoader mListLoader;
+
+    private BeaconEventDispatcher.Registration mStoreChangeRegistration;
+
     /**
      * Tracks subscription state. Set to true when a call to
      * {@link Messages#subscribe(GoogleApiClient, MessageListener)} succeeds.
      */
     private boolean mSubscribed = false;
 
+    /**
+     * Pages through the {@link MessageStore} for {@code mNearbyMessagesAdapter} rather than
+     * holding a copy of every message, and stays empty until the store has loaded.
+     */
+    private MessagePager mPager;
+
     /**
      * Adapter for working with messages from nearby beacons.
      */
-    private ArrayAdapter<String> mNearbyMessagesArrayAdapter;
+    private PagedMessageAdapter mNearbyMessagesAdapter;
+
+    private ListView mNearbyMessagesListView;
+
+    /**
+     * The current search query, or empty when the full list is shown.
+     */
+    private String mSearchQuery = "";
 
     /**
-     * Backing data structure for {@code mNearbyMessagesArrayAdapter}.
+     * Adapter for the messages matching {@code mSearchQuery}, shown as the full list shows them.
      */
-    private List<String> mNearbyMessagesList = new ArrayList<>();
+    private ArrayAdapter<String> mSearchResultsAdapter;
+
+    /**
+     * The search for {@code mSearchQuery} running in the background, if any.
+     */
+    private AsyncTask<Void, Void, List<String>> mSearchTask;
+
+    /**
+     * Backing data structure for {@code mSearchResultsAdapter}.
+     */
+    private List<String> mSearchResults = new ArrayList<>();
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        final long createMillis = SystemClock.elapsedRealtime();
         super.onCreate(savedInstanceState);
 
         setContentView(R.layout.activity_main);
@@ -111,29 +182,57 @@ public class MainActivity extends AppCompatActivity implements GoogleApiClient.C
             requestPermissions();
         }
 
-        final List<String> cachedMessages = Utils.getCachedMessages(this);
-        if (cachedMessages != null) {
-            mNearbyMessagesList.addAll(cachedMessages);
-        }
-
-        final ListView nearbyMessagesListView = (ListView) findViewById(
-                R.id.nearby_messages_list_view);
-        mNearbyMessagesArrayAdapter = new ArrayAdapter<>(this, android.R.layout.simple_list_item_1,
-                mNearbyMessagesList);
-        if (nearbyMessagesListView != null) {
-            nearbyMessagesListView.setAdapter(mNearbyMessagesArrayAdapter);
+        mNearbyMessagesListView = (ListView) findViewById(R.id.nearby_messages_list_view);
+        MessageStore store = Utils.getMessageStore(this);
+        mPager = new MessagePager(store, Utils.getAttachmentDecoders(this));
+        mNearbyMessagesAdapter = new PagedMessageAdapter(this, mPager);
+        Utils.getCacheManager().register("pages", mPager, CacheManager.PRIORITY_LOW);
+        mListLoader = new MessageListLoader(store, mPager, Utils.getListLoadExecutor(),
+                mUiExecutor, new MessageListLoader.Listener() {
+                    @Override
+                    public void onMessagesChanged() {
+                        mNearbyMessagesAdapter.notifyDataSetChanged();
+                        if (!mSearchQuery.isEmpty()) {
+                            showSearchResults(mSearchQuery);
+                        }
+                    }
+                });
+        mSearchResultsAdapter = new ArrayAdapter<String>(this,
+                android.R.layout.simple_list_item_1, mSearchResults) {
+            @Override
+            public View getView(int position, View convertView, ViewGroup parent) {
+                // The item stays the stored message, which is what a tap opens.
+                TextView view = (TextView) super.getView(position, convertView, parent);
+                view.setText(Utils.getAttachmentDecoders(MainActivity.this)
+                        .getDisplayText(getItem(position)));
+                return view;
+            }
+        };
+        if (mNearbyMessagesListView != null) {
+            mNearbyMessagesListView.setAdapter(mNearbyMessagesAdapter);
+            mNearbyMessagesListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+                @Override
+                public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                    openContent((String) parent.getItemAtPosition(position));
+                }
+            });
         }
+        showMessagesWhenLoaded(createMillis);
     }
 
     @Override
     protected void onResume() {
         super.onResume();
 
-        getSharedPreferences(getApplicationContext().getPackageName(), Context.MODE_PRIVATE)
-                .registerOnSharedPreferenceChangeListener(this);
+        mStoreChangeRegistration = Utils.getBeaconEventDispatcher().register(
+                BeaconEventDispatcher.Filter.ALL, mListLoader);
+        mListLoader.refresh();
+        // Keep the index built while search is a tap away, even across memory trims.
+        Utils.getSearchIndex(this).setSearchExpected(true);
 
         if (havePermissions()) {
-            buildGoogleApiClient();
+            // Posted, so it runs after the traversal that draws the first frame.
+            findViewById(android.R.id.content).post(mBuildGoogleApiClient);
         }
     }
 
@@ -173,11 +272,49 @@ public class MainActivity extends AppCompatActivity implements GoogleApiClient.C
 
     @Override
     protected void onPause() {
-        getSharedPreferences(getApplicationContext().getPackageName(), Context.MODE_PRIVATE)
-                .unregisterOnSharedPreferenceChangeListener(this);
+        findViewById(android.R.id.content).removeCallbacks(mBuildGoogleApiClient);
+        Utils.getBeaconEventDispatcher().unregister(mStoreChangeRegistration);
+        Utils.getSearchIndex(this).setSearchExpected(false);
         super.onPause();
     }
 
+    @Override
+    protected void onDestroy() {
+        Utils.getCacheManager().unregister(mPager);
+        if (mSearchTask != null) {
+            mSearchTask.cancel(false);
+        }
+        super.onDestroy();
+    }
+
+    /**
+     * Fills the list once the {@link MessageStore} has loaded, which
+     * {@link HelloBeaconsApplication} started on a background thread, and logs how long the list
+     * took to show.
+     *
+     * @param createMillis The {@link SystemClock#elapsedRealtime()} at which onCreate started.
+     */
+    private void showMessagesWhenLoaded(final long createMillis) {
+        mListLoader.load(new Runnable() {
+            @Override
+            public void run() {
+                if (isFinishing() || mNearbyMessagesListView == null) {
+                    return;
+                }
+                mNearbyMessagesListView.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        long now = SystemClock.elapsedRealtime();
+                        Log.i(TAG, "Time to first list render: " + (now - createMillis)
+                                + " ms since onCreate, "
+                                + (now - HelloBeaconsApplication.getCreatedMillis())
+                                + " ms since process start");
+                    }
+                });
+            }
+        });
+    }
+
     @Override
     public void onConnectionFailed(@NonNull ConnectionResult connectionResult) {
         if (mContainer != null) {
@@ -199,18 +336,240 @@ public class MainActivity extends AppCompatActivity implements GoogleApiClient.C
     }
 
     @Override
-    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
-        if (TextUtils.equals(key, Utils.KEY_CACHED_MESSAGES)) {
-            mNearbyMessagesList.clear();
-            mNearbyMessagesList.addAll(Utils.getCachedMessages(this));
-            mNearbyMessagesArrayAdapter.notifyDataSetChanged();
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putBoolean(KEY_SUBSCRIBED, mSubscribed);
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_main, menu);
+        SearchView searchView = (SearchView) MenuItemCompat.getActionView(
+                menu.findItem(R.id.action_search));
+        if (searchView != null) {
+            searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+                @Override
+                public boolean onQueryTextSubmit(String query) {
+                    showSearchResults(query);
+                    return true;
+                }
+
+                @Override
+                public boolean onQueryTextChange(String newText) {
+                    showSearchResults(newText);
+                    return true;
+                }
+            });
         }
+        return true;
+    }
+
+    /**
+     * Shows the messages matching {@code query} from the {@link MessageSearchIndex}, or the full
+     * list if {@code query} is empty. The search runs in the background, since the first one
+     * after startup or a trim builds the index; the results of a query that has since changed are
+     * dropped.
+     */
+    private void showSearchResults(String query) {
+        if (mNearbyMessagesListView == null) {
+            return;
+        }
+        mSearchQuery = query == null ? "" : query.trim();
+        if (mSearchTask != null) {
+            mSearchTask.cancel(false);
+            mSearchTask = null;
+        }
+        if (mSearchQuery.isEmpty()) {
+            mNearbyMessagesListView.setAdapter(mNearbyMessagesAdapter);
+            return;
+        }
+        final String searched = mSearchQuery;
+        final MessageSearchIndex index = Utils.getSearchIndex(this);
+        mSearchTask = new AsyncTask<Void, Void, List<String>>() {
+            @Override
+            protected List<String> doInBackground(Void... params) {
+                return index.search(searched, MAX_SEARCH_RESULTS);
+            }
+
+            @Override
+            protected void onPostExecute(List<String> results) {
+                if (isFinishing() || !searched.equals(mSearchQuery)) {
+                    return;
+                }
+                mSearchTask = null;
+                mSearchResults.clear();
+                mSearchResults.addAll(results);
+                if (mNearbyMessagesListView.getAdapter() != mSearchResultsAdapter) {
+                    mNearbyMessagesListView.setAdapter(mSearchResultsAdapter);
+                } else {
+                    mSearchResultsAdapter.notifyDataSetChanged();
+                }
+            }
+        }.execute();
     }
 
     @Override
-    protected void onSaveInstanceState(Bundle outState) {
-        super.onSaveInstanceState(outState);
-        outState.putBoolean(KEY_SUBSCRIBED, mSubscribed);
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == R.id.action_export_events) {
+            exportFlightRecorder();
+            return true;
+        }
+        if (item.getItemId() == R.id.action_show_diagnostics) {
+            showDiagnostics();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    /**
+     * Dumps the {@link FlightRecorder} to a CSV file in the app's external files directory, off
+     * the main thread, and reports where it was written.
+     */
+    private void exportFlightRecorder() {
+        File externalDir = getExternalFilesDir(null);
+        final File dir = externalDir != null ? externalDir : getFilesDir();
+        new AsyncTask<Void, Void, File>() {
+            @Override
+            protected File doInBackground(Void... params) {
+                File file = new File(dir, "events-" + System.currentTimeMillis() + ".csv");
+                try {
+                    Writer out = new BufferedWriter(new FileWriter(file));
+                    try {
+                        Utils.getFlightRecorder().export(out);
+                    } finally {
+                        out.close();
+                    }
+                    return file;
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not export event log", e);
+                    return null;
+                }
+            }
+
+            @Override
+            protected void onPostExecute(File file) {
+                if (mContainer == null) {
+                    return;
+                }
+                String text = file == null ? getString(R.string.events_export_failed)
+                        : getString(R.string.events_exported, file.getAbsolutePath());
+                Snackbar.make(mContainer, text, Snackbar.LENGTH_LONG).show();
+            }
+        }.execute();
+    }
+
+    /**
+     * Shows the content a message's attachment links to, from the prefetch cache when it is
+     * there, and logs how long it took from the tap to showing it. Decodes and fetches on
+     * {@link Utils#getContentExecutor()}, since a fetch can take as long as its timeouts, and
+     * would otherwise hold up every other task on the serial {@link AsyncTask} executor.
+     */
+    private void openContent(final String message) {
+        final long tapMillis = SystemClock.elapsedRealtime();
+        Utils.getContentExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                DecodedAttachment attachment =
+                        Utils.getAttachmentDecoders(MainActivity.this).decode(message);
+                String url = attachment == null ? null : attachment.getField("url");
+                if (url == null) {
+                    return;
+                }
+                byte[] content;
+                try {
+                    content = Utils.getContentPrefetcher(MainActivity.this).get(url);
+                } catch (IOException | InterruptedException e) {
+                    Log.w(TAG, "Could not load " + url, e);
+                    content = null;
+                }
+                final String title = attachment.getDisplayText();
+                final byte[] result = content;
+                mUiExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        showContent(title, result, tapMillis);
+                    }
+                });
+            }
+        });
+    }
+
+    private void showContent(String title, byte[] content, long tapMillis) {
+        if (isFinishing()) {
+            return;
+        }
+        if (content == null) {
+            if (mContainer != null) {
+                Snackbar.make(mContainer, R.string.content_unavailable,
+                        Snackbar.LENGTH_LONG).show();
+            }
+            return;
+        }
+        String text = new String(content);
+        new AlertDialog.Builder(this)
+                .setTitle(title)
+                .setMessage(text.length() > MAX_CONTENT_PREVIEW_CHARS
+                        ? text.substring(0, MAX_CONTENT_PREVIEW_CHARS) : text)
+                .setPositiveButton(R.string.ok, null)
+                .show();
+        Log.i(TAG, "Time to first render: " + (SystemClock.elapsedRealtime() - tapMillis)
+                + " ms");
+    }
+
+    /**
+     * Shows the app's runtime metrics in a dialog, gathered off the main thread since some of them
+     * live in files.
+     */
+    private void showDiagnostics() {
+        new AsyncTask<Void, Void, String>() {
+            @Override
+            protected String doInBackground(Void... params) {
+                StringBuilder text = new StringBuilder();
+                HeavyHitterSketch heavyHitters = Utils.getHeavyHitters();
+                text.append("Most churn (").append(heavyHitters.getTotal()).append(" events):\n");
+                for (HeavyHitterSketch.Entry entry : heavyHitters.getTopK()) {
+                    text.append("  ").append(entry.estimate).append("  ").append(entry.payload)
+                            .append('\n');
+                }
+                text.append("\nAdmission: ").append(Utils.getEventAdmissionController().getStats());
+                try {
+                    SeenBeforeIndex seenBefore = Utils.getSeenBeforeIndex(MainActivity.this);
+                    text.append("\n\nSightings: ").append(seenBefore.getNewCount())
+                            .append(" first, ").append(seenBefore.getReturningCount())
+                            .append(" returning");
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not open seen-before index", e);
+                }
+                try {
+                    text.append("\n\nPrefetch: ")
+                            .append(Utils.getContentPrefetcher(MainActivity.this).getStats());
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not open content cache", e);
+                }
+                BackgroundScanController scans =
+                        Utils.getBackgroundScanController(MainActivity.this);
+                text.append("\n\nScanning: ").append(scans.getMode()).append(", ")
+                        .append(Math.round(scans.getScanTimeSavedFraction() * 100))
+                        .append("% of scan time saved");
+                text.append("\n\nCaches: ").append(Utils.getCacheManager().getStats());
+                text.append("\n\nStorage: ")
+                        .append(Utils.getMessageStore(MainActivity.this).getFailureCount())
+                        .append(" failed reads or saves");
+                return text.toString();
+            }
+
+            @Override
+            protected void onPostExecute(String text) {
+                if (isFinishing()) {
+                    return;
+                }
+                new AlertDialog.Builder(MainActivity.this)
+                        .setTitle(R.string.action_show_diagnostics)
+                        .setMessage(text)
+                        .setPositiveButton(R.string.ok, null)
+                        .show();
+            }
+        }.execute();
     }
 
     private boolean havePermissions() {
@@ -232,7 +591,9 @@ public class MainActivity extends AppCompatActivity implements GoogleApiClient.C
         // In this sample, we subscribe when the activity is launched, but not on device orientation
         // change.
         if (mSubscribed) {
+            // The process may have died since, while duty cycling had the subscription off.
             Log.i(TAG, "Already subscribed.");
+            Utils.getBackgroundScanController(this).resume();
             return;
         }
 
@@ -247,6 +608,7 @@ public class MainActivity extends AppCompatActivity implements GoogleApiClient.C
                         if (status.isSuccess()) {
                             Log.i(TAG, "Subscribed successfully.");
                             startService(getBackgroundSubscribeServiceIntent());
+                            Utils.getBackgroundScanController(MainActivity.this).start();
                         } else {
                             Log.e(TAG, "Operation failed. Error: " +
                                     NearbyMessagesStatusCodes.getStatusCodeString(
@@ -257,8 +619,7 @@ public class MainActivity extends AppCompatActivity implements GoogleApiClient.C
     }
 
     private PendingIntent getPendingIntent() {
-        return PendingIntent.getService(this, 0,
-                getBackgroundSubscribeServiceIntent(), PendingIntent.FLAG_UPDATE_CURRENT);
+        return Utils.getSubscribePendingIntent(this);
     }
 
     private Intent getBackgroundSubscribeServiceIntent() {
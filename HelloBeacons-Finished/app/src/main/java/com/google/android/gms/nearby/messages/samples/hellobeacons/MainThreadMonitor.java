@@ -0,0 +1,59 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Printer;
+
+/**
+ * Times every message the main thread handles, from the lines its looper prints before and after
+ * dispatching each one, and logs any that takes longer than the frame budget.
+ */
+final class MainThreadMonitor implements Printer {
+    private static final String TAG = MainThreadMonitor.class.getSimpleName();
+
+    private final long mBudgetMillis;
+
+    private long mStartMillis;
+
+    private MainThreadMonitor(long budgetMillis) {
+        mBudgetMillis = budgetMillis;
+    }
+
+    /**
+     * Starts timing the main thread's messages, replacing any other message logging.
+     *
+     * @param budgetMillis How long a message may take before it is logged.
+     */
+    static void install(long budgetMillis) {
+        Looper.getMainLooper().setMessageLogging(new MainThreadMonitor(budgetMillis));
+    }
+
+    @Override
+    public void println(String x) {
+        if (x.startsWith(">")) {
+            mStartMillis = SystemClock.uptimeMillis();
+        } else if (x.startsWith("<")) {
+            long tookMillis = SystemClock.uptimeMillis() - mStartMillis;
+            if (tookMillis > mBudgetMillis) {
+                Log.w(TAG, "Main thread busy for " + tookMillis + " ms: " + x);
+            }
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers a string for each stored message that the {@link MessageStore} does not keep, so that
+ * it survives a restart or a trim: the namespace and type group the message was found with, for
+ * the notification, or the text its attachment decodes to, for the list.
+ * <p/>
+ * Annotations are appended to a file as (message, value) records, a later record for a message
+ * overriding an earlier one. Messages that have left the store are dropped by
+ * {@link #retain(Collection)}, which rewrites the file once most of its records are stale.
+ * Storage failures never reach callers: values that cannot be read or written are simply unknown
+ * after the next restart, and {@link #getFailureCount()} counts them.
+ * <p/>
+ * {@link #get(String)} is called while binding list rows, so it never touches storage or waits for
+ * a writer: it reads a map that {@link #load()}, run off the main thread, publishes once the file
+ * is read, and returns null until then. Writes update that map first and then go to the file under
+ * a separate lock.
+ */
+final class MessageAnnotations {
+    private final File mFile;
+    private final Object mWriteLock = new Object();
+    private volatile Map<String, String> mValues;
+    // Guarded by mWriteLock.
+    private int mRecordCount;
+    private long mFailureCount;
+
+    MessageAnnotations(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Returns the value last recorded for {@code message}, or null if it is not known or the file
+     * has not been read yet.
+     */
+    String get(String message) {
+        Map<String, String> values = mValues;
+        return values == null ? null : values.get(message);
+    }
+
+    /**
+     * Records {@code value} for {@code message}. Touches storage, so call it off the main thread.
+     */
+    void put(String message, String value) {
+        if (value.equals(load().put(message, value))) {
+            return;
+        }
+        synchronized (mWriteLock) {
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(mFile, true)));
+                try {
+                    writeRecord(out, message, value);
+                } finally {
+                    out.close();
+                }
+                mRecordCount++;
+            } catch (IOException e) {
+                mFailureCount++;
+            }
+        }
+    }
+
+    /**
+     * Forgets the values of messages not in {@code messages}, the messages still stored. Pass a
+     * collection with a fast {@link Collection#contains(Object)}, such as a
+     * {@link MessageStore.Snapshot}. Touches storage, so call it off the main thread.
+     */
+    void retain(Collection<String> messages) {
+        Map<String, String> values = load();
+        values.keySet().retainAll(messages);
+        synchronized (mWriteLock) {
+            if (mRecordCount <= 2 * values.size()) {
+                return;
+            }
+            File tmp = new File(mFile.getPath() + ".tmp");
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(tmp)));
+                int count = 0;
+                try {
+                    // Values put while this runs are appended after the rename, so none is lost.
+                    for (Map.Entry<String, String> entry : values.entrySet()) {
+                        writeRecord(out, entry.getKey(), entry.getValue());
+                        count++;
+                    }
+                } finally {
+                    out.close();
+                }
+                if (!tmp.renameTo(mFile)) {
+                    throw new IOException("Could not rename " + tmp);
+                }
+                mRecordCount = count;
+            } catch (IOException e) {
+                mFailureCount++;
+            }
+        }
+    }
+
+    long getFailureCount() {
+        synchronized (mWriteLock) {
+            return mFailureCount;
+        }
+    }
+
+    /**
+     * Reads the file if it has not been read yet, and returns the values. Touches storage, so call
+     * it off the main thread.
+     */
+    Map<String, String> load() {
+        Map<String, String> values = mValues;
+        if (values != null) {
+            return values;
+        }
+        synchronized (mWriteLock) {
+            if (mValues != null) {
+                return mValues;
+            }
+            values = new ConcurrentHashMap<>();
+            if (mFile.exists()) {
+                try {
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(
+                            new FileInputStream(mFile)));
+                    try {
+                        while (true) {
+                            String message = in.readUTF();
+                            String value = in.readUTF();
+                            values.put(message, value);
+                            mRecordCount++;
+                        }
+                    } catch (EOFException e) {
+                        // End of file, or a record cut short by a crash.
+                    } finally {
+                        in.close();
+                    }
+                } catch (IOException e) {
+                    mFailureCount++;
+                }
+            }
+            mValues = values;
+            return values;
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, String message, String value)
+            throws IOException {
+        out.writeUTF(message);
+        out.writeUTF(value);
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Keeps the {@link MessagePager} behind the list in {@link MainActivity} in step with the
+ * {@link MessageStore}, without the UI thread ever reading storage or waiting on it.
+ * <p/>
+ * {@link #load(Runnable)} reads the store and the display texts of its messages on the background
+ * executor, waiting for the preload {@link HelloBeaconsApplication} started if it is still
+ * running, and only then refreshes on the UI executor. Registered with the
+ * {@link BeaconEventDispatcher}, the loader refreshes after each event, and a refresh only
+ * re-reads the message count, and only if the store has changed.
+ * Until the store has loaded, a refresh shows nothing rather than blocking.
+ */
+final class MessageListLoader implements BeaconEventDispatcher.Listener {
+    /**
+     * Told on the UI thread when the pager shows a new version of the store.
+     */
+    interface Listener {
+        void onMessagesChanged();
+    }
+
+    private final MessageStore mStore;
+    private final MessagePager mPager;
+    private final Executor mBackgroundExecutor;
+    private final Executor mUiExecutor;
+    private final Listener mListener;
+
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            refresh();
+        }
+    };
+
+    /**
+     * The {@link MessageStore.Snapshot#getVersion()} the pager shows, or -1 before it first loads.
+     */
+    private long mShownVersion = -1;
+
+    /**
+     * @param store              The messages to list.
+     * @param pager              The pager the list reads, refreshed as the store changes.
+     * @param backgroundExecutor Where the store is read.
+     * @param uiExecutor         Runs refreshes on the thread that uses the pager.
+     * @param listener           Told when the pager changes.
+     */
+    MessageListLoader(MessageStore store, MessagePager pager, Executor backgroundExecutor,
+                      Executor uiExecutor, Listener listener) {
+        mStore = store;
+        mPager = pager;
+        mBackgroundExecutor = backgroundExecutor;
+        mUiExecutor = uiExecutor;
+        mListener = listener;
+    }
+
+    /**
+     * Reads the store and display texts in the background, then refreshes the pager on the UI
+     * executor.
+     *
+     * @param onShown Run on the UI executor once the pager shows the loaded store.
+     */
+    void load(final Runnable onShown) {
+        mBackgroundExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mPager.load();
+                mUiExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        refresh();
+                        onShown.run();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Called on the thread applying events, after the store has applied this one, since
+     * {@link HelloBeaconsApplication} registers the store first.
+     */
+    @Override
+    public void onBeaconEvent(BeaconEvent event) {
+        mUiExecutor.execute(mRefresh);
+    }
+
+    /**
+     * Re-reads the message count if the store has changed since the pager last showed it. Does
+     * nothing until the store has loaded. Call on the UI thread.
+     *
+     * @return true if the pager changed.
+     */
+    boolean refresh() {
+        if (!mStore.isLoaded()) {
+            return false;
+        }
+        long version = mStore.snapshot().getVersion();
+        if (version == mShownVersion) {
+            return false;
+        }
+        mShownVersion = version;
+        mPager.invalidate();
+        mListener.onMessagesChanged();
+        return true;
+    }
+}
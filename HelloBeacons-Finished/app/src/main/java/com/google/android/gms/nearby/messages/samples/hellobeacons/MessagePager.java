@@ -0,0 +1,144 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads messages from a {@link MessageStore} one page at a time, as a list scrolls, and keeps
+ * only the most recently used pages in memory, so a list of any length holds at most
+ * {@link #MAX_PAGES} pages of rows.
+ * <p/>
+ * Item IDs are derived from the message itself, so they stay stable as messages are added and
+ * removed around them. Rows show the attachment as decoded by the
+ * {@link AttachmentDecoderRegistry}, which only parses it the first time it is shown and
+ * remembers the result across restarts.
+ * <p/>
+ * Pages are views of immutable store snapshots, so {@link #trim()} only releases the snapshots
+ * they pin; pages are read again as the list asks for them. Like the list it backs, a pager is
+ * only used from one thread.
+ */
+final class MessagePager implements CacheManager.Trimmable {
+    static final int PAGE_SIZE = 50;
+    static final int MAX_PAGES = 4;
+
+    private final MessageStore mStore;
+    private final AttachmentDecoderRegistry mDecoders;
+
+    /**
+     * Loaded pages, keyed by page index, in least recently used order.
+     */
+    private final Map<Integer, List<String>> mPages =
+            new LinkedHashMap<Integer, List<String>>(MAX_PAGES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, List<String>> eldest) {
+                    return size() > MAX_PAGES;
+                }
+            };
+
+    private int mCount;
+
+    /**
+     * Creates a pager that shows nothing until {@link #invalidate()} is called, so that it can be
+     * created before the store has loaded.
+     */
+    MessagePager(MessageStore store, AttachmentDecoderRegistry decoders) {
+        mStore = store;
+        mDecoders = decoders;
+    }
+
+    /**
+     * Reads what the rows show from storage: the stored messages and their stored display texts.
+     * Unlike the rest of the pager, call it off the UI thread, before the first
+     * {@link #invalidate()}.
+     */
+    void load() {
+        mDecoders.loadDisplayTexts();
+        mStore.snapshot();
+    }
+
+    /**
+     * Drops the loaded pages and re-reads the message count. Call when the store changes.
+     */
+    void invalidate() {
+        mPages.clear();
+        mCount = mStore.size();
+    }
+
+    int getCount() {
+        return mCount;
+    }
+
+    String getItem(int position) {
+        Integer pageIndex = position / PAGE_SIZE;
+        List<String> page = mPages.get(pageIndex);
+        if (page == null) {
+            page = mStore.getRange(pageIndex * PAGE_SIZE, PAGE_SIZE);
+            mPages.put(pageIndex, page);
+        }
+        int offset = position % PAGE_SIZE;
+        // The store may have shrunk since the count was read; show an empty row until the next
+        // invalidate() rather than failing.
+        return offset < page.size() ? page.get(offset) : "";
+    }
+
+    long getItemId(int position) {
+        String message = getItem(position);
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < message.length(); i++) {
+            hash ^= message.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Returns the text a row shows: the message decoded, or as last decoded if not found since
+     * the process started.
+     */
+    String getDisplayText(int position) {
+        return mDecoders.getDisplayText(getItem(position));
+    }
+
+    /**
+     * Returns how many rows the loaded pages hold.
+     */
+    int getLoadedRowCount() {
+        int rows = 0;
+        for (List<String> page : mPages.values()) {
+            rows += page.size();
+        }
+        return rows;
+    }
+
+    @Override
+    public long getSizeBytes() {
+        // A page pins the snapshot it was read from, which may hold messages no longer stored.
+        long size = 0;
+        for (List<String> page : mPages.values()) {
+            size += CacheManager.OBJECT_BYTES + (long) CacheManager.REFERENCE_BYTES * page.size();
+        }
+        return size;
+    }
+
+    @Override
+    public void trim() {
+        mPages.clear();
+    }
+}
@@ -0,0 +1,281 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A case-insensitive substring index over the messages currently present.
+ * <p/>
+ * Each message is given a slot, and every trigram of its (lowercased, truncated) text maps to a
+ * primitive posting list of slots. A query looks up the posting list of each of its trigrams,
+ * takes the shortest, and verifies only those candidates. Queries shorter than a trigram scan the
+ * slots but stop at the result limit. The index is updated incrementally on found and lost
+ * events, on whichever thread delivers them, and is bounded by a maximum number of messages and
+ * indexed characters per message.
+ * <p/>
+ * The index is built from the {@link MessageStore} the first time it is used, or ahead of time on
+ * the rebuild executor by {@link #prewarm()}. After {@link #trim()} releases it, it is rebuilt on
+ * the executor straight away if searches are expected, so the next query does not pay for the
+ * rebuild, and otherwise on the next {@link #prewarm()} or use.
+ */
+final class MessageSearchIndex implements BeaconEventDispatcher.Listener, CacheManager.Trimmable {
+    private static final int GRAM = 3;
+
+    private final MessageStore mStore;
+    private final int mMaxEntries;
+    private final int mMaxIndexedChars;
+    private final Executor mRebuildExecutor;
+
+    private final AtomicBoolean mBuildPending = new AtomicBoolean();
+    private final Runnable mBuild = new Runnable() {
+        @Override
+        public void run() {
+            mBuildPending.set(false);
+            synchronized (MessageSearchIndex.this) {
+                build();
+            }
+        }
+    };
+
+    private volatile boolean mSearchExpected;
+
+    private final Map<String, Integer> mSlots = new HashMap<>();
+    private String[] mTexts;
+    private String[] mFolded;
+    private int[] mFreeSlots;
+    private int mFreeCount;
+
+    /**
+     * Posting lists: element 0 holds the number of slots that follow.
+     */
+    private final Map<String, int[]> mPostings = new HashMap<>();
+
+    /**
+     * @param store           The messages to index.
+     * @param maxEntries      The most messages indexed at once. Further messages are ignored
+     *                        until others are removed.
+     * @param maxIndexedChars Only this many leading characters of each message are searchable.
+     * @param rebuildExecutor Builds the index ahead of use.
+     */
+    MessageSearchIndex(MessageStore store, int maxEntries, int maxIndexedChars,
+                       Executor rebuildExecutor) {
+        mStore = store;
+        mMaxEntries = maxEntries;
+        mMaxIndexedChars = maxIndexedChars;
+        mRebuildExecutor = rebuildExecutor;
+    }
+
+    /**
+     * Builds the index on the rebuild executor if it is not built. Never waits for the index, so
+     * it is safe on the main thread.
+     */
+    void prewarm() {
+        if (mBuildPending.compareAndSet(false, true)) {
+            mRebuildExecutor.execute(mBuild);
+        }
+    }
+
+    /**
+     * Sets whether searches may come at any moment, such as while the search UI is showing, so
+     * that a {@link #trim()} is followed by a rebuild in the background.
+     */
+    void setSearchExpected(boolean expected) {
+        mSearchExpected = expected;
+        if (expected) {
+            prewarm();
+        }
+    }
+
+    @Override
+    public void onBeaconEvent(BeaconEvent event) {
+        if (event.isFound()) {
+            add(event.text);
+        } else {
+            remove(event.text);
+        }
+    }
+
+    synchronized void add(String message) {
+        build();
+        if (mSlots.containsKey(message) || mFreeCount == 0) {
+            return;
+        }
+        int slot = mFreeSlots[--mFreeCount];
+        String folded = fold(message);
+        mSlots.put(message, slot);
+        mTexts[slot] = message;
+        mFolded[slot] = folded;
+        for (int i = 0; i + GRAM <= folded.length(); i++) {
+            String gram = folded.substring(i, i + GRAM);
+            if (folded.indexOf(gram) == i) {
+                addPosting(gram, slot);
+            }
+        }
+    }
+
+    synchronized void remove(String message) {
+        build();
+        Integer slot = mSlots.remove(message);
+        if (slot == null) {
+            return;
+        }
+        String folded = mFolded[slot];
+        for (int i = 0; i + GRAM <= folded.length(); i++) {
+            String gram = folded.substring(i, i + GRAM);
+            if (folded.indexOf(gram) == i) {
+                removePosting(gram, slot);
+            }
+        }
+        mTexts[slot] = null;
+        mFolded[slot] = null;
+        mFreeSlots[mFreeCount++] = slot;
+    }
+
+    synchronized int size() {
+        build();
+        return mSlots.size();
+    }
+
+    /**
+     * Returns up to {@code limit} messages containing {@code query}, ignoring case.
+     */
+    synchronized List<String> search(String query, int limit) {
+        build();
+        List<String> results = new ArrayList<>();
+        String folded = fold(query);
+        if (folded.isEmpty()) {
+            return results;
+        }
+        if (folded.length() < GRAM) {
+            for (int slot = 0; slot < mMaxEntries && results.size() < limit; slot++) {
+                if (mFolded[slot] != null && mFolded[slot].contains(folded)) {
+                    results.add(mTexts[slot]);
+                }
+            }
+            return results;
+        }
+
+        int[] shortest = null;
+        for (int i = 0; i + GRAM <= folded.length(); i++) {
+            int[] posting = mPostings.get(folded.substring(i, i + GRAM));
+            if (posting == null) {
+                return results;
+            }
+            if (shortest == null || posting[0] < shortest[0]) {
+                shortest = posting;
+            }
+        }
+        for (int i = 1; i <= shortest[0] && results.size() < limit; i++) {
+            int slot = shortest[i];
+            if (mFolded[slot].contains(folded)) {
+                results.add(mTexts[slot]);
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public synchronized long getSizeBytes() {
+        if (mTexts == null) {
+            return 0;
+        }
+        long size = (2L * CacheManager.REFERENCE_BYTES + 4) * mMaxEntries;
+        for (int slot = 0; slot < mMaxEntries; slot++) {
+            if (mTexts[slot] != null) {
+                // The text is shared with the store; the folded copy and slot entry are not.
+                size += CacheManager.stringBytes(mFolded[slot]) + 2 * CacheManager.OBJECT_BYTES;
+            }
+        }
+        for (Map.Entry<String, int[]> posting : mPostings.entrySet()) {
+            size += CacheManager.stringBytes(posting.getKey()) + CacheManager.OBJECT_BYTES
+                    + 4L * posting.getValue().length;
+        }
+        return size;
+    }
+
+    @Override
+    public synchronized void trim() {
+        mSlots.clear();
+        mPostings.clear();
+        mTexts = null;
+        mFolded = null;
+        mFreeSlots = null;
+        if (mSearchExpected) {
+            prewarm();
+        }
+    }
+
+    /**
+     * Indexes the stored messages, unless the index is already built.
+     */
+    private void build() {
+        if (mTexts != null) {
+            return;
+        }
+        mTexts = new String[mMaxEntries];
+        mFolded = new String[mMaxEntries];
+        mFreeSlots = new int[mMaxEntries];
+        for (int i = 0; i < mMaxEntries; i++) {
+            mFreeSlots[i] = mMaxEntries - 1 - i;
+        }
+        mFreeCount = mMaxEntries;
+        for (String message : mStore.getAll()) {
+            add(message);
+        }
+    }
+
+    private String fold(String text) {
+        String truncated = text.length() > mMaxIndexedChars
+                ? text.substring(0, mMaxIndexedChars) : text;
+        return truncated.toLowerCase(Locale.US);
+    }
+
+    private void addPosting(String gram, int slot) {
+        int[] posting = mPostings.get(gram);
+        if (posting == null) {
+            posting = new int[4];
+        } else if (posting[0] + 1 == posting.length) {
+            posting = Arrays.copyOf(posting, posting.length * 2);
+        }
+        posting[++posting[0]] = slot;
+        mPostings.put(gram, posting);
+    }
+
+    private void removePosting(String gram, int slot) {
+        int[] posting = mPostings.get(gram);
+        if (posting == null) {
+            return;
+        }
+        for (int i = 1; i <= posting[0]; i++) {
+            if (posting[i] == slot) {
+                posting[i] = posting[posting[0]--];
+                break;
+            }
+        }
+        if (posting[0] == 0) {
+            mPostings.remove(gram);
+        }
+    }
+}
@@ -0,0 +1,261 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maintains the text of the messages notification incrementally as messages are found and lost.
+ * <p/>
+ * Present messages are kept in a linked list in the {@link MessageStore}'s order, most recently
+ * added first, indexed by payload, so adding or removing one is O(1) and the top-N most recent are
+ * the first N nodes. Like the store, a message found again while present keeps its place. Counts
+ * per namespace and type are kept alongside. Rendering appends into a reused
+ * {@link StringBuilder}; once more than {@code groupThreshold} messages are present, the text
+ * switches to one line per group.
+ * <p/>
+ * The list is seeded from the {@link MessageStore} the first time it is used, and again after
+ * {@link #trim()} releases it. The store keeps no namespace or type, so the group each message
+ * was found with is kept in {@link MessageAnnotations} for seeding.
+ */
+final class NotificationRenderer implements BeaconEventDispatcher.Listener,
+        CacheManager.Trimmable {
+    private static final char NEWLINE = '\n';
+    private static final char ELLIPSIS = '\u2026';
+
+    /**
+     * The most rendering may allocate, which is only the returned text once the renderer is
+     * seeded. Enforced by {@code AllocationBudgetTest}.
+     */
+    static final long RENDER_ALLOCATION_BUDGET_BYTES = 512;
+
+    private static final class Node {
+        final String text;
+        String group;
+        Node previous;
+        Node next;
+
+        Node(String text, String group) {
+            this.text = text;
+            this.group = group;
+        }
+    }
+
+    private final MessageStore mStore;
+    private final MessageAnnotations mGroups;
+    private final int mTopN;
+    private final int mGroupThreshold;
+
+    private final Map<String, Node> mNodes = new HashMap<>();
+    private final Map<String, int[]> mGroupCounts = new HashMap<>();
+    private StringBuilder mBuilder = new StringBuilder();
+    private Node mHead;
+    private boolean mSeeded;
+
+    /**
+     * @param store          The messages present when the renderer is first used.
+     * @param groups         Where the group of each stored message is kept.
+     * @param topN           The number of most recent messages listed individually.
+     * @param groupThreshold Above this many messages, list counts per group instead.
+     */
+    NotificationRenderer(MessageStore store, MessageAnnotations groups, int topN,
+                         int groupThreshold) {
+        mStore = store;
+        mGroups = groups;
+        mTopN = topN;
+        mGroupThreshold = groupThreshold;
+    }
+
+    @Override
+    public void onBeaconEvent(BeaconEvent event) {
+        if (event.isFound()) {
+            add(event.text, event.namespace, event.type);
+        } else {
+            remove(event.text);
+        }
+    }
+
+    /**
+     * Adds {@code text} as the most recent message. If it is already present, it keeps its place
+     * and only its group is updated.
+     */
+    synchronized void add(String text, String namespace, String type) {
+        seed();
+        String group = group(namespace, type);
+        mGroups.put(text, group);
+        Node node = mNodes.get(text);
+        if (node != null) {
+            if (!group.equals(node.group)) {
+                countGroup(node.group, -1);
+                node.group = group;
+                countGroup(group, 1);
+            }
+            return;
+        }
+        link(text, group);
+    }
+
+    synchronized void remove(String text) {
+        seed();
+        Node node = mNodes.remove(text);
+        if (node != null) {
+            unlink(node);
+            countGroup(node.group, -1);
+        }
+    }
+
+    synchronized int getCount() {
+        seed();
+        return mNodes.size();
+    }
+
+    /**
+     * Renders the notification body: the most recent messages, one per line, followed by an
+     * ellipsis if there are more, or one line per namespace and type when there are many.
+     */
+    synchronized String renderText() {
+        seed();
+        mBuilder.setLength(0);
+        if (mNodes.size() > mGroupThreshold) {
+            renderGroups();
+        } else {
+            renderTopN();
+        }
+        return mBuilder.toString();
+    }
+
+    @Override
+    public synchronized long getSizeBytes() {
+        // Message texts are shared with the store; the nodes, entries and groups are not.
+        long size = 2L * mBuilder.capacity();
+        size += (3L * CacheManager.OBJECT_BYTES + 4 * CacheManager.REFERENCE_BYTES) * mNodes.size();
+        for (String group : mGroupCounts.keySet()) {
+            size += CacheManager.stringBytes(group) + 3 * CacheManager.OBJECT_BYTES;
+        }
+        return size;
+    }
+
+    @Override
+    public synchronized void trim() {
+        mNodes.clear();
+        mGroupCounts.clear();
+        mBuilder = new StringBuilder();
+        mHead = null;
+        mSeeded = false;
+    }
+
+    /**
+     * Adds the stored messages with the groups they were found with, unless already done.
+     */
+    private void seed() {
+        if (mSeeded) {
+            return;
+        }
+        mSeeded = true;
+        List<String> newestFirst = mStore.getAll();
+        mGroups.retain(newestFirst);
+        for (int i = newestFirst.size() - 1; i >= 0; i--) {
+            String text = newestFirst.get(i);
+            if (!mNodes.containsKey(text)) {
+                String group = mGroups.get(text);
+                link(text, group != null ? group : group(null, null));
+            }
+        }
+    }
+
+    private void link(String text, String group) {
+        Node node = new Node(text, group);
+        mNodes.put(text, node);
+        countGroup(group, 1);
+        node.next = mHead;
+        if (mHead != null) {
+            mHead.previous = node;
+        }
+        mHead = node;
+    }
+
+    private void renderTopN() {
+        int lines = 0;
+        for (Node node = mHead; node != null && lines < mTopN; node = node.next, lines++) {
+            if (lines > 0) {
+                mBuilder.append(NEWLINE);
+            }
+            mBuilder.append(node.text);
+        }
+        if (mNodes.size() > mTopN) {
+            mBuilder.append(NEWLINE).append(ELLIPSIS);
+        }
+    }
+
+    private void renderGroups() {
+        List<Map.Entry<String, int[]>> groups = new ArrayList<>(mGroupCounts.entrySet());
+        Collections.sort(groups, new Comparator<Map.Entry<String, int[]>>() {
+            @Override
+            public int compare(Map.Entry<String, int[]> lhs, Map.Entry<String, int[]> rhs) {
+                return rhs.getValue()[0] - lhs.getValue()[0];
+            }
+        });
+        int lines = Math.min(mTopN, groups.size());
+        for (int i = 0; i < lines; i++) {
+            if (i > 0) {
+                mBuilder.append(NEWLINE);
+            }
+            Map.Entry<String, int[]> group = groups.get(i);
+            mBuilder.append(group.getKey()).append(": ").append(group.getValue()[0]);
+        }
+        if (groups.size() > lines) {
+            mBuilder.append(NEWLINE).append(ELLIPSIS);
+        }
+    }
+
+    private void unlink(Node node) {
+        if (node.previous != null) {
+            node.previous.next = node.next;
+        } else {
+            mHead = node.next;
+        }
+        if (node.next != null) {
+            node.next.previous = node.previous;
+        }
+        node.previous = null;
+        node.next = null;
+    }
+
+    private void countGroup(String group, int delta) {
+        int[] count = mGroupCounts.get(group);
+        if (count == null) {
+            count = new int[1];
+            mGroupCounts.put(group, count);
+        }
+        count[0] += delta;
+        if (count[0] == 0) {
+            mGroupCounts.remove(group);
+        }
+    }
+
+    private static String group(String namespace, String type) {
+        if (namespace == null && type == null) {
+            return "?";
+        }
+        return namespace + "/" + type;
+    }
+}
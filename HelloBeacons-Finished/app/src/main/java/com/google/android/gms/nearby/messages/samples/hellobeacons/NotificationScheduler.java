@@ -0,0 +1,118 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+/**
+ * Limits how often the messages notification is posted, without ever losing the latest state.
+ * <p/>
+ * Update requests are admitted by a {@link TokenBucket}. A request that arrives when no token is
+ * available is deferred to a single trailing post, scheduled for when the next token is due;
+ * further requests before then are folded into it. The {@link Poster} always renders the current
+ * state when it runs, so the final state is always the one shown.
+ */
+final class NotificationScheduler {
+    /**
+     * Renders and posts the notification for the current state.
+     */
+    interface Poster {
+        void post();
+    }
+
+    /**
+     * Runs a task after a delay, for example on a {@code Handler}.
+     */
+    interface Scheduler {
+        void schedule(Runnable task, long delayMillis);
+    }
+
+    private final TokenBucket mBucket;
+    private final Poster mPoster;
+    private final Scheduler mScheduler;
+
+    private final Runnable mTrailingPost = new Runnable() {
+        @Override
+        public void run() {
+            onTrailingPost();
+        }
+    };
+
+    private boolean mTrailingPending = false;
+    private long mPostedCount = 0;
+    private long mDeferredCount = 0;
+    private long mDroppedCount = 0;
+
+    NotificationScheduler(TokenBucket bucket, Poster poster, Scheduler scheduler) {
+        mBucket = bucket;
+        mPoster = poster;
+        mScheduler = scheduler;
+    }
+
+    /**
+     * Requests that the notification reflect the current state, now or shortly.
+     */
+    void requestUpdate() {
+        synchronized (this) {
+            if (mTrailingPending) {
+                // The pending post will pick up this state too.
+                mDroppedCount++;
+                return;
+            }
+            if (!mBucket.tryAcquire()) {
+                mTrailingPending = true;
+                mDeferredCount++;
+                mScheduler.schedule(mTrailingPost, mBucket.millisUntilAvailable());
+                return;
+            }
+            mPostedCount++;
+        }
+        mPoster.post();
+    }
+
+    /**
+     * Returns the number of updates posted, immediately or on the trailing edge.
+     */
+    synchronized long getPostedCount() {
+        return mPostedCount;
+    }
+
+    /**
+     * Returns the number of updates postponed to a trailing post.
+     */
+    synchronized long getDeferredCount() {
+        return mDeferredCount;
+    }
+
+    /**
+     * Returns the number of updates folded into an already pending trailing post.
+     */
+    synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    private void onTrailingPost() {
+        synchronized (this) {
+            long wait = mBucket.millisUntilAvailable();
+            if (wait > 0 || !mBucket.tryAcquire()) {
+                mScheduler.schedule(mTrailingPost, Math.max(wait, 1));
+                return;
+            }
+            mTrailingPending = false;
+            mPostedCount++;
+        }
+        mPoster.post();
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+/**
+ * A list adapter over a {@link MessagePager}, which reads messages from the
+ * {@link MessageStore} one page at a time as the list scrolls. Item IDs are stable.
+ */
+final class PagedMessageAdapter extends BaseAdapter {
+    private final LayoutInflater mInflater;
+    private final MessagePager mPager;
+
+    PagedMessageAdapter(Context context, MessagePager pager) {
+        mInflater = LayoutInflater.from(context);
+        mPager = pager;
+    }
+
+    @Override
+    public int getCount() {
+        return mPager.getCount();
+    }
+
+    @Override
+    public String getItem(int position) {
+        return mPager.getItem(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mPager.getItemId(position);
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        View view = convertView;
+        if (view == null) {
+            view = mInflater.inflate(android.R.layout.simple_list_item_1, parent, false);
+        }
+        ((TextView) view.findViewById(android.R.id.text1)).setText(
+                mPager.getDisplayText(position));
+        return view;
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import java.lang.reflect.Type;
+import java.util.List;
+
+/**
+ * Keeps the {@link MessageStore} as a JSON array under {@link Utils#KEY_CACHED_MESSAGES} in
+ * {@link SharedPreferences}: schema 1 of the stored messages. The app now only reads it, through
+ * {@link VersionedMessagePersistence}, until it has been converted.
+ */
+final class PreferencesMessagePersistence implements MessageStore.Persistence {
+    private static final Type MESSAGE_LIST_TYPE = new TypeToken<List<String>>() {}.getType();
+
+    private final SharedPreferences mSharedPrefs;
+    private final Gson mGson = new Gson();
+
+    PreferencesMessagePersistence(SharedPreferences sharedPrefs) {
+        mSharedPrefs = sharedPrefs;
+    }
+
+    @Override
+    public List<String> load() {
+        String json = mSharedPrefs.getString(Utils.KEY_CACHED_MESSAGES, "");
+        if (TextUtils.isEmpty(json)) {
+            return null;
+        }
+        return mGson.fromJson(json, MESSAGE_LIST_TYPE);
+    }
+
+    @Override
+    public void save(List<String> messages) {
+        // apply() writes to disk asynchronously.
+        mSharedPrefs.edit()
+                .putString(Utils.KEY_CACHED_MESSAGES, mGson.toJson(messages, MESSAGE_LIST_TYPE))
+                .apply();
+    }
+}
@@ -0,0 +1,225 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+/**
+ * Decides when the background subscription should scan, based on motion and on how recently a
+ * message was found.
+ * <p/>
+ * The subscription runs continuously while the device is moving and messages keep turning up.
+ * Once nothing new has been found for the idle timeout, it is duty cycled: subscribed for a short
+ * probe window in every probe period. Once the device has also been still for the stationary
+ * timeout, it is paused entirely. Motion or a found message returns it to continuous scanning
+ * immediately.
+ * <p/>
+ * All inputs carry explicit timestamps and the Nearby API sits behind
+ * {@link SubscriptionController}, so the policy can be driven by synthetic traces. The host calls
+ * {@link #evaluate(long)} again after the delay it returns, and calls {@link #resume(long)} if it
+ * lost track of the policy, for example because its process was restarted while unsubscribed.
+ */
+final class ScanDutyCycler {
+    enum Mode {
+        CONTINUOUS,
+        CYCLING,
+        PAUSED
+    }
+
+    /**
+     * Starts and stops the background subscription.
+     */
+    interface SubscriptionController {
+        void subscribe();
+
+        void unsubscribe();
+    }
+
+    private final SubscriptionController mController;
+    private final long mIdleTimeoutMillis;
+    private final long mStationaryTimeoutMillis;
+    private final long mProbeWindowMillis;
+    private final long mProbePeriodMillis;
+
+    private boolean mMotionSensorAvailable = true;
+    private Mode mMode = Mode.CONTINUOUS;
+    private boolean mSubscribed = false;
+    private long mLastMotionMillis;
+    private long mLastFoundMillis;
+    private long mCycleStartMillis;
+
+    private long mStartMillis = -1;
+    private long mLastTransitionMillis;
+    private long mUnsubscribedMillis = 0;
+
+    /**
+     * @param controller              Starts and stops the subscription.
+     * @param idleTimeoutMillis       Start duty cycling after this long without a found message.
+     * @param stationaryTimeoutMillis Pause after this long without motion, once idle.
+     * @param probeWindowMillis       How long to scan in each probe period while duty cycling.
+     * @param probePeriodMillis       How often to probe while duty cycling.
+     */
+    ScanDutyCycler(SubscriptionController controller, long idleTimeoutMillis,
+                   long stationaryTimeoutMillis, long probeWindowMillis, long probePeriodMillis) {
+        mController = controller;
+        mIdleTimeoutMillis = idleTimeoutMillis;
+        mStationaryTimeoutMillis = stationaryTimeoutMillis;
+        mProbeWindowMillis = probeWindowMillis;
+        mProbePeriodMillis = probePeriodMillis;
+    }
+
+    /**
+     * Without a motion sensor the device is never considered stationary, so the subscription is
+     * duty cycled when idle but never paused.
+     */
+    synchronized void setMotionSensorAvailable(boolean available) {
+        mMotionSensorAvailable = available;
+    }
+
+    /**
+     * Starts the policy with the subscription already running.
+     *
+     * @return The delay until {@link #evaluate(long)} should next be called.
+     */
+    synchronized long start(long nowMillis) {
+        mStartMillis = nowMillis;
+        mLastTransitionMillis = nowMillis;
+        mLastMotionMillis = nowMillis;
+        mLastFoundMillis = nowMillis;
+        mMode = Mode.CONTINUOUS;
+        mSubscribed = true;
+        return evaluate(nowMillis);
+    }
+
+    /**
+     * Returns to continuous scanning as if just started, subscribing if the subscription is not
+     * known to be running. Starts the policy if it has not been started.
+     *
+     * @return The delay until {@link #evaluate(long)} should next be called.
+     */
+    synchronized long resume(long nowMillis) {
+        if (mStartMillis < 0) {
+            mStartMillis = nowMillis;
+            mLastTransitionMillis = nowMillis;
+        }
+        mLastMotionMillis = nowMillis;
+        mLastFoundMillis = nowMillis;
+        mMode = Mode.CONTINUOUS;
+        setSubscribed(true, nowMillis);
+        return evaluate(nowMillis);
+    }
+
+    synchronized void onMotion(long nowMillis) {
+        mLastMotionMillis = nowMillis;
+        if (mMode != Mode.CONTINUOUS) {
+            mMode = Mode.CONTINUOUS;
+            setSubscribed(true, nowMillis);
+        }
+    }
+
+    synchronized void onFound(long nowMillis) {
+        mLastFoundMillis = nowMillis;
+        if (mMode != Mode.CONTINUOUS) {
+            mMode = Mode.CONTINUOUS;
+            setSubscribed(true, nowMillis);
+        }
+    }
+
+    /**
+     * Applies the policy at {@code nowMillis}.
+     *
+     * @return The delay until this should next be called.
+     */
+    synchronized long evaluate(long nowMillis) {
+        if (mStartMillis < 0) {
+            return mIdleTimeoutMillis;
+        }
+        long idleFor = nowMillis - mLastFoundMillis;
+        long stillFor = nowMillis - mLastMotionMillis;
+
+        if (idleFor < mIdleTimeoutMillis) {
+            mMode = Mode.CONTINUOUS;
+            setSubscribed(true, nowMillis);
+            return mIdleTimeoutMillis - idleFor;
+        }
+        if (mMotionSensorAvailable && stillFor >= mStationaryTimeoutMillis) {
+            mMode = Mode.PAUSED;
+            setSubscribed(false, nowMillis);
+            // Only motion or a found message ends a pause; check back occasionally regardless.
+            return mProbePeriodMillis;
+        }
+
+        if (mMode != Mode.CYCLING) {
+            mMode = Mode.CYCLING;
+            mCycleStartMillis = nowMillis;
+        }
+        long phase = (nowMillis - mCycleStartMillis) % mProbePeriodMillis;
+        boolean probing = phase < mProbeWindowMillis;
+        setSubscribed(probing, nowMillis);
+        long untilNextPhase = probing ? mProbeWindowMillis - phase : mProbePeriodMillis - phase;
+        if (mMotionSensorAvailable) {
+            untilNextPhase = Math.min(untilNextPhase,
+                    Math.max(1, mStationaryTimeoutMillis - stillFor));
+        }
+        return untilNextPhase;
+    }
+
+    synchronized Mode getMode() {
+        return mMode;
+    }
+
+    synchronized boolean isSubscribed() {
+        return mSubscribed;
+    }
+
+    /**
+     * Returns the scan time avoided so far, compared with scanning continuously since
+     * {@link #start(long)}.
+     */
+    synchronized long getScanTimeSavedMillis(long nowMillis) {
+        long saved = mUnsubscribedMillis;
+        if (!mSubscribed && mStartMillis >= 0) {
+            saved += nowMillis - mLastTransitionMillis;
+        }
+        return saved;
+    }
+
+    /**
+     * Returns the fraction of scan time avoided since {@link #start(long)}, between 0 and 1.
+     */
+    synchronized double getScanTimeSavedFraction(long nowMillis) {
+        long elapsed = nowMillis - mStartMillis;
+        if (mStartMillis < 0 || elapsed <= 0) {
+            return 0;
+        }
+        return (double) getScanTimeSavedMillis(nowMillis) / elapsed;
+    }
+
+    private void setSubscribed(boolean subscribed, long nowMillis) {
+        if (subscribed == mSubscribed) {
+            return;
+        }
+        if (!mSubscribed) {
+            mUnsubscribedMillis += nowMillis - mLastTransitionMillis;
+        }
+        mLastTransitionMillis = nowMillis;
+        mSubscribed = subscribed;
+        if (subscribed) {
+            mController.subscribe();
+        } else {
+            mController.unsubscribe();
+        }
+    }
+}
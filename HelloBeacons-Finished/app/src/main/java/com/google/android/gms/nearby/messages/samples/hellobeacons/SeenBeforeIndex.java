@@ -0,0 +1,283 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Remembers, in fixed memory, which payloads have been found before, so that a first-ever
+ * sighting can be told from a returning beacon long after it has left the message cache.
+ * <p/>
+ * The index is a ring of Bloom filters, one per generation. Payloads are added to the current
+ * generation and looked up in all of them. When the current generation has held as many payloads
+ * as its false-positive budget allows, or has been current for the rotation period, the oldest
+ * generation is cleared and becomes current. A payload is therefore remembered for at least
+ * {@code generations - 1} rotation periods, and the false-positive rate stays below
+ * {@code generations} times the per-generation rate however many payloads are seen.
+ * <p/>
+ * The filters live in a memory-mapped file, so each addition only dirties the few words it sets
+ * and the OS writes them back; nothing is read or rewritten in bulk. Lookups and additions cost a
+ * fixed number of word reads, independent of history size.
+ */
+final class SeenBeforeIndex {
+    private static final int MAGIC = 0x5345454e;
+    private static final int VERSION = 1;
+
+    /**
+     * Magic, version, generation count, words per generation, hash count, current generation.
+     */
+    private static final int HEADER_FIELDS_SIZE = 6 * 4;
+    private static final int CURRENT_OFFSET = 5 * 4;
+
+    /**
+     * Start time and payload count of each generation.
+     */
+    private static final int GENERATION_HEADER_SIZE = 8 + 4;
+
+    private final int mGenerations;
+    private final int mWordsPerGeneration;
+    private final long mBitsPerGeneration;
+    private final int mHashes;
+    private final int mCapacity;
+    private final long mRotationMillis;
+    private final int mBitsOffset;
+
+    private final MappedByteBuffer mBuffer;
+
+    private long mNewCount;
+    private long mReturningCount;
+
+    /**
+     * @param file               Where the filters are kept.
+     * @param generations        How many filters to keep. At least 2.
+     * @param bytesPerGeneration The memory budget for each filter, rounded down to whole words.
+     * @param falsePositiveRate  The target false-positive rate of each filter when full.
+     * @param rotationMillis     The longest time a generation stays current.
+     * @throws IOException if the file cannot be opened or mapped.
+     */
+    SeenBeforeIndex(File file, int generations, int bytesPerGeneration, double falsePositiveRate,
+                    long rotationMillis) throws IOException {
+        if (generations < 2 || bytesPerGeneration < 8 || falsePositiveRate <= 0
+                || falsePositiveRate >= 1 || rotationMillis <= 0) {
+            throw new IllegalArgumentException("Invalid seen-before index configuration");
+        }
+        mGenerations = generations;
+        mWordsPerGeneration = bytesPerGeneration / 8;
+        mBitsPerGeneration = mWordsPerGeneration * 64L;
+        // The optimal number of hashes and the capacity at which a filter of this size reaches
+        // the target rate.
+        double ln2 = Math.log(2);
+        mHashes = Math.max(1, (int) Math.round(-Math.log(falsePositiveRate) / ln2));
+        mCapacity = (int) Math.max(1,
+                mBitsPerGeneration * ln2 * ln2 / -Math.log(falsePositiveRate));
+        mRotationMillis = rotationMillis;
+        mBitsOffset = HEADER_FIELDS_SIZE + generations * GENERATION_HEADER_SIZE;
+
+        long length = mBitsOffset + (long) generations * mWordsPerGeneration * 8;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            boolean fresh = raf.length() != length;
+            raf.setLength(length);
+            mBuffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            if (fresh || !headerMatches()) {
+                reset();
+            }
+        } finally {
+            // The mapping stays valid after the file is closed.
+            raf.close();
+        }
+    }
+
+    /**
+     * Records that a payload was found, and reports whether it had been found before.
+     *
+     * @param payloadHash The {@link BeaconEvent#payloadHash(byte[])} of the payload.
+     * @param nowMillis   The wall-clock time of the sighting.
+     * @return true if the payload has probably been found before, false if it certainly has not.
+     */
+    synchronized boolean checkAndAdd(long payloadHash, long nowMillis) {
+        boolean seen = mightContain(payloadHash);
+        if (seen) {
+            mReturningCount++;
+        } else {
+            mNewCount++;
+        }
+        int current = maybeRotate(nowMillis);
+        long hash = mix(payloadHash);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        long base = generationBase(current);
+        boolean added = false;
+        for (int i = 0; i < mHashes; i++) {
+            long bit = ((h1 + i * h2) & 0xffffffffL) % mBitsPerGeneration;
+            int index = (int) (base + (bit >>> 6) * 8);
+            long word = mBuffer.getLong(index);
+            long updated = word | (1L << bit);
+            if (updated != word) {
+                mBuffer.putLong(index, updated);
+                added = true;
+            }
+        }
+        if (added) {
+            int countOffset = generationHeader(current) + 8;
+            mBuffer.putInt(countOffset, mBuffer.getInt(countOffset) + 1);
+        }
+        return seen;
+    }
+
+    /**
+     * Returns whether a payload has probably been found before, without recording anything.
+     */
+    synchronized boolean mightContain(long payloadHash) {
+        long hash = mix(payloadHash);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int generation = 0; generation < mGenerations; generation++) {
+            if (containsIn(generation, h1, h2)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of sightings reported as first-ever since the index was opened.
+     */
+    synchronized long getNewCount() {
+        return mNewCount;
+    }
+
+    /**
+     * Returns the number of sightings reported as returning since the index was opened.
+     */
+    synchronized long getReturningCount() {
+        return mReturningCount;
+    }
+
+    /**
+     * Returns the bytes of filter state, excluding the small header.
+     */
+    long getMemoryBytes() {
+        return (long) mGenerations * mWordsPerGeneration * 8;
+    }
+
+    /**
+     * Returns how many payloads each generation holds before it is rotated out for being full.
+     */
+    int getCapacityPerGeneration() {
+        return mCapacity;
+    }
+
+    /**
+     * Estimates the current false-positive rate from how full each filter is.
+     */
+    synchronized double getEstimatedFalsePositiveRate() {
+        double allMiss = 1;
+        for (int generation = 0; generation < mGenerations; generation++) {
+            int count = mBuffer.getInt(generationHeader(generation) + 8);
+            double filled = 1 - Math.exp(-(double) mHashes * count / mBitsPerGeneration);
+            allMiss *= 1 - Math.pow(filled, mHashes);
+        }
+        return 1 - allMiss;
+    }
+
+    private boolean containsIn(int generation, int h1, int h2) {
+        long base = generationBase(generation);
+        for (int i = 0; i < mHashes; i++) {
+            long bit = ((h1 + i * h2) & 0xffffffffL) % mBitsPerGeneration;
+            if ((mBuffer.getLong((int) (base + (bit >>> 6) * 8)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int maybeRotate(long nowMillis) {
+        int current = mBuffer.getInt(CURRENT_OFFSET);
+        int header = generationHeader(current);
+        long startMillis = mBuffer.getLong(header);
+        if (startMillis == 0) {
+            mBuffer.putLong(header, nowMillis);
+            return current;
+        }
+        if (mBuffer.getInt(header + 8) < mCapacity && nowMillis - startMillis < mRotationMillis) {
+            return current;
+        }
+        current = (current + 1) % mGenerations;
+        clear(current);
+        mBuffer.putLong(generationHeader(current), nowMillis);
+        mBuffer.putInt(CURRENT_OFFSET, current);
+        return current;
+    }
+
+    private boolean headerMatches() {
+        return mBuffer.getInt(0) == MAGIC
+                && mBuffer.getInt(4) == VERSION
+                && mBuffer.getInt(8) == mGenerations
+                && mBuffer.getInt(12) == mWordsPerGeneration
+                && mBuffer.getInt(16) == mHashes
+                && mBuffer.getInt(CURRENT_OFFSET) >= 0
+                && mBuffer.getInt(CURRENT_OFFSET) < mGenerations;
+    }
+
+    private void reset() {
+        for (int generation = 0; generation < mGenerations; generation++) {
+            clear(generation);
+        }
+        mBuffer.putInt(0, MAGIC);
+        mBuffer.putInt(4, VERSION);
+        mBuffer.putInt(8, mGenerations);
+        mBuffer.putInt(12, mWordsPerGeneration);
+        mBuffer.putInt(16, mHashes);
+        mBuffer.putInt(CURRENT_OFFSET, 0);
+    }
+
+    private void clear(int generation) {
+        int header = generationHeader(generation);
+        mBuffer.putLong(header, 0);
+        mBuffer.putInt(header + 8, 0);
+        long base = generationBase(generation);
+        for (int i = 0; i < mWordsPerGeneration; i++) {
+            mBuffer.putLong((int) (base + i * 8L), 0);
+        }
+    }
+
+    private int generationHeader(int generation) {
+        return HEADER_FIELDS_SIZE + generation * GENERATION_HEADER_SIZE;
+    }
+
+    private long generationBase(int generation) {
+        return mBitsOffset + (long) generation * mWordsPerGeneration * 8;
+    }
+
+    /**
+     * Spreads the FNV hash over all 64 bits (the MurmurHash3 finalizer), so that its two halves
+     * can serve as independent hashes.
+     */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
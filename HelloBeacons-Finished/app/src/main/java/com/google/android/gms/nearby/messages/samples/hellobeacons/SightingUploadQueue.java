@@ -0,0 +1,207 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * A durable FIFO of sightings waiting to be uploaded.
+ * <p/>
+ * Sightings are appended as fixed-size records to a single file whose first bytes hold the index
+ * of the oldest record not yet acknowledged by the server. Committing a batch only rewrites that
+ * index, and the file is compacted once the acknowledged prefix dominates it. The queue holds at
+ * most a fixed number of sightings; past that, the oldest are dropped to make room.
+ */
+final class SightingUploadQueue {
+    static final int RECORD_SIZE = 8 + 1 + 8;
+
+    private static final int HEADER_SIZE = 8;
+    private static final long COMPACT_THRESHOLD = 1024;
+
+    /**
+     * A window of queued sightings, in the order they were enqueued.
+     */
+    static final class Batch {
+        final long[] timesMillis;
+        final byte[] kinds;
+        final long[] payloadHashes;
+        final int size;
+
+        Batch(int size) {
+            this.timesMillis = new long[size];
+            this.kinds = new byte[size];
+            this.payloadHashes = new long[size];
+            this.size = size;
+        }
+    }
+
+    private final File mPath;
+    private final int mMaxSize;
+    private RandomAccessFile mFile;
+
+    /**
+     * Index of the first unacknowledged record.
+     */
+    private long mHead;
+    private long mCount;
+    private long mDroppedCount;
+
+    /**
+     * @param file    The file backing the queue. It is created if needed.
+     * @param maxSize The most sightings kept waiting for upload.
+     */
+    SightingUploadQueue(File file, int maxSize) throws IOException {
+        mPath = file;
+        mMaxSize = maxSize;
+        mFile = new RandomAccessFile(file, "rw");
+        if (mFile.length() < HEADER_SIZE) {
+            mFile.setLength(0);
+            mFile.writeLong(0);
+        }
+        mFile.seek(0);
+        mHead = mFile.readLong();
+        mCount = (mFile.length() - HEADER_SIZE) / RECORD_SIZE;
+        if (mHead > mCount) {
+            mHead = mCount;
+        }
+    }
+
+    /**
+     * Appends a sighting, dropping the oldest if the queue is full.
+     */
+    synchronized void add(long timeMillis, byte kind, long payloadHash) throws IOException {
+        mFile.seek(HEADER_SIZE + mCount * RECORD_SIZE);
+        mFile.writeLong(timeMillis);
+        mFile.writeByte(kind);
+        mFile.writeLong(payloadHash);
+        mCount++;
+        if (mCount - mHead > mMaxSize) {
+            mHead++;
+            mDroppedCount++;
+            // Not synced: after a crash the dropped sighting is merely uploaded after all.
+            if (mHead >= COMPACT_THRESHOLD && mHead * 2 >= mCount) {
+                compact();
+            } else {
+                mFile.seek(0);
+                mFile.writeLong(mHead);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of sightings dropped because the queue was full.
+     */
+    synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * Returns the number of sightings waiting to be uploaded.
+     */
+    synchronized int size() {
+        return (int) (mCount - mHead);
+    }
+
+    /**
+     * Returns the time of the oldest queued sighting, or -1 if the queue is empty.
+     */
+    synchronized long oldestTimeMillis() throws IOException {
+        if (mHead == mCount) {
+            return -1;
+        }
+        mFile.seek(HEADER_SIZE + mHead * RECORD_SIZE);
+        return mFile.readLong();
+    }
+
+    /**
+     * Reads up to {@code max} of the oldest queued sightings without removing them.
+     */
+    synchronized Batch peek(int max) throws IOException {
+        Batch batch = new Batch((int) Math.min(max, mCount - mHead));
+        byte[] buffer = new byte[batch.size * RECORD_SIZE];
+        mFile.seek(HEADER_SIZE + mHead * RECORD_SIZE);
+        mFile.readFully(buffer);
+        for (int i = 0, offset = 0; i < batch.size; i++, offset += RECORD_SIZE) {
+            batch.timesMillis[i] = readLong(buffer, offset);
+            batch.kinds[i] = buffer[offset + 8];
+            batch.payloadHashes[i] = readLong(buffer, offset + 9);
+        }
+        return batch;
+    }
+
+    /**
+     * Removes the {@code count} oldest sightings once they have been uploaded.
+     */
+    synchronized void commit(int count) throws IOException {
+        mHead = Math.min(mCount, mHead + count);
+        if (mHead == mCount) {
+            mHead = 0;
+            mCount = 0;
+            mFile.setLength(HEADER_SIZE);
+        } else if (mHead >= COMPACT_THRESHOLD && mHead * 2 >= mCount) {
+            compact();
+            return;
+        }
+        mFile.seek(0);
+        mFile.writeLong(mHead);
+        mFile.getFD().sync();
+    }
+
+    synchronized void close() throws IOException {
+        mFile.close();
+    }
+
+    /**
+     * Copies the unacknowledged records to a fresh file and swaps it in, so a crash part way
+     * through leaves the old file intact.
+     */
+    private void compact() throws IOException {
+        int remaining = (int) (mCount - mHead);
+        byte[] buffer = new byte[remaining * RECORD_SIZE];
+        mFile.seek(HEADER_SIZE + mHead * RECORD_SIZE);
+        mFile.readFully(buffer);
+
+        File tmp = new File(mPath.getPath() + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+        try {
+            out.setLength(0);
+            out.writeLong(0);
+            out.write(buffer);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        mFile.close();
+        if (!tmp.renameTo(mPath)) {
+            mFile = new RandomAccessFile(mPath, "rw");
+            throw new IOException("Could not replace " + mPath);
+        }
+        mFile = new RandomAccessFile(mPath, "rw");
+        mHead = 0;
+        mCount = remaining;
+    }
+
+    private static long readLong(byte[] buffer, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (buffer[offset + i] & 0xff);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,206 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Uploads queued sightings to a backend in batches.
+ * <p/>
+ * Uploads are never scheduled on their own: {@link #maybeUpload(long)} is called from work the
+ * app is already doing for a Nearby event, and only sends once enough sightings have queued up
+ * or the oldest one has waited long enough. Each batch is compactly encoded (times as varint
+ * deltas, each distinct payload hash written once in full and then referred to by index) and
+ * gzipped. Failed uploads back off exponentially with full jitter.
+ */
+final class SightingUploader {
+    private static final int CONNECT_TIMEOUT_MILLIS = 10 * 1000;
+    private static final int READ_TIMEOUT_MILLIS = 10 * 1000;
+
+    private final SightingUploadQueue mQueue;
+    private final String mEndpoint;
+    private final int mMaxBatchSize;
+    private final long mMaxBatchAgeMillis;
+    private final long mBaseBackoffMillis;
+    private final long mMaxBackoffMillis;
+    private final Random mRandom = new Random();
+
+    private int mConsecutiveFailures = 0;
+    private long mNextAttemptMillis = 0;
+
+    private long mStartMillis = -1;
+    private long mUploadAttempts = 0;
+    private long mBytesSent = 0;
+    private long mSightingsSent = 0;
+
+    /**
+     * @param queue             The queue to drain.
+     * @param endpoint          URL that batches are POSTed to. Uploads are disabled if empty.
+     * @param maxBatchSize      Send as soon as this many sightings are queued.
+     * @param maxBatchAgeMillis Send once the oldest queued sighting is this old.
+     * @param baseBackoffMillis Delay after the first failure.
+     * @param maxBackoffMillis  Upper bound on the delay between failed attempts.
+     */
+    SightingUploader(SightingUploadQueue queue, String endpoint, int maxBatchSize,
+                     long maxBatchAgeMillis, long baseBackoffMillis, long maxBackoffMillis) {
+        mQueue = queue;
+        mEndpoint = endpoint;
+        mMaxBatchSize = maxBatchSize;
+        mMaxBatchAgeMillis = maxBatchAgeMillis;
+        mBaseBackoffMillis = baseBackoffMillis;
+        mMaxBackoffMillis = maxBackoffMillis;
+    }
+
+    /**
+     * Uploads one batch if the batching thresholds are met and the backoff has expired. Must be
+     * called off the main thread.
+     *
+     * @return true if a batch was uploaded.
+     */
+    synchronized boolean maybeUpload(long nowMillis) throws IOException {
+        if (mStartMillis < 0) {
+            mStartMillis = nowMillis;
+        }
+        if (mEndpoint == null || mEndpoint.isEmpty() || nowMillis < mNextAttemptMillis) {
+            return false;
+        }
+        int size = mQueue.size();
+        if (size == 0) {
+            return false;
+        }
+        if (size < mMaxBatchSize && nowMillis - mQueue.oldestTimeMillis() < mMaxBatchAgeMillis) {
+            return false;
+        }
+
+        SightingUploadQueue.Batch batch = mQueue.peek(mMaxBatchSize);
+        byte[] body = encode(batch);
+        mUploadAttempts++;
+        if (!post(body)) {
+            mConsecutiveFailures++;
+            long ceiling = Math.min(mMaxBackoffMillis,
+                    mBaseBackoffMillis << Math.min(mConsecutiveFailures - 1, 30));
+            mNextAttemptMillis = nowMillis + (long) (mRandom.nextDouble() * ceiling);
+            return false;
+        }
+        mConsecutiveFailures = 0;
+        mNextAttemptMillis = 0;
+        mQueue.commit(batch.size);
+        mBytesSent += body.length;
+        mSightingsSent += batch.size;
+        return true;
+    }
+
+    /**
+     * Returns the average number of request body bytes sent per uploaded sighting.
+     */
+    synchronized double getBytesPerSighting() {
+        return mSightingsSent == 0 ? 0 : (double) mBytesSent / mSightingsSent;
+    }
+
+    /**
+     * Returns the number of times the radio was used for an upload attempt, per hour since this
+     * uploader was first asked to upload.
+     */
+    synchronized double getWakeupsPerHour(long nowMillis) {
+        long elapsed = nowMillis - mStartMillis;
+        if (mStartMillis < 0 || elapsed <= 0) {
+            return 0;
+        }
+        return mUploadAttempts * (double) SightingHistoryStore.HOUR_MILLIS / elapsed;
+    }
+
+    private boolean post(byte[] body) {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(mEndpoint).openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+            connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "application/octet-stream");
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            connection.setFixedLengthStreamingMode(body.length);
+            OutputStream out = connection.getOutputStream();
+            try {
+                out.write(body);
+            } finally {
+                out.close();
+            }
+            int code = connection.getResponseCode();
+            return code >= 200 && code < 300;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Encodes a batch as: record count, then per record the zigzag varint delta from the
+     * previous time, the kind byte, and the varint index of the payload hash among the distinct
+     * hashes in the batch so far. An index one past the last is a new hash, and its 8 bytes
+     * follow. Hashes are random, so they are left for gzip to match rather than delta-encoded.
+     * The result is gzipped.
+     */
+    static byte[] encode(SightingUploadQueue.Batch batch) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        try {
+            writeVarint(out, batch.size);
+            Map<Long, Integer> indexes = new HashMap<>();
+            long previousTime = 0;
+            for (int i = 0; i < batch.size; i++) {
+                long delta = batch.timesMillis[i] - previousTime;
+                writeVarint(out, (delta << 1) ^ (delta >> 63));
+                out.write(batch.kinds[i]);
+                long hash = batch.payloadHashes[i];
+                Integer index = indexes.get(hash);
+                if (index != null) {
+                    writeVarint(out, index);
+                } else {
+                    writeVarint(out, indexes.size());
+                    for (int shift = 56; shift >= 0; shift -= 8) {
+                        out.write((int) (hash >>> shift));
+                    }
+                    indexes.put(hash, indexes.size());
+                }
+                previousTime = batch.timesMillis[i];
+            }
+        } finally {
+            out.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+}
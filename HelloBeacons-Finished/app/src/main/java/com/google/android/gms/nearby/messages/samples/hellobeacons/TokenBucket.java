@@ -0,0 +1,77 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+/**
+ * A token bucket rate limiter. Tokens refill continuously at a fixed rate up to a burst capacity,
+ * and each permitted action takes one token.
+ */
+final class TokenBucket {
+    private final Clock mClock;
+    private final double mCapacity;
+    private final double mTokensPerMilli;
+
+    private double mTokens;
+    private long mLastRefillMillis;
+
+    /**
+     * @param capacity        The largest burst allowed.
+     * @param tokensPerSecond The sustained rate.
+     * @param clock           The source of time.
+     */
+    TokenBucket(int capacity, double tokensPerSecond, Clock clock) {
+        if (capacity <= 0 || tokensPerSecond <= 0) {
+            throw new IllegalArgumentException("Invalid token bucket configuration");
+        }
+        mClock = clock;
+        mCapacity = capacity;
+        mTokensPerMilli = tokensPerSecond / 1000;
+        mTokens = capacity;
+        mLastRefillMillis = clock.nowMillis();
+    }
+
+    /**
+     * Takes a token if one is available.
+     *
+     * @return true if the action is permitted now.
+     */
+    synchronized boolean tryAcquire() {
+        refill();
+        if (mTokens >= 1) {
+            mTokens -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns how long until a token will be available, or 0 if one is available now.
+     */
+    synchronized long millisUntilAvailable() {
+        refill();
+        if (mTokens >= 1) {
+            return 0;
+        }
+        return (long) Math.ceil((1 - mTokens) / mTokensPerMilli);
+    }
+
+    private void refill() {
+        long now = mClock.nowMillis();
+        mTokens = Math.min(mCapacity, mTokens + (now - mLastRefillMillis) * mTokensPerMilli);
+        mLastRefillMillis = now;
+    }
+}
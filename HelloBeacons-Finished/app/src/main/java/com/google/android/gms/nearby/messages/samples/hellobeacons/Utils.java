@@ -16,72 +16,534 @@
 
 package com.google.android.gms.nearby.messages.samples.hellobeacons;
 
+import android.app.PendingIntent;
 import android.content.Context;
+import android.content.Intent;
 import android.content.SharedPreferences;
-import android.text.TextUtils;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
 
-import com.google.android.gms.nearby.messages.Message;
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
-
-import java.lang.reflect.Type;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashSet;
+import java.io.File;
+import java.io.IOException;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 public final class Utils {
+    private static final String TAG = Utils.class.getSimpleName();
+
     static final String KEY_CACHED_MESSAGES = "cached-messages";
 
+    private static final String MESSAGES_FILE = "messages";
+    private static final long MESSAGE_SAVE_DELAY_MILLIS = 250;
+    private static final int MESSAGE_MIGRATION_STEP = 1000;
+    private static final long MESSAGE_MIGRATION_STEP_DELAY_MILLIS = 1000;
+
+    private static MessageStore sMessageStore;
+
+    private static FileLayer sFileLayer = FileLayer.DISK;
+
+    private static final Executor sListLoadExecutor = Executors.newSingleThreadExecutor();
+
+    private static final int SEARCH_MAX_ENTRIES = 20000;
+    private static final int SEARCH_MAX_INDEXED_CHARS = 64;
+
+    private static MessageSearchIndex sSearchIndex;
+
+    private static final int MAX_TRACKED_BEACONS = 256;
+    private static final int VISIT_HISTORY_SIZE = 16;
+    private static final long VISIT_MERGE_GAP_MILLIS = 30 * 1000;
+
+    private static final String SIGHTING_HISTORY_DIR = "sightings";
+    private static final long RAW_SIGHTING_RETENTION_MILLIS =
+            2 * SightingHistoryStore.HOUR_MILLIS;
+    private static final long MINUTE_SIGHTING_RETENTION_MILLIS =
+            7 * SightingHistoryStore.DAY_MILLIS;
+    private static final long HOUR_SIGHTING_RETENTION_MILLIS =
+            90 * SightingHistoryStore.DAY_MILLIS;
+
+    private static SightingHistoryStore sSightingHistory;
+
+    private static final String SEEN_BEFORE_FILE = "seen-before";
+    private static final int SEEN_BEFORE_GENERATIONS = 4;
+    private static final int SEEN_BEFORE_BYTES_PER_GENERATION = 256 * 1024;
+    private static final double SEEN_BEFORE_FALSE_POSITIVE_RATE = 0.01;
+    private static final long SEEN_BEFORE_ROTATION_MILLIS = 30 * SightingHistoryStore.DAY_MILLIS;
+
+    private static SeenBeforeIndex sSeenBeforeIndex;
+
+    private static final String UPLOAD_QUEUE_FILE = "upload-queue";
+    private static final int UPLOAD_MAX_BATCH_SIZE = 500;
+    private static final int UPLOAD_QUEUE_MAX_SIZE = 100 * UPLOAD_MAX_BATCH_SIZE;
+    private static final long UPLOAD_MAX_BATCH_AGE_MILLIS = SightingHistoryStore.HOUR_MILLIS;
+    private static final long UPLOAD_BASE_BACKOFF_MILLIS = 30 * 1000;
+    private static final long UPLOAD_MAX_BACKOFF_MILLIS = 6 * SightingHistoryStore.HOUR_MILLIS;
+
+    private static SightingUploader sSightingUploader;
+    private static SightingUploadQueue sSightingUploadQueue;
+
+    private static final BeaconEventDispatcher sBeaconEventDispatcher =
+            new BeaconEventDispatcher(new BeaconEventDispatcher.FailureHandler() {
+                @Override
+                public void onListenerFailed(BeaconEventDispatcher.Listener listener,
+                                             BeaconEvent event, RuntimeException e) {
+                    Log.e(TAG, listener.getClass().getSimpleName() + " failed on "
+                            + event.text, e);
+                }
+            });
+
+    private static final int ADMISSION_QUEUE_CAPACITY = 256;
+    private static final int ADMISSION_MAX_TRACKED_PAYLOADS = 1024;
+    private static final int ADMISSION_PAYLOAD_BURST = 2;
+    private static final double ADMISSION_PAYLOAD_EVENTS_PER_SECOND = 1;
+
+    private static final EventAdmissionController sEventAdmissionController =
+            new EventAdmissionController(ADMISSION_QUEUE_CAPACITY,
+                    EventAdmissionController.Policy.COALESCE,
+                    EventAdmissionController.Prioritizer.LOST_FIRST,
+                    new EventAdmissionController.ShedListener() {
+                        @Override
+                        public void onShed(BeaconEvent event) {
+                            getFlightRecorder().record(System.currentTimeMillis(),
+                                    event.payloadHash, event.isFound()
+                                            ? FlightRecorder.KIND_FOUND_SHED
+                                            : FlightRecorder.KIND_LOST_SHED, 0);
+                        }
+                    },
+                    ADMISSION_MAX_TRACKED_PAYLOADS, ADMISSION_PAYLOAD_BURST,
+                    ADMISSION_PAYLOAD_EVENTS_PER_SECOND, Clock.SYSTEM);
+
+    private static final int NOTIFICATION_BURST = 2;
+    private static final double NOTIFICATION_UPDATES_PER_SECOND = 1;
+
+    private static NotificationScheduler sNotificationScheduler;
+
+    private static final int NOTIFICATION_TOP_N = 5;
+    private static final int NOTIFICATION_GROUP_THRESHOLD = 50;
+    private static final String MESSAGE_GROUPS_FILE = "message-groups";
+
+    private static NotificationRenderer sNotificationRenderer;
+
+    private static BackgroundScanController sBackgroundScanController;
+
+    private static final int MAX_CACHED_ATTACHMENTS = 1024;
+    private static final String DISPLAY_TEXTS_FILE = "display-texts";
+
+    private static AttachmentDecoderRegistry sAttachmentDecoders;
+
+    private static final String CONTENT_CACHE_DIR = "content";
+    private static final long CONTENT_CACHE_MAX_BYTES = 20 * 1024 * 1024;
+    private static final int CONTENT_MAX_BYTES = 2 * 1024 * 1024;
+    private static final long CONTENT_FRESH_MILLIS = SightingHistoryStore.DAY_MILLIS;
+    private static final int PREFETCH_THREADS = 2;
+    private static final int PREFETCH_MAX_PENDING = 32;
+
+    private static ContentPrefetcher sContentPrefetcher;
+
+    private static final Executor sContentExecutor = Executors.newCachedThreadPool();
+
+    private static final int HEAVY_HITTER_WIDTH = 2048;
+    private static final int HEAVY_HITTER_DEPTH = 4;
+    private static final int HEAVY_HITTER_COUNT = 10;
+
+    private static final HeavyHitterSketch sHeavyHitters =
+            new HeavyHitterSketch(HEAVY_HITTER_WIDTH, HEAVY_HITTER_DEPTH, HEAVY_HITTER_COUNT);
+
+    private static final int FLIGHT_RECORDER_CAPACITY = 4096;
+
+    private static final FlightRecorder sFlightRecorder =
+            new FlightRecorder(FLIGHT_RECORDER_CAPACITY);
+
+    private static final CacheManager sCacheManager = new CacheManager();
+
+    private static final VisitAggregator sVisitAggregator = new VisitAggregator(
+            MAX_TRACKED_BEACONS, VISIT_HISTORY_SIZE, VISIT_MERGE_GAP_MILLIS);
+
     /**
-     * Fetches message strings stored in {@link SharedPreferences}.
+     * Fetches the message strings in the {@link MessageStore}, most recent first. They are read
+     * from the messages file the first time the store is needed.
      *
      * @param context The context.
      * @return  A list (possibly empty) containing message strings.
      */
     static List<String> getCachedMessages(Context context) {
-        SharedPreferences sharedPrefs = getSharedPreferences(context);
-        String cachedMessagesJson = sharedPrefs.getString(KEY_CACHED_MESSAGES, "");
-        if (TextUtils.isEmpty(cachedMessagesJson)) {
-            return Collections.emptyList();
-        } else {
-            Type type = new TypeToken<List<String>>() {}.getType();
-            return new Gson().fromJson(cachedMessagesJson, type);
+        return getMessageStore(context).getAll();
+    }
+
+    /**
+     * Adds a message string to the {@link MessageStore}, which saves it to the messages file in
+     * the background.
+     *
+     * @param context       The context.
+     * @param messageString The message payload (as string) to add.
+     */
+    static void saveFoundMessage(Context context, String messageString) {
+        getMessageStore(context).add(messageString);
+    }
+
+    /**
+     * Removes a message string from the {@link MessageStore}, which saves the change to the
+     * messages file in the background.
+     *
+     * @param context       The context.
+     * @param messageString The message payload (as string) to remove.
+     */
+    static void removeLostMessage(Context context, String messageString) {
+        getMessageStore(context).remove(messageString);
+    }
+
+    /**
+     * Gets the process-wide in-memory view of the cached messages. Changes are saved in the
+     * background, coalesced over {@link #MESSAGE_SAVE_DELAY_MILLIS}, on the same thread that
+     * converts messages stored by older versions of the app.
+     *
+     * @param context The context.
+     * @return The single {@link MessageStore} for this application.
+     */
+    static synchronized MessageStore getMessageStore(Context context) {
+        if (sMessageStore == null) {
+            sMessageStore = createMessageStore(getSharedPreferences(context), sFileLayer,
+                    new File(context.getApplicationContext().getFilesDir(), MESSAGES_FILE),
+                    Executors.newSingleThreadScheduledExecutor());
+            sCacheManager.register("changes", sMessageStore, CacheManager.PRIORITY_LOW);
+        }
+        return sMessageStore;
+    }
+
+    /**
+     * Builds a message store as {@link #getMessageStore(Context)} does, over the given storage.
+     *
+     * @param sharedPrefs     Where messages stored by older versions of the app are kept.
+     * @param files           The file operations used for the messages file.
+     * @param file            The messages file.
+     * @param storageExecutor Saves changes and converts old messages.
+     */
+    static MessageStore createMessageStore(SharedPreferences sharedPrefs, FileLayer files,
+                                           File file, ScheduledExecutorService storageExecutor) {
+        return new MessageStore(new VersionedMessagePersistence(sharedPrefs, files, file,
+                storageExecutor, MESSAGE_MIGRATION_STEP, MESSAGE_MIGRATION_STEP_DELAY_MILLIS),
+                storageExecutor, MESSAGE_SAVE_DELAY_MILLIS);
+    }
+
+    /**
+     * Sets the file operations the message store uses, such as a {@link FaultInjectingFileLayer}
+     * to see how the app copes with failing storage. Takes effect only if called before the store
+     * is first used.
+     */
+    static synchronized void setFileLayer(FileLayer files) {
+        sFileLayer = files;
+    }
+
+    /**
+     * Gets the process-wide executor that reads the message store for the list in
+     * {@link MainActivity}.
+     */
+    static Executor getListLoadExecutor() {
+        return sListLoadExecutor;
+    }
+
+    /**
+     * Gets the process-wide search index over the cached messages, built from the
+     * {@link MessageStore} the first time it is needed.
+     *
+     * @param context The context.
+     * @return The single {@link MessageSearchIndex} for this application.
+     */
+    static synchronized MessageSearchIndex getSearchIndex(Context context) {
+        if (sSearchIndex == null) {
+            sSearchIndex = new MessageSearchIndex(getMessageStore(context), SEARCH_MAX_ENTRIES,
+                    SEARCH_MAX_INDEXED_CHARS, Executors.newSingleThreadExecutor());
+            sCacheManager.register("search", sSearchIndex, CacheManager.PRIORITY_NORMAL);
+        }
+        return sSearchIndex;
+    }
+
+    /**
+     * Gets the process-wide dispatcher that fans found and lost events out to subscribers.
+     *
+     * @return The single {@link BeaconEventDispatcher} for this application.
+     */
+    static BeaconEventDispatcher getBeaconEventDispatcher() {
+        return sBeaconEventDispatcher;
+    }
+
+    /**
+     * Gets the process-wide manager of caches to release when memory runs short.
+     *
+     * @return The single {@link CacheManager} for this application.
+     */
+    static CacheManager getCacheManager() {
+        return sCacheManager;
+    }
+
+    /**
+     * Gets the process-wide queue of events waiting to be dispatched.
+     *
+     * @return The single {@link EventAdmissionController} in front of the dispatcher.
+     */
+    static EventAdmissionController getEventAdmissionController() {
+        return sEventAdmissionController;
+    }
+
+    /**
+     * Starts tracking a set of zones. The rules are compiled into a {@link ZoneRulesEngine},
+     * subscribed to found and lost events, and then seeded with the messages currently cached,
+     * so that nothing found or lost while the cache is read is missed. Reads the message store,
+     * so must not be called on the main thread.
+     *
+     * @param context  The context.
+     * @param rules    The zones to track.
+     * @param listener Notified when the device enters or leaves a zone.
+     * @return The registration to pass to {@link BeaconEventDispatcher#unregister} to stop.
+     */
+    static BeaconEventDispatcher.Registration registerZoneRules(Context context,
+            List<ZoneRulesEngine.Rule> rules, ZoneRulesEngine.ZoneListener listener) {
+        ZoneRulesEngine engine = new ZoneRulesEngine(rules, listener);
+        BeaconEventDispatcher.Registration registration =
+                sBeaconEventDispatcher.register(BeaconEventDispatcher.Filter.ALL, engine);
+        engine.seed(getCachedMessages(context));
+        return registration;
+    }
+
+    /**
+     * Gets the process-wide scheduler that rate-limits posting the messages notification.
+     * Every post renders the messages, which may first have to be read from storage, so deferred
+     * posts run on a background thread of their own rather than the main thread.
+     *
+     * @param context The context.
+     * @return The single {@link NotificationScheduler} for this application.
+     */
+    static synchronized NotificationScheduler getNotificationScheduler(Context context) {
+        if (sNotificationScheduler == null) {
+            final Context appContext = context.getApplicationContext();
+            HandlerThread thread = new HandlerThread("notification",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            final Handler handler = new Handler(thread.getLooper());
+            sNotificationScheduler = new NotificationScheduler(
+                    new TokenBucket(NOTIFICATION_BURST, NOTIFICATION_UPDATES_PER_SECOND,
+                            Clock.SYSTEM),
+                    new NotificationScheduler.Poster() {
+                        @Override
+                        public void post() {
+                            BackgroundSubscribeIntentService.postNotification(appContext);
+                        }
+                    },
+                    new NotificationScheduler.Scheduler() {
+                        @Override
+                        public void schedule(Runnable task, long delayMillis) {
+                            handler.postDelayed(task, delayMillis);
+                        }
+                    });
+        }
+        return sNotificationScheduler;
+    }
+
+    /**
+     * Gets the process-wide renderer of the messages notification, seeded with the cached
+     * messages the first time it is needed.
+     *
+     * @param context The context.
+     * @return The single {@link NotificationRenderer} for this application.
+     */
+    static synchronized NotificationRenderer getNotificationRenderer(Context context) {
+        if (sNotificationRenderer == null) {
+            sNotificationRenderer = new NotificationRenderer(getMessageStore(context),
+                    new MessageAnnotations(new File(context.getApplicationContext().getFilesDir(),
+                            MESSAGE_GROUPS_FILE)),
+                    NOTIFICATION_TOP_N, NOTIFICATION_GROUP_THRESHOLD);
+            sCacheManager.register("notification", sNotificationRenderer,
+                    CacheManager.PRIORITY_HIGH);
+        }
+        return sNotificationRenderer;
+    }
+
+    /**
+     * Gets the process-wide controller that duty cycles the background subscription.
+     *
+     * @param context The context.
+     * @return The single {@link BackgroundScanController} for this application.
+     */
+    static synchronized BackgroundScanController getBackgroundScanController(Context context) {
+        if (sBackgroundScanController == null) {
+            sBackgroundScanController = new BackgroundScanController(context, Clock.SYSTEM);
         }
+        return sBackgroundScanController;
+    }
+
+    /**
+     * Gets the {@link PendingIntent} through which Nearby delivers background subscription
+     * results to {@link BackgroundSubscribeIntentService}.
+     *
+     * @param context The context.
+     * @return The same {@link PendingIntent} every time, so it can also be used to unsubscribe.
+     */
+    static PendingIntent getSubscribePendingIntent(Context context) {
+        return PendingIntent.getService(context, 0,
+                new Intent(context, BackgroundSubscribeIntentService.class),
+                PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    /**
+     * Gets the {@link PendingIntent} through which the resume alarm restarts scanning, via
+     * {@link BackgroundSubscribeIntentService}.
+     *
+     * @param context The context.
+     * @return The same {@link PendingIntent} every time, so it can also be used to cancel.
+     */
+    static PendingIntent getResumeScanPendingIntent(Context context) {
+        return PendingIntent.getService(context, 0,
+                new Intent(context, BackgroundSubscribeIntentService.class)
+                        .setAction(BackgroundSubscribeIntentService.ACTION_RESUME_SCAN),
+                PendingIntent.FLAG_UPDATE_CURRENT);
     }
 
     /**
-     * Saves a message string to {@link SharedPreferences}.
+     * Gets the process-wide aggregator of per-beacon visits and dwell times.
+     *
+     * @return The single {@link VisitAggregator} fed by found and lost events.
+     */
+    static VisitAggregator getVisitAggregator() {
+        return sVisitAggregator;
+    }
+
+    /**
+     * Gets the process-wide attachment decoders. Attachments of type {@code json}, {@code url}
+     * or {@code string} are decoded as such in any namespace; register more specific decoders
+     * here as attachment formats are added.
      *
      * @param context The context.
-     * @param message The Message whose payload (as string) is saved to SharedPreferences.
-     */
-    static void saveFoundMessage(Context context, Message message) {
-        ArrayList<String> cachedMessages = new ArrayList<>(getCachedMessages(context));
-        Set<String> cachedMessagesSet = new HashSet<>(cachedMessages);
-        String messageString = new String(message.getContent());
-        if (!cachedMessagesSet.contains(messageString)) {
-            cachedMessages.add(0, new String(message.getContent()));
-            getSharedPreferences(context)
-                    .edit()
-                    .putString(KEY_CACHED_MESSAGES, new Gson().toJson(cachedMessages))
-                    .apply();
+     * @return The single {@link AttachmentDecoderRegistry} for this application.
+     */
+    static synchronized AttachmentDecoderRegistry getAttachmentDecoders(Context context) {
+        if (sAttachmentDecoders == null) {
+            sAttachmentDecoders = new AttachmentDecoderRegistry(MAX_CACHED_ATTACHMENTS,
+                    new MessageAnnotations(new File(context.getApplicationContext().getFilesDir(),
+                            DISPLAY_TEXTS_FILE)),
+                    Executors.newSingleThreadExecutor());
+            sAttachmentDecoders.register(null, "json", AttachmentDecoder.JSON);
+            sAttachmentDecoders.register(null, "url", AttachmentDecoder.URL);
+            sAttachmentDecoders.register(null, "string", AttachmentDecoder.TEXT);
+            sCacheManager.register("attachments", sAttachmentDecoders, CacheManager.PRIORITY_LOW);
         }
+        return sAttachmentDecoders;
     }
 
     /**
-     * Removes a message string from {@link SharedPreferences}.
+     * Gets the process-wide prefetcher of content linked from attachments, cached under the
+     * app's cache directory.
+     *
      * @param context The context.
-     * @param message The Message whose payload (as string) is removed from SharedPreferences.
-     */
-    static void removeLostMessage(Context context, Message message) {
-        ArrayList<String> cachedMessages = new ArrayList<>(getCachedMessages(context));
-        cachedMessages.remove(new String(message.getContent()));
-        getSharedPreferences(context)
-                .edit()
-                .putString(KEY_CACHED_MESSAGES, new Gson().toJson(cachedMessages))
-                .apply();
+     * @return The single {@link ContentPrefetcher} for this application.
+     * @throws IOException if the cache directory cannot be opened.
+     */
+    static synchronized ContentPrefetcher getContentPrefetcher(Context context)
+            throws IOException {
+        if (sContentPrefetcher == null) {
+            sContentPrefetcher = new ContentPrefetcher(
+                    new ContentDiskCache(new File(context.getApplicationContext().getCacheDir(),
+                            CONTENT_CACHE_DIR), CONTENT_CACHE_MAX_BYTES),
+                    new ContentPrefetcher.HttpFetcher(CONTENT_MAX_BYTES), Clock.WALL,
+                    CONTENT_FRESH_MILLIS, PREFETCH_THREADS, PREFETCH_MAX_PENDING);
+        }
+        return sContentPrefetcher;
+    }
+
+    /**
+     * Gets the process-wide executor that opens content for {@link MainActivity}. Each open gets
+     * a thread of its own, so a slow fetch never holds up another.
+     */
+    static Executor getContentExecutor() {
+        return sContentExecutor;
+    }
+
+    /**
+     * Gets the process-wide tracker of the payloads with the most found/lost churn.
+     *
+     * @return The single {@link HeavyHitterSketch} fed by found and lost events.
+     */
+    static HeavyHitterSketch getHeavyHitters() {
+        return sHeavyHitters;
+    }
+
+    /**
+     * Gets the process-wide recorder of the most recent raw Nearby events.
+     *
+     * @return The single {@link FlightRecorder} for this application.
+     */
+    static FlightRecorder getFlightRecorder() {
+        return sFlightRecorder;
+    }
+
+    /**
+     * Gets the process-wide index of payloads found before, stored under the app's files
+     * directory.
+     *
+     * @param context The context.
+     * @return The single {@link SeenBeforeIndex} for this application.
+     * @throws IOException if the index file cannot be opened.
+     */
+    static synchronized SeenBeforeIndex getSeenBeforeIndex(Context context) throws IOException {
+        if (sSeenBeforeIndex == null) {
+            sSeenBeforeIndex = new SeenBeforeIndex(
+                    new File(context.getApplicationContext().getFilesDir(), SEEN_BEFORE_FILE),
+                    SEEN_BEFORE_GENERATIONS, SEEN_BEFORE_BYTES_PER_GENERATION,
+                    SEEN_BEFORE_FALSE_POSITIVE_RATE, SEEN_BEFORE_ROTATION_MILLIS);
+        }
+        return sSeenBeforeIndex;
+    }
+
+    /**
+     * Gets the process-wide history of sightings, stored under the app's files directory.
+     *
+     * @param context The context.
+     * @return The single {@link SightingHistoryStore} for this application.
+     */
+    static synchronized SightingHistoryStore getSightingHistory(Context context)
+            throws IOException {
+        if (sSightingHistory == null) {
+            sSightingHistory = new SightingHistoryStore(
+                    new File(context.getApplicationContext().getFilesDir(), SIGHTING_HISTORY_DIR),
+                    RAW_SIGHTING_RETENTION_MILLIS, MINUTE_SIGHTING_RETENTION_MILLIS,
+                    HOUR_SIGHTING_RETENTION_MILLIS, Executors.newSingleThreadExecutor());
+        }
+        return sSightingHistory;
+    }
+
+    /**
+     * Gets the process-wide durable queue of sightings waiting to be uploaded.
+     *
+     * @param context The context.
+     * @return The single {@link SightingUploadQueue} for this application.
+     */
+    static synchronized SightingUploadQueue getSightingUploadQueue(Context context)
+            throws IOException {
+        if (sSightingUploadQueue == null) {
+            sSightingUploadQueue = new SightingUploadQueue(
+                    new File(context.getApplicationContext().getFilesDir(), UPLOAD_QUEUE_FILE),
+                    UPLOAD_QUEUE_MAX_SIZE);
+        }
+        return sSightingUploadQueue;
+    }
+
+    /**
+     * Gets the process-wide uploader that sends queued sightings to
+     * {@code BuildConfig.SIGHTING_UPLOAD_URL}.
+     *
+     * @param context The context.
+     * @return The single {@link SightingUploader} for this application.
+     */
+    static synchronized SightingUploader getSightingUploader(Context context) throws IOException {
+        if (sSightingUploader == null) {
+            sSightingUploader = new SightingUploader(getSightingUploadQueue(context),
+                    BuildConfig.SIGHTING_UPLOAD_URL, UPLOAD_MAX_BATCH_SIZE,
+                    UPLOAD_MAX_BATCH_AGE_MILLIS, UPLOAD_BASE_BACKOFF_MILLIS,
+                    UPLOAD_MAX_BACKOFF_MILLIS);
+        }
+        return sSightingUploader;
     }
 
     /**
@@ -0,0 +1,215 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.google.gson.stream.JsonReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the {@link MessageStore} in the newest schema, while still reading what older versions of
+ * the app stored.
+ * <p/>
+ * Schema 1 is the JSON array under {@link Utils#KEY_CACHED_MESSAGES} in preferences; schema 2 is
+ * a {@link MessageRecordFile}, whose header names its version. Whichever file exists wins, so the
+ * schema switch is as atomic as the rename that creates it. Until then, schema 1 data is read
+ * through {@link PreferencesMessagePersistence} exactly as before, so the first start after an
+ * upgrade costs no more than any start before it.
+ * <p/>
+ * The conversion runs on the given executor, {@code stepMessages} at a time, as a single chain of
+ * steps however often the store is loaded. The steps share one reader over the old data, so the
+ * whole conversion parses it once: each step reads on from where the last stopped, appends the
+ * next messages to a side file, syncs it and checkpoints the count and offset in preferences. A
+ * process that dies mid-way resumes where it stopped, streaming past the converted messages once.
+ * The last step renames the side file into place and drops the old data. A save writes the whole
+ * list in schema 2 directly, which also ends any conversion in progress.
+ */
+final class VersionedMessagePersistence implements MessageStore.Persistence {
+    private static final String TAG = VersionedMessagePersistence.class.getSimpleName();
+
+    private static final String KEY_MIGRATED_MESSAGES = "cached-messages-migrated";
+    private static final String KEY_MIGRATED_BYTES = "cached-messages-migrated-bytes";
+    private static final String MIGRATING_SUFFIX = ".migrating";
+
+    private final SharedPreferences mSharedPrefs;
+    private final PreferencesMessagePersistence mLegacy;
+    private final FileLayer mFiles;
+    private final MessageRecordFile mRecords;
+    private final File mMigratingFile;
+    private final ScheduledExecutorService mExecutor;
+    private final int mStepMessages;
+    private final long mStepDelayMillis;
+
+    private boolean mMigrationScheduled;
+
+    /**
+     * Reads the schema 1 data on from the first message not yet converted, or is null when no
+     * step has read it in this process.
+     */
+    private JsonReader mReader;
+    private int mReaderPosition;
+
+    private final Runnable mMigrationStep = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                if (migrateStep()) {
+                    mExecutor.schedule(this, mStepDelayMillis, TimeUnit.MILLISECONDS);
+                    return;
+                }
+            } catch (IOException | IllegalStateException e) {
+                // Retried from the last checkpoint the next time the store is loaded.
+                Log.w(TAG, "Could not convert stored messages", e);
+            }
+            endMigration();
+        }
+    };
+
+    /**
+     * @param sharedPrefs     Where schema 1 data and conversion checkpoints are kept.
+     * @param files           The file operations used for schema 2 data.
+     * @param file            Where schema 2 data is kept.
+     * @param executor        Runs the conversion. Saves should run on it too, so that the two
+     *                        never contend.
+     * @param stepMessages    How many messages each conversion step converts.
+     * @param stepDelayMillis How long to wait before each step, leaving the thread to others.
+     */
+    VersionedMessagePersistence(SharedPreferences sharedPrefs, FileLayer files, File file,
+                                ScheduledExecutorService executor, int stepMessages,
+                                long stepDelayMillis) {
+        mSharedPrefs = sharedPrefs;
+        mLegacy = new PreferencesMessagePersistence(sharedPrefs);
+        mFiles = files;
+        mRecords = new MessageRecordFile(files, file);
+        mMigratingFile = new File(file.getPath() + MIGRATING_SUFFIX);
+        mExecutor = executor;
+        mStepMessages = stepMessages;
+        mStepDelayMillis = stepDelayMillis;
+    }
+
+    @Override
+    public synchronized List<String> load() throws IOException {
+        if (mRecords.exists()) {
+            try {
+                return mRecords.load();
+            } catch (IOException e) {
+                Log.w(TAG, "Could not read stored messages", e);
+                throw e;
+            }
+        }
+        List<String> messages = mLegacy.load();
+        if (messages != null && !mMigrationScheduled) {
+            mMigrationScheduled = true;
+            mExecutor.schedule(mMigrationStep, mStepDelayMillis, TimeUnit.MILLISECONDS);
+        }
+        return messages;
+    }
+
+    @Override
+    public synchronized void save(List<String> messages) throws IOException {
+        try {
+            mRecords.save(messages);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not save messages", e);
+            throw e;
+        }
+        if (mSharedPrefs.contains(Utils.KEY_CACHED_MESSAGES)) {
+            dropLegacy();
+        }
+    }
+
+    /**
+     * Converts the next batch of schema 1 messages.
+     *
+     * @return true if there are more to convert.
+     */
+    private synchronized boolean migrateStep() throws IOException {
+        if (mRecords.exists()) {
+            // A save got there first.
+            dropLegacy();
+            return false;
+        }
+        String json = mSharedPrefs.getString(Utils.KEY_CACHED_MESSAGES, null);
+        if (json == null) {
+            return false;
+        }
+        int done = mSharedPrefs.getInt(KEY_MIGRATED_MESSAGES, 0);
+        long offset = mSharedPrefs.getLong(KEY_MIGRATED_BYTES, 0);
+        if (mFiles.length(mMigratingFile) < offset) {
+            // The side file was lost; start over.
+            done = 0;
+            offset = 0;
+        }
+        if (mReader == null || mReaderPosition != done) {
+            mReader = new JsonReader(new StringReader(json));
+            mReader.beginArray();
+            for (int i = 0; i < done; i++) {
+                mReader.skipValue();
+            }
+            mReaderPosition = done;
+        }
+
+        JsonReader reader = mReader;
+        int converted = 0;
+        MessageRecordFile.Appender appender = new MessageRecordFile.Appender(mFiles,
+                mMigratingFile, offset);
+        try {
+            while (converted < mStepMessages && reader.hasNext()) {
+                appender.append(reader.nextString());
+                converted++;
+            }
+            offset = appender.sync();
+        } finally {
+            mReaderPosition += converted;
+            appender.close();
+        }
+
+        if (reader.hasNext()) {
+            mSharedPrefs.edit()
+                    .putInt(KEY_MIGRATED_MESSAGES, done + converted)
+                    .putLong(KEY_MIGRATED_BYTES, offset)
+                    .commit();
+            return true;
+        }
+        mRecords.replaceWith(mMigratingFile);
+        dropLegacy();
+        Log.i(TAG, "Converted " + (done + converted) + " stored messages to schema 2");
+        return false;
+    }
+
+    private synchronized void endMigration() {
+        mMigrationScheduled = false;
+        mReader = null;
+    }
+
+    private void dropLegacy() {
+        mSharedPrefs.edit()
+                .remove(Utils.KEY_CACHED_MESSAGES)
+                .remove(KEY_MIGRATED_MESSAGES)
+                .remove(KEY_MIGRATED_BYTES)
+                .commit();
+        mFiles.delete(mMigratingFile);
+    }
+}
@@ -0,0 +1,242 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tracks zones defined by which messages are present, and reports when the device enters or
+ * leaves them.
+ * <p/>
+ * A {@link Rule} is active when at least one of its {@code anyOf} messages is present (or
+ * {@code anyOf} is empty), all of its {@code allOf} messages are present, and none of its
+ * {@code noneOf} messages are. Rules are compiled into an index from each message to the rules
+ * that mention it, and into per-rule counters of present messages, so a found or lost event only
+ * re-evaluates the rules that mention that message, each in constant time. Only messages that
+ * some rule mentions are tracked.
+ * <p/>
+ * No zone is entered until {@link #seed(Collection)} is called with the messages already
+ * present; from then on, rules that hold (including those with only {@code noneOf} messages)
+ * are reported as entered.
+ */
+final class ZoneRulesEngine implements BeaconEventDispatcher.Listener {
+    private static final int ROLE_ANY = 0;
+    private static final int ROLE_ALL = 1;
+    private static final int ROLE_NONE = 2;
+    private static final int ROLE_BITS = 2;
+
+    /**
+     * A zone, defined by sets of message payloads (as strings).
+     */
+    static final class Rule {
+        final String name;
+        final Set<String> anyOf;
+        final Set<String> allOf;
+        final Set<String> noneOf;
+
+        Rule(String name, Collection<String> anyOf, Collection<String> allOf,
+             Collection<String> noneOf) {
+            this.name = name;
+            this.anyOf = Collections.unmodifiableSet(new HashSet<>(anyOf));
+            this.allOf = Collections.unmodifiableSet(new HashSet<>(allOf));
+            this.noneOf = Collections.unmodifiableSet(new HashSet<>(noneOf));
+        }
+    }
+
+    /**
+     * Notified on the thread that delivered the event when a rule changes state.
+     */
+    interface ZoneListener {
+        void onZoneEntered(Rule rule);
+
+        void onZoneExited(Rule rule);
+    }
+
+    private final Rule[] mRules;
+    private final ZoneListener mListener;
+
+    /**
+     * For each payload, the rules that mention it, encoded as {@code rule << ROLE_BITS | role}.
+     */
+    private final Map<String, int[]> mRefs = new HashMap<>();
+
+    private final int[] mAnyPresent;
+    private final int[] mAllPresent;
+    private final int[] mNonePresent;
+    private final boolean[] mActive;
+
+    private final Set<String> mPresent = new HashSet<>();
+
+    /**
+     * Messages found or lost before {@link #seed(Collection)}, whose state the seed must not
+     * override; null once seeded.
+     */
+    private Set<String> mChangedBeforeSeed = new HashSet<>();
+
+    ZoneRulesEngine(List<Rule> rules, ZoneListener listener) {
+        mRules = rules.toArray(new Rule[rules.size()]);
+        mListener = listener;
+        mAnyPresent = new int[mRules.length];
+        mAllPresent = new int[mRules.length];
+        mNonePresent = new int[mRules.length];
+        mActive = new boolean[mRules.length];
+
+        Map<String, List<Integer>> refs = new HashMap<>();
+        for (int i = 0; i < mRules.length; i++) {
+            addRefs(refs, mRules[i].anyOf, i, ROLE_ANY);
+            addRefs(refs, mRules[i].allOf, i, ROLE_ALL);
+            addRefs(refs, mRules[i].noneOf, i, ROLE_NONE);
+        }
+        for (Map.Entry<String, List<Integer>> entry : refs.entrySet()) {
+            List<Integer> list = entry.getValue();
+            int[] compiled = new int[list.size()];
+            for (int i = 0; i < compiled.length; i++) {
+                compiled[i] = list.get(i);
+            }
+            mRefs.put(entry.getKey(), compiled);
+        }
+    }
+
+    /**
+     * Marks every payload in {@code present} as found, for example with the messages already
+     * cached when the engine is created, then reports every zone that holds as entered. Messages
+     * found or lost since the engine was created keep their state, so the engine can be
+     * subscribed to events before it is seeded without missing any.
+     */
+    synchronized void seed(Collection<String> present) {
+        if (mChangedBeforeSeed == null) {
+            return;
+        }
+        for (String payload : present) {
+            if (!mChangedBeforeSeed.contains(payload)) {
+                onFound(payload);
+            }
+        }
+        mChangedBeforeSeed = null;
+        for (int rule = 0; rule < mRules.length; rule++) {
+            reevaluate(rule);
+        }
+    }
+
+    @Override
+    public void onBeaconEvent(BeaconEvent event) {
+        if (event.isFound()) {
+            onFound(event.text);
+        } else {
+            onLost(event.text);
+        }
+    }
+
+    synchronized void onFound(String payload) {
+        int[] refs = mRefs.get(payload);
+        if (refs == null) {
+            return;
+        }
+        if (mChangedBeforeSeed != null) {
+            mChangedBeforeSeed.add(payload);
+        }
+        if (mPresent.add(payload)) {
+            update(refs, 1);
+        }
+    }
+
+    synchronized void onLost(String payload) {
+        int[] refs = mRefs.get(payload);
+        if (refs == null) {
+            return;
+        }
+        if (mChangedBeforeSeed != null) {
+            mChangedBeforeSeed.add(payload);
+        }
+        if (mPresent.remove(payload)) {
+            update(refs, -1);
+        }
+    }
+
+    /**
+     * Returns the number of present messages being tracked.
+     */
+    synchronized int getPresentCount() {
+        return mPresent.size();
+    }
+
+    synchronized boolean isActive(String ruleName) {
+        for (int i = 0; i < mRules.length; i++) {
+            if (mRules[i].name.equals(ruleName)) {
+                return mActive[i];
+            }
+        }
+        return false;
+    }
+
+    private void update(int[] refs, int delta) {
+        for (int ref : refs) {
+            int rule = ref >>> ROLE_BITS;
+            switch (ref & ((1 << ROLE_BITS) - 1)) {
+                case ROLE_ANY:
+                    mAnyPresent[rule] += delta;
+                    break;
+                case ROLE_ALL:
+                    mAllPresent[rule] += delta;
+                    break;
+                default:
+                    mNonePresent[rule] += delta;
+                    break;
+            }
+            if (mChangedBeforeSeed == null) {
+                reevaluate(rule);
+            }
+        }
+    }
+
+    private void reevaluate(int rule) {
+        boolean active = evaluate(rule);
+        if (active != mActive[rule]) {
+            mActive[rule] = active;
+            if (active) {
+                mListener.onZoneEntered(mRules[rule]);
+            } else {
+                mListener.onZoneExited(mRules[rule]);
+            }
+        }
+    }
+
+    private boolean evaluate(int rule) {
+        return (mRules[rule].anyOf.isEmpty() || mAnyPresent[rule] > 0)
+                && mAllPresent[rule] == mRules[rule].allOf.size()
+                && mNonePresent[rule] == 0;
+    }
+
+    private static void addRefs(Map<String, List<Integer>> refs, Set<String> payloads, int rule,
+                                int role) {
+        for (String payload : payloads) {
+            List<Integer> list = refs.get(payload);
+            if (list == null) {
+                list = new ArrayList<>();
+                refs.put(payload, list);
+            }
+            list.add((rule << ROLE_BITS) | role);
+        }
+    }
+}
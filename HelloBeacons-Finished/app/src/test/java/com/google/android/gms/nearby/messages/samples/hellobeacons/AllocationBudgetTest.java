@@ -0,0 +1,161 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Fails when a beacon event hot path allocates more per operation than the budget kept next to
+ * its code. Bytes are counted with the JVM's per-thread allocation counter, averaged over many
+ * operations after a warm-up, against a store holding {@link #STORED} messages.
+ */
+public class AllocationBudgetTest {
+    private static final int STORED = 1000;
+    private static final int OPERATIONS = 1000;
+    private static final int WARM_UP_ROUNDS = 20;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final com.sun.management.ThreadMXBean mThreads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private MessageStore mStore;
+    private PresencePipeline mPipeline;
+
+    @Before
+    public void setUp() {
+        assumeTrue(mThreads.isThreadAllocatedMemorySupported());
+        mThreads.setThreadAllocatedMemoryEnabled(true);
+        mStore = new MessageStore(MessageStore.Persistence.NONE);
+        mPipeline = new PresencePipeline(mStore, new VisitAggregator(256, 16, 30 * 1000));
+        for (int i = 0; i < STORED; i++) {
+            mPipeline.onBeaconEvent(event(BeaconEvent.KIND_FOUND, "stored-" + i));
+        }
+    }
+
+    private static BeaconEvent event(byte kind, String payload) {
+        return new BeaconEvent(kind, "ns", "type", payload.getBytes(), 0);
+    }
+
+    private static BeaconEvent[] events(byte kind, int round) {
+        BeaconEvent[] events = new BeaconEvent[OPERATIONS];
+        for (int i = 0; i < OPERATIONS; i++) {
+            events[i] = event(kind, "event-" + round + "-" + i);
+        }
+        return events;
+    }
+
+    private long allocatedBytes() {
+        return mThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Delivers a round of new payloads as found and then as lost, returning the bytes allocated
+     * per found and per lost event. The events themselves are built beforehand.
+     */
+    private long[] measureFoundAndLost(int round) {
+        BeaconEvent[] found = events(BeaconEvent.KIND_FOUND, round);
+        BeaconEvent[] lost = events(BeaconEvent.KIND_LOST, round);
+        long start = allocatedBytes();
+        for (BeaconEvent event : found) {
+            mPipeline.onBeaconEvent(event);
+        }
+        long afterFound = allocatedBytes();
+        for (BeaconEvent event : lost) {
+            mPipeline.onBeaconEvent(event);
+        }
+        long afterLost = allocatedBytes();
+        return new long[] {
+                (afterFound - start) / OPERATIONS,
+                (afterLost - afterFound) / OPERATIONS,
+        };
+    }
+
+    private static void assertWithinBudget(String operation, long bytes, long budget) {
+        System.out.printf("Allocation budget: %s %d B/op (budget %d B/op)%n", operation, bytes,
+                budget);
+        assertTrue(operation + " allocated " + bytes + " B/op, over its budget of " + budget,
+                bytes <= budget);
+    }
+
+    @Test
+    public void foundAndLostStayWithinBudget() {
+        for (int round = 0; round < WARM_UP_ROUNDS; round++) {
+            measureFoundAndLost(round);
+        }
+        long[] perEvent = measureFoundAndLost(WARM_UP_ROUNDS);
+        assertWithinBudget("found", perEvent[0], PresencePipeline.FOUND_ALLOCATION_BUDGET_BYTES);
+        assertWithinBudget("lost", perEvent[1], PresencePipeline.LOST_ALLOCATION_BUDGET_BYTES);
+    }
+
+    @Test
+    public void readingASnapshotStaysWithinBudget() {
+        int sink = 0;
+        for (int round = 0; round <= WARM_UP_ROUNDS; round++) {
+            for (int i = 0; i < OPERATIONS; i++) {
+                sink += readSnapshot(i);
+            }
+        }
+        long start = allocatedBytes();
+        for (int i = 0; i < OPERATIONS; i++) {
+            sink += readSnapshot(i);
+        }
+        long perRead = (allocatedBytes() - start) / OPERATIONS;
+        assertTrue(sink > 0);
+        assertWithinBudget("read snapshot", perRead,
+                MessageStore.SNAPSHOT_ALLOCATION_BUDGET_BYTES);
+    }
+
+    /**
+     * Reads the way the list and the notification do: the size and one message.
+     */
+    private int readSnapshot(int i) {
+        List<String> snapshot = mStore.snapshot();
+        return snapshot.size() + snapshot.get(i % snapshot.size()).length();
+    }
+
+    @Test
+    public void renderingTheNotificationStaysWithinBudget() throws IOException {
+        NotificationRenderer renderer = new NotificationRenderer(mStore,
+                new MessageAnnotations(mFolder.newFile()), 5, 50);
+        int sink = 0;
+        for (int round = 0; round <= WARM_UP_ROUNDS; round++) {
+            for (int i = 0; i < OPERATIONS; i++) {
+                sink += renderer.getCount() + renderer.renderText().length();
+            }
+        }
+        long start = allocatedBytes();
+        for (int i = 0; i < OPERATIONS; i++) {
+            sink += renderer.getCount() + renderer.renderText().length();
+        }
+        long perRender = (allocatedBytes() - start) / OPERATIONS;
+        assertTrue(sink > 0);
+        assertWithinBudget("render notification", perRender,
+                NotificationRenderer.RENDER_ALLOCATION_BUDGET_BYTES);
+    }
+}
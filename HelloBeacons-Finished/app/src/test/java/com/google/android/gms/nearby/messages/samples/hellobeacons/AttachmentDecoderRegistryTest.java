@@ -0,0 +1,167 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AttachmentDecoderRegistryTest {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    /**
+     * Shows binary content as hex, as a decoder for a sensor beacon might.
+     */
+    private static final AttachmentDecoder HEX = new AttachmentDecoder() {
+        @Override
+        public DecodedAttachment decode(byte[] content) {
+            StringBuilder hex = new StringBuilder("sensor ");
+            for (byte b : content) {
+                hex.append(String.format("%02x", b & 0xff));
+            }
+            return new DecodedAttachment(hex.toString(),
+                    Collections.<String, String>emptyMap());
+        }
+    };
+
+    private static final byte[] BINARY = {(byte) 0xff, (byte) 0xfe, 0x01, (byte) 0x80};
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static AttachmentDecoderRegistry registry(File file) {
+        AttachmentDecoderRegistry registry =
+                new AttachmentDecoderRegistry(16, new MessageAnnotations(file), DIRECT);
+        registry.register("ns", "hex", HEX);
+        registry.register(null, "json", AttachmentDecoder.JSON);
+        return registry;
+    }
+
+    private static BeaconEvent found(String type, byte[] content) {
+        return new BeaconEvent(BeaconEvent.KIND_FOUND, "ns", type, content, 0);
+    }
+
+    @Test
+    public void decodesStoredBinaryMessages() throws IOException {
+        AttachmentDecoderRegistry registry = registry(mFolder.newFile());
+        BeaconEvent event = found("hex", BINARY);
+        // The stored text does not round-trip to the content, so it cannot key the attachment.
+        assertNotEquals(BeaconEvent.payloadHash(event.text.getBytes()), event.payloadHash);
+
+        registry.onBeaconEvent(event);
+        assertEquals("sensor fffe0180", registry.getDisplayText(event.text));
+        assertEquals(1, registry.getDecodeCount());
+        assertEquals("sensor fffe0180", registry.getDisplayText(event.text));
+        assertEquals(1, registry.getHitCount());
+    }
+
+    @Test
+    public void showsDecodedTextAfterRestart() throws IOException {
+        File file = mFolder.newFile();
+        AttachmentDecoderRegistry registry = registry(file);
+        BeaconEvent binary = found("hex", BINARY);
+        BeaconEvent json = found("json", "{\"title\":\"Lobby\"}".getBytes());
+        BeaconEvent plain = found("other", "plain".getBytes());
+        for (BeaconEvent event : new BeaconEvent[] {binary, json, plain}) {
+            registry.onBeaconEvent(event);
+            registry.getDisplayText(event.text);
+        }
+
+        // A new process has not seen the attachments, only the stored messages.
+        AttachmentDecoderRegistry restarted = registry(file);
+        restarted.retainDisplayTexts(Arrays.asList(binary.text, json.text, plain.text));
+        assertEquals("sensor fffe0180", restarted.getDisplayText(binary.text));
+        assertEquals("Lobby", restarted.getDisplayText(json.text));
+        assertEquals("plain", restarted.getDisplayText(plain.text));
+        assertEquals(0, restarted.getDecodeCount());
+
+        // Messages that left the store are forgotten.
+        restarted.retainDisplayTexts(Collections.singleton(json.text));
+        assertEquals(binary.text, restarted.getDisplayText(binary.text));
+        assertEquals("Lobby", restarted.getDisplayText(json.text));
+    }
+
+    @Test
+    public void trimKeepsDisplayTexts() throws IOException {
+        AttachmentDecoderRegistry registry = registry(mFolder.newFile());
+        BeaconEvent event = found("hex", BINARY);
+        registry.onBeaconEvent(event);
+        registry.getDisplayText(event.text);
+        registry.trim();
+        assertEquals("sensor fffe0180", registry.getDisplayText(event.text));
+        assertEquals(1, registry.getDecodeCount());
+    }
+
+    @Test
+    public void slowDecodeDoesNotBlockOtherReadsOrNewSightings() throws Exception {
+        final CountDownLatch parsing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AttachmentDecoderRegistry registry = registry(mFolder.newFile());
+        registry.register("ns", "slow", new AttachmentDecoder() {
+            @Override
+            public DecodedAttachment decode(byte[] content) {
+                parsing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return HEX.decode(content);
+            }
+        });
+        final BeaconEvent slow = found("slow", BINARY);
+        BeaconEvent json = found("json", "{\"title\":\"Lobby\"}".getBytes());
+        registry.onBeaconEvent(slow);
+        registry.onBeaconEvent(json);
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                registry.getDisplayText(slow.text);
+            }
+        });
+        reader.start();
+        assertTrue(parsing.await(10, TimeUnit.SECONDS));
+
+        long start = System.nanoTime();
+        registry.onBeaconEvent(found("hex", new byte[] {1}));
+        assertEquals("Lobby", registry.getDisplayText(json.text));
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        System.out.printf("Sighting and read during a slow decode: %d ms%n", millis);
+        assertTrue(millis < 1000);
+
+        release.countDown();
+        reader.join();
+        assertEquals("sensor fffe0180", registry.getDisplayText(slow.text));
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Times a cold start, from {@link HelloBeaconsApplication#onCreate()} to the first rows of the
+ * list in {@link MainActivity} being bound, with the same classes the app runs: the store is
+ * created as {@link Utils} creates it over a file of stored messages, a preload thread reads it
+ * as the application does, and the list loads and refreshes on a stand-in UI thread as
+ * onCreate() and onResume() do. Each start builds everything afresh over the same files; the
+ * first also pays for class loading, so it is reported but left out of the median.
+ */
+public class ColdStartBenchmarkTest {
+    private static final int STORED = 5000;
+    private static final int ANNOTATED = 20;
+    private static final int VISIBLE_ROWS = 12;
+    private static final int COLD_STARTS = 7;
+    private static final long TIMEOUT_SECONDS = 20;
+
+    /**
+     * The most the median start may take to the first list render on the JVM.
+     */
+    private static final long FIRST_RENDER_BUDGET_MILLIS = 250;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mMessagesFile;
+    private File mDisplayTextsFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mMessagesFile = new File(mFolder.getRoot(), "messages");
+        List<String> stored = new ArrayList<>();
+        for (int i = 0; i < STORED; i++) {
+            stored.add("stored-" + i);
+        }
+        new MessageRecordFile(FileLayer.DISK, mMessagesFile).save(stored);
+        mDisplayTextsFile = new File(mFolder.getRoot(), "display-texts");
+        MessageAnnotations displayTexts = new MessageAnnotations(mDisplayTextsFile);
+        for (int i = 0; i < ANNOTATED; i++) {
+            displayTexts.put("stored-" + i, "Room " + i);
+        }
+    }
+
+    /**
+     * The outcome of one cold start.
+     */
+    private static final class Start {
+        long firstRenderMillis;
+        int overBudgetCount;
+        long slowestUiMillis;
+        final List<String> rows = new ArrayList<>();
+    }
+
+    private Start coldStart() throws InterruptedException {
+        final Start result = new Start();
+        final UiThreadExecutor ui = new UiThreadExecutor();
+        ScheduledExecutorService storage = Executors.newSingleThreadScheduledExecutor();
+        final ExecutorService listLoad = Executors.newSingleThreadExecutor();
+        ExecutorService displayTextWrites = Executors.newSingleThreadExecutor();
+        final CountDownLatch rendered = new CountDownLatch(1);
+        try {
+            final long start = System.nanoTime();
+
+            // HelloBeaconsApplication.onCreate(): create the singletons and start the preload.
+            final MessageStore store = Utils.createMessageStore(new FakeSharedPreferences(),
+                    FileLayer.DISK, mMessagesFile, storage);
+            final AttachmentDecoderRegistry decoders = new AttachmentDecoderRegistry(100,
+                    new MessageAnnotations(mDisplayTextsFile), displayTextWrites);
+            decoders.register(null, "string", AttachmentDecoder.TEXT);
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    store.size();
+                    decoders.retainDisplayTexts(store.snapshot());
+                }
+            }, "preload").start();
+
+            // MainActivity.onCreate() and onResume(), on the UI thread.
+            ui.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final MessagePager pager = new MessagePager(store, decoders);
+                    MessageListLoader loader = new MessageListLoader(store, pager, listLoad, ui,
+                            new MessageListLoader.Listener() {
+                                @Override
+                                public void onMessagesChanged() {
+                                    // Bind the rows on screen, as the list does.
+                                    result.rows.clear();
+                                    int rows = Math.min(VISIBLE_ROWS, pager.getCount());
+                                    for (int i = 0; i < rows; i++) {
+                                        pager.getItemId(i);
+                                        result.rows.add(pager.getDisplayText(i));
+                                    }
+                                }
+                            });
+                    loader.load(new Runnable() {
+                        @Override
+                        public void run() {
+                            result.firstRenderMillis =
+                                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                            rendered.countDown();
+                        }
+                    });
+                    loader.refresh();
+                }
+            });
+            assertTrue(rendered.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            ui.awaitIdle();
+            result.overBudgetCount = ui.getOverBudgetCount();
+            result.slowestUiMillis = ui.getSlowestMillis();
+            return result;
+        } finally {
+            ui.shutdown();
+            storage.shutdownNow();
+            listLoad.shutdownNow();
+            displayTextWrites.shutdownNow();
+        }
+    }
+
+    @Test
+    public void firstListRenderIsWithinBudget() throws InterruptedException {
+        List<String> expectedRows = new ArrayList<>();
+        for (int i = 0; i < VISIBLE_ROWS; i++) {
+            expectedRows.add(i < ANNOTATED ? "Room " + i : "stored-" + i);
+        }
+
+        List<Long> warmStarts = new ArrayList<>();
+        for (int run = 0; run < COLD_STARTS; run++) {
+            Start start = coldStart();
+            System.out.printf("Cold start %d: first render %d ms, slowest UI task %d ms%n",
+                    run, start.firstRenderMillis, start.slowestUiMillis);
+            // The first render shows the stored display texts, not the raw messages.
+            assertEquals(expectedRows, start.rows);
+            if (run > 0) {
+                warmStarts.add(start.firstRenderMillis);
+                assertEquals(0, start.overBudgetCount);
+            }
+        }
+        Collections.sort(warmStarts);
+        long median = warmStarts.get(warmStarts.size() / 2);
+        System.out.printf("Median time to first list render over %d starts, %d messages: %d ms%n",
+                warmStarts.size(), STORED, median);
+        assertTrue(median <= FIRST_RENDER_BUDGET_MILLIS);
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ContentDiskCacheTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static ContentDiskCache.Entry entry(int size, long fetchedMillis) {
+        byte[] content = new byte[size];
+        Arrays.fill(content, (byte) size);
+        return new ContentDiskCache.Entry(content, "etag-" + size, null, fetchedMillis);
+    }
+
+    private static long directoryBytes(File dir) {
+        long bytes = 0;
+        for (File file : dir.listFiles()) {
+            bytes += file.length();
+        }
+        return bytes;
+    }
+
+    @Test
+    public void replacesAndEvictsLeastRecentlyUsed() throws IOException {
+        File dir = mFolder.newFolder();
+        ContentDiskCache cache = new ContentDiskCache(dir, 2500);
+        cache.put("a", entry(1000, 1));
+        cache.put("b", entry(1000, 2));
+        cache.put("a", entry(900, 3));
+        assertEquals(2, cache.getEntryCount());
+        assertEquals(900, cache.get("a").content.length);
+        assertEquals(3, cache.getFetchedMillis("a"));
+
+        cache.put("c", entry(1000, 4));
+        assertNull(cache.get("b"));
+        assertEquals(-1, cache.getFetchedMillis("b"));
+        assertEquals(2, dir.listFiles().length);
+        assertEquals(directoryBytes(dir), cache.getSizeBytes());
+    }
+
+    @Test
+    public void reopensWithNewestEntries() throws IOException {
+        File dir = mFolder.newFolder();
+        ContentDiskCache cache = new ContentDiskCache(dir, 1 << 20);
+        cache.put("a", entry(10, 1));
+        cache.put("a", entry(20, 2));
+        cache.put("b", entry(30, 3));
+
+        ContentDiskCache reopened = new ContentDiskCache(dir, 1 << 20);
+        assertEquals(2, reopened.getEntryCount());
+        assertEquals("etag-20", reopened.get("a").etag);
+        reopened.put("a", entry(40, 4));
+        assertEquals(40, new ContentDiskCache(dir, 1 << 20).get("a").content.length);
+        assertEquals(2, dir.listFiles().length);
+    }
+
+    @Test
+    public void dropsCorruptEntries() throws IOException {
+        File dir = mFolder.newFolder();
+        ContentDiskCache cache = new ContentDiskCache(dir, 1 << 20);
+        cache.put("a", entry(100, 1));
+        File file = dir.listFiles()[0];
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(file.length() - 1);
+            raf.write(0);
+        } finally {
+            raf.close();
+        }
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.getEntryCount());
+        assertEquals(0, dir.listFiles().length);
+    }
+
+    /**
+     * Readers and writers racing on the same keys, with files read and deleted outside the lock,
+     * must never see another key's or a torn entry, and must leave the index matching the disk.
+     */
+    @Test
+    public void concurrentReadsAndWritesStayConsistent() throws Exception {
+        final File dir = mFolder.newFolder();
+        final ContentDiskCache cache = new ContentDiskCache(dir, 64 * 1024);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int seed = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    try {
+                        for (int i = 0; i < 500; i++) {
+                            int key = random.nextInt(16);
+                            if (random.nextBoolean()) {
+                                cache.put("key-" + key, entry(key * 1000 + random.nextInt(1000),
+                                        key));
+                            } else {
+                                ContentDiskCache.Entry entry = cache.get("key-" + key);
+                                if (entry != null) {
+                                    assertEquals(key, entry.fetchedMillis);
+                                    byte[] expected = new byte[entry.content.length];
+                                    Arrays.fill(expected, (byte) entry.content.length);
+                                    assertArrayEquals(expected, entry.content);
+                                }
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertEquals(cache.getEntryCount(), dir.listFiles().length);
+        assertEquals(directoryBytes(dir), cache.getSizeBytes());
+        assertTrue(cache.getSizeBytes() <= 64 * 1024);
+    }
+}
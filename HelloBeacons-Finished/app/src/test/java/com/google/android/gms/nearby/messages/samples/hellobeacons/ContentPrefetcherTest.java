@@ -0,0 +1,248 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ContentPrefetcherTest {
+    private static final long FRESH_MILLIS = 60 * 1000;
+    private static final long TIMEOUT_SECONDS = 10;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * Stands in for the content server: serves "content of <path>" with an ETag of the path,
+     * answers a matching If-None-Match with 304, and holds requests for paths starting with
+     * "/slow" until released.
+     */
+    private HttpServer mServer;
+    private final ExecutorService mServerThreads = Executors.newCachedThreadPool();
+    private final List<String> mRequests = new ArrayList<>();
+    private final List<String> mConditionalRequests = new ArrayList<>();
+    private final CountDownLatch mSlowRequested = new CountDownLatch(1);
+    private final CountDownLatch mReleaseSlow = new CountDownLatch(1);
+
+    private final FakeClock mClock = new FakeClock(1000 * 1000);
+
+    @Before
+    public void startServer() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+                String etag = "\"" + path + "\"";
+                synchronized (mRequests) {
+                    mRequests.add(path);
+                    if (exchange.getRequestHeaders().containsKey("If-None-Match")) {
+                        mConditionalRequests.add(path);
+                    }
+                }
+                if (path.startsWith("/slow")) {
+                    mSlowRequested.countDown();
+                    try {
+                        mReleaseSlow.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                exchange.getResponseHeaders().set("ETag", etag);
+                if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    exchange.sendResponseHeaders(304, -1);
+                } else {
+                    byte[] body = ("content of " + path).getBytes();
+                    exchange.sendResponseHeaders(200, body.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(body);
+                    out.close();
+                }
+                exchange.close();
+            }
+        });
+        mServer.setExecutor(mServerThreads);
+        mServer.start();
+    }
+
+    @After
+    public void stopServer() {
+        mReleaseSlow.countDown();
+        mServer.stop(0);
+        mServerThreads.shutdownNow();
+    }
+
+    private String url(String path) {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort() + path;
+    }
+
+    private ContentPrefetcher prefetcher(int threads, long maxWaitMillis) throws IOException {
+        return new ContentPrefetcher(new ContentDiskCache(mFolder.newFolder(), 1024 * 1024),
+                new ContentPrefetcher.HttpFetcher(64 * 1024), mClock, FRESH_MILLIS, threads, 32,
+                maxWaitMillis);
+    }
+
+    private List<String> requests() {
+        synchronized (mRequests) {
+            return new ArrayList<>(mRequests);
+        }
+    }
+
+    /**
+     * Waits until the server has seen {@code count} requests.
+     */
+    private void awaitRequests(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (requests().size() < count) {
+            assertTrue("Saw " + requests(), System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Waits until the stats report {@code expected}, as a background fetch finishes.
+     */
+    private static void awaitStats(ContentPrefetcher prefetcher, String expected)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (!prefetcher.getStats().contains(expected)) {
+            assertTrue(prefetcher.getStats(), System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void getWaitsForThePrefetchOfTheSameUrl() throws Exception {
+        final ContentPrefetcher prefetcher = prefetcher(2, ContentPrefetcher.MAX_WAIT_MILLIS);
+        final String url = url("/slow");
+        prefetcher.prefetch(url);
+        assertTrue(mSlowRequested.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        final byte[][] got = new byte[1][];
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    got[0] = prefetcher.get(url);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        reader.start();
+        Thread.sleep(100);
+        mReleaseSlow.countDown();
+        reader.join();
+
+        assertArrayEquals("content of /slow".getBytes(), got[0]);
+        assertEquals(Arrays.asList("/slow"), requests());
+        assertTrue(prefetcher.getStats().contains("fetches=1 "));
+    }
+
+    @Test
+    public void prefetchesNewestFirst() throws Exception {
+        ContentPrefetcher prefetcher = prefetcher(1, ContentPrefetcher.MAX_WAIT_MILLIS);
+        // Occupy the only thread so that the rest queue up.
+        prefetcher.prefetch(url("/slow"));
+        assertTrue(mSlowRequested.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        for (String path : new String[] {"/a", "/b", "/c"}) {
+            prefetcher.prefetch(url(path));
+        }
+        mReleaseSlow.countDown();
+        awaitRequests(4);
+        assertEquals(Arrays.asList("/slow", "/c", "/b", "/a"), requests());
+    }
+
+    @Test
+    public void staleContentIsRevalidatedNotDownloadedAgain() throws Exception {
+        ContentPrefetcher prefetcher = prefetcher(1, ContentPrefetcher.MAX_WAIT_MILLIS);
+        String url = url("/page");
+        byte[] content = "content of /page".getBytes();
+        assertArrayEquals(content, prefetcher.get(url));
+
+        // Fresh content is served without asking the server.
+        mClock.advance(FRESH_MILLIS - 1);
+        assertArrayEquals(content, prefetcher.get(url));
+        prefetcher.prefetch(url);
+        assertEquals(1, requests().size());
+
+        // Stale content is served at once and revalidated in the background.
+        mClock.advance(1);
+        assertArrayEquals(content, prefetcher.get(url));
+        awaitStats(prefetcher, "revalidations=1 ");
+        assertEquals(Arrays.asList("/page"), mConditionalRequests);
+        assertTrue(prefetcher.getStats().contains("fetches=1 "));
+
+        // Revalidating made it fresh again.
+        prefetcher.prefetch(url);
+        assertArrayEquals(content, prefetcher.get(url));
+        assertEquals(2, requests().size());
+    }
+
+    @Test
+    public void reportsTheHitRateOfGets() throws Exception {
+        ContentPrefetcher prefetcher = prefetcher(2, ContentPrefetcher.MAX_WAIT_MILLIS);
+        assertEquals(0, prefetcher.getHitRate(), 0);
+        prefetcher.prefetch(url("/a"));
+        awaitStats(prefetcher, "fetches=1 ");
+
+        prefetcher.get(url("/a"));
+        prefetcher.get(url("/a"));
+        prefetcher.get(url("/b"));
+        prefetcher.get(url("/b"));
+        System.out.printf("Prefetcher: %s%n", prefetcher.getStats());
+        assertEquals(0.75, prefetcher.getHitRate(), 0.001);
+        assertTrue(prefetcher.getStats().startsWith("hitRate=75% hits=3 misses=1 fetches=2 "));
+    }
+
+    @Test
+    public void getGivesUpOnAStuckPrefetch() throws Exception {
+        ContentPrefetcher prefetcher = prefetcher(1, 200);
+        String url = url("/slow");
+        prefetcher.prefetch(url);
+        assertTrue(mSlowRequested.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        long start = System.nanoTime();
+        assertNull(prefetcher.get(url));
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(millis >= 200 && millis < 5000);
+        assertTrue(prefetcher.getStats().contains("failures=1 "));
+    }
+}
@@ -0,0 +1,206 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class EventAdmissionControllerTest {
+    private final FakeClock mClock = new FakeClock(0);
+    private final List<BeaconEvent> mShed = new ArrayList<>();
+
+    private EventAdmissionController controller(int capacity,
+                                                EventAdmissionController.Policy policy) {
+        return controller(capacity, policy, 1000);
+    }
+
+    private EventAdmissionController controller(int capacity,
+                                                EventAdmissionController.Policy policy,
+                                                int maxTrackedPayloads) {
+        return new EventAdmissionController(capacity, policy,
+                EventAdmissionController.Prioritizer.LOST_FIRST,
+                new EventAdmissionController.ShedListener() {
+                    @Override
+                    public void onShed(BeaconEvent event) {
+                        mShed.add(event);
+                    }
+                }, maxTrackedPayloads, 2, 1, mClock);
+    }
+
+    private static BeaconEvent found(String payload) {
+        return new BeaconEvent(BeaconEvent.KIND_FOUND, "ns", "type", payload.getBytes(), 0);
+    }
+
+    private static BeaconEvent lost(String payload) {
+        return new BeaconEvent(BeaconEvent.KIND_LOST, "ns", "type", payload.getBytes(), 0);
+    }
+
+    @Test
+    public void coalescesPendingEventsForSamePayload() {
+        EventAdmissionController admission = controller(10,
+                EventAdmissionController.Policy.COALESCE);
+        assertTrue(admission.offer(found("a")));
+        assertTrue(admission.offer(found("b")));
+        BeaconEvent lostA = lost("a");
+        assertTrue(admission.offer(lostA));
+        assertEquals(2, admission.getDepth());
+        assertEquals(1, admission.getCoalescedCount());
+
+        // The replacement keeps the original's place in the queue.
+        assertSame(lostA, admission.poll());
+        assertEquals("b", admission.poll().text);
+        assertNull(admission.poll());
+    }
+
+    @Test
+    public void capsRepeatedEventsButNeverStateChanges() {
+        EventAdmissionController admission = controller(1000,
+                EventAdmissionController.Policy.DROP_OLDEST);
+        // A burst of 2, then 1 per second.
+        assertTrue(admission.offer(found("a")));
+        assertTrue(admission.offer(found("a")));
+        assertFalse(admission.offer(found("a")));
+        assertTrue(admission.offer(lost("a")));
+        assertTrue(admission.offer(found("a")));
+        assertFalse(admission.offer(found("a")));
+        assertEquals(2, admission.getRateLimitedCount());
+
+        mClock.advance(1000);
+        assertTrue(admission.offer(found("a")));
+    }
+
+    @Test
+    public void dropOldestShedsHeadOfQueue() {
+        EventAdmissionController admission = controller(2,
+                EventAdmissionController.Policy.DROP_OLDEST);
+        admission.offer(found("a"));
+        admission.offer(found("b"));
+        assertTrue(admission.offer(found("c")));
+        assertEquals(1, admission.getShedCount());
+        assertEquals("b", admission.poll().text);
+        assertEquals("c", admission.poll().text);
+        assertEquals(2, admission.getMaxDepth());
+    }
+
+    @Test
+    public void dropLowestPriorityKeepsLostEvents() {
+        EventAdmissionController admission = controller(2,
+                EventAdmissionController.Policy.DROP_LOWEST_PRIORITY);
+        admission.offer(lost("a"));
+        admission.offer(found("b"));
+        // A found event ranks with the pending found event, which goes as the older of the two.
+        assertTrue(admission.offer(found("c")));
+        assertTrue(admission.offer(lost("d")));
+        assertEquals(2, admission.getShedCount());
+        assertEquals("a", admission.poll().text);
+        assertEquals("d", admission.poll().text);
+
+        admission.offer(lost("e"));
+        admission.offer(lost("f"));
+        // Ranked below everything pending, so the new event itself is shed.
+        assertFalse(admission.offer(found("g")));
+        assertEquals(3, admission.getShedCount());
+        assertEquals(3, mShed.size());
+    }
+
+    @Test
+    public void coalesceOverflowShedsFoundEventsFirst() {
+        EventAdmissionController admission = controller(2,
+                EventAdmissionController.Policy.COALESCE);
+        admission.offer(lost("a"));
+        admission.offer(found("b"));
+        assertTrue(admission.offer(found("c")));
+        assertEquals("b", mShed.get(0).text);
+        assertTrue(admission.offer(lost("d")));
+        assertEquals("c", mShed.get(1).text);
+
+        // Only lost events pending: a new found event is shed rather than any of them.
+        assertFalse(admission.offer(found("e")));
+        assertEquals("e", mShed.get(2).text);
+        assertEquals(3, admission.getShedCount());
+
+        // Evicted payloads are no longer pending, so they queue afresh rather than coalescing.
+        admission.poll();
+        assertTrue(admission.offer(lost("b")));
+        assertEquals(0, admission.getCoalescedCount());
+        assertEquals("d", admission.poll().text);
+        assertEquals("b", admission.poll().text);
+    }
+
+    /**
+     * Ten seconds of 10,000 events a second, ten times what the consumer keeps up with: a few
+     * hundred beacons coming and going amid a crowd of noisy ones that are only ever found. No
+     * lost event may be shed, so no beacon that left is still shown once the queue drains.
+     */
+    @Test
+    public void floodNeverShedsLostEvents() {
+        int capacity = 256;
+        int comingAndGoing = 200;
+        int noisy = 5000;
+        EventAdmissionController admission = controller(capacity,
+                EventAdmissionController.Policy.COALESCE, comingAndGoing + noisy);
+        Random random = new Random(7);
+        Map<String, Boolean> nearby = new HashMap<>();
+        Map<String, Boolean> shown = new HashMap<>();
+        for (int tick = 0; tick < 10 * 1000; tick++) {
+            mClock.advance(1);
+            for (int i = 0; i < 10; i++) {
+                String payload;
+                boolean found;
+                if (random.nextInt(4) == 0) {
+                    payload = "beacon-" + random.nextInt(comingAndGoing);
+                    found = !Boolean.TRUE.equals(nearby.get(payload));
+                    nearby.put(payload, found);
+                } else {
+                    payload = "noisy-" + random.nextInt(noisy);
+                    found = true;
+                }
+                admission.offer(found ? found(payload) : lost(payload));
+            }
+            BeaconEvent event = admission.poll();
+            if (event != null) {
+                shown.put(event.text, event.isFound());
+            }
+        }
+        for (BeaconEvent event = admission.poll(); event != null; event = admission.poll()) {
+            shown.put(event.text, event.isFound());
+        }
+
+        System.out.printf("Admission flood: %s%n", admission.getStats());
+        assertEquals(admission.getShedCount(), mShed.size());
+        assertTrue(admission.getShedCount() > 0);
+        for (BeaconEvent event : mShed) {
+            assertTrue(event.isFound());
+        }
+        for (Map.Entry<String, Boolean> beacon : nearby.entrySet()) {
+            if (!beacon.getValue()) {
+                assertFalse(beacon.getKey(), Boolean.TRUE.equals(shown.get(beacon.getKey())));
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+/**
+ * A {@link Clock} that only moves when told to.
+ */
+final class FakeClock implements Clock {
+    private long mNowMillis;
+
+    FakeClock(long nowMillis) {
+        mNowMillis = nowMillis;
+    }
+
+    @Override
+    public synchronized long nowMillis() {
+        return mNowMillis;
+    }
+
+    synchronized void advance(long millis) {
+        mNowMillis += millis;
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FlightRecorderTest {
+    @Test
+    public void exportsMostRecentEventsOldestFirst() throws IOException {
+        FlightRecorder recorder = new FlightRecorder(3);
+        for (int i = 1; i <= 5; i++) {
+            recorder.record(1000 * i, i, i % 2 == 0 ? FlightRecorder.KIND_LOST
+                    : FlightRecorder.KIND_FOUND, 10 * i);
+        }
+        assertEquals(5, recorder.getRecordedCount());
+        StringWriter out = new StringWriter();
+        recorder.export(out);
+        assertArrayEquals(new String[] {
+                "time_millis,payload_hash,kind,latency_micros",
+                "3000,3,found,30",
+                "4000,4,lost,40",
+                "5000,5,found,50",
+        }, out.toString().split("\n"));
+    }
+
+    /**
+     * Recording must stay under a microsecond per event, since it runs for every event.
+     */
+    @Test
+    public void recordingCostsUnderAMicrosecond() {
+        FlightRecorder recorder = new FlightRecorder(4096);
+        int events = 1000 * 1000;
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < 5; run++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < events; i++) {
+                recorder.record(i, i * 0x9e3779b97f4a7c15L, FlightRecorder.KIND_FOUND, i & 1023);
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        double perEvent = (double) best / events;
+        System.out.printf("Flight recorder: %.1f ns/event%n", perEvent);
+        assertTrue(perEvent < 1000);
+    }
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HeavyHitterSketchTest {
+    private static final int PAYLOADS = 20000;
+    private static final int EVENTS = 500 * 1000;
+
+    /**
+     * Replays a trace with a Zipf-like skew, as churn from badly placed beacons has, and checks
+     * the sketch against exact counts.
+     */
+    @Test
+    public void matchesExactCountsOnSkewedTrace() {
+        long[] hashes = new long[PAYLOADS];
+        for (int i = 0; i < PAYLOADS; i++) {
+            hashes[i] = BeaconEvent.payloadHash(("beacon-" + i).getBytes());
+        }
+        double[] cumulative = new double[PAYLOADS];
+        double total = 0;
+        for (int i = 0; i < PAYLOADS; i++) {
+            total += 1.0 / (i + 1);
+            cumulative[i] = total;
+        }
+
+        int width = 2048;
+        HeavyHitterSketch sketch = new HeavyHitterSketch(width, 4, 10);
+        int[] exact = new int[PAYLOADS];
+        Random random = new Random(7);
+        for (int e = 0; e < EVENTS; e++) {
+            int i = Math.abs(Arrays.binarySearch(cumulative,
+                    random.nextDouble() * total) + 1);
+            i = Math.min(i, PAYLOADS - 1);
+            exact[i]++;
+            sketch.add("beacon-" + i, hashes[i]);
+        }
+        assertEquals(EVENTS, sketch.getTotal());
+
+        // Never undercounts, and overcounts within e / width of all events.
+        long bound = (long) Math.ceil(Math.E / width * EVENTS);
+        int withinBound = 0;
+        for (int i = 0; i < PAYLOADS; i++) {
+            int estimate = sketch.estimate(hashes[i]);
+            assertTrue(estimate >= exact[i]);
+            if (estimate - exact[i] <= bound) {
+                withinBound++;
+            }
+        }
+        // The bound holds with probability 1 - e^-4 per payload.
+        assertTrue(withinBound >= PAYLOADS * 0.98);
+
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < PAYLOADS; i++) {
+            counts.put("beacon-" + i, exact[i]);
+        }
+        List<Integer> sorted = new ArrayList<>(counts.values());
+        Collections.sort(sorted, Collections.reverseOrder());
+        Set<String> top = new HashSet<>();
+        for (HeavyHitterSketch.Entry entry : sketch.getTopK()) {
+            top.add(entry.payload);
+        }
+        int found = 0;
+        for (int i = 0; i < 10; i++) {
+            if (top.contains("beacon-" + i)) {
+                found++;
+            }
+        }
+        System.out.printf("Heavy hitters: %d of the true top 10 found, %d bytes%n", found,
+                sketch.getMemoryBytes());
+        assertTrue(found >= 9);
+        List<HeavyHitterSketch.Entry> entries = sketch.getTopK();
+        assertEquals("beacon-0", entries.get(0).payload);
+        assertTrue(entries.get(0).estimate >= sorted.get(0));
+    }
+
+    @Test
+    public void topKIsHeaviestFirst() {
+        HeavyHitterSketch sketch = new HeavyHitterSketch(64, 3, 2);
+        for (int i = 0; i < 5; i++) {
+            sketch.add("a", 1);
+        }
+        for (int i = 0; i < 3; i++) {
+            sketch.add("b", 2);
+        }
+        sketch.add("c", 3);
+        List<HeavyHitterSketch.Entry> top = sketch.getTopK();
+        assertEquals(2, top.size());
+        assertEquals("a", top.get(0).payload);
+        assertEquals(5, top.get(0).estimate);
+        assertEquals("b", top.get(1).payload);
+    }
+
+    @Test
+    public void memoryIsFixed() {
+        HeavyHitterSketch sketch = new HeavyHitterSketch(1024, 4, 10);
+        int before = sketch.getMemoryBytes();
+        for (int i = 0; i < 100000; i++) {
+            sketch.add("p" + i, i);
+        }
+        assertEquals(before, sketch.getMemoryBytes());
+        assertEquals(10, sketch.getTopK().size());
+    }
+}
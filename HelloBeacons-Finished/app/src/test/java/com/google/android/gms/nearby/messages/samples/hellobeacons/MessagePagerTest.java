@@ -0,0 +1,207 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Pages through a store of 10,000 messages the way the list in {@link MainActivity} does, and
+ * checks what {@link MessagePager} promises: a bounded number of rows in memory however far the
+ * list scrolls, item IDs that follow the message rather than the position, and a bind cost that
+ * does not grow with the position.
+ */
+public class MessagePagerTest {
+    private static final int STORED = 10000;
+    private static final int DECODED = 500;
+    private static final int WARM_UP_ROUNDS = 5;
+
+    /**
+     * The most binding a row may allocate on average, page reads included.
+     */
+    private static final long BIND_ALLOCATION_BUDGET_BYTES = 32;
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final com.sun.management.ThreadMXBean mThreads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private MessageStore mStore;
+    private MessagePager mPager;
+
+    @Before
+    public void setUp() throws IOException {
+        mStore = new MessageStore(MessageStore.Persistence.NONE);
+        AttachmentDecoderRegistry decoders = new AttachmentDecoderRegistry(DECODED,
+                new MessageAnnotations(mFolder.newFile()), DIRECT);
+        decoders.register(null, "json", AttachmentDecoder.JSON);
+        for (int i = 0; i < STORED; i++) {
+            String message = "{\"title\":\"Room " + i + "\"}";
+            mStore.add(message);
+            if (i >= STORED - DECODED) {
+                // The most recent sightings still have their attachments.
+                decoders.onBeaconEvent(new BeaconEvent(BeaconEvent.KIND_FOUND, "ns", "json",
+                        message.getBytes(), 0));
+            }
+        }
+        decoders.loadDisplayTexts();
+        mPager = new MessagePager(mStore, decoders);
+        mPager.invalidate();
+    }
+
+    private static long maxSizeBytes() {
+        return MessagePager.MAX_PAGES * (CacheManager.OBJECT_BYTES
+                + (long) CacheManager.REFERENCE_BYTES * MessagePager.PAGE_SIZE);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Binds every row from {@code from} to {@code to}, exclusive, in either direction, as a
+     * fling through the list does.
+     */
+    private void scroll(int from, int to) {
+        int step = from < to ? 1 : -1;
+        for (int position = from; position != to; position += step) {
+            mPager.getItemId(position);
+            mPager.getDisplayText(position);
+        }
+    }
+
+    @Test
+    public void scrollingKeepsBoundedRowsInMemory() {
+        // Decode the recent attachments first: the registry keeps those, not the pager.
+        scroll(0, DECODED);
+        mPager.trim();
+        long before = usedHeap();
+        int maxRows = 0;
+        long maxSize = 0;
+        for (int position = 0; position < STORED; position++) {
+            mPager.getItemId(position);
+            String text = mPager.getDisplayText(position);
+            // Recent sightings show their decoded title, the rest the message as stored.
+            assertEquals(position < DECODED, text.startsWith("Room "));
+            maxRows = Math.max(maxRows, mPager.getLoadedRowCount());
+            maxSize = Math.max(maxSize, mPager.getSizeBytes());
+        }
+        scroll(STORED - 1, -1);
+        long after = usedHeap();
+        System.out.printf("Scrolled %d rows: at most %d rows, %d B estimated, heap %+d KiB%n",
+                STORED, maxRows, maxSize, (after - before) / 1024);
+        assertEquals(MessagePager.MAX_PAGES * MessagePager.PAGE_SIZE, maxRows);
+        assertTrue(maxSize <= maxSizeBytes());
+
+        // Holding every row's text, as an adapter over a copied list would, costs far more.
+        long rowBytes = 0;
+        for (String message : mStore.getAll()) {
+            rowBytes += CacheManager.REFERENCE_BYTES + CacheManager.stringBytes(message);
+        }
+        assertTrue(after - before < rowBytes / 2);
+
+        mPager.trim();
+        assertEquals(0, mPager.getLoadedRowCount());
+        assertEquals(0, mPager.getSizeBytes());
+        assertEquals("Room " + (STORED - 1), mPager.getDisplayText(0));
+    }
+
+    @Test
+    public void itemIdsFollowTheMessageAcrossInsertsAndRemovals() {
+        Map<String, Long> ids = new HashMap<>();
+        Set<Long> distinct = new HashSet<>();
+        for (int position = 0; position < STORED; position++) {
+            ids.put(mPager.getItem(position), mPager.getItemId(position));
+            distinct.add(mPager.getItemId(position));
+        }
+        assertEquals(STORED, distinct.size());
+
+        // New sightings go to the top, shifting every row; losses open gaps throughout.
+        for (int i = 0; i < 100; i++) {
+            mStore.add("{\"title\":\"New " + i + "\"}");
+        }
+        for (int i = 0; i < STORED; i += 97) {
+            mStore.remove("{\"title\":\"Room " + i + "\"}");
+        }
+        mPager.invalidate();
+
+        int kept = 0;
+        for (int position = 0; position < mPager.getCount(); position++) {
+            Long id = ids.get(mPager.getItem(position));
+            if (id != null) {
+                assertEquals(id.longValue(), mPager.getItemId(position));
+                kept++;
+            }
+        }
+        assertEquals(STORED - (STORED + 96) / 97, kept);
+    }
+
+    @Test
+    public void bindCostDoesNotGrowWithPosition() {
+        assumeTrue(mThreads.isThreadAllocatedMemorySupported());
+        mThreads.setThreadAllocatedMemoryEnabled(true);
+        for (int round = 0; round < WARM_UP_ROUNDS; round++) {
+            scroll(0, STORED);
+        }
+        mPager.trim();
+
+        long threadId = Thread.currentThread().getId();
+        int window = STORED / 10;
+        long startAllocated = mThreads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        scroll(0, window);
+        long topNanos = System.nanoTime() - start;
+        scroll(window, STORED - window);
+        start = System.nanoTime();
+        scroll(STORED - window, STORED);
+        long bottomNanos = System.nanoTime() - start;
+        long perBind = (mThreads.getThreadAllocatedBytes(threadId) - startAllocated) / STORED;
+
+        System.out.printf("Bind: %d ns/row at the top, %d ns/row at the bottom, %d B/row%n",
+                topNanos / window, bottomNanos / window, perBind);
+        assertTrue(perBind <= BIND_ALLOCATION_BUDGET_BYTES);
+        // Rows are read from a balanced tree, so the bottom of the list is as cheap as the top,
+        // give or take timer noise.
+        assertTrue(bottomNanos < 4 * topNanos + 1000000);
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MessageSearchIndexTest {
+    /**
+     * Holds tasks until run, like an executor whose thread has not got to them yet.
+     */
+    private static final class QueuedExecutor implements Executor {
+        final List<Runnable> mTasks = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            mTasks.add(command);
+        }
+
+        void runAll() {
+            List<Runnable> tasks = new ArrayList<>(mTasks);
+            mTasks.clear();
+            for (Runnable task : tasks) {
+                task.run();
+            }
+        }
+    }
+
+    private final QueuedExecutor mExecutor = new QueuedExecutor();
+
+    private MessageSearchIndex index(MessageStore store) {
+        return new MessageSearchIndex(store, 30000, 64, mExecutor);
+    }
+
+    private static MessageStore store(int messages) {
+        MessageStore store = new MessageStore(MessageStore.Persistence.NONE);
+        for (int i = 0; i < messages; i++) {
+            store.add("Meeting room " + i + " on floor " + (i % 40) + ", building " + (i % 7));
+        }
+        return store;
+    }
+
+    @Test
+    public void findsSubstringsIgnoringCase() {
+        MessageSearchIndex index = index(store(0));
+        index.add("Front Door");
+        index.add("Back door");
+        index.add("Kitchen");
+        assertEquals(Arrays.asList("Front Door", "Back door"), sorted(index.search("DOOR", 10)));
+        assertEquals(Arrays.asList("Kitchen"), index.search("itc", 10));
+        assertEquals(1, index.search("oo", 1).size());
+        index.remove("Front Door");
+        assertEquals(Arrays.asList("Back door"), index.search("door", 10));
+    }
+
+    @Test
+    public void rebuildsInBackgroundAfterTrimWhileSearchIsExpected() {
+        MessageSearchIndex index = index(store(100));
+        index.setSearchExpected(true);
+        mExecutor.runAll();
+        assertTrue(index.getSizeBytes() > 0);
+
+        index.trim();
+        assertEquals(0, index.getSizeBytes());
+        assertEquals(1, mExecutor.mTasks.size());
+        mExecutor.runAll();
+        // Built again before anyone searched.
+        assertTrue(index.getSizeBytes() > 0);
+        assertEquals(10, index.search("floor 3", 10).size());
+
+        // Nobody is about to search: the memory stays released until the next prewarm.
+        index.setSearchExpected(false);
+        index.trim();
+        assertEquals(0, mExecutor.mTasks.size());
+        assertEquals(0, index.getSizeBytes());
+        index.prewarm();
+        index.prewarm();
+        assertEquals(1, mExecutor.mTasks.size());
+    }
+
+    /**
+     * The size estimate decides what trims are worth, so it must be in proportion to the heap
+     * the index really retains, and a trim must actually give that heap back.
+     */
+    @Test
+    public void sizeEstimateMatchesRetainedHeap() throws InterruptedException {
+        MessageStore store = store(20000);
+        store.getAll();
+        MessageSearchIndex index = index(store);
+        long before = usedHeap();
+        index.prewarm();
+        mExecutor.runAll();
+        long retained = usedHeap() - before;
+        long estimate = index.getSizeBytes();
+        index.trim();
+        long released = retained - (usedHeap() - before);
+        System.out.printf("Search index: retained %d KiB, estimated %d KiB, released %d KiB%n",
+                retained / 1024, estimate / 1024, released / 1024);
+        assertTrue(estimate > retained / 2 && estimate < retained * 2);
+        assertTrue(released > retained / 2);
+    }
+
+    private static List<String> sorted(List<String> list) {
+        List<String> sorted = new ArrayList<>(list);
+        Collections.sort(sorted, Collections.<String>reverseOrder());
+        return sorted;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(20);
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import org.junit.Test;
+
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares reading and changing the message list through {@link MessageStore} snapshots with the
+ * approach it replaced, where every reader parsed a fresh copy of the list from its JSON in the
+ * preferences and every writer parsed, copied, changed and serialized the whole list again.
+ */
+public class MessageSnapshotBenchmarkTest {
+    private static final int[] SIZES = {100, 1000, 10000};
+    private static final int RUNS = 5;
+
+    /**
+     * The list as the preferences held it, read and written as the old Utils methods did.
+     */
+    private static final class JsonMessageList {
+        private static final Type TYPE = new TypeToken<List<String>>() {}.getType();
+
+        String json;
+
+        JsonMessageList(List<String> messages) {
+            json = new Gson().toJson(messages);
+        }
+
+        List<String> read() {
+            return new Gson().fromJson(json, TYPE);
+        }
+
+        void add(String message) {
+            ArrayList<String> messages = new ArrayList<>(read());
+            if (!new HashSet<>(messages).contains(message)) {
+                messages.add(0, message);
+                json = new Gson().toJson(messages);
+            }
+        }
+
+        void remove(String message) {
+            ArrayList<String> messages = new ArrayList<>(read());
+            messages.remove(message);
+            json = new Gson().toJson(messages);
+        }
+    }
+
+    /**
+     * Returns the fastest of several timings of {@code operations} calls, in ns per call.
+     */
+    private static long time(Runnable operation, int operations) {
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < operations; i++) {
+                operation.run();
+            }
+            best = Math.min(best, (System.nanoTime() - start) / operations);
+        }
+        return best;
+    }
+
+    @Test
+    public void snapshotsBeatCopyingTheListOnEveryCall() {
+        for (int size : SIZES) {
+            List<String> messages = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                messages.add("message-" + i);
+            }
+            final JsonMessageList json = new JsonMessageList(messages);
+            final MessageStore store = new MessageStore(MessageStore.Persistence.NONE);
+            for (int i = size - 1; i >= 0; i--) {
+                store.add(messages.get(i));
+            }
+            assertEquals(json.read(), store.getAll());
+
+            // Fewer operations on larger lists keep the copying side's run time in check.
+            int operations = Math.max(10, 100000 / size);
+            final int[] sink = new int[1];
+            long copyRead = time(new Runnable() {
+                @Override
+                public void run() {
+                    sink[0] += json.read().size();
+                }
+            }, operations);
+            long snapshotRead = time(new Runnable() {
+                @Override
+                public void run() {
+                    sink[0] += store.snapshot().size();
+                }
+            }, operations);
+            long copyUpdate = time(new Runnable() {
+                @Override
+                public void run() {
+                    json.add("new");
+                    json.remove("new");
+                }
+            }, operations);
+            long snapshotUpdate = time(new Runnable() {
+                @Override
+                public void run() {
+                    store.add("new");
+                    store.remove("new");
+                }
+            }, operations);
+            assertEquals(json.read(), store.getAll());
+
+            System.out.printf("%d messages: read %d ns (copy) vs %d ns (snapshot), "
+                    + "add+remove %d ns (copy) vs %d ns (snapshot)%n",
+                    size, copyRead, snapshotRead, copyUpdate, snapshotUpdate);
+            if (size >= 1000) {
+                // Reads share the published version; copies parse the whole list.
+                assertTrue(snapshotRead * 100 < copyRead);
+                // Updates copy an O(log n) path; copies parse and serialize the whole list.
+                assertTrue(snapshotUpdate * 10 < copyUpdate);
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class NotificationRendererTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static BeaconEvent found(String payload, String namespace, String type) {
+        return new BeaconEvent(BeaconEvent.KIND_FOUND, namespace, type, payload.getBytes(), 0);
+    }
+
+    private static BeaconEvent lost(String payload) {
+        return new BeaconEvent(BeaconEvent.KIND_LOST, "ns", "type", payload.getBytes(), 0);
+    }
+
+    /**
+     * Feeds an event to the store and then the renderer, as the dispatcher does.
+     */
+    private static void deliver(PresencePipeline pipeline, NotificationRenderer renderer,
+                                BeaconEvent event) {
+        pipeline.onBeaconEvent(event);
+        renderer.onBeaconEvent(event);
+    }
+
+    @Test
+    public void listsMostRecentFirstWithEllipsis() throws IOException {
+        MessageStore store = new MessageStore(MessageStore.Persistence.NONE);
+        NotificationRenderer renderer = new NotificationRenderer(store,
+                new MessageAnnotations(mFolder.newFile()), 2, 10);
+        PresencePipeline pipeline = new PresencePipeline(store, new VisitAggregator(10, 4, 0));
+        deliver(pipeline, renderer, found("a", "ns", "t"));
+        deliver(pipeline, renderer, found("b", "ns", "t"));
+        deliver(pipeline, renderer, found("c", "ns", "t"));
+        assertEquals("c\nb\n\u2026", renderer.renderText());
+        deliver(pipeline, renderer, lost("c"));
+        assertEquals("b\na", renderer.renderText());
+        assertEquals(2, renderer.getCount());
+    }
+
+    @Test
+    public void keepsTheStoreOrderWhenFoundAgain() throws IOException {
+        MessageStore store = new MessageStore(MessageStore.Persistence.NONE);
+        NotificationRenderer renderer = new NotificationRenderer(store,
+                new MessageAnnotations(mFolder.newFile()), 10, 10);
+        PresencePipeline pipeline = new PresencePipeline(store, new VisitAggregator(10, 4, 0));
+        for (String payload : Arrays.asList("a", "b", "c", "a", "b")) {
+            deliver(pipeline, renderer, found(payload, "ns", "t"));
+        }
+        assertEquals("c\nb\na", renderer.renderText());
+
+        // After a trim the list is rebuilt from the store, in the same order.
+        renderer.trim();
+        assertEquals("c\nb\na", renderer.renderText());
+    }
+
+    @Test
+    public void groupsSurviveTrimAndRestart() throws IOException {
+        File groupsFile = mFolder.newFile();
+        MessageStore store = new MessageStore(MessageStore.Persistence.NONE);
+        NotificationRenderer renderer = new NotificationRenderer(store,
+                new MessageAnnotations(groupsFile), 5, 2);
+        PresencePipeline pipeline = new PresencePipeline(store, new VisitAggregator(10, 4, 0));
+        deliver(pipeline, renderer, found("a", "ns", "door"));
+        deliver(pipeline, renderer, found("b", "ns", "door"));
+        deliver(pipeline, renderer, found("c", "ns", "desk"));
+        String expected = "ns/door: 2\nns/desk: 1";
+        assertEquals(expected, renderer.renderText());
+
+        renderer.trim();
+        assertEquals(expected, renderer.renderText());
+
+        // A new process: the same store contents, a fresh renderer reading the same file.
+        NotificationRenderer restarted = new NotificationRenderer(store,
+                new MessageAnnotations(groupsFile), 5, 2);
+        assertEquals(expected, restarted.renderText());
+    }
+
+    @Test
+    public void forgetsGroupsOfMessagesNoLongerStored() throws IOException {
+        File file = mFolder.newFile();
+        MessageAnnotations groups = new MessageAnnotations(file);
+        for (int i = 0; i < 100; i++) {
+            groups.put("message-" + i, "ns/t");
+        }
+        long fullLength = file.length();
+        groups.retain(Arrays.asList("message-7"));
+        assertTrue(file.length() < fullLength / 10);
+
+        MessageAnnotations reopened = new MessageAnnotations(file);
+        assertNull(reopened.get("message-7"));
+        reopened.load();
+        assertEquals("ns/t", reopened.get("message-7"));
+        assertNull(reopened.get("message-8"));
+        assertEquals(0, reopened.getFailureCount());
+    }
+}
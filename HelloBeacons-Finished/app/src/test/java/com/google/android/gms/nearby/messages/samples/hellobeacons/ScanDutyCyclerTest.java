@@ -0,0 +1,157 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ScanDutyCyclerTest {
+    private static final long SECOND = 1000;
+    private static final long MINUTE = 60 * SECOND;
+    private static final long IDLE_TIMEOUT = 2 * MINUTE;
+    private static final long STATIONARY_TIMEOUT = 10 * MINUTE;
+    private static final long PROBE_WINDOW = 10 * SECOND;
+    private static final long PROBE_PERIOD = MINUTE;
+
+    private static class FakeController implements ScanDutyCycler.SubscriptionController {
+        int mSubscribeCount;
+        int mUnsubscribeCount;
+
+        @Override
+        public void subscribe() {
+            mSubscribeCount++;
+        }
+
+        @Override
+        public void unsubscribe() {
+            mUnsubscribeCount++;
+        }
+    }
+
+    private final FakeController mController = new FakeController();
+
+    private ScanDutyCycler cycler() {
+        return new ScanDutyCycler(mController, IDLE_TIMEOUT, STATIONARY_TIMEOUT, PROBE_WINDOW,
+                PROBE_PERIOD);
+    }
+
+    /**
+     * Drives the cycler the way its host does, calling {@link ScanDutyCycler#evaluate(long)}
+     * after each delay it returns, until {@code endMillis}.
+     *
+     * @return The time of the last evaluation.
+     */
+    private static long runUntil(ScanDutyCycler cycler, long nowMillis, long delayMillis,
+                                 long endMillis) {
+        while (nowMillis + delayMillis <= endMillis) {
+            nowMillis += delayMillis;
+            delayMillis = cycler.evaluate(nowMillis);
+        }
+        return nowMillis;
+    }
+
+    @Test
+    public void stepsDownFromContinuousToCyclingToPaused() {
+        ScanDutyCycler cycler = cycler();
+        long delay = cycler.start(0);
+        assertEquals(IDLE_TIMEOUT, delay);
+        assertEquals(ScanDutyCycler.Mode.CONTINUOUS, cycler.getMode());
+
+        runUntil(cycler, 0, delay, IDLE_TIMEOUT + PROBE_WINDOW + SECOND);
+        assertEquals(ScanDutyCycler.Mode.CYCLING, cycler.getMode());
+        assertFalse(cycler.isSubscribed());
+
+        runUntil(cycler, 0, delay, STATIONARY_TIMEOUT);
+        assertEquals(ScanDutyCycler.Mode.PAUSED, cycler.getMode());
+        assertFalse(cycler.isSubscribed());
+        assertEquals(mController.mUnsubscribeCount, mController.mSubscribeCount + 1);
+    }
+
+    @Test
+    public void motionAndFoundMessagesResumeContinuousScanning() {
+        ScanDutyCycler cycler = cycler();
+        long now = runUntil(cycler, 0, cycler.start(0), STATIONARY_TIMEOUT);
+        assertEquals(ScanDutyCycler.Mode.PAUSED, cycler.getMode());
+
+        cycler.onMotion(now + SECOND);
+        assertEquals(ScanDutyCycler.Mode.CONTINUOUS, cycler.getMode());
+        assertTrue(cycler.isSubscribed());
+
+        // Still idle, so the next evaluation goes back to cycling rather than pausing.
+        cycler.evaluate(now + 2 * SECOND);
+        assertEquals(ScanDutyCycler.Mode.CYCLING, cycler.getMode());
+
+        cycler.onFound(now + 3 * SECOND);
+        assertEquals(ScanDutyCycler.Mode.CONTINUOUS, cycler.getMode());
+        assertEquals(IDLE_TIMEOUT - SECOND, cycler.evaluate(now + 4 * SECOND));
+    }
+
+    @Test
+    public void restartedProcessResubscribesOnResume() {
+        ScanDutyCycler paused = cycler();
+        runUntil(paused, 0, paused.start(0), STATIONARY_TIMEOUT);
+        assertFalse(paused.isSubscribed());
+        int subscribes = mController.mSubscribeCount;
+
+        // A new process knows nothing of the pause, and nothing subscribes until resumed.
+        ScanDutyCycler restarted = cycler();
+        assertEquals(IDLE_TIMEOUT, restarted.evaluate(STATIONARY_TIMEOUT + MINUTE));
+        assertEquals(subscribes, mController.mSubscribeCount);
+
+        assertEquals(IDLE_TIMEOUT, restarted.resume(STATIONARY_TIMEOUT + MINUTE));
+        assertTrue(restarted.isSubscribed());
+        assertEquals(ScanDutyCycler.Mode.CONTINUOUS, restarted.getMode());
+        assertEquals(subscribes + 1, mController.mSubscribeCount);
+
+        // Resuming while subscribed only restarts the idle timeout.
+        restarted.resume(STATIONARY_TIMEOUT + 2 * MINUTE);
+        assertEquals(subscribes + 1, mController.mSubscribeCount);
+    }
+
+    @Test
+    public void withoutMotionSensorNeverPauses() {
+        ScanDutyCycler cycler = cycler();
+        cycler.setMotionSensorAvailable(false);
+        long hour = 60 * MINUTE;
+        runUntil(cycler, 0, cycler.start(0), hour);
+        assertEquals(ScanDutyCycler.Mode.CYCLING, cycler.getMode());
+        // Every probe period since going idle had its probe window.
+        long periods = (hour - IDLE_TIMEOUT) / PROBE_PERIOD;
+        assertTrue(mController.mSubscribeCount >= periods - 1);
+    }
+
+    /**
+     * A day of a phone left on a desk between two short walks saves most of the scan time.
+     */
+    @Test
+    public void stationaryDaySavesMostScanTime() {
+        ScanDutyCycler cycler = cycler();
+        long hour = 60 * MINUTE;
+        runUntil(cycler, 0, cycler.start(0), 8 * hour);
+        cycler.onMotion(8 * hour);
+        cycler.onFound(8 * hour + MINUTE);
+        runUntil(cycler, 8 * hour + MINUTE, cycler.evaluate(8 * hour + MINUTE), 24 * hour);
+
+        double saved = cycler.getScanTimeSavedFraction(24 * hour);
+        System.out.printf("Duty cycling: %.1f%% of scan time saved over a stationary day%n",
+                100 * saved);
+        assertTrue(saved > 0.9);
+    }
+}
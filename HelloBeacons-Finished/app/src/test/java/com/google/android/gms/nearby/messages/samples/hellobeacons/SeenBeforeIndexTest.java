@@ -0,0 +1,118 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SeenBeforeIndexTest {
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void tellsFirstSightingsFromReturningOnes() throws IOException {
+        SeenBeforeIndex index = new SeenBeforeIndex(mFolder.newFile(), 4, 4096, 0.01,
+                30 * DAY_MILLIS);
+        assertFalse(index.checkAndAdd(1, DAY_MILLIS));
+        assertTrue(index.checkAndAdd(1, DAY_MILLIS));
+        assertFalse(index.checkAndAdd(2, DAY_MILLIS));
+        assertTrue(index.mightContain(2));
+        assertEquals(2, index.getNewCount());
+        assertEquals(1, index.getReturningCount());
+    }
+
+    @Test
+    public void survivesReopening() throws IOException {
+        File file = mFolder.newFile();
+        SeenBeforeIndex index = new SeenBeforeIndex(file, 4, 4096, 0.01, 30 * DAY_MILLIS);
+        for (long hash = 0; hash < 100; hash++) {
+            index.checkAndAdd(hash * 7919, DAY_MILLIS);
+        }
+        SeenBeforeIndex reopened = new SeenBeforeIndex(file, 4, 4096, 0.01, 30 * DAY_MILLIS);
+        for (long hash = 0; hash < 100; hash++) {
+            assertTrue(reopened.mightContain(hash * 7919));
+        }
+        // A different configuration starts over rather than misreading the filters.
+        SeenBeforeIndex resized = new SeenBeforeIndex(file, 3, 4096, 0.01, 30 * DAY_MILLIS);
+        assertFalse(resized.mightContain(0));
+    }
+
+    @Test
+    public void remembersForRetentionThenForgets() throws IOException {
+        SeenBeforeIndex index = new SeenBeforeIndex(mFolder.newFile(), 3, 4096, 0.01, DAY_MILLIS);
+        long now = DAY_MILLIS;
+        index.checkAndAdd(42, now);
+        // Remembered for at least generations - 1 rotation periods.
+        for (int day = 1; day <= 2; day++) {
+            index.checkAndAdd(1000 + day, now + day * DAY_MILLIS + 1);
+            assertTrue(index.mightContain(42));
+        }
+        index.checkAndAdd(2000, now + 3 * DAY_MILLIS + 2);
+        assertFalse(index.mightContain(42));
+    }
+
+    /**
+     * A million historic payloads, far more than the filters are sized for, must keep memory
+     * fixed and the false-positive rate near its target, and every lookup cheap.
+     */
+    @Test
+    public void millionPayloadsStayWithinBudget() throws IOException {
+        int generations = 4;
+        double rate = 0.01;
+        SeenBeforeIndex index = new SeenBeforeIndex(mFolder.newFile(), generations, 64 * 1024,
+                rate, 365 * DAY_MILLIS);
+        long memory = index.getMemoryBytes();
+        int payloads = 1000 * 1000;
+        long start = System.nanoTime();
+        for (int i = 0; i < payloads; i++) {
+            index.checkAndAdd(BeaconEvent.payloadHash(("seen-" + i).getBytes()), DAY_MILLIS);
+        }
+        long perAddNanos = (System.nanoTime() - start) / payloads;
+        assertEquals(memory, index.getMemoryBytes());
+
+        // The most recent generation's worth of payloads are certainly remembered.
+        int capacity = index.getCapacityPerGeneration();
+        for (int i = payloads - capacity; i < payloads; i++) {
+            assertTrue(index.mightContain(BeaconEvent.payloadHash(("seen-" + i).getBytes())));
+        }
+
+        int falsePositives = 0;
+        int probes = 100 * 1000;
+        start = System.nanoTime();
+        for (int i = 0; i < probes; i++) {
+            if (index.mightContain(BeaconEvent.payloadHash(("never-" + i).getBytes()))) {
+                falsePositives++;
+            }
+        }
+        long perLookupNanos = (System.nanoTime() - start) / probes;
+        double measured = (double) falsePositives / probes;
+        System.out.printf("Seen-before: %d KiB, %d ns/add, %d ns/lookup, fp rate %.4f%n",
+                memory / 1024, perAddNanos, perLookupNanos, measured);
+        assertTrue(measured < generations * rate);
+        assertTrue(index.getEstimatedFalsePositiveRate() < generations * rate);
+    }
+}
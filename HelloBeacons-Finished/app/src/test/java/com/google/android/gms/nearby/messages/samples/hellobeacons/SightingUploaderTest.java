@@ -0,0 +1,242 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SightingUploaderTest {
+    private static final long HOUR = SightingHistoryStore.HOUR_MILLIS;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * Stands in for the backend: records each request body and answers with a settable status.
+     */
+    private HttpServer mServer;
+    private final List<byte[]> mBodies = new ArrayList<>();
+    private volatile int mStatus = 200;
+
+    @Before
+    public void startServer() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/sightings", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = readAll(exchange.getRequestBody());
+                synchronized (mBodies) {
+                    mBodies.add(body);
+                }
+                exchange.sendResponseHeaders(mStatus, -1);
+                exchange.close();
+            }
+        });
+        mServer.start();
+    }
+
+    @After
+    public void stopServer() {
+        mServer.stop(0);
+    }
+
+    private String endpoint() {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort() + "/sightings";
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes a request body the way the backend would.
+     */
+    private static SightingUploadQueue.Batch decode(byte[] body) throws IOException {
+        DataInputStream in = new DataInputStream(new GZIPInputStream(
+                new ByteArrayInputStream(body)));
+        SightingUploadQueue.Batch batch = new SightingUploadQueue.Batch((int) readVarint(in));
+        List<Long> hashes = new ArrayList<>();
+        long time = 0;
+        for (int i = 0; i < batch.size; i++) {
+            long zigzag = readVarint(in);
+            time += (zigzag >>> 1) ^ -(zigzag & 1);
+            batch.timesMillis[i] = time;
+            batch.kinds[i] = in.readByte();
+            int index = (int) readVarint(in);
+            if (index == hashes.size()) {
+                hashes.add(in.readLong());
+            }
+            batch.payloadHashes[i] = hashes.get(index);
+        }
+        assertEquals(-1, in.read());
+        return batch;
+    }
+
+    private static long readVarint(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.read();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Fills the queue with a realistic day: a few hundred beacons, each seen many times.
+     */
+    private static void fill(SightingUploadQueue queue, int sightings) throws IOException {
+        Random random = new Random(5);
+        long[] hashes = new long[300];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = BeaconEvent.payloadHash(("beacon-" + i).getBytes());
+        }
+        long time = 1000 * HOUR;
+        for (int i = 0; i < sightings; i++) {
+            time += random.nextInt(10 * 1000);
+            queue.add(time, i % 2 == 0 ? BeaconEvent.KIND_FOUND : BeaconEvent.KIND_LOST,
+                    hashes[random.nextInt(hashes.length)]);
+        }
+    }
+
+    @Test
+    public void uploadsBatchesTheServerCanDecode() throws IOException {
+        SightingUploadQueue queue = new SightingUploadQueue(mFolder.newFile(), 10000);
+        fill(queue, 1200);
+        SightingUploadQueue.Batch expected = queue.peek(500);
+        SightingUploader uploader = new SightingUploader(queue, endpoint(), 500, HOUR, 1000,
+                HOUR);
+
+        assertTrue(uploader.maybeUpload(2000 * HOUR));
+        assertEquals(700, queue.size());
+        SightingUploadQueue.Batch sent = decode(mBodies.get(0));
+        assertArrayEquals(expected.timesMillis, sent.timesMillis);
+        assertArrayEquals(expected.kinds, sent.kinds);
+        assertArrayEquals(expected.payloadHashes, sent.payloadHashes);
+
+        double bytesPerSighting = uploader.getBytesPerSighting();
+        double xorBytesPerSighting = (double) encodeWithXorDeltas(expected).length / 500;
+        System.out.printf("Sighting upload: %.2f bytes/sighting, %.2f with XOR deltas, %d raw%n",
+                bytesPerSighting, xorBytesPerSighting, SightingUploadQueue.RECORD_SIZE);
+        // Repeated payloads cost an index, where an XOR delta of two random hashes costs about
+        // ten bytes that gzip cannot match.
+        assertTrue(bytesPerSighting < xorBytesPerSighting * 0.8);
+    }
+
+    /**
+     * The previous encoding, which wrote each hash as a varint XOR delta against the last.
+     */
+    private static byte[] encodeWithXorDeltas(SightingUploadQueue.Batch batch)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        writeVarint(out, batch.size);
+        long previousTime = 0;
+        long previousHash = 0;
+        for (int i = 0; i < batch.size; i++) {
+            long delta = batch.timesMillis[i] - previousTime;
+            writeVarint(out, (delta << 1) ^ (delta >> 63));
+            out.write(batch.kinds[i]);
+            writeVarint(out, batch.payloadHashes[i] ^ previousHash);
+            previousTime = batch.timesMillis[i];
+            previousHash = batch.payloadHashes[i];
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    @Test
+    public void backsOffAfterServerErrorsAndKeepsTheBatch() throws IOException {
+        SightingUploadQueue queue = new SightingUploadQueue(mFolder.newFile(), 10000);
+        fill(queue, 10);
+        SightingUploader uploader = new SightingUploader(queue, endpoint(), 10, HOUR, 1000,
+                HOUR);
+        mStatus = 503;
+        assertFalse(uploader.maybeUpload(0));
+        assertEquals(10, queue.size());
+        // Within the backoff, the radio is left alone.
+        assertFalse(uploader.maybeUpload(1));
+        assertEquals(1, mBodies.size());
+
+        mStatus = 200;
+        assertTrue(uploader.maybeUpload(2000));
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void waitsForAFullOrOldBatch() throws IOException {
+        SightingUploadQueue queue = new SightingUploadQueue(mFolder.newFile(), 10000);
+        queue.add(0, BeaconEvent.KIND_FOUND, 1);
+        SightingUploader uploader = new SightingUploader(queue, endpoint(), 10, HOUR, 1000,
+                HOUR);
+        assertFalse(uploader.maybeUpload(HOUR - 1));
+        assertTrue(uploader.maybeUpload(HOUR));
+        assertEquals(1, mBodies.size());
+    }
+
+    @Test
+    public void fullQueueDropsOldestSightings() throws IOException {
+        SightingUploadQueue queue = new SightingUploadQueue(mFolder.newFile(), 100);
+        for (int i = 0; i < 5000; i++) {
+            queue.add(i, BeaconEvent.KIND_FOUND, i);
+        }
+        assertEquals(100, queue.size());
+        assertEquals(4900, queue.getDroppedCount());
+        assertEquals(4900, queue.oldestTimeMillis());
+        assertEquals(4999, queue.peek(100).payloadHashes[99]);
+    }
+}
@@ -0,0 +1,274 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the list's load and refresh flow from {@link MainActivity} and the event flow from
+ * {@link BackgroundSubscribeIntentService} against storage made slow or full by a
+ * {@link FaultInjectingFileLayer}, wired as {@link Utils} and {@link HelloBeaconsApplication}
+ * wire them. No task on the UI thread may take longer than a frame, and a full disk must cost
+ * only the saves: the list and notification keep up, and the stored messages survive intact.
+ */
+public class StorageFaultFlowTest {
+    private static final int STORED = 2000;
+    private static final int EVENTS = 300;
+    private static final int VISIBLE_ROWS = 12;
+    private static final long TIMEOUT_SECONDS = 20;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final FaultInjectingFileLayer mFiles = new FaultInjectingFileLayer(FileLayer.DISK);
+    private final UiThreadExecutor mUi = new UiThreadExecutor();
+    private final ScheduledExecutorService mStorage = Executors.newSingleThreadScheduledExecutor();
+    private final ExecutorService mListLoad = Executors.newSingleThreadExecutor();
+    private final ExecutorService mService = Executors.newSingleThreadExecutor();
+    private final ScheduledExecutorService mNotificationThread =
+            Executors.newSingleThreadScheduledExecutor();
+    private final AtomicInteger mPostedCount = new AtomicInteger();
+
+    private File mMessagesFile;
+    private List<String> mStored;
+    private MessageStore mStore;
+    private MessagePager mPager;
+    private MessageListLoader mLoader;
+    private NotificationRenderer mRenderer;
+    private EventAdmissionController mAdmission;
+    private EventDrain mDrain;
+
+    @Before
+    public void setUp() throws IOException {
+        mMessagesFile = new File(mFolder.getRoot(), "messages");
+        mStored = new ArrayList<>();
+        for (int i = 0; i < STORED; i++) {
+            mStored.add("stored-" + i);
+        }
+        new MessageRecordFile(FileLayer.DISK, mMessagesFile).save(mStored);
+
+        mStore = Utils.createMessageStore(new FakeSharedPreferences(), mFiles, mMessagesFile,
+                mStorage);
+        AttachmentDecoderRegistry decoders = new AttachmentDecoderRegistry(100,
+                new MessageAnnotations(mFolder.newFile()), Executors.newSingleThreadExecutor());
+        decoders.register(null, "string", AttachmentDecoder.TEXT);
+        mPager = new MessagePager(mStore, decoders);
+        mLoader = new MessageListLoader(mStore, mPager, mListLoad, mUi,
+                new MessageListLoader.Listener() {
+                    @Override
+                    public void onMessagesChanged() {
+                        // Draw the rows on screen, as the list does after a change.
+                        for (int i = 0; i < Math.min(VISIBLE_ROWS, mPager.getCount()); i++) {
+                            mPager.getDisplayText(i);
+                        }
+                    }
+                });
+        mRenderer = new NotificationRenderer(mStore, new MessageAnnotations(mFolder.newFile()),
+                5, 50);
+
+        BeaconEventDispatcher dispatcher = new BeaconEventDispatcher(
+                new BeaconEventDispatcher.FailureHandler() {
+                    @Override
+                    public void onListenerFailed(BeaconEventDispatcher.Listener listener,
+                                                 BeaconEvent event, RuntimeException e) {
+                        throw e;
+                    }
+                });
+        dispatcher.register(BeaconEventDispatcher.Filter.ALL,
+                new PresencePipeline(mStore, new VisitAggregator(256, 16, 30 * 1000)));
+        dispatcher.register(BeaconEventDispatcher.Filter.ALL, mRenderer);
+        dispatcher.register(new BeaconEventDispatcher.Filter(null, null, true, false), decoders);
+        dispatcher.register(BeaconEventDispatcher.Filter.ALL, mLoader);
+        mAdmission = new EventAdmissionController(1024,
+                EventAdmissionController.Policy.COALESCE,
+                EventAdmissionController.Prioritizer.LOST_FIRST,
+                new EventAdmissionController.ShedListener() {
+                    @Override
+                    public void onShed(BeaconEvent event) {
+                    }
+                }, 4096, 100, 100, Clock.SYSTEM);
+        NotificationScheduler notifications = new NotificationScheduler(
+                new TokenBucket(2, 10, Clock.SYSTEM),
+                new NotificationScheduler.Poster() {
+                    @Override
+                    public void post() {
+                        mRenderer.renderText();
+                        mPostedCount.incrementAndGet();
+                    }
+                },
+                new NotificationScheduler.Scheduler() {
+                    @Override
+                    public void schedule(Runnable task, long delayMillis) {
+                        mNotificationThread.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+                    }
+                });
+        mDrain = new EventDrain(mAdmission, dispatcher, new FlightRecorder(1024), notifications);
+    }
+
+    @After
+    public void tearDown() {
+        mUi.shutdown();
+        mStorage.shutdownNow();
+        mListLoad.shutdownNow();
+        mService.shutdownNow();
+        mNotificationThread.shutdownNow();
+    }
+
+    /**
+     * Offers an event for each payload and wakes the service for it, as Nearby does.
+     */
+    private void deliver(byte kind, String prefix, int count) {
+        for (int i = 0; i < count; i++) {
+            mAdmission.offer(new BeaconEvent(kind, "ns", "string", (prefix + i).getBytes(),
+                    System.currentTimeMillis()));
+            mService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mDrain.drain();
+                }
+            });
+        }
+    }
+
+    /**
+     * Waits until the list, as last refreshed on the UI thread, shows {@code count} messages.
+     */
+    private void awaitListed(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (true) {
+            final int[] listed = new int[1];
+            mUi.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listed[0] = mPager.getCount();
+                }
+            });
+            mUi.awaitIdle();
+            if (listed[0] == count) {
+                return;
+            }
+            assertTrue("Listed " + listed[0] + " of " + count, System.nanoTime() < deadline);
+            Thread.sleep(20);
+        }
+    }
+
+    /**
+     * Waits until the messages file, read afresh, holds what the store holds.
+     */
+    private void awaitSaved() throws InterruptedException, IOException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (!new MessageRecordFile(FileLayer.DISK, mMessagesFile).load()
+                .equals(mStore.getAll())) {
+            assertTrue("Never saved", System.nanoTime() < deadline);
+            Thread.sleep(50);
+        }
+    }
+
+    /**
+     * Starts loading the list and refreshes it at once, as onCreate() and onResume() do.
+     */
+    private CountDownLatch startList() {
+        final CountDownLatch shown = new CountDownLatch(1);
+        mLoader.load(new Runnable() {
+            @Override
+            public void run() {
+                shown.countDown();
+            }
+        });
+        mUi.execute(new Runnable() {
+            @Override
+            public void run() {
+                mLoader.refresh();
+            }
+        });
+        return shown;
+    }
+
+    private void loadList() throws InterruptedException {
+        assertTrue(startList().await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    private void assertWithinFrameBudget() {
+        System.out.printf("UI thread: %d tasks, slowest %d ms, %d over %d ms%n",
+                mUi.getTaskCount(), mUi.getSlowestMillis(), mUi.getOverBudgetCount(),
+                UiThreadExecutor.FRAME_BUDGET_MILLIS);
+        assertTrue(mUi.getTaskCount() > 0);
+        assertEquals(0, mUi.getOverBudgetCount());
+    }
+
+    @Test
+    public void slowStorageNeverBlocksTheUiThread() throws Exception {
+        mFiles.setLatencyMillis(200);
+        mFiles.setSyncDelayMillis(100);
+        // Events arrive while the store is still loading; the list refreshes only once loaded.
+        CountDownLatch shown = startList();
+        deliver(BeaconEvent.KIND_FOUND, "found-", EVENTS);
+        assertTrue(shown.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        awaitListed(STORED + EVENTS);
+        deliver(BeaconEvent.KIND_LOST, "found-", EVENTS);
+        awaitListed(STORED);
+        awaitSaved();
+
+        assertWithinFrameBudget();
+        assertEquals(mStored, mStore.getAll());
+        assertEquals(STORED, mRenderer.getCount());
+        assertTrue(mPostedCount.get() > 0);
+        assertEquals(0, mStore.getFailureCount());
+    }
+
+    @Test
+    public void fullDiskOnlyCostsTheSaves() throws Exception {
+        loadList();
+        awaitListed(STORED);
+        mFiles.setFreeBytes(0);
+        deliver(BeaconEvent.KIND_FOUND, "found-", EVENTS);
+        awaitListed(STORED + EVENTS);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (mStore.getFailureCount() == 0) {
+            assertTrue("Saves never failed", System.nanoTime() < deadline);
+            Thread.sleep(20);
+        }
+        // The failed saves left the file as it was, and the app carries on from memory.
+        assertEquals(mStored, new MessageRecordFile(FileLayer.DISK, mMessagesFile).load());
+        assertEquals(STORED + EVENTS, mRenderer.getCount());
+        assertTrue(mFiles.getFailedWriteCount() > 0);
+
+        // Once space is freed, a retry saves everything found meanwhile.
+        mFiles.setFreeBytes(Long.MAX_VALUE);
+        awaitSaved();
+        assertEquals(STORED + EVENTS, mStore.size());
+        assertWithinFrameBudget();
+    }
+}
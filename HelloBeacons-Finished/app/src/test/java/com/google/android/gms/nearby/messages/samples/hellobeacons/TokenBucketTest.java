@@ -0,0 +1,74 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TokenBucketTest {
+    @Test
+    public void allowsBurstThenRefillsAtRate() {
+        FakeClock clock = new FakeClock(1000);
+        TokenBucket bucket = new TokenBucket(3, 2, clock);
+        assertTrue(bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+        assertEquals(500, bucket.millisUntilAvailable());
+
+        clock.advance(499);
+        assertFalse(bucket.tryAcquire());
+        clock.advance(1);
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+    }
+
+    @Test
+    public void refillIsCappedAtCapacity() {
+        FakeClock clock = new FakeClock(0);
+        TokenBucket bucket = new TokenBucket(2, 10, clock);
+        clock.advance(60 * 1000);
+        assertEquals(0, bucket.millisUntilAvailable());
+        assertTrue(bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+    }
+
+    @Test
+    public void sustainedRateMatchesConfiguration() {
+        FakeClock clock = new FakeClock(0);
+        TokenBucket bucket = new TokenBucket(1, 4, clock);
+        int permitted = 0;
+        for (int i = 0; i < 10 * 1000; i++) {
+            if (bucket.tryAcquire()) {
+                permitted++;
+            }
+            clock.advance(1);
+        }
+        // One initial token plus 4 per second for 10 seconds, give or take the rounding of
+        // fractional tokens.
+        assertEquals(41, permitted, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroCapacity() {
+        new TokenBucket(0, 1, Clock.SYSTEM);
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stands in for the main thread: runs tasks one at a time on a single thread and times each
+ * against a frame, as {@link MainThreadMonitor} times the main looper's messages.
+ */
+final class UiThreadExecutor implements Executor {
+    static final long FRAME_BUDGET_MILLIS = 16;
+
+    private final ExecutorService mThread = Executors.newSingleThreadExecutor();
+
+    private int mTaskCount;
+    private int mOverBudgetCount;
+    private long mSlowestNanos;
+
+    @Override
+    public void execute(final Runnable command) {
+        mThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                command.run();
+                record(System.nanoTime() - start);
+            }
+        });
+    }
+
+    private synchronized void record(long nanos) {
+        mTaskCount++;
+        mSlowestNanos = Math.max(mSlowestNanos, nanos);
+        if (nanos > TimeUnit.MILLISECONDS.toNanos(FRAME_BUDGET_MILLIS)) {
+            mOverBudgetCount++;
+        }
+    }
+
+    /**
+     * Waits for every task submitted so far to finish.
+     */
+    void awaitIdle() throws InterruptedException {
+        final CountDownLatch idle = new CountDownLatch(1);
+        mThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                idle.countDown();
+            }
+        });
+        idle.await();
+    }
+
+    synchronized int getTaskCount() {
+        return mTaskCount;
+    }
+
+    synchronized int getOverBudgetCount() {
+        return mOverBudgetCount;
+    }
+
+    synchronized long getSlowestMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mSlowestNanos);
+    }
+
+    void shutdown() {
+        mThread.shutdown();
+    }
+}
@@ -0,0 +1,207 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import com.google.gson.Gson;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class VersionedMessagePersistenceTest {
+    private static final int MESSAGES = 10 * 1000;
+    private static final int STEP_MESSAGES = 10;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final FakeSharedPreferences mPrefs = new FakeSharedPreferences();
+    private final ManualExecutor mExecutor = new ManualExecutor();
+
+    /**
+     * Queues scheduled tasks for the test to run one at a time, ignoring their delays.
+     */
+    private static final class ManualExecutor extends ScheduledThreadPoolExecutor {
+        final Queue<Runnable> mTasks = new ArrayDeque<>();
+
+        ManualExecutor() {
+            super(1);
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+            mTasks.add(task);
+            return null;
+        }
+    }
+
+    /**
+     * Disk files whose syncs return at once, so that step times measure the conversion alone.
+     */
+    private static final FileLayer UNSYNCED_DISK = new FileLayer() {
+        @Override
+        public InputStream openInput(File file) throws IOException {
+            return DISK.openInput(file);
+        }
+
+        @Override
+        public Output openOutput(File file, long offset) throws IOException {
+            final Output out = DISK.openOutput(file, offset);
+            return new Output() {
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                void sync() {
+                }
+
+                @Override
+                public void close() throws IOException {
+                    out.close();
+                }
+            };
+        }
+
+        @Override
+        public boolean rename(File from, File to) {
+            return DISK.rename(from, to);
+        }
+
+        @Override
+        public boolean exists(File file) {
+            return DISK.exists(file);
+        }
+
+        @Override
+        public long length(File file) {
+            return DISK.length(file);
+        }
+
+        @Override
+        public boolean delete(File file) {
+            return DISK.delete(file);
+        }
+    };
+
+    private List<String> storeLegacy(int count) {
+        List<String> messages = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            messages.add("message-" + i);
+        }
+        mPrefs.mValues.put(Utils.KEY_CACHED_MESSAGES, new Gson().toJson(messages));
+        return messages;
+    }
+
+    private VersionedMessagePersistence persistence(File file) {
+        return new VersionedMessagePersistence(mPrefs, UNSYNCED_DISK, file, mExecutor,
+                STEP_MESSAGES, 0);
+    }
+
+    /**
+     * Ten thousand messages converted ten at a time: a thousand steps, scheduled as one chain
+     * however often the store is loaded, each reading on from the last instead of re-reading
+     * the messages already converted.
+     */
+    @Test
+    public void convertsTenThousandMessagesInOnePass() throws IOException {
+        List<String> messages = storeLegacy(MESSAGES);
+        File file = new File(mFolder.getRoot(), "messages");
+        VersionedMessagePersistence persistence = persistence(file);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(messages, persistence.load());
+        }
+        assertEquals(1, mExecutor.mTasks.size());
+
+        int steps = MESSAGES / STEP_MESSAGES;
+        long[] stepNanos = new long[steps];
+        int step = 0;
+        for (Runnable task = mExecutor.mTasks.poll(); task != null;
+                task = mExecutor.mTasks.poll()) {
+            long start = System.nanoTime();
+            task.run();
+            stepNanos[step++] = System.nanoTime() - start;
+            // Loading meanwhile still reads the old data, and starts no second chain.
+            if (step == steps / 2) {
+                assertEquals(messages, persistence.load());
+            }
+        }
+        assertEquals(steps, step);
+        assertFalse(mPrefs.contains(Utils.KEY_CACHED_MESSAGES));
+        assertEquals(messages, persistence(file).load());
+        assertTrue(mExecutor.mTasks.isEmpty());
+
+        // Re-reading the converted messages would make the last steps far slower than the first.
+        long first = median(stepNanos, 0, steps / 10);
+        long last = median(stepNanos, steps - steps / 10, steps);
+        System.out.printf("Migration steps: first %d us, last %d us%n", first / 1000,
+                last / 1000);
+        assertTrue(last < 3 * first);
+    }
+
+    @Test
+    public void resumesFromTheCheckpointAfterARestart() throws IOException {
+        List<String> messages = storeLegacy(1000);
+        File file = new File(mFolder.getRoot(), "messages");
+        persistence(file).load();
+        for (int i = 0; i < 50; i++) {
+            mExecutor.mTasks.poll().run();
+        }
+        mExecutor.mTasks.clear();
+
+        // A new process loads the old data again and carries on from the 500th message.
+        VersionedMessagePersistence restarted = persistence(file);
+        assertEquals(messages, restarted.load());
+        int steps = 0;
+        for (Runnable task = mExecutor.mTasks.poll(); task != null;
+                task = mExecutor.mTasks.poll()) {
+            task.run();
+            steps++;
+        }
+        assertEquals(50, steps);
+        assertEquals(messages, persistence(file).load());
+    }
+
+    private static long median(long[] values, int from, int to) {
+        long[] range = new long[to - from];
+        System.arraycopy(values, from, range, 0, range.length);
+        Arrays.sort(range);
+        return range[range.length / 2];
+    }
+}
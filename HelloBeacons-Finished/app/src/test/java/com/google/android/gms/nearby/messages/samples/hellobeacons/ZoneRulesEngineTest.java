@@ -0,0 +1,165 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ZoneRulesEngineTest {
+    private static final List<String> NONE = Collections.emptyList();
+
+    private final List<String> mTransitions = new ArrayList<>();
+
+    private final ZoneRulesEngine.ZoneListener mListener = new ZoneRulesEngine.ZoneListener() {
+        @Override
+        public void onZoneEntered(ZoneRulesEngine.Rule rule) {
+            mTransitions.add("+" + rule.name);
+        }
+
+        @Override
+        public void onZoneExited(ZoneRulesEngine.Rule rule) {
+            mTransitions.add("-" + rule.name);
+        }
+    };
+
+    private static ZoneRulesEngine.Rule rule(String name, List<String> anyOf, List<String> allOf,
+                                             List<String> noneOf) {
+        return new ZoneRulesEngine.Rule(name, anyOf, allOf, noneOf);
+    }
+
+    @Test
+    public void entersAndLeavesZones() {
+        ZoneRulesEngine engine = new ZoneRulesEngine(Arrays.asList(
+                rule("lobby", Arrays.asList("a", "b", "c"), NONE, Arrays.asList("d"))),
+                mListener);
+        engine.seed(NONE);
+        engine.onFound("a");
+        engine.onFound("b");
+        engine.onFound("d");
+        engine.onLost("d");
+        engine.onLost("a");
+        engine.onLost("b");
+        assertEquals(Arrays.asList("+lobby", "-lobby", "+lobby", "-lobby"), mTransitions);
+    }
+
+    @Test
+    public void reportsZonesThatHoldWhenSeeded() {
+        ZoneRulesEngine engine = new ZoneRulesEngine(Arrays.asList(
+                rule("away", NONE, NONE, Arrays.asList("home")),
+                rule("desk", Arrays.asList("desk"), NONE, NONE)), mListener);
+        assertTrue(mTransitions.isEmpty());
+        engine.seed(Arrays.asList("desk"));
+        assertEquals(Arrays.asList("+away", "+desk"), mTransitions);
+        assertTrue(engine.isActive("away"));
+
+        engine.onFound("home");
+        assertFalse(engine.isActive("away"));
+    }
+
+    @Test
+    public void eventsBeforeSeedingOverrideTheSeed() {
+        ZoneRulesEngine engine = new ZoneRulesEngine(Arrays.asList(
+                rule("door", Arrays.asList("door"), NONE, NONE),
+                rule("desk", Arrays.asList("desk"), NONE, NONE)), mListener);
+        // Lost while the cached messages were being read, which still list it.
+        engine.onLost("door");
+        engine.onFound("desk");
+        assertTrue(mTransitions.isEmpty());
+        engine.seed(Arrays.asList("door"));
+        assertEquals(Arrays.asList("+desk"), mTransitions);
+        assertFalse(engine.isActive("door"));
+    }
+
+    @Test
+    public void ignoresMessagesNoRuleMentions() {
+        ZoneRulesEngine engine = new ZoneRulesEngine(Arrays.asList(
+                rule("door", Arrays.asList("door"), NONE, NONE)), mListener);
+        engine.seed(Arrays.asList("door", "unrelated-1", "unrelated-2"));
+        for (int i = 0; i < 1000; i++) {
+            engine.onFound("other-" + i);
+        }
+        assertEquals(1, engine.getPresentCount());
+    }
+
+    /**
+     * With 10k rules over 1k beacons, each event only re-evaluates the rules that mention its
+     * beacon, so its cost does not grow with the number of rules.
+     */
+    @Test
+    public void tenThousandRulesStayIncremental() {
+        double fewNanos = eventNanos(100);
+        double manyNanos = eventNanos(10000);
+        System.out.printf("Zone rules: %.0f ns/event with 100 rules, %.0f ns with 10k%n",
+                fewNanos, manyNanos);
+        // Rules per beacon grow a hundredfold, yet events stay far cheaper than a full pass.
+        assertTrue(manyNanos < fewNanos * 100 / 4);
+    }
+
+    private static double eventNanos(int ruleCount) {
+        int beacons = 1000;
+        Random random = new Random(11);
+        List<ZoneRulesEngine.Rule> rules = new ArrayList<>();
+        for (int i = 0; i < ruleCount; i++) {
+            rules.add(rule("zone-" + i,
+                    Arrays.asList("b" + random.nextInt(beacons), "b" + random.nextInt(beacons)),
+                    Arrays.asList("b" + random.nextInt(beacons)),
+                    Arrays.asList("b" + random.nextInt(beacons))));
+        }
+        final int[] transitions = new int[1];
+        ZoneRulesEngine engine = new ZoneRulesEngine(rules, new ZoneRulesEngine.ZoneListener() {
+            @Override
+            public void onZoneEntered(ZoneRulesEngine.Rule rule) {
+                transitions[0]++;
+            }
+
+            @Override
+            public void onZoneExited(ZoneRulesEngine.Rule rule) {
+                transitions[0]++;
+            }
+        });
+        engine.seed(Collections.<String>emptyList());
+        String[] payloads = new String[beacons];
+        for (int i = 0; i < beacons; i++) {
+            payloads[i] = "b" + i;
+        }
+        int events = 200 * 1000;
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < 3; run++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < events; i++) {
+                String payload = payloads[random.nextInt(beacons)];
+                if ((i & 1) == 0) {
+                    engine.onFound(payload);
+                } else {
+                    engine.onLost(payload);
+                }
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        assertTrue(transitions[0] > 0);
+        return (double) best / events;
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+/**
+ * A message found or lost by a Nearby subscription, decoupled from the Nearby {@code Message}
+ * class so that it can be consumed, recorded and replayed without Play services or Android.
+ */
+final class BeaconEvent {
+    static final byte KIND_FOUND = SightingHistoryStore.KIND_FOUND;
+    static final byte KIND_LOST = SightingHistoryStore.KIND_LOST;
+
+    final byte kind;
+    final String namespace;
+    final String type;
+    final byte[] content;
+    final long timeMillis;
+
+    /**
+     * The content as a string, as shown in the UI and kept in the message cache.
+     */
+    final String text;
+
+    /**
+     * {@link #payloadHash(byte[])} of the content.
+     */
+    final long payloadHash;
+
+    BeaconEvent(byte kind, String namespace, String type, byte[] content, long timeMillis) {
+        this.kind = kind;
+        this.namespace = namespace;
+        this.type = type;
+        this.content = content;
+        this.timeMillis = timeMillis;
+        this.text = new String(content);
+        this.payloadHash = payloadHash(content);
+    }
+
+    boolean isFound() {
+        return kind == KIND_FOUND;
+    }
+
+    /**
+     * Computes a stable 64-bit FNV-1a hash of a message payload, used to identify messages
+     * without keeping or sending their content.
+     *
+     * @param content The message content.
+     * @return The hash of {@code content}.
+     */
+    static long payloadHash(byte[] content) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : content) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
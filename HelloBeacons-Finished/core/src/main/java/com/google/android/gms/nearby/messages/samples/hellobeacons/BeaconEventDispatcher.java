@@ -0,0 +1,187 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fans out {@link BeaconEvent}s to any number of in-process subscribers, each with its own
+ * {@link Filter}.
+ * <p/>
+ * Subscribers are kept in an immutable two-level index from namespace and type to the
+ * subscribers whose filter names them, with wildcard buckets for filters that leave either field
+ * open, so each event costs at most six map lookups however many subscribers there are.
+ * Registering or unregistering rebuilds the index under a lock and publishes it through a
+ * volatile field, so {@link #dispatch(BeaconEvent)} never locks and only visits subscribers that
+ * can match. A subscriber that throws is reported to the {@link FailureHandler} and does not keep
+ * the event from the others.
+ */
+final class BeaconEventDispatcher {
+    private static final String ANY = "\u0000*";
+
+    /**
+     * Receives the events that match its filter. Called on the thread that dispatched the event.
+     */
+    interface Listener {
+        void onBeaconEvent(BeaconEvent event);
+    }
+
+    /**
+     * Told about each subscriber that threw while handling an event.
+     */
+    interface FailureHandler {
+        void onListenerFailed(Listener listener, BeaconEvent event, RuntimeException e);
+    }
+
+    /**
+     * Selects events by namespace, type and kind. A null namespace or type matches any value.
+     */
+    static final class Filter {
+        static final Filter ALL = new Filter(null, null, true, true);
+
+        final String namespace;
+        final String type;
+        final boolean found;
+        final boolean lost;
+
+        Filter(String namespace, String type, boolean found, boolean lost) {
+            this.namespace = namespace;
+            this.type = type;
+            this.found = found;
+            this.lost = lost;
+        }
+
+        boolean matchesKind(byte kind) {
+            return kind == BeaconEvent.KIND_FOUND ? found : lost;
+        }
+    }
+
+    /**
+     * Handle returned by {@link #register(Filter, Listener)}, used to unregister.
+     */
+    static final class Registration {
+        private final Filter mFilter;
+        private final Listener mListener;
+
+        private Registration(Filter filter, Listener listener) {
+            mFilter = filter;
+            mListener = listener;
+        }
+    }
+
+    private static final Registration[] EMPTY = new Registration[0];
+
+    private final FailureHandler mFailureHandler;
+    private final AtomicLong mFailureCount = new AtomicLong();
+    private final Object mLock = new Object();
+    private final List<Registration> mRegistrations = new ArrayList<>();
+    private volatile Map<String, Map<String, Registration[]>> mIndex = new HashMap<>();
+
+    BeaconEventDispatcher(FailureHandler failureHandler) {
+        mFailureHandler = failureHandler;
+    }
+
+    Registration register(Filter filter, Listener listener) {
+        Registration registration = new Registration(filter, listener);
+        synchronized (mLock) {
+            mRegistrations.add(registration);
+            rebuildIndex();
+        }
+        return registration;
+    }
+
+    void unregister(Registration registration) {
+        synchronized (mLock) {
+            if (mRegistrations.remove(registration)) {
+                rebuildIndex();
+            }
+        }
+    }
+
+    /**
+     * Delivers {@code event} to every subscriber whose filter matches it.
+     */
+    void dispatch(BeaconEvent event) {
+        Map<String, Map<String, Registration[]>> index = mIndex;
+        deliver(index.get(event.namespace), event);
+        deliver(index.get(ANY), event);
+    }
+
+    int getSubscriberCount() {
+        synchronized (mLock) {
+            return mRegistrations.size();
+        }
+    }
+
+    /**
+     * Returns the number of times a subscriber threw while handling an event.
+     */
+    long getFailureCount() {
+        return mFailureCount.get();
+    }
+
+    private void deliver(Map<String, Registration[]> byType, BeaconEvent event) {
+        if (byType == null) {
+            return;
+        }
+        deliver(byType.get(event.type), event);
+        deliver(byType.get(ANY), event);
+    }
+
+    private void deliver(Registration[] registrations, BeaconEvent event) {
+        if (registrations == null) {
+            return;
+        }
+        for (Registration registration : registrations) {
+            if (registration.mFilter.matchesKind(event.kind)) {
+                try {
+                    registration.mListener.onBeaconEvent(event);
+                } catch (RuntimeException e) {
+                    mFailureCount.incrementAndGet();
+                    mFailureHandler.onListenerFailed(registration.mListener, event, e);
+                }
+            }
+        }
+    }
+
+    private void rebuildIndex() {
+        Map<String, Map<String, Registration[]>> index = new HashMap<>();
+        for (Registration registration : mRegistrations) {
+            Filter filter = registration.mFilter;
+            String namespace = filter.namespace == null ? ANY : filter.namespace;
+            String type = filter.type == null ? ANY : filter.type;
+            Map<String, Registration[]> byType = index.get(namespace);
+            if (byType == null) {
+                byType = new HashMap<>();
+                index.put(namespace, byType);
+            }
+            Registration[] existing = byType.get(type);
+            if (existing == null) {
+                existing = EMPTY;
+            }
+            Registration[] updated = Arrays.copyOf(existing, existing.length + 1);
+            updated[existing.length] = registration;
+            byType.put(type, updated);
+        }
+        mIndex = index;
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Releases the app's in-memory caches when the system runs short of memory.
+ * <p/>
+ * Each cache registers with a priority, and {@link #trim(int)} releases whole tiers, lowest
+ * first; {@link HelloBeaconsApplication#onTrimMemory(int)} picks the tier from how urgent the trim
+ * level is. A released cache keeps working and rebuilds what it needs lazily on next use. This
+ * class has no Android dependencies, so the caches of the pure-Java core can use it anywhere.
+ */
+final class CacheManager {
+    /**
+     * Cheap to rebuild, or only useful while the UI is showing.
+     */
+    static final int PRIORITY_LOW = 0;
+
+    /**
+     * Costs a pass over the stored messages to rebuild.
+     */
+    static final int PRIORITY_NORMAL = 1;
+
+    /**
+     * Backs something the user can see outside the app, such as the notification.
+     */
+    static final int PRIORITY_HIGH = 2;
+
+    /**
+     * Rough per-object costs used by {@link Trimmable#getSizeBytes()} estimates.
+     */
+    static final int OBJECT_BYTES = 16;
+    static final int REFERENCE_BYTES = 4;
+
+    /**
+     * A cache that can drop its contents on request.
+     */
+    interface Trimmable {
+        /**
+         * Returns an estimate of the heap retained by the cache's contents.
+         */
+        long getSizeBytes();
+
+        /**
+         * Drops the cache's contents. Called on the thread that asked for the trim, which is the
+         * main thread for trims from the system.
+         */
+        void trim();
+    }
+
+    private static final class Registration {
+        final String name;
+        final Trimmable cache;
+        final int priority;
+
+        Registration(String name, Trimmable cache, int priority) {
+            this.name = name;
+            this.cache = cache;
+            this.priority = priority;
+        }
+    }
+
+    private final List<Registration> mRegistrations = new ArrayList<>();
+
+    private long mTrimCount;
+    private long mReleasedBytes;
+
+    synchronized void register(String name, Trimmable cache, int priority) {
+        mRegistrations.add(new Registration(name, cache, priority));
+    }
+
+    synchronized void unregister(Trimmable cache) {
+        for (int i = 0; i < mRegistrations.size(); i++) {
+            if (mRegistrations.get(i).cache == cache) {
+                mRegistrations.remove(i);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Releases every cache with a priority of at most {@code maxPriority}.
+     *
+     * @return The estimated number of bytes released.
+     */
+    long trim(int maxPriority) {
+        List<Trimmable> caches = new ArrayList<>();
+        synchronized (this) {
+            for (Registration registration : mRegistrations) {
+                if (registration.priority <= maxPriority) {
+                    caches.add(registration.cache);
+                }
+            }
+        }
+        // Trim outside the lock: caches take their own locks, and may be in use on other threads.
+        long released = 0;
+        for (Trimmable cache : caches) {
+            released += cache.getSizeBytes();
+            cache.trim();
+        }
+        synchronized (this) {
+            mTrimCount++;
+            mReleasedBytes += released;
+        }
+        return released;
+    }
+
+    /**
+     * Returns the estimated size of every registered cache.
+     */
+    long getSizeBytes() {
+        long size = 0;
+        for (Registration registration : getRegistrations()) {
+            size += registration.cache.getSizeBytes();
+        }
+        return size;
+    }
+
+    /**
+     * Returns a one-line summary of each cache's size and of the trims so far, for diagnostics.
+     */
+    String getStats() {
+        StringBuilder stats = new StringBuilder();
+        for (Registration registration : getRegistrations()) {
+            stats.append(registration.name).append('=')
+                    .append(registration.cache.getSizeBytes() / 1024).append("KiB ");
+        }
+        synchronized (this) {
+            stats.append("trims=").append(mTrimCount)
+                    .append(" released=").append(mReleasedBytes / 1024).append("KiB");
+        }
+        return stats.toString();
+    }
+
+    /**
+     * Estimates the heap retained by a string.
+     */
+    static long stringBytes(String string) {
+        return string == null ? 0 : 2 * OBJECT_BYTES + 2L * string.length();
+    }
+
+    private synchronized List<Registration> getRegistrations() {
+        return new ArrayList<>(mRegistrations);
+    }
+}
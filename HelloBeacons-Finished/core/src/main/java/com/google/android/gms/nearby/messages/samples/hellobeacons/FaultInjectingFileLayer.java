@@ -0,0 +1,183 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * A {@link FileLayer} that makes another one behave like poor flash storage: every open, rename
+ * and delete takes an extra {@code latency}, every sync an extra {@code syncDelay}, and writes
+ * fail with the error a full disk gives once the free space set with {@link #setFreeBytes(long)}
+ * runs out. Deleting a file gives its space back. The settings can change while in use, to
+ * simulate storage that degrades and recovers.
+ */
+final class FaultInjectingFileLayer implements FileLayer {
+    private final FileLayer mDelegate;
+
+    private volatile long mLatencyMillis;
+    private volatile long mSyncDelayMillis;
+    private long mFreeBytes = Long.MAX_VALUE;
+    private long mFailedWrites;
+
+    FaultInjectingFileLayer(FileLayer delegate) {
+        mDelegate = delegate;
+    }
+
+    void setLatencyMillis(long latencyMillis) {
+        mLatencyMillis = latencyMillis;
+    }
+
+    void setSyncDelayMillis(long syncDelayMillis) {
+        mSyncDelayMillis = syncDelayMillis;
+    }
+
+    /**
+     * Sets how many more bytes can be written before writes fail. {@link Long#MAX_VALUE} means
+     * unlimited.
+     */
+    synchronized void setFreeBytes(long freeBytes) {
+        mFreeBytes = freeBytes;
+    }
+
+    synchronized long getFreeBytes() {
+        return mFreeBytes;
+    }
+
+    /**
+     * Returns how many writes failed for lack of space.
+     */
+    synchronized long getFailedWriteCount() {
+        return mFailedWrites;
+    }
+
+    @Override
+    public InputStream openInput(File file) throws IOException {
+        delay(mLatencyMillis);
+        return mDelegate.openInput(file);
+    }
+
+    @Override
+    public Output openOutput(File file, long offset) throws IOException {
+        delay(mLatencyMillis);
+        // Truncating gives back the space after the offset.
+        release(Math.max(0, mDelegate.length(file) - offset));
+        return new FaultInjectingOutput(mDelegate.openOutput(file, offset));
+    }
+
+    @Override
+    public boolean rename(File from, File to) {
+        delayQuietly(mLatencyMillis);
+        long replaced = mDelegate.length(to);
+        boolean renamed = mDelegate.rename(from, to);
+        if (renamed) {
+            release(replaced);
+        }
+        return renamed;
+    }
+
+    @Override
+    public boolean exists(File file) {
+        return mDelegate.exists(file);
+    }
+
+    @Override
+    public long length(File file) {
+        return mDelegate.length(file);
+    }
+
+    @Override
+    public boolean delete(File file) {
+        delayQuietly(mLatencyMillis);
+        long length = mDelegate.length(file);
+        boolean deleted = mDelegate.delete(file);
+        if (deleted) {
+            release(length);
+        }
+        return deleted;
+    }
+
+    private synchronized void reserve(int bytes) throws IOException {
+        if (mFreeBytes == Long.MAX_VALUE) {
+            return;
+        }
+        if (bytes > mFreeBytes) {
+            mFailedWrites++;
+            throw new IOException("ENOSPC (No space left on device)");
+        }
+        mFreeBytes -= bytes;
+    }
+
+    private synchronized void release(long bytes) {
+        if (mFreeBytes != Long.MAX_VALUE) {
+            mFreeBytes += bytes;
+        }
+    }
+
+    private static void delay(long millis) throws InterruptedIOException {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private static void delayQuietly(long millis) {
+        try {
+            delay(millis);
+        } catch (InterruptedIOException e) {
+            // The interrupt is preserved for the caller to see.
+        }
+    }
+
+    private final class FaultInjectingOutput extends Output {
+        private final Output mOut;
+
+        FaultInjectingOutput(Output out) {
+            mOut = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            reserve(1);
+            mOut.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            reserve(len);
+            mOut.write(b, off, len);
+        }
+
+        @Override
+        void sync() throws IOException {
+            delay(mSyncDelayMillis);
+            mOut.sync();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mOut.close();
+        }
+    }
+}
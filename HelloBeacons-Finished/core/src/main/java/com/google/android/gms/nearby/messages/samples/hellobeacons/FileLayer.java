@@ -0,0 +1,132 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * The file operations behind the stored messages, so that storage can be made slow or failing,
+ * for example with a {@link FaultInjectingFileLayer}, to see how the app copes.
+ */
+interface FileLayer {
+    /**
+     * The device's own storage, through {@link java.io}.
+     */
+    FileLayer DISK = new FileLayer() {
+        @Override
+        public InputStream openInput(File file) throws IOException {
+            return new FileInputStream(file);
+        }
+
+        @Override
+        public Output openOutput(File file, long offset) throws IOException {
+            if (offset == 0) {
+                return new DiskOutput(new FileOutputStream(file));
+            }
+            RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+            try {
+                truncated.setLength(offset);
+            } finally {
+                truncated.close();
+            }
+            return new DiskOutput(new FileOutputStream(file, true));
+        }
+
+        @Override
+        public boolean rename(File from, File to) {
+            return from.renameTo(to);
+        }
+
+        @Override
+        public boolean exists(File file) {
+            return file.exists();
+        }
+
+        @Override
+        public long length(File file) {
+            return file.length();
+        }
+
+        @Override
+        public boolean delete(File file) {
+            return file.delete();
+        }
+    };
+
+    /**
+     * A file open for writing.
+     */
+    abstract class Output extends OutputStream {
+        /**
+         * Blocks until everything written so far has reached storage.
+         */
+        abstract void sync() throws IOException;
+    }
+
+    InputStream openInput(File file) throws IOException;
+
+    /**
+     * Opens {@code file} for writing at {@code offset}, dropping anything after it. An offset of 0
+     * creates the file or empties it.
+     */
+    Output openOutput(File file, long offset) throws IOException;
+
+    boolean rename(File from, File to);
+
+    boolean exists(File file);
+
+    long length(File file);
+
+    boolean delete(File file);
+
+    /**
+     * An {@link Output} on a real file.
+     */
+    final class DiskOutput extends Output {
+        private final FileOutputStream mOut;
+
+        DiskOutput(FileOutputStream out) {
+            mOut = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            mOut.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            mOut.write(b, off, len);
+        }
+
+        @Override
+        void sync() throws IOException {
+            mOut.getFD().sync();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mOut.close();
+        }
+    }
+}
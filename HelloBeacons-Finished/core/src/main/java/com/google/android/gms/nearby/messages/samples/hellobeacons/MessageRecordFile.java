@@ -0,0 +1,176 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The second schema of the stored messages: a file holding a header and then one length-prefixed
+ * UTF-8 record per message, most recent first.
+ * <p/>
+ * Unlike the JSON array kept in preferences by the first schema, the file is read as a stream
+ * without a parser, keeps the messages out of the preferences XML that every preference read
+ * loads, and can be built up record by record, which is what lets {@link Appender} convert old
+ * data in resumable steps. Whole files are written to a temporary file, synced and renamed into
+ * place, so a crash never leaves a partial one, and a failed write removes its temporary file so
+ * that a full disk is not made fuller. All access goes through a {@link FileLayer}.
+ */
+final class MessageRecordFile implements MessageStore.Persistence {
+    /**
+     * "MSG2": the format's magic number, ending in the schema version it stores.
+     */
+    static final int MAGIC = 0x4d534732;
+    static final int HEADER_BYTES = 4;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final FileLayer mFiles;
+    private final File mFile;
+
+    MessageRecordFile(FileLayer files, File file) {
+        mFiles = files;
+        mFile = file;
+    }
+
+    boolean exists() {
+        return mFiles.exists(mFile);
+    }
+
+    /**
+     * Reads every message in the file, in order, or returns null if there is no file.
+     *
+     * @throws IOException if the file cannot be read, is not in this format, or is truncated.
+     */
+    @Override
+    public List<String> load() throws IOException {
+        if (!exists()) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(mFiles.openInput(mFile)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Bad magic in " + mFile);
+            }
+            List<String> messages = new ArrayList<>();
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    return messages;
+                }
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                messages.add(new String(bytes, UTF_8));
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Replaces the file with one holding {@code messages}.
+     */
+    @Override
+    public void save(List<String> messages) throws IOException {
+        File tmp = new File(mFile.getPath() + TMP_SUFFIX);
+        boolean written = false;
+        try {
+            Appender appender = new Appender(mFiles, tmp, 0);
+            try {
+                for (String message : messages) {
+                    appender.append(message);
+                }
+                appender.sync();
+            } finally {
+                appender.close();
+            }
+            if (!mFiles.rename(tmp, mFile)) {
+                throw new IOException("Could not rename " + tmp);
+            }
+            written = true;
+        } finally {
+            if (!written) {
+                mFiles.delete(tmp);
+            }
+        }
+    }
+
+    /**
+     * Moves a file built with an {@link Appender} into place, replacing this one.
+     */
+    void replaceWith(File built) throws IOException {
+        if (!mFiles.rename(built, mFile)) {
+            throw new IOException("Could not rename " + built);
+        }
+    }
+
+    /**
+     * Adds records to the end of a file being built, so that a long conversion can stop after
+     * any {@link #sync()} and resume from the offset it reached.
+     */
+    static final class Appender {
+        private final FileLayer.Output mFile;
+        private final DataOutputStream mOut;
+        private long mOffset;
+
+        /**
+         * Opens {@code file} to continue at {@code offset}, dropping anything written after it.
+         * An offset of 0 starts a new file.
+         */
+        Appender(FileLayer files, File file, long offset) throws IOException {
+            mFile = files.openOutput(file, offset);
+            mOut = new DataOutputStream(new BufferedOutputStream(mFile));
+            mOffset = offset;
+            if (offset == 0) {
+                mOut.writeInt(MAGIC);
+                mOffset = HEADER_BYTES;
+            }
+        }
+
+        void append(String message) throws IOException {
+            byte[] bytes = message.getBytes(UTF_8);
+            mOut.writeInt(bytes.length);
+            mOut.write(bytes);
+            mOffset += 4 + bytes.length;
+        }
+
+        /**
+         * Flushes and syncs what was appended, and returns the offset to resume from.
+         */
+        long sync() throws IOException {
+            mOut.flush();
+            mFile.sync();
+            return mOffset;
+        }
+
+        void close() throws IOException {
+            mOut.close();
+        }
+    }
+}
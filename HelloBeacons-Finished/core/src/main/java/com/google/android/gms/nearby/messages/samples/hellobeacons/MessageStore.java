@@ -0,0 +1,601 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The in-memory copy of the messages currently in range, most recent first, backed by a
+ * {@link Persistence}. It has no Android dependencies, so the same presence state can run
+ * headless on the JVM.
+ * <p/>
+ * The persisted list is loaded once, the first time it is needed. After that, the state is an
+ * immutable {@link Snapshot} built from persistent maps: each write derives a new version in
+ * O(log n) that shares structure with the previous one, and publishes it through a volatile
+ * field. Readers take the current version without locking or copying, and it never changes under
+ * them.
+ * <p/>
+ * Each change is also numbered and kept in a bounded in-memory log, so other components can
+ * follow the store with {@link #getChangesSince(long, int)} instead of diffing whole lists. A
+ * consumer that falls further behind than the log reaches, or whose cursor is from an earlier
+ * process, is handed a snapshot to start over from instead. {@link #trim()} empties the log, with
+ * the same effect on consumers. Each store numbers its versions from a random epoch in the high
+ * bits, so that a cursor kept from another store or process never matches this one's log.
+ * <p/>
+ * Given an executor, saves are written behind: a change schedules one save of whatever the latest
+ * snapshot is when it runs, and changes made before then ride along with it. Serializing the
+ * whole list is by far the largest cost of a change, so a burst of events costs one save rather
+ * than one per event, and the thread applying events allocates only the O(log n) path copies.
+ * <p/>
+ * Storage failures never reach callers. A store that cannot be read starts empty, but saves
+ * nothing until a read succeeds, so that the messages it failed to read are never overwritten:
+ * each save reads again first, and on success merges the messages read with the changes made
+ * meanwhile. A write-behind save that fails, in either part, is retried with exponential backoff,
+ * each retry saving the latest snapshot, and the in-memory state stays authoritative meanwhile.
+ * {@link #getFailureCount()} counts every failed read and save, including saves the executor
+ * rejected because it was shut down.
+ */
+final class MessageStore implements CacheManager.Trimmable {
+    /**
+     * Where the list of messages is kept between processes.
+     */
+    interface Persistence {
+        /**
+         * Keeps nothing, for stores that only live in memory.
+         */
+        Persistence NONE = new Persistence() {
+            @Override
+            public List<String> load() {
+                return null;
+            }
+
+            @Override
+            public void save(List<String> messages) {
+            }
+        };
+
+        /**
+         * Returns the saved messages, most recent first, or null if there are none.
+         */
+        List<String> load() throws IOException;
+
+        /**
+         * Saves the messages, most recent first. Without a save executor this is called with the
+         * store's lock held, so it should hand slow I/O off to another thread.
+         */
+        void save(List<String> messages) throws IOException;
+    }
+
+    /**
+     * An immutable version of the store's contents, usable as a read-only list of messages, most
+     * recent first. Positional reads and {@link #contains(Object)} are O(log n).
+     */
+    static final class Snapshot extends AbstractList<String> {
+        private static final Comparator<Long> NEWEST_FIRST = new Comparator<Long>() {
+            @Override
+            public int compare(Long lhs, Long rhs) {
+                return rhs.compareTo(lhs);
+            }
+        };
+
+        private static final Comparator<String> NATURAL = new Comparator<String>() {
+            @Override
+            public int compare(String lhs, String rhs) {
+                return lhs.compareTo(rhs);
+            }
+        };
+
+        static final Snapshot EMPTY = new Snapshot(
+                new PersistentTreeMap<Long, String>(NEWEST_FIRST),
+                new PersistentTreeMap<String, Long>(NATURAL), 0, 0);
+
+        /**
+         * Messages keyed by the sequence number they were added with.
+         */
+        private final PersistentTreeMap<Long, String> mOrder;
+
+        /**
+         * Sequence numbers keyed by message.
+         */
+        private final PersistentTreeMap<String, Long> mSequences;
+
+        private final long mNextSequence;
+
+        /**
+         * The number of changes that produced this version, counting each message loaded from
+         * persistence as one.
+         */
+        private final long mVersion;
+
+        private Snapshot(PersistentTreeMap<Long, String> order,
+                         PersistentTreeMap<String, Long> sequences, long nextSequence,
+                         long version) {
+            mOrder = order;
+            mSequences = sequences;
+            mNextSequence = nextSequence;
+            mVersion = version;
+        }
+
+        /**
+         * Returns this version's contents numbered as {@code version}.
+         */
+        private Snapshot renumbered(long version) {
+            return new Snapshot(mOrder, mSequences, mNextSequence, version);
+        }
+
+        /**
+         * Returns the sequence number of the last change this version includes, to pass to
+         * {@link MessageStore#getChangesSince(long, int)}.
+         */
+        long getVersion() {
+            return mVersion;
+        }
+
+        @Override
+        public String get(int index) {
+            return mOrder.valueAt(index);
+        }
+
+        @Override
+        public int size() {
+            return mOrder.size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return o instanceof String && mSequences.containsKey((String) o);
+        }
+
+        /**
+         * Returns a version with {@code message} added as the most recent, or this version if it
+         * is already present.
+         */
+        Snapshot plus(String message) {
+            if (mSequences.containsKey(message)) {
+                return this;
+            }
+            return new Snapshot(mOrder.plus(mNextSequence, message),
+                    mSequences.plus(message, mNextSequence), mNextSequence + 1, mVersion + 1);
+        }
+
+        /**
+         * Returns a version without {@code message}, or this version if it is absent.
+         */
+        Snapshot minus(String message) {
+            Long sequence = mSequences.get(message);
+            if (sequence == null) {
+                return this;
+            }
+            return new Snapshot(mOrder.minus(sequence), mSequences.minus(message),
+                    mNextSequence, mVersion + 1);
+        }
+    }
+
+    /**
+     * A single addition or removal.
+     */
+    static final class Change {
+        final long sequence;
+        final boolean added;
+        final String message;
+
+        Change(long sequence, boolean added, String message) {
+            this.sequence = sequence;
+            this.added = added;
+            this.message = message;
+        }
+    }
+
+    /**
+     * A window of the change log, returned by {@link #getChangesSince(long, int)}.
+     */
+    static final class Changes {
+        /**
+         * The changes after the requested cursor, oldest first. Empty if {@link #snapshot} is set.
+         */
+        final List<Change> changes;
+
+        /**
+         * If not null, the consumer's cursor could not be served from the log, and it should
+         * replace its state with this snapshot.
+         */
+        final Snapshot snapshot;
+
+        /**
+         * The cursor to pass to the next call.
+         */
+        final long cursor;
+
+        /**
+         * Whether more changes were available than were returned.
+         */
+        final boolean hasMore;
+
+        Changes(List<Change> changes, Snapshot snapshot, long cursor, boolean hasMore) {
+            this.changes = changes;
+            this.snapshot = snapshot;
+            this.cursor = cursor;
+            this.hasMore = hasMore;
+        }
+    }
+
+    private static final int DEFAULT_CHANGE_LOG_CAPACITY = 1024;
+    private static final long MIN_RETRY_DELAY_MILLIS = 1000;
+    private static final long MAX_RETRY_DELAY_MILLIS = 60 * 1000;
+
+    /**
+     * The most reading a snapshot may allocate, which is nothing: readers share the published
+     * version. Enforced by {@code AllocationBudgetTest}.
+     */
+    static final long SNAPSHOT_ALLOCATION_BUDGET_BYTES = 0;
+
+    private final Persistence mPersistence;
+
+    /**
+     * The version of this store's empty snapshot: a random multiple of 2^32, distinct per store.
+     */
+    private final long mEpoch;
+
+    private volatile Snapshot mSnapshot;
+
+    /**
+     * The most recent changes, in a ring indexed by sequence number.
+     */
+    private final boolean[] mLogAdded;
+    private final String[] mLogMessages;
+    private int mLogSize;
+
+    /**
+     * Whether reading the persisted messages failed, so the snapshot holds only the messages added
+     * since, and what was removed since must be remembered to apply once the read succeeds.
+     */
+    private boolean mLoadFailed;
+    private final Set<String> mUnloadedRemovals = new HashSet<>();
+
+    private final ScheduledExecutorService mSaveExecutor;
+    private final long mSaveDelayMillis;
+    private boolean mSavePending;
+    private long mRetryDelayMillis;
+    private long mFailureCount;
+
+    // Stays pending until the save finishes, so that changes made meanwhile cannot schedule
+    // another one ahead of the retry delay.
+    private final Runnable mSave = new Runnable() {
+        @Override
+        public void run() {
+            boolean loadFailed;
+            synchronized (MessageStore.this) {
+                loadFailed = mLoadFailed;
+            }
+            Snapshot snapshot;
+            try {
+                if (loadFailed) {
+                    List<String> messages = mPersistence.load();
+                    synchronized (MessageStore.this) {
+                        merge(messages);
+                    }
+                }
+                synchronized (MessageStore.this) {
+                    snapshot = mSnapshot;
+                }
+                mPersistence.save(snapshot);
+            } catch (IOException e) {
+                retrySave();
+                return;
+            }
+            synchronized (MessageStore.this) {
+                mRetryDelayMillis = 0;
+                mSavePending = false;
+                if (mSnapshot != snapshot) {
+                    persist(mSnapshot);
+                }
+            }
+        }
+    };
+
+    /**
+     * Creates a store that saves every change before returning.
+     */
+    MessageStore(Persistence persistence) {
+        this(persistence, DEFAULT_CHANGE_LOG_CAPACITY, null, 0);
+    }
+
+    /**
+     * Creates a store that saves changes in the background, at most once per
+     * {@code saveDelayMillis}.
+     */
+    MessageStore(Persistence persistence, ScheduledExecutorService saveExecutor,
+                 long saveDelayMillis) {
+        this(persistence, DEFAULT_CHANGE_LOG_CAPACITY, saveExecutor, saveDelayMillis);
+    }
+
+    /**
+     * @param persistence       Where the messages are kept between processes.
+     * @param changeLogCapacity How many changes to keep for {@link #getChangesSince(long, int)}.
+     * @param saveExecutor      Runs deferred saves, or null to save every change immediately.
+     * @param saveDelayMillis   How long a deferred save waits for further changes.
+     */
+    MessageStore(Persistence persistence, int changeLogCapacity,
+                 ScheduledExecutorService saveExecutor, long saveDelayMillis) {
+        mPersistence = persistence;
+        mEpoch = (long) (new Random().nextInt(Integer.MAX_VALUE) + 1) << 32;
+        mLogAdded = new boolean[changeLogCapacity];
+        mLogMessages = new String[changeLogCapacity];
+        mSaveExecutor = saveExecutor;
+        mSaveDelayMillis = saveDelayMillis;
+    }
+
+    /**
+     * Returns the current version of the store. It is immutable and safe to keep.
+     */
+    Snapshot snapshot() {
+        Snapshot snapshot = mSnapshot;
+        if (snapshot == null) {
+            synchronized (this) {
+                load();
+                snapshot = mSnapshot;
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Returns whether the messages have been read from persistence, so that reading them will not
+     * block.
+     */
+    boolean isLoaded() {
+        return mSnapshot != null;
+    }
+
+    /**
+     * Returns all messages, most recent first, as an immutable snapshot.
+     */
+    List<String> getAll() {
+        return snapshot();
+    }
+
+    int size() {
+        return snapshot().size();
+    }
+
+    /**
+     * Returns up to {@code count} messages starting at position {@code start}, as an immutable
+     * view of the current snapshot.
+     */
+    List<String> getRange(int start, int count) {
+        Snapshot snapshot = snapshot();
+        int end = Math.min(snapshot.size(), start + count);
+        if (start >= end) {
+            return Collections.emptyList();
+        }
+        return snapshot.subList(start, end);
+    }
+
+    /**
+     * Adds {@code message} as the most recent message, unless it is already present.
+     *
+     * @return true if the store changed.
+     */
+    synchronized boolean add(String message) {
+        load();
+        if (mLoadFailed) {
+            mUnloadedRemovals.remove(message);
+        }
+        Snapshot updated = mSnapshot.plus(message);
+        if (updated == mSnapshot) {
+            return false;
+        }
+        mSnapshot = updated;
+        log(updated.getVersion(), true, message);
+        persist(updated);
+        return true;
+    }
+
+    /**
+     * Removes {@code message} if present.
+     *
+     * @return true if the store changed.
+     */
+    synchronized boolean remove(String message) {
+        load();
+        if (mLoadFailed) {
+            // It may be among the messages not yet read.
+            mUnloadedRemovals.add(message);
+        }
+        Snapshot updated = mSnapshot.minus(message);
+        if (updated == mSnapshot) {
+            return false;
+        }
+        mSnapshot = updated;
+        log(updated.getVersion(), false, message);
+        persist(updated);
+        return true;
+    }
+
+    /**
+     * Returns how many loads and saves have failed.
+     */
+    synchronized long getFailureCount() {
+        return mFailureCount;
+    }
+
+    /**
+     * Returns up to {@code max} changes made after {@code cursor}, or a snapshot to start over
+     * from if those changes are no longer in the log or the cursor is not this store's. Start
+     * with a cursor of 0, or with {@link Snapshot#getVersion()} of a snapshot already read, and
+     * pass back {@link Changes#cursor} each time.
+     */
+    synchronized Changes getChangesSince(long cursor, int max) {
+        load();
+        if (cursor == 0) {
+            // Nothing read yet, which matches the store only if it started empty.
+            cursor = mEpoch;
+        }
+        long latest = mSnapshot.getVersion();
+        long oldest = latest - mLogSize + 1;
+        if (cursor > latest || cursor + 1 < oldest) {
+            return new Changes(Collections.<Change>emptyList(), mSnapshot, latest, false);
+        }
+        long end = Math.min(latest, cursor + max);
+        List<Change> changes = new ArrayList<>((int) (end - cursor));
+        for (long sequence = cursor + 1; sequence <= end; sequence++) {
+            int slot = (int) (sequence % mLogMessages.length);
+            changes.add(new Change(sequence, mLogAdded[slot], mLogMessages[slot]));
+        }
+        return new Changes(changes, null, end, end < latest);
+    }
+
+    /**
+     * Reports nothing until the store has loaded, so that a trim on the main thread never waits
+     * for the load, which holds the lock while it reads persistence; the log is empty until then.
+     */
+    @Override
+    public long getSizeBytes() {
+        if (!isLoaded()) {
+            return 0;
+        }
+        synchronized (this) {
+            // Added messages are shared with the snapshot; removed ones are only kept by the log.
+            long size = 0;
+            for (int i = 0; i < mLogMessages.length; i++) {
+                if (!mLogAdded[i]) {
+                    size += CacheManager.stringBytes(mLogMessages[i]);
+                }
+            }
+            return size;
+        }
+    }
+
+    /**
+     * Does nothing until the store has loaded, for the same reason as {@link #getSizeBytes()}.
+     */
+    @Override
+    public void trim() {
+        if (!isLoaded()) {
+            return;
+        }
+        synchronized (this) {
+            Arrays.fill(mLogMessages, null);
+            mLogSize = 0;
+        }
+    }
+
+    private void log(long sequence, boolean added, String message) {
+        int slot = (int) (sequence % mLogMessages.length);
+        mLogAdded[slot] = added;
+        mLogMessages[slot] = message;
+        mLogSize = Math.min(mLogSize + 1, mLogMessages.length);
+    }
+
+    private void load() {
+        if (mSnapshot != null) {
+            return;
+        }
+        List<String> messages;
+        try {
+            messages = mPersistence.load();
+        } catch (IOException e) {
+            mFailureCount++;
+            mLoadFailed = true;
+            messages = null;
+        }
+        mSnapshot = fromList(messages);
+    }
+
+    private Snapshot fromList(List<String> messages) {
+        Snapshot snapshot = Snapshot.EMPTY.renumbered(mEpoch);
+        if (messages != null) {
+            for (int i = messages.size() - 1; i >= 0; i--) {
+                snapshot = snapshot.plus(messages.get(i));
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Replaces the snapshot started after a failed read with the messages read since, less those
+     * removed meanwhile, plus those added meanwhile as the most recent. Consumers of the change
+     * log start over from the merged snapshot.
+     */
+    private void merge(List<String> messages) {
+        if (!mLoadFailed) {
+            return;
+        }
+        Snapshot merged = fromList(messages);
+        for (String message : mUnloadedRemovals) {
+            merged = merged.minus(message);
+        }
+        for (int i = mSnapshot.size() - 1; i >= 0; i--) {
+            merged = merged.plus(mSnapshot.get(i));
+        }
+        mSnapshot = merged.renumbered(mSnapshot.getVersion() + 1);
+        mLogSize = 0;
+        mUnloadedRemovals.clear();
+        mLoadFailed = false;
+    }
+
+    private void persist(Snapshot snapshot) {
+        if (mSaveExecutor == null) {
+            try {
+                if (mLoadFailed) {
+                    merge(mPersistence.load());
+                    snapshot = mSnapshot;
+                }
+                mPersistence.save(snapshot);
+            } catch (IOException e) {
+                // Read or saved again, in full, with the next change.
+                mFailureCount++;
+            }
+        } else if (!mSavePending) {
+            mSavePending = true;
+            schedule(mSaveDelayMillis);
+        }
+    }
+
+    private synchronized void retrySave() {
+        mFailureCount++;
+        mRetryDelayMillis = mRetryDelayMillis == 0
+                ? Math.max(MIN_RETRY_DELAY_MILLIS, mSaveDelayMillis)
+                : Math.min(2 * mRetryDelayMillis, MAX_RETRY_DELAY_MILLIS);
+        schedule(mRetryDelayMillis);
+    }
+
+    /**
+     * Schedules a save. An executor that has been shut down rejects it; that counts as a failed
+     * save, and the next change schedules another.
+     */
+    private void schedule(long delayMillis) {
+        try {
+            mSaveExecutor.schedule(mSave, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            mFailureCount++;
+            mSavePending = false;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import java.util.Comparator;
+
+/**
+ * An immutable sorted map that shares structure between versions.
+ * <p/>
+ * It is a persistent AVL tree: {@link #plus} and {@link #minus} return a new map in O(log n) by
+ * copying only the path to the changed node, leaving the original untouched. Every node also
+ * records the size of its subtree, so entries can be read by position in O(log n). Because a
+ * version never changes, it can be shared between threads without locking.
+ *
+ * @param <K> The key type.
+ * @param <V> The value type.
+ */
+final class PersistentTreeMap<K, V> {
+    private static final class Node<K, V> {
+        final K key;
+        final V value;
+        final Node<K, V> left;
+        final Node<K, V> right;
+        final int height;
+        final int size;
+
+        Node(K key, V value, Node<K, V> left, Node<K, V> right) {
+            this.key = key;
+            this.value = value;
+            this.left = left;
+            this.right = right;
+            this.height = Math.max(height(left), height(right)) + 1;
+            this.size = size(left) + size(right) + 1;
+        }
+    }
+
+    private final Comparator<? super K> mComparator;
+    private final Node<K, V> mRoot;
+
+    /**
+     * Creates an empty map ordered by {@code comparator}.
+     */
+    PersistentTreeMap(Comparator<? super K> comparator) {
+        this(comparator, null);
+    }
+
+    private PersistentTreeMap(Comparator<? super K> comparator, Node<K, V> root) {
+        mComparator = comparator;
+        mRoot = root;
+    }
+
+    int size() {
+        return size(mRoot);
+    }
+
+    V get(K key) {
+        Node<K, V> node = mRoot;
+        while (node != null) {
+            int cmp = mComparator.compare(key, node.key);
+            if (cmp == 0) {
+                return node.value;
+            }
+            node = cmp < 0 ? node.left : node.right;
+        }
+        return null;
+    }
+
+    boolean containsKey(K key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Returns the value of the entry at {@code index} in key order.
+     */
+    V valueAt(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size());
+        }
+        Node<K, V> node = mRoot;
+        while (true) {
+            int leftSize = size(node.left);
+            if (index < leftSize) {
+                node = node.left;
+            } else if (index == leftSize) {
+                return node.value;
+            } else {
+                index -= leftSize + 1;
+                node = node.right;
+            }
+        }
+    }
+
+    /**
+     * Returns a map that also maps {@code key} to {@code value}. Null values are not allowed.
+     */
+    PersistentTreeMap<K, V> plus(K key, V value) {
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+        return new PersistentTreeMap<>(mComparator, insert(mRoot, key, value));
+    }
+
+    /**
+     * Returns a map without {@code key}, or this map if {@code key} is absent.
+     */
+    PersistentTreeMap<K, V> minus(K key) {
+        Node<K, V> root = delete(mRoot, key);
+        return root == mRoot ? this : new PersistentTreeMap<>(mComparator, root);
+    }
+
+    private Node<K, V> insert(Node<K, V> node, K key, V value) {
+        if (node == null) {
+            return new Node<>(key, value, null, null);
+        }
+        int cmp = mComparator.compare(key, node.key);
+        if (cmp == 0) {
+            return new Node<>(key, value, node.left, node.right);
+        } else if (cmp < 0) {
+            return balance(node.key, node.value, insert(node.left, key, value), node.right);
+        } else {
+            return balance(node.key, node.value, node.left, insert(node.right, key, value));
+        }
+    }
+
+    private Node<K, V> delete(Node<K, V> node, K key) {
+        if (node == null) {
+            return null;
+        }
+        int cmp = mComparator.compare(key, node.key);
+        if (cmp < 0) {
+            Node<K, V> left = delete(node.left, key);
+            return left == node.left ? node : balance(node.key, node.value, left, node.right);
+        } else if (cmp > 0) {
+            Node<K, V> right = delete(node.right, key);
+            return right == node.right ? node : balance(node.key, node.value, node.left, right);
+        }
+        if (node.left == null) {
+            return node.right;
+        }
+        if (node.right == null) {
+            return node.left;
+        }
+        Node<K, V> successor = node.right;
+        while (successor.left != null) {
+            successor = successor.left;
+        }
+        return balance(successor.key, successor.value, node.left,
+                delete(node.right, successor.key));
+    }
+
+    private static <K, V> Node<K, V> balance(K key, V value, Node<K, V> left, Node<K, V> right) {
+        int diff = height(left) - height(right);
+        if (diff > 1) {
+            if (height(left.left) >= height(left.right)) {
+                return new Node<>(left.key, left.value, left.left,
+                        new Node<>(key, value, left.right, right));
+            }
+            return new Node<>(left.right.key, left.right.value,
+                    new Node<>(left.key, left.value, left.left, left.right.left),
+                    new Node<>(key, value, left.right.right, right));
+        }
+        if (diff < -1) {
+            if (height(right.right) >= height(right.left)) {
+                return new Node<>(right.key, right.value,
+                        new Node<>(key, value, left, right.left), right.right);
+            }
+            return new Node<>(right.left.key, right.left.value,
+                    new Node<>(key, value, left, right.left.left),
+                    new Node<>(right.key, right.value, right.left.right, right.right));
+        }
+        return new Node<>(key, value, left, right);
+    }
+
+    private static int height(Node<?, ?> node) {
+        return node == null ? 0 : node.height;
+    }
+
+    private static int size(Node<?, ?> node) {
+        return node == null ? 0 : node.size;
+    }
+}
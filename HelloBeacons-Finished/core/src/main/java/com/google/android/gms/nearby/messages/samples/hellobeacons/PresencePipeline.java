@@ -0,0 +1,91 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+/**
+ * The found/lost handling shared by the app and by headless runners: keeps the
+ * {@link MessageStore} of messages present and feeds the {@link VisitAggregator}.
+ * <p/>
+ * The store ignores a found message that is already present and a lost message that is not, so
+ * duplicate events never cost a write. {@link #getChangeCount()} counts the events that did.
+ * Counters are not synchronized: a pipeline is meant to be fed from a single thread.
+ */
+final class PresencePipeline implements BeaconEventDispatcher.Listener {
+    /**
+     * The most a found or lost event may allocate, store and visits included, with a thousand
+     * messages stored. Enforced by {@code AllocationBudgetTest}.
+     */
+    static final long FOUND_ALLOCATION_BUDGET_BYTES = 2048;
+    static final long LOST_ALLOCATION_BUDGET_BYTES = 1024;
+
+    private final MessageStore mStore;
+    private final VisitAggregator mVisits;
+
+    private long mEventCount;
+    private long mChangeCount;
+    private long mAddCount;
+
+    PresencePipeline(MessageStore store, VisitAggregator visits) {
+        mStore = store;
+        mVisits = visits;
+    }
+
+    @Override
+    public void onBeaconEvent(BeaconEvent event) {
+        mEventCount++;
+        boolean changed;
+        if (event.isFound()) {
+            changed = mStore.add(event.text);
+            mVisits.onFound(event.text, event.timeMillis);
+        } else {
+            changed = mStore.remove(event.text);
+            mVisits.onLost(event.text, event.timeMillis);
+        }
+        if (changed) {
+            mChangeCount++;
+            if (event.isFound()) {
+                mAddCount++;
+            }
+        }
+    }
+
+    MessageStore getStore() {
+        return mStore;
+    }
+
+    VisitAggregator getVisits() {
+        return mVisits;
+    }
+
+    long getEventCount() {
+        return mEventCount;
+    }
+
+    /**
+     * Returns how many events changed the store, and so were written.
+     */
+    long getChangeCount() {
+        return mChangeCount;
+    }
+
+    /**
+     * Returns how many found events added a message to the store.
+     */
+    long getAddCount() {
+        return mAddCount;
+    }
+}
@@ -0,0 +1,709 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * A local time-series store recording when each message was found or lost.
+ * <p/>
+ * Data lives in three tiers, each a directory of append-only segment files named by the start
+ * time of the period they cover:
+ * <ul>
+ *     <li>{@code raw/}: one record per event, one segment per hour.</li>
+ *     <li>{@code minute/}: found/lost counts per message per minute, one segment per hour.</li>
+ *     <li>{@code hour/}: found/lost counts per message per hour, one segment per day.</li>
+ * </ul>
+ * Writes append a fixed-size record to the open raw segment, and nothing else: when the hour
+ * rolls over, compaction is handed to an executor, which rolls raw segments past their retention
+ * up into minute buckets and minute segments into hour buckets, and deletes expired hour
+ * segments. Range queries only open the segments whose period overlaps the range, and records
+ * within a segment are in time order. A roll-up rewrites its target segment to a temporary file,
+ * replacing whatever the source contributed before, renames it into place, and only then deletes
+ * the source, so a roll-up cut short by a crash is simply done again.
+ * <p/>
+ * Payloads are identified by their 64-bit {@link BeaconEvent#payloadHash(byte[])}, and their text
+ * is kept once in a side file, which is pruned of payloads that no longer appear in any segment
+ * whenever hour segments expire. Each payload is written length-prefixed, so any text survives,
+ * and a record that cannot be parsed, such as one cut short by a crash, is skipped.
+ */
+final class SightingHistoryStore {
+    static final byte KIND_FOUND = 1;
+    static final byte KIND_LOST = 2;
+
+    static final long MINUTE_MILLIS = 60 * 1000;
+    static final long HOUR_MILLIS = 60 * MINUTE_MILLIS;
+    static final long DAY_MILLIS = 24 * HOUR_MILLIS;
+
+    private static final String RAW_DIR = "raw";
+    private static final String MINUTE_DIR = "minute";
+    private static final String HOUR_DIR = "hour";
+    private static final String PAYLOADS_FILE = "payloads";
+    private static final String VERSION_FILE = "version";
+
+    /**
+     * Version 3 length-prefixes payload text; version 2 wrote it up to the end of the line, and
+     * is converted on open. Version 1 identified payloads by {@link String#hashCode()}, and is
+     * started over.
+     */
+    private static final int LAYOUT_VERSION = 3;
+    private static final int LINE_PAYLOADS_LAYOUT_VERSION = 2;
+
+    private static final int RAW_RECORD_SIZE = 8 + 8 + 1;
+
+    /**
+     * Receives the buckets matched by {@link #query(long, long, Visitor)}, in tier order.
+     */
+    interface Visitor {
+        /**
+         * @param startMillis      Start of the bucket, or the event time for raw sightings.
+         * @param resolutionMillis Width of the bucket; 0 for raw sightings.
+         * @param payload          The message payload, or null if it is no longer known.
+         * @param found            Number of found events in the bucket.
+         * @param lost             Number of lost events in the bucket.
+         */
+        void onBucket(long startMillis, long resolutionMillis, String payload, int found, int lost);
+    }
+
+    private final File mRawDir;
+    private final File mMinuteDir;
+    private final File mHourDir;
+    private final File mPayloadsFile;
+
+    private final long mRawRetentionMillis;
+    private final long mMinuteRetentionMillis;
+    private final long mHourRetentionMillis;
+    private final Executor mCompactExecutor;
+
+    /**
+     * Held while segments are rolled up or deleted, and while they are read, so that a query never
+     * sees a bucket in two tiers or in neither. Writers only take the store's own lock.
+     */
+    private final Object mTierLock = new Object();
+
+    private volatile Map<Long, String> mPayloads;
+    private DataOutputStream mRawOut;
+    private long mRawSegmentStart = -1;
+    private long mLastRecordMillis;
+    private boolean mCompactPending;
+
+    /**
+     * Payloads recorded while {@link #prunePayloads()} is working out which to keep, or null.
+     */
+    private Set<Long> mRecordedWhilePruning;
+
+    private final Runnable mCompact = new Runnable() {
+        @Override
+        public void run() {
+            long nowMillis;
+            synchronized (SightingHistoryStore.this) {
+                mCompactPending = false;
+                nowMillis = mLastRecordMillis;
+            }
+            try {
+                compact(nowMillis);
+            } catch (IOException e) {
+                // Whatever is left is compacted when the next hour rolls over.
+            }
+        }
+    };
+
+    /**
+     * @param dir                   Directory holding the store. It is created if needed.
+     * @param rawRetentionMillis    How long individual sightings are kept before roll-up.
+     * @param minuteRetentionMillis How long minute buckets are kept before roll-up.
+     * @param hourRetentionMillis   How long hour buckets are kept before deletion.
+     * @param compactExecutor       Runs compaction when the hour rolls over.
+     */
+    SightingHistoryStore(File dir, long rawRetentionMillis, long minuteRetentionMillis,
+                         long hourRetentionMillis, Executor compactExecutor) throws IOException {
+        mRawDir = new File(dir, RAW_DIR);
+        mMinuteDir = new File(dir, MINUTE_DIR);
+        mHourDir = new File(dir, HOUR_DIR);
+        mPayloadsFile = new File(dir, PAYLOADS_FILE);
+        mRawRetentionMillis = rawRetentionMillis;
+        mMinuteRetentionMillis = minuteRetentionMillis;
+        mHourRetentionMillis = hourRetentionMillis;
+        mCompactExecutor = compactExecutor;
+        mRawDir.mkdirs();
+        mMinuteDir.mkdirs();
+        mHourDir.mkdirs();
+        checkLayoutVersion(new File(dir, VERSION_FILE));
+    }
+
+    /**
+     * Appends a sighting: a single fixed-size append, plus a line in the payloads file the first
+     * time a payload is seen. Sightings are kept in time order, so one timestamped earlier than
+     * the last is recorded at the time of the last.
+     *
+     * @param payload     The message payload as a string.
+     * @param payloadHash The {@link BeaconEvent#payloadHash(byte[])} of the payload.
+     * @param kind        {@link #KIND_FOUND} or {@link #KIND_LOST}.
+     * @param timeMillis  When the event happened.
+     */
+    synchronized void record(String payload, long payloadHash, byte kind, long timeMillis)
+            throws IOException {
+        rememberPayload(payloadHash, payload);
+        if (mRecordedWhilePruning != null) {
+            mRecordedWhilePruning.add(payloadHash);
+        }
+
+        timeMillis = Math.max(timeMillis, mLastRecordMillis);
+        mLastRecordMillis = timeMillis;
+        long segmentStart = floor(timeMillis, HOUR_MILLIS);
+        if (mRawOut == null || segmentStart != mRawSegmentStart) {
+            closeRawSegment();
+            mRawOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+                    new File(mRawDir, Long.toString(segmentStart)), true)));
+            mRawSegmentStart = segmentStart;
+            if (!mCompactPending) {
+                mCompactPending = true;
+                mCompactExecutor.execute(mCompact);
+            }
+        }
+        mRawOut.writeLong(timeMillis);
+        mRawOut.writeLong(payloadHash);
+        mRawOut.writeByte(kind);
+        mRawOut.flush();
+    }
+
+    /**
+     * Visits every bucket in {@code [fromMillis, toMillis)}, oldest tier first.
+     */
+    void query(long fromMillis, long toMillis, Visitor visitor) throws IOException {
+        Map<Long, String> payloads;
+        synchronized (this) {
+            loadPayloads();
+            payloads = mPayloads;
+        }
+        synchronized (mTierLock) {
+            scanCounts(mHourDir, DAY_MILLIS, HOUR_MILLIS, fromMillis, toMillis, payloads,
+                    visitor);
+            scanCounts(mMinuteDir, HOUR_MILLIS, MINUTE_MILLIS, fromMillis, toMillis, payloads,
+                    visitor);
+            // The open segment is read while it is appended to; a record still being written
+            // reads as the end of the segment.
+            for (long segment : segmentsOverlapping(mRawDir, HOUR_MILLIS, fromMillis, toMillis)) {
+                DataInputStream in = open(mRawDir, segment);
+                try {
+                    while (true) {
+                        long time = in.readLong();
+                        long hash = in.readLong();
+                        byte kind = in.readByte();
+                        if (time >= toMillis) {
+                            break;
+                        }
+                        if (time >= fromMillis) {
+                            visitor.onBucket(time, 0, payloads.get(hash),
+                                    kind == KIND_FOUND ? 1 : 0, kind == KIND_LOST ? 1 : 0);
+                        }
+                    }
+                } catch (EOFException e) {
+                    // End of segment.
+                } finally {
+                    in.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Rolls up and deletes data that has aged out of its tier. Runs on the compaction executor
+     * when the hour rolls over; writes carry on meanwhile.
+     */
+    void compact(long nowMillis) throws IOException {
+        synchronized (mTierLock) {
+            long current;
+            synchronized (this) {
+                current = mRawSegmentStart;
+            }
+            // Segments before the current one are never written again, since sightings are
+            // recorded in time order.
+            for (long segment : listSegments(mRawDir)) {
+                if (segment >= current && current != -1
+                        || segment + HOUR_MILLIS > nowMillis - mRawRetentionMillis) {
+                    continue;
+                }
+                rollUpRaw(segment);
+            }
+            for (long segment : listSegments(mMinuteDir)) {
+                if (segment + HOUR_MILLIS > nowMillis - mMinuteRetentionMillis) {
+                    continue;
+                }
+                rollUpMinutes(segment);
+            }
+            boolean expired = false;
+            for (long segment : listSegments(mHourDir)) {
+                if (segment + DAY_MILLIS <= nowMillis - mHourRetentionMillis) {
+                    new File(mHourDir, Long.toString(segment)).delete();
+                    expired = true;
+                }
+            }
+            if (expired) {
+                prunePayloads();
+            }
+        }
+    }
+
+    synchronized void close() throws IOException {
+        closeRawSegment();
+    }
+
+    private void closeRawSegment() throws IOException {
+        if (mRawOut != null) {
+            mRawOut.close();
+            mRawOut = null;
+            mRawSegmentStart = -1;
+        }
+    }
+
+    /**
+     * Rewrites the payloads file without the payloads no segment refers to any more. Segments are
+     * scanned without holding the store's lock; payloads recorded meanwhile are kept regardless.
+     */
+    private void prunePayloads() throws IOException {
+        long current;
+        long currentLength;
+        synchronized (this) {
+            loadPayloads();
+            mRecordedWhilePruning = new HashSet<>();
+            current = mRawSegmentStart;
+            currentLength = new File(mRawDir, Long.toString(current)).length();
+        }
+        Set<Long> keep = new HashSet<>();
+        try {
+            collectCountHashes(mHourDir, keep);
+            collectCountHashes(mMinuteDir, keep);
+            for (long segment : listSegments(mRawDir)) {
+                long length = segment == current
+                        ? currentLength : new File(mRawDir, Long.toString(segment)).length();
+                DataInputStream in = open(mRawDir, segment);
+                try {
+                    for (long read = 0; read + RAW_RECORD_SIZE <= length;
+                            read += RAW_RECORD_SIZE) {
+                        in.readLong();
+                        keep.add(in.readLong());
+                        in.readByte();
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            synchronized (this) {
+                keep.addAll(mRecordedWhilePruning);
+                mRecordedWhilePruning = null;
+            }
+        }
+        synchronized (this) {
+            Map<Long, String> kept = new ConcurrentHashMap<>();
+            for (Map.Entry<Long, String> entry : mPayloads.entrySet()) {
+                if (keep.contains(entry.getKey())) {
+                    kept.put(entry.getKey(), entry.getValue());
+                }
+            }
+            if (kept.size() == mPayloads.size()) {
+                return;
+            }
+            File tmp = new File(mPayloadsFile.getPath() + ".tmp");
+            Writer out = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+            try {
+                for (Map.Entry<Long, String> entry : kept.entrySet()) {
+                    writePayload(out, entry.getKey(), entry.getValue());
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(mPayloadsFile)) {
+                throw new IOException("Could not rename " + tmp);
+            }
+            mPayloads = kept;
+        }
+    }
+
+    private void collectCountHashes(File dir, Set<Long> hashes) throws IOException {
+        for (long segment : listSegments(dir)) {
+            DataInputStream in = open(dir, segment);
+            try {
+                while (true) {
+                    in.readLong();
+                    hashes.add(in.readLong());
+                    in.readInt();
+                    in.readInt();
+                }
+            } catch (EOFException e) {
+                // End of segment.
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    private void rollUpRaw(long segment) throws IOException {
+        TreeMap<Long, Map<Long, int[]>> buckets = new TreeMap<>();
+        DataInputStream in = open(mRawDir, segment);
+        try {
+            while (true) {
+                long time = in.readLong();
+                long hash = in.readLong();
+                byte kind = in.readByte();
+                count(buckets, floor(time, MINUTE_MILLIS), hash,
+                        kind == KIND_FOUND ? 1 : 0, kind == KIND_LOST ? 1 : 0);
+            }
+        } catch (EOFException e) {
+            // End of segment.
+        } finally {
+            in.close();
+        }
+        rewriteCounts(mMinuteDir, segment, segment, buckets);
+        new File(mRawDir, Long.toString(segment)).delete();
+    }
+
+    private void rollUpMinutes(long segment) throws IOException {
+        TreeMap<Long, Map<Long, int[]>> buckets = new TreeMap<>();
+        DataInputStream in = open(mMinuteDir, segment);
+        try {
+            while (true) {
+                long start = in.readLong();
+                long hash = in.readLong();
+                int found = in.readInt();
+                int lost = in.readInt();
+                count(buckets, floor(start, HOUR_MILLIS), hash, found, lost);
+            }
+        } catch (EOFException e) {
+            // End of segment.
+        } finally {
+            in.close();
+        }
+        rewriteCounts(mHourDir, floor(segment, DAY_MILLIS), segment, buckets);
+        new File(mMinuteDir, Long.toString(segment)).delete();
+    }
+
+    private static void count(TreeMap<Long, Map<Long, int[]>> buckets, long start, long hash,
+                              int found, int lost) {
+        Map<Long, int[]> bucket = buckets.get(start);
+        if (bucket == null) {
+            bucket = new HashMap<>();
+            buckets.put(start, bucket);
+        }
+        int[] counts = bucket.get(hash);
+        if (counts == null) {
+            counts = new int[2];
+            bucket.put(hash, counts);
+        }
+        counts[0] += found;
+        counts[1] += lost;
+    }
+
+    /**
+     * Replaces the buckets a source segment rolled into a target segment with {@code buckets},
+     * keeping the target's other buckets. Since the source covers an hour, its buckets are those
+     * starting within that hour, so rolling the same source up again changes nothing.
+     *
+     * @param dir         The target tier.
+     * @param segment     The target segment.
+     * @param sourceStart The start of the hour the source segment covers.
+     * @param buckets     The source's counts, by bucket start and payload hash.
+     */
+    private static void rewriteCounts(File dir, long segment, long sourceStart,
+                                      TreeMap<Long, Map<Long, int[]>> buckets)
+            throws IOException {
+        File target = new File(dir, Long.toString(segment));
+        if (target.exists()) {
+            DataInputStream in = open(dir, segment);
+            try {
+                while (true) {
+                    long start = in.readLong();
+                    long hash = in.readLong();
+                    int found = in.readInt();
+                    int lost = in.readInt();
+                    if (start < sourceStart || start >= sourceStart + HOUR_MILLIS) {
+                        count(buckets, start, hash, found, lost);
+                    }
+                }
+            } catch (EOFException e) {
+                // End of segment, or a record cut short by a crash.
+            } finally {
+                in.close();
+            }
+        }
+        File tmp = new File(dir, segment + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp)));
+        try {
+            for (Map.Entry<Long, Map<Long, int[]>> bucket : buckets.entrySet()) {
+                for (Map.Entry<Long, int[]> entry : bucket.getValue().entrySet()) {
+                    out.writeLong(bucket.getKey());
+                    out.writeLong(entry.getKey());
+                    out.writeInt(entry.getValue()[0]);
+                    out.writeInt(entry.getValue()[1]);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(target)) {
+            throw new IOException("Could not rename " + tmp);
+        }
+    }
+
+    private static void scanCounts(File dir, long segmentSpan, long resolution, long fromMillis,
+                                   long toMillis, Map<Long, String> payloads, Visitor visitor)
+            throws IOException {
+        for (long segment : segmentsOverlapping(dir, segmentSpan, fromMillis, toMillis)) {
+            DataInputStream in = open(dir, segment);
+            try {
+                while (true) {
+                    long start = in.readLong();
+                    long hash = in.readLong();
+                    int found = in.readInt();
+                    int lost = in.readInt();
+                    if (start >= toMillis) {
+                        break;
+                    }
+                    if (start + resolution > fromMillis) {
+                        visitor.onBucket(start, resolution, payloads.get(hash), found, lost);
+                    }
+                }
+            } catch (EOFException e) {
+                // End of segment.
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    private static long[] segmentsOverlapping(File dir, long span, long fromMillis, long toMillis) {
+        long[] segments = listSegments(dir);
+        int count = 0;
+        for (long segment : segments) {
+            if (segment < toMillis && segment + span > fromMillis) {
+                segments[count++] = segment;
+            }
+        }
+        return Arrays.copyOf(segments, count);
+    }
+
+    private static long[] listSegments(File dir) {
+        String[] names = dir.list();
+        if (names == null) {
+            return new long[0];
+        }
+        long[] segments = new long[names.length];
+        int count = 0;
+        for (String name : names) {
+            try {
+                segments[count] = Long.parseLong(name);
+                count++;
+            } catch (NumberFormatException e) {
+                // Not a segment file.
+            }
+        }
+        segments = Arrays.copyOf(segments, count);
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    private static DataInputStream open(File dir, long segment) throws IOException {
+        return new DataInputStream(new BufferedInputStream(
+                new FileInputStream(new File(dir, Long.toString(segment)))));
+    }
+
+    private void rememberPayload(long hash, String payload) throws IOException {
+        loadPayloads();
+        if (mPayloads.containsKey(hash)) {
+            return;
+        }
+        mPayloads.put(hash, payload);
+        Writer out = new OutputStreamWriter(new FileOutputStream(mPayloadsFile, true), "UTF-8");
+        try {
+            writePayload(out, hash, payload);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes a payload record: the hash, the length of the text in chars, and the text, then a
+     * newline so that a damaged record can be skipped.
+     */
+    private static void writePayload(Writer out, long hash, String payload) throws IOException {
+        out.write(hash + "\t" + payload.length() + "\t" + payload + "\n");
+    }
+
+    private void loadPayloads() throws IOException {
+        if (mPayloads != null) {
+            return;
+        }
+        Map<Long, String> payloads = new ConcurrentHashMap<>();
+        if (mPayloadsFile.exists()) {
+            parsePayloads(readText(mPayloadsFile), payloads);
+        }
+        mPayloads = payloads;
+    }
+
+    /**
+     * Parses the records written by {@link #writePayload(Writer, long, String)}. A record that
+     * does not parse is skipped up to the next newline.
+     */
+    private static void parsePayloads(String text, Map<Long, String> payloads) {
+        int position = 0;
+        while (position < text.length()) {
+            int lineEnd = text.indexOf('\n', position);
+            int next = lineEnd < 0 ? text.length() : lineEnd + 1;
+            int hashEnd = text.indexOf('\t', position);
+            int lengthEnd = hashEnd < 0 ? -1 : text.indexOf('\t', hashEnd + 1);
+            if (lengthEnd >= 0 && (lineEnd < 0 || lengthEnd < lineEnd)) {
+                try {
+                    long hash = Long.parseLong(text.substring(position, hashEnd));
+                    int length = Integer.parseInt(text.substring(hashEnd + 1, lengthEnd));
+                    int end = lengthEnd + 1 + length;
+                    if (length >= 0 && end < text.length() && text.charAt(end) == '\n') {
+                        payloads.put(hash, text.substring(lengthEnd + 1, end));
+                        next = end + 1;
+                    }
+                } catch (NumberFormatException e) {
+                    // Skip the line.
+                }
+            }
+            position = next;
+        }
+    }
+
+    private static String readText(File file) throws IOException {
+        Reader in = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            StringBuilder text = new StringBuilder();
+            char[] buffer = new char[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                text.append(buffer, 0, read);
+            }
+            return text.toString();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Rewrites a payloads file of one payload per line, as layout version 2 wrote it, with
+     * length-prefixed records.
+     */
+    private void convertLinePayloads() throws IOException {
+        if (!mPayloadsFile.exists()) {
+            return;
+        }
+        Map<Long, String> payloads = new HashMap<>();
+        BufferedReader in = new BufferedReader(
+                new InputStreamReader(new FileInputStream(mPayloadsFile), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab > 0) {
+                    try {
+                        payloads.put(Long.parseLong(line.substring(0, tab)),
+                                line.substring(tab + 1));
+                    } catch (NumberFormatException e) {
+                        // Skip the line.
+                    }
+                }
+            }
+        } finally {
+            in.close();
+        }
+        File tmp = new File(mPayloadsFile.getPath() + ".tmp");
+        Writer out = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+        try {
+            for (Map.Entry<Long, String> entry : payloads.entrySet()) {
+                writePayload(out, entry.getKey(), entry.getValue());
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(mPayloadsFile)) {
+            throw new IOException("Could not rename " + tmp);
+        }
+    }
+
+    /**
+     * Converts the store if it was written in an older layout that can be converted, and starts it
+     * over if it was written in any other.
+     */
+    private void checkLayoutVersion(File versionFile) throws IOException {
+        if (versionFile.exists()) {
+            int version = 0;
+            DataInputStream in = new DataInputStream(new FileInputStream(versionFile));
+            try {
+                version = in.readInt();
+            } catch (EOFException e) {
+                // Unreadable: start over.
+            } finally {
+                in.close();
+            }
+            if (version == LAYOUT_VERSION) {
+                return;
+            }
+            if (version == LINE_PAYLOADS_LAYOUT_VERSION) {
+                convertLinePayloads();
+                writeLayoutVersion(versionFile);
+                return;
+            }
+        }
+        for (File dir : new File[] {mRawDir, mMinuteDir, mHourDir}) {
+            for (long segment : listSegments(dir)) {
+                new File(dir, Long.toString(segment)).delete();
+            }
+        }
+        mPayloadsFile.delete();
+        writeLayoutVersion(versionFile);
+    }
+
+    private static void writeLayoutVersion(File versionFile) throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(versionFile));
+        try {
+            out.writeInt(LAYOUT_VERSION);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static long floor(long timeMillis, long unit) {
+        return timeMillis - (timeMillis % unit);
+    }
+}
@@ -0,0 +1,263 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Turns the stream of found/lost events into visits and keeps rolling per-beacon statistics.
+ * <p/>
+ * A visit starts when a message is found and ends when it is lost. If the same message is found
+ * again within the merge gap, the two sightings are counted as one visit. All state lives in
+ * fixed-size primitive arrays: at most {@code capacity} beacons are tracked, and each keeps a ring
+ * buffer of its most recent visit durations. Events carry their own timestamps, so a recorded
+ * trace can be replayed through a fresh instance to reproduce the same statistics.
+ */
+final class VisitAggregator {
+    private static final long NONE = -1;
+
+    private final int mCapacity;
+    private final int mHistorySize;
+    private final long mMergeGapMillis;
+
+    /**
+     * Maps a message payload to its slot in the arrays below.
+     */
+    private final Map<String, Integer> mSlots;
+
+    private final String[] mPayloads;
+    private final boolean[] mPresent;
+    private final long[] mVisitStart;
+    private final long[] mLastLost;
+    private final long[] mLastEvent;
+    private final int[] mVisitCount;
+    private final long[] mTotalDwell;
+    private final long[] mMaxDwell;
+
+    /**
+     * Durations of the most recent closed visits, {@code mHistorySize} entries per slot.
+     */
+    private final long[] mDwellRing;
+    private final int[] mRingHead;
+    private final int[] mRingSize;
+    private final long[] mRingSum;
+
+    private int mUsedSlots = 0;
+
+    /**
+     * @param capacity       The maximum number of beacons tracked at once. When full, the beacon
+     *                       that has been quiet the longest is evicted.
+     * @param historySize    The number of recent visits kept per beacon for rolling statistics.
+     * @param mergeGapMillis Visits separated by at most this gap are merged into one.
+     */
+    VisitAggregator(int capacity, int historySize, long mergeGapMillis) {
+        if (capacity <= 0 || historySize <= 0 || mergeGapMillis < 0) {
+            throw new IllegalArgumentException("Invalid aggregator configuration");
+        }
+        mCapacity = capacity;
+        mHistorySize = historySize;
+        mMergeGapMillis = mergeGapMillis;
+        mSlots = new HashMap<>(capacity * 2);
+        mPayloads = new String[capacity];
+        mPresent = new boolean[capacity];
+        mVisitStart = new long[capacity];
+        mLastLost = new long[capacity];
+        mLastEvent = new long[capacity];
+        mVisitCount = new int[capacity];
+        mTotalDwell = new long[capacity];
+        mMaxDwell = new long[capacity];
+        mDwellRing = new long[capacity * historySize];
+        mRingHead = new int[capacity];
+        mRingSize = new int[capacity];
+        mRingSum = new long[capacity];
+    }
+
+    /**
+     * Records that a message was found at {@code timeMillis}.
+     */
+    synchronized void onFound(String payload, long timeMillis) {
+        int slot = slotFor(payload, timeMillis);
+        mLastEvent[slot] = timeMillis;
+        if (mPresent[slot]) {
+            return;
+        }
+        settle(slot, timeMillis);
+        mPresent[slot] = true;
+        if (mVisitStart[slot] == NONE) {
+            mVisitStart[slot] = timeMillis;
+            mVisitCount[slot]++;
+        }
+        // Otherwise the previous visit is still within the merge gap and simply continues.
+        mLastLost[slot] = NONE;
+    }
+
+    /**
+     * Records that a message was lost at {@code timeMillis}.
+     */
+    synchronized void onLost(String payload, long timeMillis) {
+        Integer slot = mSlots.get(payload);
+        if (slot == null || !mPresent[slot]) {
+            return;
+        }
+        mPresent[slot] = false;
+        mLastLost[slot] = timeMillis;
+        mLastEvent[slot] = timeMillis;
+    }
+
+    /**
+     * Returns the number of visits seen for {@code payload}, counting merged visits once.
+     */
+    synchronized int getVisitCount(String payload) {
+        Integer slot = mSlots.get(payload);
+        return slot == null ? 0 : mVisitCount[slot];
+    }
+
+    /**
+     * Returns the total time spent near {@code payload}, including any visit still in progress.
+     */
+    synchronized long getTotalDwellMillis(String payload, long nowMillis) {
+        Integer slot = mSlots.get(payload);
+        if (slot == null) {
+            return 0;
+        }
+        settle(slot, nowMillis);
+        return mTotalDwell[slot] + openDwell(slot, nowMillis);
+    }
+
+    /**
+     * Returns the duration of the visit in progress for {@code payload}, or 0 if there is none.
+     */
+    synchronized long getCurrentDwellMillis(String payload, long nowMillis) {
+        Integer slot = mSlots.get(payload);
+        if (slot == null) {
+            return 0;
+        }
+        settle(slot, nowMillis);
+        return openDwell(slot, nowMillis);
+    }
+
+    /**
+     * Returns the mean duration of the most recent closed visits for {@code payload}.
+     */
+    synchronized long getRecentMeanDwellMillis(String payload, long nowMillis) {
+        Integer slot = mSlots.get(payload);
+        if (slot == null) {
+            return 0;
+        }
+        settle(slot, nowMillis);
+        return mRingSize[slot] == 0 ? 0 : mRingSum[slot] / mRingSize[slot];
+    }
+
+    /**
+     * Returns the longest visit seen for {@code payload}, including any visit still in progress.
+     */
+    synchronized long getMaxDwellMillis(String payload, long nowMillis) {
+        Integer slot = mSlots.get(payload);
+        if (slot == null) {
+            return 0;
+        }
+        settle(slot, nowMillis);
+        return Math.max(mMaxDwell[slot], openDwell(slot, nowMillis));
+    }
+
+    synchronized int getTrackedBeaconCount() {
+        return mUsedSlots;
+    }
+
+    /**
+     * Closes the visit in {@code slot} if the beacon has been gone for longer than the merge gap.
+     */
+    private void settle(int slot, long nowMillis) {
+        if (mPresent[slot] || mVisitStart[slot] == NONE || mLastLost[slot] == NONE) {
+            return;
+        }
+        if (nowMillis - mLastLost[slot] <= mMergeGapMillis) {
+            return;
+        }
+        long dwell = Math.max(0, mLastLost[slot] - mVisitStart[slot]);
+        mTotalDwell[slot] += dwell;
+        mMaxDwell[slot] = Math.max(mMaxDwell[slot], dwell);
+
+        int base = slot * mHistorySize;
+        int head = mRingHead[slot];
+        if (mRingSize[slot] == mHistorySize) {
+            mRingSum[slot] -= mDwellRing[base + head];
+        } else {
+            mRingSize[slot]++;
+        }
+        mDwellRing[base + head] = dwell;
+        mRingSum[slot] += dwell;
+        mRingHead[slot] = (head + 1) % mHistorySize;
+
+        mVisitStart[slot] = NONE;
+        mLastLost[slot] = NONE;
+    }
+
+    private long openDwell(int slot, long nowMillis) {
+        if (mVisitStart[slot] == NONE) {
+            return 0;
+        }
+        long end = mPresent[slot] ? nowMillis : mLastLost[slot];
+        return Math.max(0, end - mVisitStart[slot]);
+    }
+
+    private int slotFor(String payload, long nowMillis) {
+        Integer existing = mSlots.get(payload);
+        if (existing != null) {
+            return existing;
+        }
+        int slot;
+        if (mUsedSlots < mCapacity) {
+            slot = mUsedSlots++;
+        } else {
+            slot = findEvictionCandidate();
+            mSlots.remove(mPayloads[slot]);
+        }
+        mSlots.put(payload, slot);
+        mPayloads[slot] = payload;
+        mPresent[slot] = false;
+        mVisitStart[slot] = NONE;
+        mLastLost[slot] = NONE;
+        mLastEvent[slot] = nowMillis;
+        mVisitCount[slot] = 0;
+        mTotalDwell[slot] = 0;
+        mMaxDwell[slot] = 0;
+        mRingHead[slot] = 0;
+        mRingSize[slot] = 0;
+        mRingSum[slot] = 0;
+        return slot;
+    }
+
+    /**
+     * Picks the slot to reuse when the aggregator is full, preferring beacons that are not
+     * currently present and, among those, the one with the oldest event.
+     */
+    private int findEvictionCandidate() {
+        int candidate = 0;
+        for (int i = 1; i < mCapacity; i++) {
+            if (mPresent[candidate] != mPresent[i]) {
+                if (mPresent[candidate]) {
+                    candidate = i;
+                }
+            } else if (mLastEvent[i] < mLastEvent[candidate]) {
+                candidate = i;
+            }
+        }
+        return candidate;
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BeaconEventDispatcherTest {
+    private final List<RuntimeException> mFailures = new ArrayList<>();
+
+    private final BeaconEventDispatcher mDispatcher = new BeaconEventDispatcher(
+            new BeaconEventDispatcher.FailureHandler() {
+                @Override
+                public void onListenerFailed(BeaconEventDispatcher.Listener listener,
+                                             BeaconEvent event, RuntimeException e) {
+                    mFailures.add(e);
+                }
+            });
+
+    private static class Counter implements BeaconEventDispatcher.Listener {
+        int count;
+
+        @Override
+        public void onBeaconEvent(BeaconEvent event) {
+            count++;
+        }
+    }
+
+    private static BeaconEvent event(byte kind, String namespace, String type) {
+        return new BeaconEvent(kind, namespace, type, "payload".getBytes(), 0);
+    }
+
+    @Test
+    public void deliversOnlyToMatchingFilters() {
+        Counter all = new Counter();
+        Counter namespace = new Counter();
+        Counter exact = new Counter();
+        Counter foundOnly = new Counter();
+        mDispatcher.register(BeaconEventDispatcher.Filter.ALL, all);
+        mDispatcher.register(new BeaconEventDispatcher.Filter("ns", null, true, true), namespace);
+        mDispatcher.register(new BeaconEventDispatcher.Filter("ns", "a", true, true), exact);
+        mDispatcher.register(new BeaconEventDispatcher.Filter(null, null, true, false),
+                foundOnly);
+
+        mDispatcher.dispatch(event(BeaconEvent.KIND_FOUND, "ns", "a"));
+        mDispatcher.dispatch(event(BeaconEvent.KIND_LOST, "ns", "b"));
+        mDispatcher.dispatch(event(BeaconEvent.KIND_FOUND, "other", "a"));
+        assertEquals(3, all.count);
+        assertEquals(2, namespace.count);
+        assertEquals(1, exact.count);
+        assertEquals(2, foundOnly.count);
+    }
+
+    @Test
+    public void throwingListenerDoesNotStopTheOthers() {
+        Counter before = new Counter();
+        Counter after = new Counter();
+        final RuntimeException failure = new IllegalStateException("broken listener");
+        mDispatcher.register(BeaconEventDispatcher.Filter.ALL, before);
+        mDispatcher.register(BeaconEventDispatcher.Filter.ALL,
+                new BeaconEventDispatcher.Listener() {
+                    @Override
+                    public void onBeaconEvent(BeaconEvent event) {
+                        throw failure;
+                    }
+                });
+        mDispatcher.register(BeaconEventDispatcher.Filter.ALL, after);
+
+        mDispatcher.dispatch(event(BeaconEvent.KIND_FOUND, "ns", "a"));
+        mDispatcher.dispatch(event(BeaconEvent.KIND_LOST, "ns", "a"));
+        assertEquals(2, before.count);
+        assertEquals(2, after.count);
+        assertEquals(2, mDispatcher.getFailureCount());
+        assertSame(failure, mFailures.get(0));
+    }
+
+    @Test
+    public void unregisteredListenersStopReceiving() {
+        Counter counter = new Counter();
+        BeaconEventDispatcher.Registration registration =
+                mDispatcher.register(BeaconEventDispatcher.Filter.ALL, counter);
+        mDispatcher.dispatch(event(BeaconEvent.KIND_FOUND, "ns", "a"));
+        mDispatcher.unregister(registration);
+        mDispatcher.dispatch(event(BeaconEvent.KIND_FOUND, "ns", "a"));
+        assertEquals(1, counter.count);
+        assertEquals(0, mDispatcher.getSubscriberCount());
+    }
+
+    /**
+     * With 50 subscribers spread over 50 namespaces, an event only visits the few that can match,
+     * so dispatch costs about the same as with a handful of subscribers.
+     */
+    @Test
+    public void fiftySubscribersCostAboutAsMuchAsFive() {
+        double fiveNanos = dispatchNanos(5);
+        double fiftyNanos = dispatchNanos(50);
+        System.out.printf("Dispatch: %.0f ns/event with 5 subscribers, %.0f ns with 50%n",
+                fiveNanos, fiftyNanos);
+        assertTrue(fiftyNanos < fiveNanos * 3);
+    }
+
+    private double dispatchNanos(int subscribers) {
+        BeaconEventDispatcher dispatcher = new BeaconEventDispatcher(
+                new BeaconEventDispatcher.FailureHandler() {
+                    @Override
+                    public void onListenerFailed(BeaconEventDispatcher.Listener listener,
+                                                 BeaconEvent event, RuntimeException e) {
+                        throw e;
+                    }
+                });
+        Counter[] counters = new Counter[subscribers];
+        for (int i = 0; i < subscribers; i++) {
+            counters[i] = new Counter();
+            dispatcher.register(new BeaconEventDispatcher.Filter("ns-" + i, "type", true, true),
+                    counters[i]);
+        }
+        BeaconEvent[] events = new BeaconEvent[64];
+        for (int i = 0; i < events.length; i++) {
+            events[i] = event(BeaconEvent.KIND_FOUND, "ns-" + (i % 5), "type");
+        }
+        int rounds = 200 * 1000;
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < 5; run++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                dispatcher.dispatch(events[i & 63]);
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        assertTrue(counters[0].count > 0);
+        return (double) best / rounds;
+    }
+}
@@ -0,0 +1,199 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class CacheManagerTest {
+    private static final int PAYLOAD_BYTES = 8 * 1024 * 1024;
+
+    /**
+     * Holds a large buffer, built on first use and again after each trim.
+     */
+    private static final class RebuildingCache implements CacheManager.Trimmable {
+        private final byte mFill;
+        private byte[] mPayload;
+        int builds;
+
+        RebuildingCache(int fill) {
+            mFill = (byte) fill;
+        }
+
+        synchronized byte[] get() {
+            if (mPayload == null) {
+                mPayload = new byte[PAYLOAD_BYTES];
+                Arrays.fill(mPayload, mFill);
+                builds++;
+            }
+            return mPayload;
+        }
+
+        synchronized boolean isBuilt() {
+            return mPayload != null;
+        }
+
+        @Override
+        public synchronized long getSizeBytes() {
+            return mPayload == null ? 0 : CacheManager.OBJECT_BYTES + mPayload.length;
+        }
+
+        @Override
+        public synchronized void trim() {
+            mPayload = null;
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    @Test
+    public void trimReleasesTiersUpToTheLevelAndCachesRebuildOnUse() {
+        CacheManager caches = new CacheManager();
+        RebuildingCache low = new RebuildingCache(1);
+        RebuildingCache normal = new RebuildingCache(2);
+        RebuildingCache high = new RebuildingCache(3);
+        caches.register("low", low, CacheManager.PRIORITY_LOW);
+        caches.register("normal", normal, CacheManager.PRIORITY_NORMAL);
+        caches.register("high", high, CacheManager.PRIORITY_HIGH);
+        RebuildingCache[] all = {low, normal, high};
+        int[] levels = {CacheManager.PRIORITY_LOW, CacheManager.PRIORITY_NORMAL,
+                CacheManager.PRIORITY_HIGH};
+
+        for (int level : levels) {
+            for (RebuildingCache cache : all) {
+                cache.get();
+            }
+            long before = usedHeap();
+            long released = caches.trim(level);
+            long after = usedHeap();
+            System.out.printf("Trim to priority %d: estimated %d KiB, heap %d -> %d KiB%n",
+                    level, released / 1024, before / 1024, after / 1024);
+
+            for (int priority = 0; priority < all.length; priority++) {
+                assertEquals("priority " + priority + " at level " + level,
+                        priority > level, all[priority].isBuilt());
+            }
+            long expected = (level + 1) * (long) PAYLOAD_BYTES;
+            assertTrue(released >= expected);
+            // The estimate is what the heap gets back, give or take what else the JVM does.
+            assertTrue(before - after > expected / 2);
+
+            // Released caches rebuild the same contents on next use.
+            for (int priority = 0; priority < all.length; priority++) {
+                assertEquals(priority + 1, all[priority].get()[PAYLOAD_BYTES - 1]);
+            }
+        }
+        assertEquals(4, low.builds);
+        assertEquals(3, normal.builds);
+        assertEquals(2, high.builds);
+        assertEquals(3 * (CacheManager.OBJECT_BYTES + PAYLOAD_BYTES), caches.getSizeBytes());
+    }
+
+    @Test
+    public void unregisteredCachesAreNotTrimmed() {
+        CacheManager caches = new CacheManager();
+        RebuildingCache cache = new RebuildingCache(1);
+        caches.register("pages", cache, CacheManager.PRIORITY_LOW);
+        caches.unregister(cache);
+        cache.get();
+        assertEquals(0, caches.trim(CacheManager.PRIORITY_HIGH));
+        assertTrue(cache.isBuilt());
+    }
+
+    @Test
+    public void trimmedChangeLogStartsConsumersOver() {
+        CacheManager caches = new CacheManager();
+        MessageStore store = new MessageStore(MessageStore.Persistence.NONE);
+        caches.register("changes", store, CacheManager.PRIORITY_LOW);
+        for (int i = 0; i < 1000; i++) {
+            store.add("message-" + i);
+        }
+        long cursor = store.snapshot().getVersion();
+        for (int i = 0; i < 500; i++) {
+            store.remove("message-" + i);
+        }
+        // Removed messages are only kept by the log, so they are what a trim releases.
+        assertTrue(store.getSizeBytes() >= 500 * CacheManager.stringBytes("message-0"));
+
+        assertEquals(store.getSizeBytes(), caches.trim(CacheManager.PRIORITY_LOW));
+        assertEquals(0, store.getSizeBytes());
+        MessageStore.Changes changes = store.getChangesSince(cursor, 100);
+        assertNotNull(changes.snapshot);
+        assertEquals(500, changes.snapshot.size());
+    }
+
+    @Test
+    public void trimDoesNotWaitForAStoreStillLoading() throws Exception {
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final MessageStore store = new MessageStore(new MessageStore.Persistence() {
+            @Override
+            public List<String> load() throws IOException {
+                loading.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return Collections.singletonList("stored");
+            }
+
+            @Override
+            public void save(List<String> messages) {
+            }
+        });
+        CacheManager caches = new CacheManager();
+        caches.register("changes", store, CacheManager.PRIORITY_LOW);
+        Thread preload = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                store.size();
+            }
+        });
+        preload.start();
+        assertTrue(loading.await(10, TimeUnit.SECONDS));
+
+        long start = System.nanoTime();
+        assertEquals(0, caches.trim(CacheManager.PRIORITY_HIGH));
+        caches.getStats();
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        System.out.printf("Trim during a load: %d ms%n", millis);
+        assertTrue(millis < 1000);
+        assertFalse(store.isLoaded());
+
+        release.countDown();
+        preload.join();
+        assertEquals(Collections.singletonList("stored"), store.getAll());
+    }
+}
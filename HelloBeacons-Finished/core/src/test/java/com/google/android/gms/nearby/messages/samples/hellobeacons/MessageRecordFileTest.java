@@ -0,0 +1,139 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class MessageRecordFileTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mFile;
+    private MessageRecordFile mRecords;
+
+    @Before
+    public void setUp() {
+        mFile = new File(mFolder.getRoot(), "messages");
+        mRecords = new MessageRecordFile(FileLayer.DISK, mFile);
+    }
+
+    @Test
+    public void missingFileLoadsAsNull() throws IOException {
+        assertFalse(mRecords.exists());
+        assertNull(mRecords.load());
+    }
+
+    @Test
+    public void roundTripsMessagesInOrder() throws IOException {
+        List<String> messages = Arrays.asList("plain", "", "caf\u00e9 \u2603", "with,comma");
+        mRecords.save(messages);
+        assertEquals(messages, mRecords.load());
+
+        mRecords.save(Collections.<String>emptyList());
+        assertEquals(Collections.<String>emptyList(), mRecords.load());
+        assertArrayEquals(new String[] {"messages"}, mFolder.getRoot().list());
+    }
+
+    @Test
+    public void rejectsOtherFormats() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        raf.writeBytes("[\"json\"]");
+        raf.close();
+        try {
+            mRecords.load();
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void rejectsTruncatedFile() throws IOException {
+        mRecords.save(Arrays.asList("first", "second"));
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        raf.setLength(raf.length() - 2);
+        raf.close();
+        try {
+            mRecords.load();
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void appenderResumesFromSyncedOffset() throws IOException {
+        File built = new File(mFolder.getRoot(), "built");
+        MessageRecordFile.Appender appender = new MessageRecordFile.Appender(FileLayer.DISK,
+                built, 0);
+        appender.append("a");
+        appender.append("b");
+        long offset = appender.sync();
+        appender.append("lost in a crash");
+        appender.close();
+
+        appender = new MessageRecordFile.Appender(FileLayer.DISK, built, offset);
+        appender.append("c");
+        appender.sync();
+        appender.close();
+
+        mRecords.replaceWith(built);
+        assertEquals(Arrays.asList("a", "b", "c"), mRecords.load());
+        assertFalse(built.exists());
+    }
+
+    @Test
+    public void failedSaveKeepsOldFileAndRemovesTemporary() throws IOException {
+        FaultInjectingFileLayer files = new FaultInjectingFileLayer(FileLayer.DISK);
+        MessageRecordFile records = new MessageRecordFile(files, mFile);
+        List<String> old = Arrays.asList("kept");
+        records.save(old);
+
+        List<String> large = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            large.add("message " + i);
+        }
+        files.setFreeBytes(100);
+        try {
+            records.save(large);
+            fail();
+        } catch (IOException expected) {
+        }
+        assertEquals(old, records.load());
+        assertArrayEquals(new String[] {"messages"}, mFolder.getRoot().list());
+        assertEquals(100, files.getFreeBytes());
+
+        files.setFreeBytes(Long.MAX_VALUE);
+        records.save(large);
+        assertEquals(large, records.load());
+    }
+}
@@ -0,0 +1,299 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MessageStoreTest {
+    /**
+     * Keeps the last saved list in memory.
+     */
+    private static final class MemoryPersistence implements MessageStore.Persistence {
+        List<String> saved;
+        int saves;
+        int loadFailures;
+
+        MemoryPersistence(String... messages) {
+            saved = messages.length == 0 ? null : Arrays.asList(messages);
+        }
+
+        @Override
+        public List<String> load() throws IOException {
+            if (loadFailures > 0) {
+                loadFailures--;
+                throw new IOException("Read failed");
+            }
+            return saved;
+        }
+
+        @Override
+        public void save(List<String> messages) {
+            saved = new ArrayList<>(messages);
+            saves++;
+        }
+    }
+
+    @Test
+    public void keepsMostRecentFirstAndIgnoresDuplicates() {
+        MemoryPersistence persistence = new MemoryPersistence("b", "a");
+        MessageStore store = new MessageStore(persistence);
+        assertEquals(Arrays.asList("b", "a"), store.getAll());
+        assertTrue(store.add("c"));
+        assertFalse(store.add("a"));
+        assertEquals(Arrays.asList("c", "b", "a"), store.getAll());
+        assertTrue(store.remove("b"));
+        assertFalse(store.remove("b"));
+        assertEquals(Arrays.asList("c", "a"), store.getAll());
+        assertEquals(Arrays.asList("c", "a"), persistence.saved);
+        assertEquals(Arrays.asList("a"), store.getRange(1, 10));
+    }
+
+    @Test
+    public void snapshotsDoNotChange() {
+        MessageStore store = new MessageStore(MessageStore.Persistence.NONE);
+        store.add("a");
+        MessageStore.Snapshot before = store.snapshot();
+        store.add("b");
+        store.remove("a");
+        assertEquals(Arrays.asList("a"), before);
+        assertEquals(Arrays.asList("b"), store.snapshot());
+    }
+
+    @Test
+    public void changesSinceCursorAreWindowed() {
+        MessageStore store = new MessageStore(MessageStore.Persistence.NONE);
+        long start = store.snapshot().getVersion();
+        for (int i = 0; i < 10; i++) {
+            store.add("m" + i);
+        }
+        store.remove("m3");
+
+        MessageStore.Changes first = store.getChangesSince(0, 4);
+        assertNull(first.snapshot);
+        assertEquals(4, first.changes.size());
+        assertTrue(first.hasMore);
+        assertEquals("m0", first.changes.get(0).message);
+        assertEquals(start + 1, first.changes.get(0).sequence);
+
+        MessageStore.Changes rest = store.getChangesSince(first.cursor, 100);
+        assertFalse(rest.hasMore);
+        assertEquals(7, rest.changes.size());
+        MessageStore.Change last = rest.changes.get(6);
+        assertFalse(last.added);
+        assertEquals("m3", last.message);
+        assertEquals(store.snapshot().getVersion(), rest.cursor);
+
+        MessageStore.Changes none = store.getChangesSince(rest.cursor, 100);
+        assertTrue(none.changes.isEmpty());
+        assertNull(none.snapshot);
+    }
+
+    @Test
+    public void trimmedOrUnknownCursorGetsSnapshot() {
+        MessageStore store = new MessageStore(MessageStore.Persistence.NONE, 8, null, 0);
+        long start = store.snapshot().getVersion();
+        for (int i = 0; i < 20; i++) {
+            store.add("m" + i);
+        }
+        MessageStore.Changes behind = store.getChangesSince(0, 100);
+        assertNotNull(behind.snapshot);
+        assertEquals(20, behind.snapshot.size());
+        assertEquals(start + 20, behind.cursor);
+
+        // A cursor from another process may be ahead of this one's versions.
+        assertNotNull(store.getChangesSince(start + 1000, 100).snapshot);
+
+        MessageStore.Changes recent = store.getChangesSince(start + 13, 100);
+        assertNull(recent.snapshot);
+        assertEquals(7, recent.changes.size());
+
+        store.trim();
+        assertNotNull(store.getChangesSince(start + 13, 100).snapshot);
+        store.add("after trim");
+        MessageStore.Changes resumed = store.getChangesSince(start + 20, 100);
+        assertNull(resumed.snapshot);
+        assertEquals("after trim", resumed.changes.get(0).message);
+    }
+
+    @Test
+    public void cursorFromAnEarlierProcessGetsSnapshot() {
+        MemoryPersistence persistence = new MemoryPersistence();
+        MessageStore before = new MessageStore(persistence);
+        for (int i = 0; i < 10; i++) {
+            before.add("m" + i);
+        }
+        long cursor = before.snapshot().getVersion();
+
+        // The next process loads the same messages and changes as many again, so its versions
+        // would otherwise pass through the old cursor with different changes behind it.
+        MessageStore after = new MessageStore(persistence);
+        for (int i = 0; i < 10; i++) {
+            after.remove("m" + i);
+            after.add("n" + i);
+        }
+        assertNotEquals(cursor, after.snapshot().getVersion());
+        MessageStore.Changes changes = after.getChangesSince(cursor, 100);
+        assertNotNull(changes.snapshot);
+        assertEquals(after.getAll(), changes.snapshot);
+        assertEquals(after.snapshot().getVersion(), changes.cursor);
+        assertNotNull(after.getChangesSince(cursor - 10, 100).snapshot);
+        assertNotNull(after.getChangesSince(cursor + 10, 100).snapshot);
+    }
+
+    @Test
+    public void replayingChangesReproducesStore() {
+        MessageStore store = new MessageStore(MessageStore.Persistence.NONE);
+        Set<String> follower = new LinkedHashSet<>();
+        long cursor = 0;
+        for (int round = 0; round < 50; round++) {
+            for (int i = 0; i < 30; i++) {
+                int id = (round * 31 + i * 7) % 100;
+                if ((round + i) % 3 == 0) {
+                    store.remove("m" + id);
+                } else {
+                    store.add("m" + id);
+                }
+            }
+            MessageStore.Changes changes;
+            do {
+                changes = store.getChangesSince(cursor, 16);
+                assertNull(changes.snapshot);
+                for (MessageStore.Change change : changes.changes) {
+                    if (change.added) {
+                        follower.add(change.message);
+                    } else {
+                        follower.remove(change.message);
+                    }
+                }
+                cursor = changes.cursor;
+            } while (changes.hasMore);
+            assertEquals(new LinkedHashSet<>(store.getAll()).size(), follower.size());
+            assertTrue(follower.containsAll(store.getAll()));
+        }
+    }
+
+    /**
+     * Catching up from the change log should cost in proportion to the changes read, not to the
+     * size of the store, and so beat copying the whole list however many changes have been made.
+     */
+    @Test
+    public void catchUpAfterManyChangesIsCheaperThanCopying() {
+        MessageStore store = new MessageStore(MessageStore.Persistence.NONE);
+        for (int i = 0; i < 10000; i++) {
+            store.add("m" + i);
+        }
+        for (int i = 0; i < 100 * 1000; i++) {
+            store.remove("m" + (i % 10000));
+            store.add("m" + (i % 10000));
+        }
+        long cursor = store.snapshot().getVersion() - 1000;
+
+        long catchUp = Long.MAX_VALUE;
+        long copy = Long.MAX_VALUE;
+        for (int run = 0; run < 20; run++) {
+            long start = System.nanoTime();
+            long position = cursor;
+            int read = 0;
+            MessageStore.Changes changes;
+            do {
+                changes = store.getChangesSince(position, 256);
+                read += changes.changes.size();
+                position = changes.cursor;
+            } while (changes.hasMore);
+            catchUp = Math.min(catchUp, System.nanoTime() - start);
+            assertEquals(1000, read);
+
+            start = System.nanoTime();
+            List<String> all = new ArrayList<>(store.getAll());
+            copy = Math.min(copy, System.nanoTime() - start);
+            assertEquals(10000, all.size());
+        }
+        System.out.printf("After 210k changes: catch-up of 1000 %d us, full copy %d us%n",
+                catchUp / 1000, copy / 1000);
+        assertTrue(catchUp < copy);
+    }
+
+    /**
+     * A store that could not be read must not replace what it failed to read: saves wait for a
+     * read to succeed, and then keep the messages read along with the changes made meanwhile.
+     */
+    @Test
+    public void failedLoadBlocksSavesUntilARereadSucceeds() {
+        MemoryPersistence persistence = new MemoryPersistence("c", "b", "a");
+        persistence.loadFailures = 2;
+        MessageStore store = new MessageStore(persistence);
+        assertTrue(store.add("d"));
+        assertEquals(Arrays.asList("d"), store.getAll());
+        assertFalse(store.remove("a"));
+        assertEquals(0, persistence.saves);
+        assertEquals(2, store.getFailureCount());
+
+        long version = store.snapshot().getVersion();
+        assertTrue(store.add("e"));
+        assertEquals(Arrays.asList("e", "d", "c", "b"), persistence.saved);
+        assertEquals(persistence.saved, store.getAll());
+        MessageStore.Changes changes = store.getChangesSince(version, 10);
+        assertNotNull(changes.snapshot);
+        assertEquals(persistence.saved, changes.snapshot);
+    }
+
+    @Test
+    public void failedLoadIsRetriedByTheWriteBehindSave() throws InterruptedException {
+        MemoryPersistence persistence = new MemoryPersistence("b", "a");
+        persistence.loadFailures = 1;
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        MessageStore store = new MessageStore(persistence, executor, 0);
+        assertTrue(store.add("c"));
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("c", "b", "a"), persistence.saved);
+        assertEquals(persistence.saved, store.getAll());
+        assertEquals(1, store.getFailureCount());
+    }
+
+    @Test
+    public void savesRejectedByAShutDownExecutorAreCounted() {
+        MemoryPersistence persistence = new MemoryPersistence();
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        MessageStore store = new MessageStore(persistence, executor, 0);
+        executor.shutdown();
+        assertTrue(store.add("a"));
+        assertEquals(1, store.getFailureCount());
+        // Not left pending: each change tries again.
+        assertTrue(store.add("b"));
+        assertEquals(2, store.getFailureCount());
+        assertEquals(Arrays.asList("b", "a"), store.getAll());
+        assertNull(persistence.saved);
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PersistentTreeMapTest {
+    private static final Comparator<Integer> NATURAL = new Comparator<Integer>() {
+        @Override
+        public int compare(Integer lhs, Integer rhs) {
+            return lhs.compareTo(rhs);
+        }
+    };
+
+    @Test
+    public void matchesTreeMapUnderRandomEdits() {
+        Random random = new Random(42);
+        TreeMap<Integer, String> expected = new TreeMap<>();
+        PersistentTreeMap<Integer, String> map = new PersistentTreeMap<>(NATURAL);
+        for (int i = 0; i < 20000; i++) {
+            int key = random.nextInt(2000);
+            if (random.nextInt(3) == 0) {
+                expected.remove(key);
+                map = map.minus(key);
+            } else {
+                expected.put(key, "v" + i);
+                map = map.plus(key, "v" + i);
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        int index = 0;
+        for (Integer key : expected.keySet()) {
+            assertEquals(expected.get(key), map.get(key));
+            assertEquals(expected.get(key), map.valueAt(index++));
+        }
+        for (int key = 0; key < 2000; key++) {
+            assertEquals(expected.containsKey(key), map.containsKey(key));
+        }
+    }
+
+    @Test
+    public void earlierVersionsAreUnchanged() {
+        List<PersistentTreeMap<Integer, String>> versions = new ArrayList<>();
+        PersistentTreeMap<Integer, String> map = new PersistentTreeMap<>(NATURAL);
+        versions.add(map);
+        for (int i = 0; i < 100; i++) {
+            map = map.plus(i, "v" + i);
+            versions.add(map);
+        }
+        for (int i = 0; i < 100; i += 2) {
+            map = map.minus(i);
+        }
+        for (int i = 0; i <= 100; i++) {
+            PersistentTreeMap<Integer, String> version = versions.get(i);
+            assertEquals(i, version.size());
+            for (int key = 0; key < i; key++) {
+                assertEquals("v" + key, version.get(key));
+            }
+            assertNull(version.get(i));
+        }
+        assertEquals(50, map.size());
+        assertEquals("v1", map.valueAt(0));
+    }
+
+    @Test
+    public void removingAbsentKeyReturnsSameMap() {
+        PersistentTreeMap<Integer, String> map =
+                new PersistentTreeMap<Integer, String>(NATURAL).plus(1, "one");
+        assertSame(map, map.minus(2));
+        assertFalse(map.minus(1).containsKey(1));
+        assertTrue(map.containsKey(1));
+    }
+
+    @Test
+    public void staysBalanced() {
+        // Sequential keys are the worst case for an unbalanced tree; an AVL tree of a million
+        // entries must still answer positional reads without deep recursion.
+        PersistentTreeMap<Integer, String> map = new PersistentTreeMap<>(NATURAL);
+        for (int i = 0; i < 1000 * 1000; i++) {
+            map = map.plus(i, "v");
+        }
+        assertEquals(1000 * 1000, map.size());
+        assertEquals("v", map.valueAt(999999));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void valueAtRejectsOutOfRange() {
+        new PersistentTreeMap<Integer, String>(NATURAL).valueAt(0);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void rejectsNullValues() {
+        new PersistentTreeMap<Integer, String>(NATURAL).plus(1, null);
+    }
+}
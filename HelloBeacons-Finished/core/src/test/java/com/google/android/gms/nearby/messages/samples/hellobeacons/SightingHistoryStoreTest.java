@@ -0,0 +1,333 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SightingHistoryStoreTest {
+    private static final long HOUR = SightingHistoryStore.HOUR_MILLIS;
+    private static final long DAY = SightingHistoryStore.DAY_MILLIS;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * Holds compaction tasks until the test runs them.
+     */
+    private static class QueuedExecutor implements Executor {
+        final Queue<Runnable> tasks = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        void runAll() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+    }
+
+    /**
+     * Sums found and lost counts per payload over a query.
+     */
+    private static class Totals implements SightingHistoryStore.Visitor {
+        final Map<String, int[]> counts = new HashMap<>();
+        final List<Long> resolutions = new ArrayList<>();
+
+        @Override
+        public void onBucket(long startMillis, long resolutionMillis, String payload, int found,
+                             int lost) {
+            int[] total = counts.get(payload);
+            if (total == null) {
+                total = new int[2];
+                counts.put(payload, total);
+            }
+            total[0] += found;
+            total[1] += lost;
+            resolutions.add(resolutionMillis);
+        }
+    }
+
+    private final QueuedExecutor mExecutor = new QueuedExecutor();
+
+    private SightingHistoryStore open(File dir) throws IOException {
+        return new SightingHistoryStore(dir, 2 * HOUR, 2 * DAY, 7 * DAY, mExecutor);
+    }
+
+    private static void record(SightingHistoryStore store, String payload, byte kind,
+                               long timeMillis) throws IOException {
+        store.record(payload, BeaconEvent.payloadHash(payload.getBytes()), kind, timeMillis);
+    }
+
+    @Test
+    public void rollsUpOldSightingsWithoutLosingCounts() throws IOException {
+        SightingHistoryStore store = open(mFolder.newFolder());
+        long start = 10 * DAY;
+        for (int minute = 0; minute < 60; minute++) {
+            record(store, "door", SightingHistoryStore.KIND_FOUND, start + minute * 60 * 1000);
+            record(store, "door", SightingHistoryStore.KIND_LOST, start + minute * 60 * 1000 + 1);
+        }
+        // Compaction only runs on the executor, never inside record().
+        record(store, "desk", SightingHistoryStore.KIND_FOUND, start + 5 * HOUR);
+        assertEquals(1, mExecutor.tasks.size());
+        mExecutor.runAll();
+
+        Totals totals = new Totals();
+        store.query(start, start + 6 * HOUR, totals);
+        assertEquals(60, totals.counts.get("door")[0]);
+        assertEquals(60, totals.counts.get("door")[1]);
+        assertEquals(1, totals.counts.get("desk")[0]);
+        assertTrue(totals.resolutions.contains(SightingHistoryStore.MINUTE_MILLIS));
+    }
+
+    /**
+     * "Aa" and "BB" have the same {@link String#hashCode()}, and used to be counted as one.
+     */
+    @Test
+    public void keepsPayloadsWithCollidingStringHashesApart() throws IOException {
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        File dir = mFolder.newFolder();
+        SightingHistoryStore store = open(dir);
+        record(store, "Aa", SightingHistoryStore.KIND_FOUND, DAY);
+        record(store, "BB", SightingHistoryStore.KIND_FOUND, DAY + 1);
+        record(store, "BB", SightingHistoryStore.KIND_LOST, DAY + 2);
+
+        Totals totals = new Totals();
+        open(dir).query(0, 2 * DAY, totals);
+        assertEquals(1, totals.counts.get("Aa")[0]);
+        assertEquals(0, totals.counts.get("Aa")[1]);
+        assertEquals(1, totals.counts.get("BB")[0]);
+        assertEquals(1, totals.counts.get("BB")[1]);
+    }
+
+    @Test
+    public void prunesPayloadsPastRetention() throws IOException {
+        File dir = mFolder.newFolder();
+        SightingHistoryStore store = open(dir);
+        record(store, "gone", SightingHistoryStore.KIND_FOUND, DAY);
+        record(store, "kept", SightingHistoryStore.KIND_FOUND, 20 * DAY);
+        mExecutor.runAll();
+        String payloads = new String(Files.readAllBytes(new File(dir, "payloads").toPath()),
+                "UTF-8");
+        assertFalse(payloads.contains("gone"));
+        assertTrue(payloads.contains("kept"));
+
+        Totals totals = new Totals();
+        store.query(0, 30 * DAY, totals);
+        assertNull(totals.counts.get("gone"));
+        assertEquals(1, totals.counts.get("kept")[0]);
+
+        // Reopened, the pruned file still names what is left.
+        totals = new Totals();
+        open(dir).query(0, 30 * DAY, totals);
+        assertEquals(1, totals.counts.get("kept")[0]);
+    }
+
+    @Test
+    public void recordsOutOfOrderTimesAtTheLatestTime() throws IOException {
+        SightingHistoryStore store = open(mFolder.newFolder());
+        record(store, "door", SightingHistoryStore.KIND_FOUND, DAY + HOUR);
+        record(store, "door", SightingHistoryStore.KIND_LOST, DAY);
+        Totals totals = new Totals();
+        store.query(DAY + HOUR, DAY + 2 * HOUR, totals);
+        assertEquals(1, totals.counts.get("door")[1]);
+    }
+
+    /**
+     * Recording must cost the same whether or not the hour rolls over, since the roll-up work is
+     * left to the executor; and a day's range query over a thousand beacons must stay quick.
+     */
+    @Test
+    public void recordStaysFlatAcrossRolloversAndQueriesStayQuick() throws IOException {
+        SightingHistoryStore store = open(mFolder.newFolder());
+        int beacons = 1000;
+        String[] payloads = new String[beacons];
+        for (int i = 0; i < beacons; i++) {
+            payloads[i] = "beacon-" + i;
+        }
+        long start = 100 * DAY;
+        long worstRolloverNanos = 0;
+        long totalNanos = 0;
+        int records = 0;
+        for (int hour = 0; hour < 24; hour++) {
+            for (int i = 0; i < beacons; i++) {
+                long timeMillis = start + hour * HOUR + i * 3000L;
+                long before = System.nanoTime();
+                record(store, payloads[i], i % 2 == 0 ? SightingHistoryStore.KIND_FOUND
+                        : SightingHistoryStore.KIND_LOST, timeMillis);
+                long nanos = System.nanoTime() - before;
+                totalNanos += nanos;
+                records++;
+                if (i == 0 && hour > 3) {
+                    worstRolloverNanos = Math.max(worstRolloverNanos, nanos);
+                }
+            }
+            // Compaction runs between hours, as a separate executor would run it.
+            mExecutor.runAll();
+        }
+        long meanNanos = totalNanos / records;
+
+        Totals totals = new Totals();
+        long before = System.nanoTime();
+        store.query(start, start + DAY, totals);
+        long queryMillis = (System.nanoTime() - before) / (1000 * 1000);
+        System.out.printf("Sighting history: %d us/record, %d us worst rollover, "
+                + "24h query over %d beacons in %d ms%n", meanNanos / 1000,
+                worstRolloverNanos / 1000, beacons, queryMillis);
+
+        assertEquals(beacons, totals.counts.size());
+        assertEquals(24, totals.counts.get("beacon-0")[0]);
+        assertEquals(24, totals.counts.get("beacon-1")[1]);
+        // A rollover opens a new segment file; it rolls nothing up inline.
+        assertTrue(worstRolloverNanos < 50 * 1000 * 1000);
+        assertTrue(queryMillis < 1000);
+    }
+
+    @Test
+    public void payloadsOfAnyTextSurviveARestart() throws IOException {
+        File dir = mFolder.newFolder();
+        SightingHistoryStore store = open(dir);
+        String[] payloads = {"line\nbreak", "carriage\rreturn", "crlf\r\nend", "tab\tin it",
+                "emoji \uD83D\uDE00", "", "plain"};
+        for (int i = 0; i < payloads.length; i++) {
+            record(store, payloads[i], SightingHistoryStore.KIND_FOUND, DAY + i);
+        }
+        store.close();
+
+        Totals totals = new Totals();
+        open(dir).query(0, 2 * DAY, totals);
+        assertEquals(payloads.length, totals.counts.size());
+        for (String payload : payloads) {
+            assertEquals(payload, 1, totals.counts.get(payload)[0]);
+        }
+    }
+
+    @Test
+    public void skipsDamagedPayloadRecords() throws IOException {
+        File dir = mFolder.newFolder();
+        File payloadsFile = new File(dir, "payloads");
+        SightingHistoryStore store = open(dir);
+        record(store, "before", SightingHistoryStore.KIND_FOUND, DAY);
+        store.close();
+        append(payloadsFile, "not a record\nx\t1\ty\n12\t-3\tz\n34\tten\tw\n");
+
+        store = open(dir);
+        record(store, "after", SightingHistoryStore.KIND_FOUND, DAY + 1);
+        store.close();
+        // A record cut short by a crash.
+        append(payloadsFile, "56\t20\ttorn");
+
+        Totals totals = new Totals();
+        open(dir).query(0, 2 * DAY, totals);
+        assertEquals(1, totals.counts.get("before")[0]);
+        assertEquals(1, totals.counts.get("after")[0]);
+        assertEquals(2, totals.counts.size());
+    }
+
+    /**
+     * A crash after a roll-up renamed its target into place, but before it deleted the source,
+     * leaves the source to be rolled up again; that must not count it twice.
+     */
+    @Test
+    public void rollUpCutShortIsRedoneWithoutDoubleCounting() throws IOException {
+        File dir = mFolder.newFolder();
+        SightingHistoryStore store = open(dir);
+        long start = 10 * DAY;
+        for (int minute = 0; minute < 60; minute++) {
+            record(store, "door", SightingHistoryStore.KIND_FOUND, start + minute * 60 * 1000);
+        }
+        record(store, "desk", SightingHistoryStore.KIND_FOUND, start + 3 * HOUR);
+        File raw = new File(dir, "raw/" + start);
+        byte[] rawBytes = Files.readAllBytes(raw.toPath());
+        mExecutor.runAll();
+        assertFalse(raw.exists());
+        Files.write(raw.toPath(), rawBytes);
+        store.compact(start + 3 * HOUR);
+        assertFalse(raw.exists());
+        assertDoorCount(store, start, 60);
+
+        // Minute segments roll into a day segment that other hours share.
+        record(store, "desk", SightingHistoryStore.KIND_FOUND, start + 3 * DAY);
+        File minutes = new File(dir, "minute/" + start);
+        byte[] minuteBytes = Files.readAllBytes(minutes.toPath());
+        mExecutor.runAll();
+        assertFalse(minutes.exists());
+        Files.write(minutes.toPath(), minuteBytes);
+        // A temporary file left by a crash before the rename is not a segment.
+        Files.write(new File(dir, "hour/" + start + ".tmp").toPath(), new byte[] {1, 2, 3});
+        store.compact(start + 3 * DAY);
+        assertFalse(minutes.exists());
+        assertDoorCount(store, start, 60);
+
+        Totals totals = new Totals();
+        open(dir).query(start, start + 4 * DAY, totals);
+        assertEquals(2, totals.counts.get("desk")[0]);
+    }
+
+    @Test
+    public void convertsPayloadsWrittenOnePerLine() throws IOException {
+        File dir = mFolder.newFolder();
+        SightingHistoryStore store = open(dir);
+        record(store, "door", SightingHistoryStore.KIND_FOUND, DAY);
+        store.close();
+        // As layout version 2 wrote them.
+        Files.write(new File(dir, "payloads").toPath(),
+                (BeaconEvent.payloadHash("door".getBytes()) + "\tdoor\n").getBytes("UTF-8"));
+        Files.write(new File(dir, "version").toPath(), new byte[] {0, 0, 0, 2});
+
+        Totals totals = new Totals();
+        open(dir).query(0, 2 * DAY, totals);
+        assertEquals(1, totals.counts.get("door")[0]);
+        // Converted once: opening again reads the new layout.
+        totals = new Totals();
+        open(dir).query(0, 2 * DAY, totals);
+        assertEquals(1, totals.counts.get("door")[0]);
+    }
+
+    private static void append(File file, String text) throws IOException {
+        Files.write(file.toPath(), text.getBytes("UTF-8"), StandardOpenOption.APPEND);
+    }
+
+    private static void assertDoorCount(SightingHistoryStore store, long start, int expected)
+            throws IOException {
+        Totals totals = new Totals();
+        store.query(start, start + HOUR, totals);
+        assertEquals(expected, totals.counts.get("door")[0]);
+    }
+}
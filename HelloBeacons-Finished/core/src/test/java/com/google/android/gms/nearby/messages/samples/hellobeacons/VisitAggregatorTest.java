@@ -0,0 +1,129 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class VisitAggregatorTest {
+    /**
+     * A recorded trace, one {@code timeMillis,F|L,payload} event per line.
+     */
+    private static final String[] TRACE = {
+            "0,F,door",
+            "1000,F,desk",
+            "60000,L,door",
+            // Back within the merge gap: the same visit continues.
+            "75000,F,door",
+            "120000,L,door",
+            "130000,L,desk",
+            // Gone for longer than the merge gap: a new visit.
+            "300000,F,door",
+            "360000,L,door",
+    };
+
+    private static final long MERGE_GAP_MILLIS = 30 * 1000;
+
+    private static void replay(VisitAggregator aggregator, String[] trace) {
+        for (String line : trace) {
+            String[] fields = line.split(",", 3);
+            long timeMillis = Long.parseLong(fields[0]);
+            if ("F".equals(fields[1])) {
+                aggregator.onFound(fields[2], timeMillis);
+            } else {
+                aggregator.onLost(fields[2], timeMillis);
+            }
+        }
+    }
+
+    @Test
+    public void mergesVisitsSeparatedByShortGaps() {
+        VisitAggregator aggregator = new VisitAggregator(10, 4, MERGE_GAP_MILLIS);
+        replay(aggregator, TRACE);
+        long end = 1000 * 1000;
+        assertEquals(2, aggregator.getVisitCount("door"));
+        assertEquals(120000 + 60000, aggregator.getTotalDwellMillis("door", end));
+        assertEquals(120000, aggregator.getMaxDwellMillis("door", end));
+        // Back for longer than any closed visit: the open visit is now the longest.
+        aggregator.onFound("door", end);
+        assertEquals(130000, aggregator.getMaxDwellMillis("door", end + 130000));
+        assertEquals(90000, aggregator.getRecentMeanDwellMillis("door", end));
+        assertEquals(1, aggregator.getVisitCount("desk"));
+        assertEquals(129000, aggregator.getTotalDwellMillis("desk", end));
+        assertEquals(0, aggregator.getVisitCount("window"));
+    }
+
+    @Test
+    public void openVisitCountsTowardsDwell() {
+        VisitAggregator aggregator = new VisitAggregator(10, 4, MERGE_GAP_MILLIS);
+        aggregator.onFound("door", 0);
+        assertEquals(5000, aggregator.getCurrentDwellMillis("door", 5000));
+        assertEquals(5000, aggregator.getTotalDwellMillis("door", 5000));
+        assertEquals(5000, aggregator.getMaxDwellMillis("door", 5000));
+        aggregator.onLost("door", 8000);
+        // Still within the merge gap, so the visit is not over.
+        assertEquals(8000, aggregator.getCurrentDwellMillis("door", 10000));
+        assertEquals(8000, aggregator.getMaxDwellMillis("door", 10000));
+        assertEquals(0, aggregator.getRecentMeanDwellMillis("door", 10000));
+        assertEquals(8000, aggregator.getRecentMeanDwellMillis("door", 100000));
+    }
+
+    @Test
+    public void replayingTraceReproducesStatistics() {
+        List<String> trace = new ArrayList<>();
+        Random random = new Random(3);
+        boolean[] present = new boolean[50];
+        long timeMillis = 0;
+        for (int i = 0; i < 20000; i++) {
+            timeMillis += random.nextInt(5000);
+            int beacon = random.nextInt(present.length);
+            present[beacon] = !present[beacon];
+            trace.add(timeMillis + "," + (present[beacon] ? "F" : "L") + ",beacon-" + beacon);
+        }
+        String[] lines = trace.toArray(new String[trace.size()]);
+        VisitAggregator first = new VisitAggregator(64, 8, MERGE_GAP_MILLIS);
+        VisitAggregator second = new VisitAggregator(64, 8, MERGE_GAP_MILLIS);
+        replay(first, lines);
+        replay(second, lines);
+        for (int beacon = 0; beacon < present.length; beacon++) {
+            String payload = "beacon-" + beacon;
+            assertEquals(first.getVisitCount(payload), second.getVisitCount(payload));
+            assertEquals(first.getTotalDwellMillis(payload, timeMillis),
+                    second.getTotalDwellMillis(payload, timeMillis));
+            assertEquals(first.getRecentMeanDwellMillis(payload, timeMillis),
+                    second.getRecentMeanDwellMillis(payload, timeMillis));
+        }
+    }
+
+    @Test
+    public void evictsQuietestAbsentBeaconWhenFull() {
+        VisitAggregator aggregator = new VisitAggregator(2, 4, MERGE_GAP_MILLIS);
+        aggregator.onFound("a", 0);
+        aggregator.onFound("b", 1000);
+        aggregator.onLost("b", 2000);
+        aggregator.onFound("c", 3000);
+        assertEquals(2, aggregator.getTrackedBeaconCount());
+        assertEquals(1, aggregator.getVisitCount("a"));
+        assertEquals(0, aggregator.getVisitCount("b"));
+        assertEquals(1, aggregator.getVisitCount("c"));
+    }
+}
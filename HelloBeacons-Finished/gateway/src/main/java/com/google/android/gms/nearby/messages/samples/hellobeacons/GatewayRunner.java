@@ -0,0 +1,444 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the presence pipeline headless on the JVM for many fixed scanners, as a server-side
+ * gateway. Only the Android-free core is used: {@link BeaconEvent}, {@link PresencePipeline},
+ * {@link MessageStore} and {@link VisitAggregator}.
+ * <p/>
+ * Sightings are read one {@link SightingLine} per line, either replayed from a file or streamed
+ * to a local TCP port. Scanners are sharded across threads by ID, and each shard is the only
+ * writer of its scanners' state, so no presence state is shared or locked. The ingest thread only
+ * splits off the scanner ID and hands lines over in batches; parsing and processing happen on the
+ * shards.
+ * <p/>
+ * With {@code --store-dir}, each scanner's messages are also kept in a {@link MessageRecordFile}
+ * there, written behind on one storage thread as the app does. The storage can be made to behave
+ * like poor flash through a {@link FaultInjectingFileLayer}: {@code --io-latency-ms} slows every
+ * open, rename and delete, {@code --sync-delay-ms} every sync, and {@code --free-bytes} makes
+ * writes fail once that much has been written. The report then shows whether event handling
+ * stays within a frame of time regardless, and how many saves failed.
+ * <p/>
+ * Usage: {@code GatewayRunner [--shards N] [--store-dir DIR [--io-latency-ms MS]
+ * [--sync-delay-ms MS] [--free-bytes N]] (--replay FILE | --port PORT)}
+ */
+final class GatewayRunner {
+    private static final int BATCH_SIZE = 512;
+    private static final int SHARD_QUEUE_BATCHES = 64;
+    private static final long REPORT_INTERVAL_MILLIS = 5000;
+
+    private static final int MAX_BEACONS_PER_SCANNER = 256;
+    private static final int VISIT_HISTORY_SIZE = 16;
+    private static final long VISIT_MERGE_GAP_MILLIS = 30 * 1000;
+
+    private static final long SAVE_DELAY_MILLIS = 250;
+    private static final long DRAIN_POLL_MILLIS = 50;
+    private static final long FRAME_BUDGET_NANOS = 16 * 1000 * 1000;
+
+    private static final String[] END_OF_STREAM = new String[0];
+
+    private final Storage mStorage;
+    private final Shard[] mShards;
+    private final String[][] mBatches;
+    private final int[] mBatchSizes;
+
+    /**
+     * @param storage Where scanners' messages are kept, or null to keep them only in memory.
+     */
+    GatewayRunner(int shardCount, Storage storage) {
+        mStorage = storage;
+        mShards = new Shard[shardCount];
+        mBatches = new String[shardCount][];
+        mBatchSizes = new int[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            mShards[i] = new Shard("gateway-shard-" + i, storage);
+            mBatches[i] = new String[BATCH_SIZE];
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int shards = Runtime.getRuntime().availableProcessors();
+        String replay = null;
+        int port = -1;
+        String storeDir = null;
+        FaultInjectingFileLayer files = new FaultInjectingFileLayer(FileLayer.DISK);
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if ("--shards".equals(args[i])) {
+                shards = Integer.parseInt(args[i + 1]);
+            } else if ("--replay".equals(args[i])) {
+                replay = args[i + 1];
+            } else if ("--port".equals(args[i])) {
+                port = Integer.parseInt(args[i + 1]);
+            } else if ("--store-dir".equals(args[i])) {
+                storeDir = args[i + 1];
+            } else if ("--io-latency-ms".equals(args[i])) {
+                files.setLatencyMillis(Long.parseLong(args[i + 1]));
+            } else if ("--sync-delay-ms".equals(args[i])) {
+                files.setSyncDelayMillis(Long.parseLong(args[i + 1]));
+            } else if ("--free-bytes".equals(args[i])) {
+                files.setFreeBytes(Long.parseLong(args[i + 1]));
+            }
+        }
+        if ((replay == null) == (port < 0) || shards <= 0) {
+            System.err.println("Usage: GatewayRunner [--shards N] [--store-dir DIR"
+                    + " [--io-latency-ms MS] [--sync-delay-ms MS] [--free-bytes N]]"
+                    + " (--replay FILE | --port PORT)");
+            System.exit(2);
+        }
+
+        Storage storage = null;
+        if (storeDir != null) {
+            File dir = new File(storeDir);
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Could not create " + dir);
+            }
+            storage = new Storage(files, dir);
+        }
+        final GatewayRunner runner = new GatewayRunner(shards, storage);
+        runner.start();
+        long startNanos = System.nanoTime();
+        if (replay != null) {
+            Thread reporter = runner.startReporter(startNanos);
+            InputStream in = new FileInputStream(replay);
+            try {
+                runner.ingest(in);
+            } finally {
+                in.close();
+            }
+            runner.finish();
+            reporter.interrupt();
+        } else {
+            runner.startReporter(startNanos);
+            runner.serve(port);
+        }
+        runner.report(startNanos);
+    }
+
+    void start() {
+        for (Shard shard : mShards) {
+            shard.start();
+        }
+    }
+
+    /**
+     * Reads sightings until the end of {@code in}. Not thread-safe: one stream at a time.
+     */
+    void ingest(InputStream in) throws IOException, InterruptedException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String scannerId = SightingLine.scannerId(line);
+            if (scannerId == null) {
+                continue;
+            }
+            int shard = (scannerId.hashCode() & Integer.MAX_VALUE) % mShards.length;
+            mBatches[shard][mBatchSizes[shard]++] = line;
+            if (mBatchSizes[shard] == BATCH_SIZE) {
+                flush(shard);
+            }
+        }
+        for (int i = 0; i < mShards.length; i++) {
+            flush(i);
+        }
+    }
+
+    /**
+     * Accepts connections on a local port, one at a time, until the process is stopped.
+     */
+    void serve(int port) throws IOException, InterruptedException {
+        ServerSocket server = new ServerSocket(port, 0, InetAddress.getByName(null));
+        try {
+            while (true) {
+                Socket socket = server.accept();
+                try {
+                    ingest(socket.getInputStream());
+                } finally {
+                    socket.close();
+                }
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * Waits for every shard to process what it has been given, then stops them and lets pending
+     * saves finish, retries included, giving up on any still pending after a minute.
+     */
+    void finish() throws InterruptedException {
+        for (Shard shard : mShards) {
+            shard.mQueue.put(END_OF_STREAM);
+        }
+        for (Shard shard : mShards) {
+            shard.join();
+        }
+        if (mStorage != null) {
+            // Storage too slow to catch up within a minute has made its point; drop the rest.
+            mStorage.drain(TimeUnit.MINUTES.toMillis(1));
+        }
+    }
+
+    /**
+     * Returns how many sightings the shards have processed.
+     */
+    long getEventCount() {
+        long events = 0;
+        for (Shard shard : mShards) {
+            events += shard.mEvents.get();
+        }
+        return events;
+    }
+
+    /**
+     * Returns how many sightings changed their scanner's store.
+     */
+    long getChangeCount() {
+        long changes = 0;
+        for (Shard shard : mShards) {
+            changes += shard.mChanges.get();
+        }
+        return changes;
+    }
+
+    void report(long startNanos) {
+        long events = 0;
+        long changes = 0;
+        long rejected = 0;
+        long slow = 0;
+        long slowestNanos = 0;
+        int scanners = 0;
+        for (Shard shard : mShards) {
+            events += shard.mEvents.get();
+            changes += shard.mChanges.get();
+            rejected += shard.mRejected.get();
+            slow += shard.mSlowEvents.get();
+            slowestNanos = Math.max(slowestNanos, shard.mSlowestNanos);
+            scanners += shard.mScannerCount;
+        }
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        System.out.printf("shards=%d scanners=%d events=%d changes=%d rejected=%d"
+                        + " elapsed=%.2fs throughput=%.0f events/s"
+                        + " slowest=%.2fms over-frame=%d%n",
+                mShards.length, scanners, events, changes, rejected, seconds, events / seconds,
+                slowestNanos / 1e6, slow);
+        if (mStorage != null) {
+            System.out.printf("saves=%d failed-saves=%d dropped-saves=%d failed-writes=%d%n",
+                    mStorage.mSaves.get(), mStorage.mFailedSaves.get(),
+                    mStorage.mDroppedSaves.get(), mStorage.mFiles.getFailedWriteCount());
+        }
+    }
+
+    private Thread startReporter(final long startNanos) {
+        Thread reporter = new Thread("gateway-reporter") {
+            @Override
+            public void run() {
+                try {
+                    while (!isInterrupted()) {
+                        Thread.sleep(REPORT_INTERVAL_MILLIS);
+                        report(startNanos);
+                    }
+                } catch (InterruptedException e) {
+                    // Stopped.
+                }
+            }
+        };
+        reporter.setDaemon(true);
+        reporter.start();
+        return reporter;
+    }
+
+    private void flush(int shard) throws InterruptedException {
+        int size = mBatchSizes[shard];
+        if (size == 0) {
+            return;
+        }
+        String[] batch = new String[size];
+        System.arraycopy(mBatches[shard], 0, batch, 0, size);
+        mShards[shard].mQueue.put(batch);
+        mBatchSizes[shard] = 0;
+    }
+
+    /**
+     * Keeps each scanner's messages in its own file, saved behind on a single storage thread.
+     * Saves scheduled once the thread has stopped, such as a retry due after the minute
+     * {@link #finish()} allows, are dropped and counted rather than failing the store.
+     */
+    static final class Storage {
+        private final FaultInjectingFileLayer mFiles;
+        private final File mDir;
+        private final AtomicLong mSaves = new AtomicLong();
+        private final AtomicLong mFailedSaves = new AtomicLong();
+        private final AtomicLong mDroppedSaves = new AtomicLong();
+        private final ScheduledThreadPoolExecutor mExecutor = new ScheduledThreadPoolExecutor(1,
+                new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+                        mDroppedSaves.incrementAndGet();
+                    }
+                });
+
+        Storage(FaultInjectingFileLayer files, File dir) {
+            mFiles = files;
+            mDir = dir;
+        }
+
+        /**
+         * Waits for the saves and retries scheduled so far, and any they schedule in turn, then
+         * stops the storage thread, dropping whatever is still pending after
+         * {@code timeoutMillis}.
+         */
+        void drain(long timeoutMillis) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while ((!mExecutor.getQueue().isEmpty() || mExecutor.getActiveCount() > 0)
+                    && System.nanoTime() < deadline) {
+                Thread.sleep(DRAIN_POLL_MILLIS);
+            }
+            // Whatever is still queued is waiting out a retry backoff past the deadline.
+            mDroppedSaves.addAndGet(mExecutor.getQueue().size());
+            mExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+            mExecutor.shutdown();
+            long remainingNanos = Math.max(0, deadline - System.nanoTime());
+            if (!mExecutor.awaitTermination(remainingNanos, TimeUnit.NANOSECONDS)) {
+                mExecutor.shutdownNow();
+            }
+        }
+
+        long getSaveCount() {
+            return mSaves.get();
+        }
+
+        long getDroppedSaveCount() {
+            return mDroppedSaves.get();
+        }
+
+        MessageStore open(String scannerId) {
+            final MessageRecordFile file = new MessageRecordFile(mFiles, new File(mDir,
+                    Long.toHexString(BeaconEvent.payloadHash(scannerId.getBytes()))));
+            return new MessageStore(new MessageStore.Persistence() {
+                @Override
+                public List<String> load() throws IOException {
+                    return file.load();
+                }
+
+                @Override
+                public void save(List<String> messages) throws IOException {
+                    try {
+                        file.save(messages);
+                        mSaves.incrementAndGet();
+                    } catch (IOException e) {
+                        mFailedSaves.incrementAndGet();
+                        throw e;
+                    }
+                }
+            }, mExecutor, SAVE_DELAY_MILLIS);
+        }
+    }
+
+    /**
+     * A thread that owns the presence state of its scanners.
+     */
+    private static final class Shard extends Thread {
+        private final BlockingQueue<String[]> mQueue =
+                new ArrayBlockingQueue<>(SHARD_QUEUE_BATCHES);
+        private final Storage mStorage;
+        private final Map<String, PresencePipeline> mScanners = new HashMap<>();
+        private final AtomicLong mEvents = new AtomicLong();
+        private final AtomicLong mChanges = new AtomicLong();
+        private final AtomicLong mRejected = new AtomicLong();
+        private final AtomicLong mSlowEvents = new AtomicLong();
+        private volatile long mSlowestNanos;
+        private volatile int mScannerCount;
+
+        Shard(String name, Storage storage) {
+            super(name);
+            mStorage = storage;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    String[] batch = mQueue.take();
+                    if (batch == END_OF_STREAM) {
+                        return;
+                    }
+                    long changes = 0;
+                    for (String line : batch) {
+                        long startNanos = System.nanoTime();
+                        changes += process(line);
+                        long tookNanos = System.nanoTime() - startNanos;
+                        if (tookNanos > mSlowestNanos) {
+                            mSlowestNanos = tookNanos;
+                        }
+                        if (tookNanos > FRAME_BUDGET_NANOS) {
+                            mSlowEvents.incrementAndGet();
+                        }
+                    }
+                    mEvents.addAndGet(batch.length);
+                    mChanges.addAndGet(changes);
+                }
+            } catch (InterruptedException e) {
+                // Stopped.
+            }
+        }
+
+        /**
+         * @return 1 if the sighting changed its scanner's store, otherwise 0.
+         */
+        private int process(String line) {
+            SightingLine sighting = SightingLine.parse(line);
+            if (sighting == null) {
+                mRejected.incrementAndGet();
+                return 0;
+            }
+            PresencePipeline pipeline = mScanners.get(sighting.scannerId);
+            if (pipeline == null) {
+                MessageStore store = mStorage == null
+                        ? new MessageStore(MessageStore.Persistence.NONE)
+                        : mStorage.open(sighting.scannerId);
+                pipeline = new PresencePipeline(store, new VisitAggregator(
+                        MAX_BEACONS_PER_SCANNER, VISIT_HISTORY_SIZE, VISIT_MERGE_GAP_MILLIS));
+                mScanners.put(sighting.scannerId, pipeline);
+                mScannerCount = mScanners.size();
+            }
+            long before = pipeline.getChangeCount();
+            pipeline.onBeaconEvent(sighting.event);
+            return (int) (pipeline.getChangeCount() - before);
+        }
+    }
+}
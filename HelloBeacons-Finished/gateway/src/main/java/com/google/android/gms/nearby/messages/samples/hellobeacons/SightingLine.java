@@ -0,0 +1,93 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+/**
+ * One sighting in the text format read by {@link GatewayRunner} and {@link TraceAnalyzer}:
+ * {@code scannerId,timeMillis,F|L,payload}. The payload is everything after the third comma, so
+ * it may itself contain commas.
+ */
+final class SightingLine {
+    final String scannerId;
+    final BeaconEvent event;
+
+    private SightingLine(String scannerId, BeaconEvent event) {
+        this.scannerId = scannerId;
+        this.event = event;
+    }
+
+    /**
+     * Returns the scanner ID of {@code line} without parsing the rest, or null if it has none.
+     */
+    static String scannerId(String line) {
+        int comma = line.indexOf(',');
+        return comma <= 0 ? null : line.substring(0, comma);
+    }
+
+    /**
+     * Returns the payload of {@code line} without parsing the rest, or null if it has none.
+     */
+    static String payload(String line) {
+        int third = thirdComma(line);
+        return third < 0 ? null : line.substring(third + 1);
+    }
+
+    /**
+     * Parses {@code line}.
+     *
+     * @return The sighting, or null if the line is malformed.
+     */
+    static SightingLine parse(String line) {
+        int first = line.indexOf(',');
+        int third = thirdComma(line);
+        if (first <= 0 || third < 0) {
+            return null;
+        }
+        int second = third - 2;
+        long timeMillis;
+        try {
+            timeMillis = Long.parseLong(line.substring(first + 1, second));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        byte kind;
+        switch (line.charAt(second + 1)) {
+            case 'F':
+                kind = BeaconEvent.KIND_FOUND;
+                break;
+            case 'L':
+                kind = BeaconEvent.KIND_LOST;
+                break;
+            default:
+                return null;
+        }
+        // Recorded sightings carry no Nearby namespace or type.
+        return new SightingLine(line.substring(0, first), new BeaconEvent(kind, null, null,
+                line.substring(third + 1).getBytes(), timeMillis));
+    }
+
+    /**
+     * Returns the index of the comma that ends the kind field, or -1 if the kind field is not a
+     * single character.
+     */
+    private static int thirdComma(String line) {
+        int first = line.indexOf(',');
+        int second = first < 0 ? -1 : line.indexOf(',', first + 1);
+        int third = second < 0 ? -1 : line.indexOf(',', second + 1);
+        return third == second + 2 ? third : -1;
+    }
+}
@@ -0,0 +1,347 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Replays recorded {@link SightingLine} traces through the app's presence code on the JVM, to
+ * tune the visit merge gap and see what a deployment costs in store writes.
+ * <p/>
+ * Presence is independent per beacon, so lines are sharded across threads by payload as they are
+ * read, and each shard replays its beacons' sightings in the order they were recorded. Traces are
+ * streamed rather than loaded: memory grows with the number of beacons and scanners, not with the
+ * length of the trace. Each scanner gets its own {@link PresencePipeline} per beacon, exactly as
+ * the app and {@link GatewayRunner} build them. The tool prints:
+ * <ul>
+ * <li>the flap rate: found events that reopened a visit within the merge gap, per beacon-hour
+ * observed;</li>
+ * <li>write amplification: store writes per visit, where 2 (one add, one remove) is ideal;</li>
+ * <li>percentiles of mean and longest dwell time per beacon and scanner.</li>
+ * </ul>
+ * <p/>
+ * Usage: {@code TraceAnalyzer [--threads N] [--merge-gap-ms MILLIS] FILE...}
+ */
+final class TraceAnalyzer {
+    private static final long DEFAULT_MERGE_GAP_MILLIS = 30 * 1000;
+
+    private static final int BATCH_SIZE = 512;
+    private static final int SHARD_QUEUE_BATCHES = 64;
+
+    private static final double MILLIS_PER_HOUR = 60 * 60 * 1000;
+
+    private static final String[] END_OF_STREAM = new String[0];
+
+    /**
+     * Totals over some set of beacons. Dwell samples are kept so that percentiles can be taken
+     * over the whole trace once all shards are merged.
+     */
+    static final class Stats {
+        long beacons;
+        long events;
+        long rejected;
+        long writes;
+        long adds;
+        long visits;
+        long observedMillis;
+        private long[] mMeanDwells = new long[16];
+        private long[] mMaxDwells = new long[16];
+        private int mDwellCount;
+
+        void addDwell(long meanMillis, long maxMillis) {
+            if (mDwellCount == mMeanDwells.length) {
+                mMeanDwells = Arrays.copyOf(mMeanDwells, mDwellCount * 2);
+                mMaxDwells = Arrays.copyOf(mMaxDwells, mDwellCount * 2);
+            }
+            mMeanDwells[mDwellCount] = meanMillis;
+            mMaxDwells[mDwellCount] = maxMillis;
+            mDwellCount++;
+        }
+
+        void merge(Stats other) {
+            beacons += other.beacons;
+            events += other.events;
+            rejected += other.rejected;
+            writes += other.writes;
+            adds += other.adds;
+            visits += other.visits;
+            observedMillis += other.observedMillis;
+            for (int i = 0; i < other.mDwellCount; i++) {
+                addDwell(other.mMeanDwells[i], other.mMaxDwells[i]);
+            }
+        }
+
+        /**
+         * Found events that continued a visit rather than starting one.
+         */
+        long getFlaps() {
+            return adds - visits;
+        }
+
+        double getFlapsPerBeaconHour() {
+            return observedMillis == 0 ? 0 : getFlaps() / (observedMillis / MILLIS_PER_HOUR);
+        }
+
+        double getWriteAmplification() {
+            return visits == 0 ? 0 : (double) writes / visits;
+        }
+
+        long[] getMeanDwellPercentiles(double... percentiles) {
+            return percentiles(mMeanDwells, percentiles);
+        }
+
+        long[] getMaxDwellPercentiles(double... percentiles) {
+            return percentiles(mMaxDwells, percentiles);
+        }
+
+        private long[] percentiles(long[] samples, double[] percentiles) {
+            long[] sorted = Arrays.copyOf(samples, mDwellCount);
+            Arrays.sort(sorted);
+            long[] result = new long[percentiles.length];
+            for (int i = 0; i < percentiles.length && sorted.length > 0; i++) {
+                int rank = (int) Math.ceil(percentiles[i] / 100 * sorted.length) - 1;
+                result[i] = sorted[Math.max(0, Math.min(sorted.length - 1, rank))];
+            }
+            return result;
+        }
+    }
+
+    private final long mMergeGapMillis;
+    private final Shard[] mShards;
+    private final String[][] mBatches;
+    private final int[] mBatchSizes;
+
+    TraceAnalyzer(long mergeGapMillis, int shardCount) {
+        mMergeGapMillis = mergeGapMillis;
+        mShards = new Shard[shardCount];
+        mBatches = new String[shardCount][];
+        mBatchSizes = new int[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            mShards[i] = new Shard("trace-shard-" + i);
+            mBatches[i] = new String[BATCH_SIZE];
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        long mergeGapMillis = DEFAULT_MERGE_GAP_MILLIS;
+        List<String> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if ("--threads".equals(args[i]) && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if ("--merge-gap-ms".equals(args[i]) && i + 1 < args.length) {
+                mergeGapMillis = Long.parseLong(args[++i]);
+            } else {
+                files.add(args[i]);
+            }
+        }
+        if (files.isEmpty() || threads <= 0) {
+            System.err.println(
+                    "Usage: TraceAnalyzer [--threads N] [--merge-gap-ms MILLIS] FILE...");
+            System.exit(2);
+        }
+
+        long startNanos = System.nanoTime();
+        TraceAnalyzer analyzer = new TraceAnalyzer(mergeGapMillis, threads);
+        analyzer.start();
+        for (String file : files) {
+            InputStream in = new FileInputStream(file);
+            try {
+                analyzer.ingest(in);
+            } finally {
+                in.close();
+            }
+        }
+        Stats stats = analyzer.finish();
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+
+        long[] meanDwell = stats.getMeanDwellPercentiles(50, 90, 99);
+        long[] maxDwell = stats.getMaxDwellPercentiles(50, 90, 99);
+        System.out.printf("beacons=%d events=%d rejected=%d visits=%d%n",
+                stats.beacons, stats.events, stats.rejected, stats.visits);
+        System.out.printf("flaps=%d (%.2f per beacon-hour, %.1f%% of found events)%n",
+                stats.getFlaps(), stats.getFlapsPerBeaconHour(),
+                stats.adds == 0 ? 0 : 100.0 * stats.getFlaps() / stats.adds);
+        System.out.printf("write amplification=%.2f store writes per visit (%d writes)%n",
+                stats.getWriteAmplification(), stats.writes);
+        System.out.printf("mean dwell ms p50=%d p90=%d p99=%d%n",
+                meanDwell[0], meanDwell[1], meanDwell[2]);
+        System.out.printf("max dwell ms p50=%d p90=%d p99=%d%n",
+                maxDwell[0], maxDwell[1], maxDwell[2]);
+        System.out.printf("threads=%d elapsed=%.2fs throughput=%.0f events/s%n",
+                threads, seconds, stats.events / seconds);
+    }
+
+    void start() {
+        for (Shard shard : mShards) {
+            shard.start();
+        }
+    }
+
+    /**
+     * Reads sightings until the end of {@code in}, handing them to the shards as it goes. Not
+     * thread-safe: one stream at a time, and all of them before {@link #finish()}.
+     */
+    void ingest(InputStream in) throws IOException, InterruptedException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String payload = SightingLine.payload(line);
+            if (payload == null) {
+                continue;
+            }
+            int shard = (payload.hashCode() & Integer.MAX_VALUE) % mShards.length;
+            mBatches[shard][mBatchSizes[shard]++] = line;
+            if (mBatchSizes[shard] == BATCH_SIZE) {
+                flush(shard);
+            }
+        }
+    }
+
+    /**
+     * Waits for every shard to replay what it has been given, then stops them.
+     *
+     * @return The totals over the whole trace.
+     */
+    Stats finish() throws InterruptedException {
+        for (int i = 0; i < mShards.length; i++) {
+            flush(i);
+            mShards[i].mQueue.put(END_OF_STREAM);
+        }
+        Stats stats = new Stats();
+        for (Shard shard : mShards) {
+            shard.join();
+            stats.merge(shard.mStats);
+        }
+        return stats;
+    }
+
+    private void flush(int shard) throws InterruptedException {
+        int size = mBatchSizes[shard];
+        if (size == 0) {
+            return;
+        }
+        String[] batch = new String[size];
+        System.arraycopy(mBatches[shard], 0, batch, 0, size);
+        mShards[shard].mQueue.put(batch);
+        mBatchSizes[shard] = 0;
+    }
+
+    /**
+     * The replay state of one beacon: a pipeline and the observed time span for each scanner.
+     */
+    private final class Beacon {
+        private final Map<String, PresencePipeline> mScanners = new HashMap<>();
+        private final Map<String, long[]> mSpans = new HashMap<>();
+        private String mPayload;
+
+        void replay(SightingLine sighting) {
+            mPayload = sighting.event.text;
+            PresencePipeline pipeline = mScanners.get(sighting.scannerId);
+            long[] span = mSpans.get(sighting.scannerId);
+            if (pipeline == null) {
+                // Each pipeline sees a single payload, so it tracks a single beacon.
+                pipeline = new PresencePipeline(new MessageStore(MessageStore.Persistence.NONE),
+                        new VisitAggregator(1, 1, mMergeGapMillis));
+                mScanners.put(sighting.scannerId, pipeline);
+                span = new long[] {sighting.event.timeMillis, sighting.event.timeMillis};
+                mSpans.put(sighting.scannerId, span);
+            }
+            pipeline.onBeaconEvent(sighting.event);
+            span[1] = sighting.event.timeMillis;
+        }
+
+        void addTo(Stats stats) {
+            stats.beacons++;
+            for (Map.Entry<String, PresencePipeline> entry : mScanners.entrySet()) {
+                PresencePipeline pipeline = entry.getValue();
+                long[] span = mSpans.get(entry.getKey());
+                VisitAggregator visits = pipeline.getVisits();
+                int visitCount = visits.getVisitCount(mPayload);
+                stats.events += pipeline.getEventCount();
+                stats.writes += pipeline.getChangeCount();
+                stats.adds += pipeline.getAddCount();
+                stats.visits += visitCount;
+                stats.observedMillis += span[1] - span[0];
+                if (visitCount > 0) {
+                    stats.addDwell(visits.getTotalDwellMillis(mPayload, span[1]) / visitCount,
+                            visits.getMaxDwellMillis(mPayload, span[1]));
+                }
+            }
+        }
+    }
+
+    /**
+     * A thread that owns the replay state of its beacons.
+     */
+    private final class Shard extends Thread {
+        private final BlockingQueue<String[]> mQueue =
+                new ArrayBlockingQueue<>(SHARD_QUEUE_BATCHES);
+        private final Map<String, Beacon> mBeacons = new HashMap<>();
+        private final Stats mStats = new Stats();
+
+        Shard(String name) {
+            super(name);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    String[] batch = mQueue.take();
+                    if (batch == END_OF_STREAM) {
+                        break;
+                    }
+                    for (String line : batch) {
+                        replay(line);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Stopped; report what was replayed.
+            }
+            for (Beacon beacon : mBeacons.values()) {
+                beacon.addTo(mStats);
+            }
+        }
+
+        private void replay(String line) {
+            SightingLine sighting = SightingLine.parse(line);
+            if (sighting == null) {
+                mStats.rejected++;
+                return;
+            }
+            String payload = SightingLine.payload(line);
+            Beacon beacon = mBeacons.get(payload);
+            if (beacon == null) {
+                beacon = new Beacon();
+                mBeacons.put(payload, beacon);
+            }
+            beacon.replay(sighting);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class GatewayRunnerTest {
+    private static final int SCANNERS = 256;
+    private static final int BEACONS = 32;
+    private static final int ROUNDS = 40;
+    private static final int RUNS = 3;
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("gateway", "");
+        assertTrue(mDir.delete() && mDir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    /**
+     * Each round, every scanner sees every beacon once per kind, in that order. With found and
+     * then lost, every sighting changes a store.
+     */
+    private static byte[] trace(int scanners, int beacons, int rounds, String... kinds) {
+        StringBuilder trace = new StringBuilder();
+        long timeMillis = 0;
+        for (int round = 0; round < rounds; round++) {
+            for (String kind : kinds) {
+                for (int beacon = 0; beacon < beacons; beacon++) {
+                    timeMillis += 10;
+                    for (int scanner = 0; scanner < scanners; scanner++) {
+                        trace.append("scanner-").append(scanner).append(',').append(timeMillis)
+                                .append(',').append(kind).append(",beacon-").append(beacon)
+                                .append('\n');
+                    }
+                }
+            }
+        }
+        return trace.toString().getBytes(Charset.forName("UTF-8"));
+    }
+
+    /**
+     * Returns the sightings per second through {@code runner}, from the first line read until
+     * every shard has finished.
+     */
+    private static double run(GatewayRunner runner, byte[] trace) throws Exception {
+        runner.start();
+        long startNanos = System.nanoTime();
+        runner.ingest(new ByteArrayInputStream(trace));
+        runner.finish();
+        return runner.getEventCount() / ((System.nanoTime() - startNanos) / 1e9);
+    }
+
+    @Test
+    public void throughputScalesWithShards() throws Exception {
+        byte[] trace = trace(SCANNERS, BEACONS, ROUNDS, "F", "L");
+        long lines = (long) SCANNERS * BEACONS * ROUNDS * 2;
+        // Warm up the JIT on the single-shard path before timing anything.
+        run(new GatewayRunner(1, null), trace);
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        int[] shardCounts = {1, 2, 4};
+        double[] best = new double[shardCounts.length];
+        for (int i = 0; i < shardCounts.length; i++) {
+            for (int run = 0; run < RUNS; run++) {
+                GatewayRunner runner = new GatewayRunner(shardCounts[i], null);
+                best[i] = Math.max(best[i], run(runner, trace));
+                assertEquals(lines, runner.getEventCount());
+                assertEquals(lines, runner.getChangeCount());
+            }
+            System.out.printf("cores=%d shards=%d throughput=%.0f events/s speedup=%.2fx%n",
+                    cores, shardCounts[i], best[i], best[i] / best[0]);
+        }
+
+        // The ingest thread needs a core of its own too, so expect a fraction of linear.
+        assumeTrue(cores >= 2);
+        int most = cores >= 4 ? 2 : 1;
+        int shards = shardCounts[most];
+        double speedup = best[most] / best[0];
+        assertTrue("speedup " + speedup + " with " + shards + " shards",
+                speedup >= 1 + 0.35 * (shards - 1));
+    }
+
+    @Test
+    public void finishWaitsForSavesRetriedAfterAFailure() throws Exception {
+        final FaultInjectingFileLayer files = new FaultInjectingFileLayer(FileLayer.DISK);
+        files.setFreeBytes(0);
+        GatewayRunner.Storage storage = new GatewayRunner.Storage(files, mDir);
+        GatewayRunner runner = new GatewayRunner(2, storage);
+        Thread freeSpace = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    // Past the first save, so that only the retry can succeed.
+                    Thread.sleep(500);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                files.setFreeBytes(Long.MAX_VALUE);
+            }
+        };
+        freeSpace.start();
+        run(runner, trace(4, 3, 1, "F"));
+        freeSpace.join();
+
+        assertTrue(files.getFailedWriteCount() > 0);
+        assertEquals(0, storage.getDroppedSaveCount());
+        assertTrue(storage.getSaveCount() >= 4);
+        for (int scanner = 0; scanner < 4; scanner++) {
+            String scannerId = "scanner-" + scanner;
+            List<String> saved = new MessageRecordFile(FileLayer.DISK, new File(mDir,
+                    Long.toHexString(BeaconEvent.payloadHash(scannerId.getBytes())))).load();
+            assertEquals(scannerId, Arrays.asList("beacon-2", "beacon-1", "beacon-0"), saved);
+        }
+    }
+
+    @Test
+    public void savesStillPendingAtTheDeadlineAreCountedAsDropped() throws Exception {
+        FaultInjectingFileLayer files = new FaultInjectingFileLayer(FileLayer.DISK);
+        files.setFreeBytes(0);
+        GatewayRunner.Storage storage = new GatewayRunner.Storage(files, mDir);
+        MessageStore store = storage.open("scanner-0");
+        store.add("beacon-0");
+
+        // Long enough for the first save to fail, not for its retry to come due.
+        storage.drain(600);
+
+        assertEquals(1, storage.getDroppedSaveCount());
+        assertEquals(0, storage.getSaveCount());
+        assertEquals(1, store.getFailureCount());
+    }
+}
@@ -0,0 +1,190 @@
+/**
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.nearby.messages.samples.hellobeacons;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class TraceAnalyzerTest {
+    private static final long MERGE_GAP_MILLIS = 30 * 1000;
+    private static final double DELTA = 1e-9;
+
+    /**
+     * Two beacons with a 30 s merge gap, with the statistics worked out by hand:
+     * <ul>
+     * <li>door, seen by s1: lost for 10 s (a flap), then for 180 s (a new visit). Visits of
+     * 120 s and 60 s over 360 s observed; 3 adds and 6 writes.</li>
+     * <li>desk, seen by s1: one 30 s visit, found twice without a loss in between, so 1 add and
+     * 2 writes over 30 s observed.</li>
+     * <li>desk, seen by s2: lost twice for 15 s (two flaps), so one 100 s visit over 100 s
+     * observed; 3 adds and 6 writes.</li>
+     * </ul>
+     * Plus one line that does not parse.
+     */
+    private static final String FIXTURE = ""
+            + "s1,0,F,door\n"
+            + "s1,0,F,desk\n"
+            + "s2,0,F,desk\n"
+            + "s2,5000,L,desk\n"
+            + "s1,10000,F,desk\n"
+            + "s1,notatime,F,door\n"
+            + "s2,20000,F,desk\n"
+            + "s2,25000,L,desk\n"
+            + "s1,30000,L,desk\n"
+            + "s2,40000,F,desk\n"
+            + "s1,60000,L,door\n"
+            + "s1,70000,F,door\n"
+            + "s2,100000,L,desk\n"
+            + "s1,120000,L,door\n"
+            + "s1,300000,F,door\n"
+            + "s1,360000,L,door\n";
+
+    private static final int BEACONS = 512;
+    private static final int SCANNERS = 8;
+    private static final int CYCLES = 40;
+    private static final long CYCLE_MILLIS = 200 * 1000;
+    private static final int RUNS = 3;
+
+    private static byte[] bytes(String trace) {
+        return trace.getBytes(Charset.forName("UTF-8"));
+    }
+
+    private static TraceAnalyzer.Stats analyze(byte[] trace, int shards) throws Exception {
+        TraceAnalyzer analyzer = new TraceAnalyzer(MERGE_GAP_MILLIS, shards);
+        analyzer.start();
+        analyzer.ingest(new ByteArrayInputStream(trace));
+        return analyzer.finish();
+    }
+
+    /**
+     * Every cycle, each scanner sees each beacon for 20 s, loses it for 10 s (a flap), sees it
+     * for 30 s more and then loses it for the rest of the cycle, ending the visit.
+     */
+    private static byte[] cycles(int beacons, int scanners, int cycles) {
+        long[] offsets = {0, 20 * 1000, 30 * 1000, 60 * 1000};
+        String[] kinds = {"F", "L", "F", "L"};
+        StringBuilder trace = new StringBuilder();
+        for (int cycle = 0; cycle < cycles; cycle++) {
+            for (int step = 0; step < offsets.length; step++) {
+                long timeMillis = cycle * CYCLE_MILLIS + offsets[step];
+                for (int beacon = 0; beacon < beacons; beacon++) {
+                    for (int scanner = 0; scanner < scanners; scanner++) {
+                        trace.append('s').append(scanner).append(',').append(timeMillis)
+                                .append(',').append(kinds[step]).append(",beacon-")
+                                .append(beacon).append('\n');
+                    }
+                }
+            }
+        }
+        return bytes(trace.toString());
+    }
+
+    private static void assertSameStats(TraceAnalyzer.Stats expected,
+            TraceAnalyzer.Stats actual) {
+        double[] percentiles = {50, 90, 99};
+        assertEquals(expected.beacons, actual.beacons);
+        assertEquals(expected.events, actual.events);
+        assertEquals(expected.rejected, actual.rejected);
+        assertEquals(expected.writes, actual.writes);
+        assertEquals(expected.adds, actual.adds);
+        assertEquals(expected.visits, actual.visits);
+        assertEquals(expected.observedMillis, actual.observedMillis);
+        assertArrayEquals(expected.getMeanDwellPercentiles(percentiles),
+                actual.getMeanDwellPercentiles(percentiles));
+        assertArrayEquals(expected.getMaxDwellPercentiles(percentiles),
+                actual.getMaxDwellPercentiles(percentiles));
+    }
+
+    @Test
+    public void fixtureHasTheKnownStatistics() throws Exception {
+        TraceAnalyzer.Stats stats = analyze(bytes(FIXTURE), 1);
+
+        assertEquals(2, stats.beacons);
+        assertEquals(15, stats.events);
+        assertEquals(1, stats.rejected);
+        assertEquals(7, stats.adds);
+        assertEquals(4, stats.visits);
+        assertEquals(3, stats.getFlaps());
+        assertEquals((360 + 30 + 100) * 1000, stats.observedMillis);
+        assertEquals(3 / (490 / 3600.0), stats.getFlapsPerBeaconHour(), DELTA);
+        assertEquals(14, stats.writes);
+        assertEquals(3.5, stats.getWriteAmplification(), DELTA);
+        // Mean dwells per beacon and scanner are 30 s, 90 s and 100 s; longest 30 s, 100 s and
+        // 120 s.
+        assertArrayEquals(new long[] {30 * 1000, 90 * 1000, 100 * 1000},
+                stats.getMeanDwellPercentiles(0, 50, 100));
+        assertArrayEquals(new long[] {30 * 1000, 100 * 1000, 120 * 1000},
+                stats.getMaxDwellPercentiles(0, 50, 100));
+    }
+
+    @Test
+    public void fixtureStatisticsDoNotDependOnShardCount() throws Exception {
+        byte[] trace = bytes(FIXTURE);
+        TraceAnalyzer.Stats single = analyze(trace, 1);
+        for (int shards = 2; shards <= 4; shards++) {
+            assertSameStats(single, analyze(trace, shards));
+        }
+    }
+
+    @Test
+    public void shardsSpeedUpALargeTraceWithoutChangingItsStatistics() throws Exception {
+        byte[] trace = cycles(BEACONS, SCANNERS, CYCLES);
+        long pairs = (long) BEACONS * SCANNERS;
+        // Warm up the JIT on the single-shard path before timing anything.
+        analyze(trace, 1);
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        int[] shardCounts = {1, 2, 4};
+        double[] best = new double[shardCounts.length];
+        TraceAnalyzer.Stats single = null;
+        for (int i = 0; i < shardCounts.length; i++) {
+            for (int run = 0; run < RUNS; run++) {
+                long startNanos = System.nanoTime();
+                TraceAnalyzer.Stats stats = analyze(trace, shardCounts[i]);
+                double seconds = (System.nanoTime() - startNanos) / 1e9;
+                best[i] = Math.max(best[i], stats.events / seconds);
+                if (single == null) {
+                    single = stats;
+                    assertEquals(BEACONS, stats.beacons);
+                    assertEquals(pairs * CYCLES * 4, stats.events);
+                    assertEquals(pairs * CYCLES, stats.visits);
+                    assertEquals(pairs * CYCLES, stats.getFlaps());
+                    assertEquals(4.0, stats.getWriteAmplification(), DELTA);
+                } else {
+                    assertSameStats(single, stats);
+                }
+            }
+            System.out.printf("cores=%d shards=%d throughput=%.0f events/s speedup=%.2fx%n",
+                    cores, shardCounts[i], best[i], best[i] / best[0]);
+        }
+
+        // The reading thread needs a core of its own too, so expect a fraction of linear.
+        assumeTrue(cores >= 2);
+        int most = cores >= 4 ? 2 : 1;
+        int shards = shardCounts[most];
+        double speedup = best[most] / best[0];
+        assertTrue("speedup " + speedup + " with " + shards + " shards",
+                speedup >= 1 + 0.35 * (shards - 1));
+    }
+}